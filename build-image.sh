@@ -1,2 +1,6 @@
 #!/bin/bash
-docker build -t hsldevcom/transitdata-tripupdate-processor .
+if [[ "$1" = "jdk21" ]]; then
+  docker build -f Dockerfile.jdk21 -t hsldevcom/transitdata-tripupdate-processor:jdk21 .
+else
+  docker build -t hsldevcom/transitdata-tripupdate-processor .
+fi
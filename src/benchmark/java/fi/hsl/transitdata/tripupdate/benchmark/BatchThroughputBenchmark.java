@@ -0,0 +1,94 @@
+package fi.hsl.transitdata.tripupdate.benchmark;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.gtfsrt.FeedMessageFactory;
+import fi.hsl.common.transitdata.TransitdataSchema;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.PulsarMocks;
+import fi.hsl.transitdata.tripupdate.application.BatchHandler;
+import fi.hsl.transitdata.tripupdate.processing.AbstractMessageProcessor;
+import fi.hsl.transitdata.tripupdate.processing.StopEstimateProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripCancellationProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import org.apache.pulsar.client.api.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares throughput of the message-per-message path of MessageRouter to BatchHandler.
+ *
+ * Estimates of all trips are interleaved in time order like on the real topic, and each invocation processes all of them
+ * with empty trip state. Publishing is simulated by serializing the FeedMessage, which is what the producer gets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchThroughputBenchmark {
+    private static final int TRIP_COUNT = 500;
+    private static final int STOPS_PER_TRIP = 30;
+    private static final int MESSAGE_COUNT = TRIP_COUNT * STOPS_PER_TRIP * 2;
+
+    @Param({"100", "1000"})
+    int batchSize;
+
+    private List<Message> messages;
+
+    private StopEstimateProcessor stopEstimateProcessor;
+    private BatchHandler batchHandler;
+    private long publishedBytes;
+
+    @Setup(Level.Trial)
+    public void createMessages() throws Exception {
+        List<InternalMessages.StopEstimate> estimates = SyntheticTrips.stopEstimates(TRIP_COUNT, STOPS_PER_TRIP, 42);
+        estimates.sort(Comparator.comparingLong(InternalMessages.StopEstimate::getLastModifiedUtcMs));
+        messages = new ArrayList<>(estimates.size());
+        for (InternalMessages.StopEstimate estimate : estimates) {
+            messages.add(PulsarMocks.stopEstimateMessage(estimate, estimate.getLastModifiedUtcMs()));
+        }
+    }
+
+    //Every invocation processes thousands of messages, so per-invocation setup doesn't skew the results
+    @Setup(Level.Invocation)
+    public void resetState() {
+        TripUpdateProcessor tripUpdateProcessor = new TripUpdateProcessor(null);
+        stopEstimateProcessor = new StopEstimateProcessor(tripUpdateProcessor);
+        batchHandler = new BatchHandler(null, tripUpdateProcessor,
+                stopEstimateProcessor, new TripCancellationProcessor(tripUpdateProcessor),
+                this::publish, 0);
+    }
+
+    private void publish(String tripId, GtfsRealtime.TripUpdate tripUpdate, Message source) {
+        publishedBytes += FeedMessageFactory.createDifferentialFeedMessage(tripId, tripUpdate, tripUpdate.getTimestamp()).toByteArray().length;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public long perMessage() {
+        for (Message msg : messages) {
+            //Same steps as MessageRouter.handleMessage(), all messages being StopEstimates
+            Optional<TransitdataSchema> schema = TransitdataSchema.parseFromPulsarMessage(msg);
+            if (schema.isPresent() && stopEstimateProcessor.validateMessage(msg.getData())) {
+                Optional<AbstractMessageProcessor.TripUpdateWithId> maybeTripUpdate = stopEstimateProcessor.processMessage(msg);
+                maybeTripUpdate.ifPresent(pair -> publish(pair.getTripId(), pair.getTripUpdate(), msg));
+            }
+        }
+        return publishedBytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public long batched() {
+        for (int from = 0; from < messages.size(); from += batchSize) {
+            batchHandler.process(messages.subList(from, Math.min(from + batchSize, messages.size())), false);
+        }
+        return publishedBytes;
+    }
+}
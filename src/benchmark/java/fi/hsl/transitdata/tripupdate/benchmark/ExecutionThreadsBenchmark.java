@@ -0,0 +1,101 @@
+package fi.hsl.transitdata.tripupdate.benchmark;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.gtfsrt.FeedMessageFactory;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.PulsarMocks;
+import fi.hsl.transitdata.tripupdate.application.ExecutionThreads;
+import fi.hsl.transitdata.tripupdate.application.PipelinedHandler;
+import fi.hsl.transitdata.tripupdate.processing.StopEstimateProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripCancellationProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import org.apache.pulsar.client.api.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares throughput of the pipeline running in platform threads to running in virtual threads, with a high amount
+ * of trips so that messages spread over all workers.
+ *
+ * Publishing serializes the FeedMessage, and acknowledgements complete through the completion executor like in
+ * MessageRouter. Virtual threads allow far more workers per stage, so both modes are measured with a few and with
+ * many workers. The virtual mode requires JDK 21, build with -P benchmark,jdk21.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutionThreadsBenchmark {
+    private static final int TRIP_COUNT = 20000;
+    private static final int STOPS_PER_TRIP = 5;
+    private static final int MESSAGE_COUNT = TRIP_COUNT * STOPS_PER_TRIP * 2;
+
+    @Param({"platform", "virtual"})
+    String threads;
+
+    @Param({"4", "256"})
+    int workers;
+
+    private List<Message> messages;
+
+    private PipelinedHandler handler;
+    private Executor completionExecutor;
+    private volatile CountDownLatch done;
+    private final LongAdder publishedBytes = new LongAdder();
+
+    @Setup(Level.Trial)
+    public void createMessages() throws Exception {
+        List<InternalMessages.StopEstimate> estimates = SyntheticTrips.stopEstimates(TRIP_COUNT, STOPS_PER_TRIP, 42);
+        estimates.sort(Comparator.comparingLong(InternalMessages.StopEstimate::getLastModifiedUtcMs));
+        messages = new ArrayList<>(estimates.size());
+        for (InternalMessages.StopEstimate estimate : estimates) {
+            messages.add(PulsarMocks.stopEstimateMessage(estimate, estimate.getLastModifiedUtcMs()));
+        }
+    }
+
+    //Every invocation processes hundreds of thousands of messages, so per-invocation setup doesn't skew the results
+    @Setup(Level.Invocation)
+    public void startPipeline() {
+        final ExecutionThreads.Mode mode = ExecutionThreads.Mode.parse(threads);
+        completionExecutor = ExecutionThreads.completionExecutor(mode);
+        done = new CountDownLatch(messages.size());
+        TripUpdateProcessor tripUpdateProcessor = new TripUpdateProcessor(null);
+        handler = new PipelinedHandler(tripUpdateProcessor,
+                new StopEstimateProcessor(tripUpdateProcessor), new TripCancellationProcessor(tripUpdateProcessor),
+                new Object(), this::publish, this::acknowledge, mode, workers, workers, 1000);
+        handler.start();
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopPipeline() throws Exception {
+        handler.close();
+    }
+
+    private void publish(String tripId, GtfsRealtime.TripUpdate tripUpdate, Message source) {
+        publishedBytes.add(FeedMessageFactory.createDifferentialFeedMessage(tripId, tripUpdate, tripUpdate.getTimestamp()).toByteArray().length);
+    }
+
+    private void acknowledge(Message msg) {
+        CompletableFuture.completedFuture(msg).whenCompleteAsync((result, throwable) -> done.countDown(), completionExecutor);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public long pipelined() throws Exception {
+        for (Message msg : messages) {
+            handler.submit(msg);
+        }
+        done.await();
+        return publishedBytes.sum();
+    }
+}
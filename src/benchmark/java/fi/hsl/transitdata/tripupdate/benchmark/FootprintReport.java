@@ -0,0 +1,168 @@
+package fi.hsl.transitdata.tripupdate.benchmark;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.WorkloadGenerator;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import fi.hsl.transitdata.tripupdate.state.HeapTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.MappedTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.StopVersions;
+import fi.hsl.transitdata.tripupdate.state.StringInterner;
+import fi.hsl.transitdata.tripupdate.state.TripIndex;
+import fi.hsl.transitdata.tripupdate.state.TripState;
+import fi.hsl.transitdata.tripupdate.state.TripStateGovernor;
+import fi.hsl.transitdata.tripupdate.state.TripStateStore;
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prints retained heap of the data structures we keep per trip, measured by walking the object graph with JOL.
+ *
+ * Trip state is measured with bus, tram and metro trips of realistic length, for each Representation. Add a new
+ * representation of trip state here to have numbers to compare with.
+ *
+ * Usage: mvn verify -P benchmark (runs before the JMH benchmarks)
+ */
+public class FootprintReport {
+
+    private static final int[] TRIP_COUNTS = {2000, 20000};
+    //Roughly the amount of trips active at the same time during rush hour
+    private static final int ACTIVE_TRIP_COUNT = 2000;
+
+    /**
+     * Ways of keeping trip state, each measured with the same trips
+     */
+    enum Representation {
+        HEAP("heap"),
+        HEAP_INTERNED("heap, interned"),
+        MAPPED_INTERNED("mapped, 10% on heap, interned");
+
+        final String name;
+
+        Representation(String name) {
+            this.name = name;
+        }
+
+        StringInterner newInterner() {
+            return this == HEAP ? StringInterner.disabled() : new StringInterner(100000);
+        }
+
+        TripStateStore newStore(int tripCount) throws IOException {
+            if (this == MAPPED_INTERNED) {
+                //File is deleted when the store is closed
+                return new MappedTripStateStore(Files.createTempFile("footprint", ".states"), 1 << 20, Math.max(1, tripCount / 10));
+            }
+            return new HeapTripStateStore();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        reportLayouts();
+        for (int tripCount : TRIP_COUNTS) {
+            reportTripIndex(tripCount);
+        }
+        for (WorkloadGenerator.Mode mode : WorkloadGenerator.Mode.values()) {
+            for (Representation representation : Representation.values()) {
+                reportTripState(mode, representation, ACTIVE_TRIP_COUNT);
+            }
+        }
+    }
+
+    static void reportLayouts() {
+        System.out.println(ClassLayout.parseClass(TripState.class).toPrintable());
+        System.out.println(ClassLayout.parseClass(StopVersions.class).toPrintable());
+    }
+
+    static void reportTripIndex(int tripCount) {
+        //All entries share one value so that only the cost of keys and the table itself is measured
+        final Object value = new Object();
+        Map<String, Object> hashMap = new HashMap<>();
+        TripIndex<Object> tripIndex = new TripIndex<>();
+        for (char[] id : TripIds.realistic(tripCount, 42)) {
+            hashMap.put(new String(id), value);
+            tripIndex.put(new String(id), value);
+        }
+        print("HashMap<String, V>", tripCount, GraphLayout.parseInstance(hashMap).totalSize());
+        print("TripIndex<V>", tripCount, GraphLayout.parseInstance(tripIndex).totalSize());
+    }
+
+    /**
+     * Loads the trips through TripUpdateProcessor and prints what it retains per trip and per stop.
+     *
+     * States kept on heap are broken down by what they cache. Each object is counted only in the first part it's
+     * reachable from, so f.ex. Strings shared with the interner are counted in the StopTimeUpdates.
+     */
+    static void reportTripState(WorkloadGenerator.Mode mode, Representation representation, int tripCount) throws Exception {
+        List<InternalMessages.StopEstimate> estimates = SyntheticTrips.stopEstimates(mode, tripCount, 42);
+        final int stopCount = estimates.size() / InternalMessages.StopEstimate.Type.values().length;
+
+        final StringInterner interner = representation.newInterner();
+        try (TripStateStore store = representation.newStore(tripCount)) {
+            //Unlimited so that no trip is shed while loading
+            TripStateGovernor governor = new TripStateGovernor(Long.MAX_VALUE, 1.0, Long.MAX_VALUE, Long.MAX_VALUE);
+            TripUpdateProcessor processor = new TripUpdateProcessor(null, interner, governor, null, store);
+            for (InternalMessages.StopEstimate estimate : estimates) {
+                processor.processStopEstimate(estimate);
+            }
+
+            final String name = mode + ", " + representation.name;
+            final long totalBytes = GraphLayout.parseInstance(store, interner).totalSize();
+            print(name, tripCount, stopCount, totalBytes);
+            if (store instanceof HeapTripStateStore) {
+                List<Object> stopTimeUpdates = new ArrayList<>();
+                List<Object> tripUpdates = new ArrayList<>();
+                List<Object> stopVersions = new ArrayList<>();
+                store.forEach((tripId, state) -> {
+                    stopTimeUpdates.add(state.getStopTimeUpdates());
+                    tripUpdates.add(state.getTripUpdate());
+                    stopVersions.add(state.getStopVersions());
+                });
+                long counted = 0;
+                counted += printPart("raw StopTimeUpdates", tripCount, stopCount, counted, stopTimeUpdates);
+                counted += printPart("built TripUpdates", tripCount, stopCount, counted, stopTimeUpdates, tripUpdates);
+                counted += printPart("stop versions", tripCount, stopCount, counted, stopTimeUpdates, tripUpdates, stopVersions);
+                counted += printPart("trip index and TripStates", tripCount, stopCount, counted, store);
+                printPart("interner pool", tripCount, stopCount, counted, store, interner);
+            } else {
+                printPart("on heap", tripCount, stopCount, 0, store, interner);
+                print("  in mapped file", tripCount, stopCount, store.getStorageBytes());
+            }
+        }
+    }
+
+    /**
+     * Prints retained heap of the roots not yet counted
+     *
+     * @param roots objects or lists of objects reachable from the parts already counted and from this part
+     * @return bytes of this part
+     */
+    private static long printPart(String name, int tripCount, int stopCount, long countedBytes, Object... roots) {
+        List<Object> objects = new ArrayList<>();
+        for (Object root : roots) {
+            if (root instanceof List) {
+                objects.addAll((List<?>) root);
+            } else {
+                objects.add(root);
+            }
+        }
+        final long bytes = GraphLayout.parseInstance(objects.toArray()).totalSize() - countedBytes;
+        print("  " + name, tripCount, stopCount, bytes);
+        return bytes;
+    }
+
+    static void print(String name, int tripCount, long totalBytes) {
+        System.out.println(String.format("%-40s trips=%6d total=%10d B  per trip=%8.1f B",
+                name, tripCount, totalBytes, (double) totalBytes / tripCount));
+    }
+
+    static void print(String name, int tripCount, int stopCount, long totalBytes) {
+        System.out.println(String.format("%-40s trips=%6d stops=%7d total=%10d B  per trip=%8.1f B  per stop=%6.1f B",
+                name, tripCount, stopCount, totalBytes, (double) totalBytes / tripCount, (double) totalBytes / stopCount));
+    }
+}
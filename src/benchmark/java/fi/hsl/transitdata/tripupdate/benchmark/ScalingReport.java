@@ -0,0 +1,163 @@
+package fi.hsl.transitdata.tripupdate.benchmark;
+
+import com.typesafe.config.ConfigFactory;
+import fi.hsl.common.pulsar.PulsarApplicationContext;
+import fi.hsl.transitdata.tripupdate.PulsarMocks;
+import fi.hsl.transitdata.tripupdate.WorkloadGenerator;
+import fi.hsl.transitdata.tripupdate.application.MessageRouter;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.pulsar.client.api.Message;
+
+import java.lang.management.ManagementFactory;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the full processing pipeline of MessageRouter with increasing amounts of workers on a generated workload,
+ * and prints throughput, p99 latency, CPU time per message, serial fraction and scaling efficiency relative to one worker.
+ *
+ * Workers are threads of each parallel stage of the pipeline, trip state is always applied by a single thread. So N workers
+ * run 2N+1 threads, and efficiency is throughput per thread relative to that of the run with one worker. The serial
+ * fraction is the utilization of the thread applying trip state, which bounds how far the pipeline can scale.
+ * Pulsar is replaced by in-process mocks. Messages are submitted as fast as the pipeline accepts them, so latency
+ * from submit to acknowledgement is measured at saturation and mostly consists of queueing.
+ *
+ * Fails if scaling efficiency of any run with at most as many threads as there are cores is below
+ * -Dscaling.minEfficiency (default 0.5).
+ *
+ * Usage: mvn verify -P benchmark (runs before the JMH benchmarks)
+ */
+public class ScalingReport {
+    private static final long MAX_LATENCY_NS = TimeUnit.MINUTES.toNanos(1);
+
+    public static void main(String[] args) throws Exception {
+        final double minEfficiency = Double.parseDouble(System.getProperty("scaling.minEfficiency", "0.5"));
+        final int vehicles = Integer.getInteger("scaling.vehicles", 1500);
+        final int minutes = Integer.getInteger("scaling.minutes", 20);
+        final int cores = Runtime.getRuntime().availableProcessors();
+
+        WorkloadGenerator generator = new WorkloadGenerator(42);
+        generator.setVehicles(vehicles);
+        final long startMs = System.currentTimeMillis();
+        List<Message> messages = new ArrayList<>();
+        for (WorkloadGenerator.Event event : generator.generate(startMs, startMs + TimeUnit.MINUTES.toMillis(minutes))) {
+            messages.add(event.toMessage());
+        }
+        System.out.println(String.format("%d messages of %d vehicles, %d cores", messages.size(), vehicles, cores));
+
+        final int maxWorkers = Math.max(8, Integer.highestOneBit(cores) * 2);
+        //Lets the JIT compile the pipeline before measuring
+        run(messages, maxWorkers);
+
+        List<String> failures = new ArrayList<>();
+        double singleWorkerThroughputPerThread = 0;
+        for (int workers = 1; workers <= maxWorkers; workers *= 2) {
+            final Result result = run(messages, workers);
+            final int threads = threads(workers);
+            if (workers == 1) {
+                singleWorkerThroughputPerThread = result.throughput / threads;
+            }
+            final double efficiency = result.throughput / (singleWorkerThroughputPerThread * threads);
+            System.out.println(String.format("workers=%3d  threads=%3d  throughput=%10.0f msg/s  p99=%8.2f ms  cpu=%7.2f us/msg  serial=%5.2f  efficiency=%5.2f",
+                    workers, threads, result.throughput, result.p99Ms, result.cpuUsPerMessage, result.serialFraction, efficiency));
+            //Threads beyond the amount of cores can't run in parallel
+            if (threads <= cores && efficiency < minEfficiency) {
+                failures.add(String.format("%d workers: %.2f", workers, efficiency));
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Scaling efficiency below " + minEfficiency + " with " + String.join(", ", failures));
+        }
+    }
+
+    /**
+     * @return threads of the pipeline with the given amount of workers in both decode and publish stages
+     */
+    static int threads(int workers) {
+        return 2 * workers + 1;
+    }
+
+    static Result run(List<Message> messages, int workers) throws Exception {
+        //Submit times by message, written before submitting and read after acknowledgement
+        final Map<Message, Integer> indexes = new IdentityHashMap<>(messages.size() * 2);
+        for (int n = 0; n < messages.size(); n++) {
+            indexes.put(messages.get(n), n);
+        }
+        final long[] submitNanos = new long[messages.size()];
+        final Recorder latencies = new Recorder(MAX_LATENCY_NS, 2);
+        final CountDownLatch acknowledged = new CountDownLatch(messages.size());
+        //Consumer mock adds acknowledged messages into this
+        final AbstractCollection<Message> acknowledgedMessages = new AbstractCollection<Message>() {
+            @Override
+            public boolean add(Message msg) {
+                latencies.recordValue(Math.min(System.nanoTime() - submitNanos[indexes.get(msg)], MAX_LATENCY_NS));
+                acknowledged.countDown();
+                return true;
+            }
+
+            @Override
+            public Iterator<Message> iterator() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int size() {
+                return (int) (submitNanos.length - acknowledged.getCount());
+            }
+        };
+
+        PulsarApplicationContext context = new PulsarApplicationContext();
+        context.setConfig(ConfigFactory.parseString(String.format(
+                "pipeline { enabled=true, decodeThreads=%d, publishThreads=%d }, cancellationLane.enabled=false, metrics.endToEndLatencies.enabled=false",
+                workers, workers))
+                .withFallback(ConfigFactory.parseResources("environment.conf"))
+                .resolve());
+        context.setConsumer(PulsarMocks.consumer(new LinkedList<>(), acknowledgedMessages));
+        context.setProducer(PulsarMocks.producer(null));
+        MessageRouter router = new MessageRouter(context);
+
+        final com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        final long cpuBefore = os.getProcessCpuTime();
+        final long startNanos = System.nanoTime();
+        router.getPipelinedHandler().takeStateUtilization();
+        for (int n = 0; n < messages.size(); n++) {
+            submitNanos[n] = System.nanoTime();
+            router.handleMessage(messages.get(n));
+        }
+        if (!acknowledged.await(10, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Messages were not acknowledged in time with " + workers + " workers");
+        }
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        final long cpuNanos = os.getProcessCpuTime() - cpuBefore;
+        final double serialFraction = router.getPipelinedHandler().takeStateUtilization();
+        router.close();
+
+        final Histogram histogram = latencies.getIntervalHistogram();
+        return new Result((double) messages.size() / elapsedNanos * TimeUnit.SECONDS.toNanos(1),
+                histogram.getValueAtPercentile(99) / 1e6,
+                (double) cpuNanos / messages.size() / 1000,
+                serialFraction);
+    }
+
+    static class Result {
+        final double throughput;
+        final double p99Ms;
+        final double cpuUsPerMessage;
+        final double serialFraction;
+
+        Result(double throughput, double p99Ms, double cpuUsPerMessage, double serialFraction) {
+            this.throughput = throughput;
+            this.p99Ms = p99Ms;
+            this.cpuUsPerMessage = cpuUsPerMessage;
+            this.serialFraction = serialFraction;
+        }
+    }
+}
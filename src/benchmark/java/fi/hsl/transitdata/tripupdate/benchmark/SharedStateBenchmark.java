@@ -0,0 +1,116 @@
+package fi.hsl.transitdata.tripupdate.benchmark;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import fi.hsl.transitdata.tripupdate.state.HeapTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.InMemorySharedStateClient;
+import fi.hsl.transitdata.tripupdate.state.SharedTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.StringInterner;
+import fi.hsl.transitdata.tripupdate.state.TripStateGovernor;
+import fi.hsl.transitdata.tripupdate.state.TripStateStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares per-message throughput and latency of local trip state to state shared through a Redis stand-in,
+ * which simulates a network round-trip of ROUND_TRIP_US on every call.
+ *
+ * local: heap store only.
+ * shared: near-cache has all trips, so only write-behind runs next to processing.
+ * shared-cold: another instance has processed the trips, so the first lookup of each trip goes to the shared store,
+ * like after a restart or when key ranges move between instances.
+ *
+ * Estimates are replayed in rounds with increasing last modified time, so that none are discarded as duplicates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SharedStateBenchmark {
+    private static final int TRIP_COUNT = 500;
+    private static final int STOPS_PER_TRIP = 30;
+    private static final long ROUND_TRIP_US = 200;
+    private static final long TTL_MS = TimeUnit.HOURS.toMillis(4);
+    private static final long FLUSH_INTERVAL_MS = 500;
+    private static final int MAX_BATCH_SIZE = 500;
+
+    @Param({"local", "shared", "shared-cold"})
+    String mode;
+
+    private List<InternalMessages.StopEstimate> estimates;
+    private TripStateStore tripStates;
+    private TripUpdateProcessor processor;
+    private int cursor;
+    private long round;
+
+    @Setup(Level.Trial)
+    public void createEstimates() throws Exception {
+        estimates = SyntheticTrips.stopEstimates(TRIP_COUNT, STOPS_PER_TRIP, 42);
+        estimates.sort(Comparator.comparingLong(InternalMessages.StopEstimate::getLastModifiedUtcMs));
+    }
+
+    @Setup(Level.Iteration)
+    public void createState() {
+        InMemorySharedStateClient client = new InMemorySharedStateClient(ROUND_TRIP_US);
+        if (mode.equals("shared-cold")) {
+            //Another instance processes the first round
+            SharedTripStateStore other = createSharedStore(client);
+            processAll(createProcessor(other));
+            other.close();
+            tripStates = createSharedStore(client);
+        } else if (mode.equals("shared")) {
+            tripStates = createSharedStore(client);
+        } else {
+            tripStates = new HeapTripStateStore();
+        }
+        processor = createProcessor(tripStates);
+        if (!mode.equals("shared-cold")) {
+            processAll(processor);
+        }
+        cursor = 0;
+        round = 1;
+    }
+
+    private static SharedTripStateStore createSharedStore(InMemorySharedStateClient client) {
+        SharedTripStateStore store = new SharedTripStateStore(new HeapTripStateStore(), client, "trip-state:",
+                TTL_MS, FLUSH_INTERVAL_MS, MAX_BATCH_SIZE);
+        store.start();
+        return store;
+    }
+
+    private static TripUpdateProcessor createProcessor(TripStateStore store) {
+        return new TripUpdateProcessor(null, new StringInterner(100000),
+                new TripStateGovernor(Long.MAX_VALUE, 1.0, TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1)),
+                null, store);
+    }
+
+    private void processAll(TripUpdateProcessor target) {
+        for (InternalMessages.StopEstimate estimate : estimates) {
+            target.processStopEstimate(estimate, estimate.getLastModifiedUtcMs());
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeState() {
+        tripStates.close();
+    }
+
+    @Benchmark
+    public Optional<?> processEstimate() {
+        final InternalMessages.StopEstimate estimate = estimates.get(cursor);
+        final Optional<?> tripUpdate = processor.processStopEstimate(estimate.toBuilder()
+                .setLastModifiedUtcMs(estimate.getLastModifiedUtcMs() + round)
+                .build(), 0);
+        if (++cursor == estimates.size()) {
+            cursor = 0;
+            round++;
+        }
+        return tripUpdate;
+    }
+}
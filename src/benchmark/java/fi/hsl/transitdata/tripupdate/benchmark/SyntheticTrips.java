@@ -0,0 +1,84 @@
+package fi.hsl.transitdata.tripupdate.benchmark;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.WorkloadGenerator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * StopEstimates for a set of trips sharing a realistic amount of distinct stops and routes.
+ */
+final class SyntheticTrips {
+    private static final int NETWORK_STOP_COUNT = 7000;
+    private static final int NETWORK_ROUTE_COUNT = 400;
+    private static final long BASE_DVJ_ID = 7200000000000000L;
+    private static final long BASE_TIME_MS = 1577872800000L; //2020-01-01T12:00:00+02:00
+
+    private SyntheticTrips() {}
+
+    /**
+     * @return arrival and departure estimates for every stop of every trip, in trip order
+     */
+    static List<InternalMessages.StopEstimate> stopEstimates(int tripCount, int stopsPerTrip, long seed) throws InvalidProtocolBufferException {
+        Random random = new Random(seed);
+        List<InternalMessages.StopEstimate> estimates = new ArrayList<>(tripCount * stopsPerTrip * 2);
+        for (int trip = 0; trip < tripCount; trip++) {
+            final String routeId = Integer.toString(1000 + random.nextInt(NETWORK_ROUTE_COUNT));
+            addTrip(estimates, random, trip, routeId, stopsPerTrip);
+        }
+        return estimates;
+    }
+
+    /**
+     * @return arrival and departure estimates for every stop of every trip of the mode, in trip order.
+     * Length of each trip is picked evenly between the shortest and the longest ones of the mode.
+     */
+    static List<InternalMessages.StopEstimate> stopEstimates(WorkloadGenerator.Mode mode, int tripCount, long seed) throws InvalidProtocolBufferException {
+        Random random = new Random(seed);
+        List<InternalMessages.StopEstimate> estimates = new ArrayList<>(tripCount * mode.getMaxStops() * 2);
+        for (int trip = 0; trip < tripCount; trip++) {
+            final String routeId = mode.routeId(random.nextInt(mode.getRouteCount()));
+            final int stopCount = mode.getMinStops() + random.nextInt(mode.getMaxStops() - mode.getMinStops() + 1);
+            addTrip(estimates, random, trip, routeId, stopCount);
+        }
+        return estimates;
+    }
+
+    private static void addTrip(List<InternalMessages.StopEstimate> estimates, Random random, int trip, String routeId,
+                                int stopCount) throws InvalidProtocolBufferException {
+        final int startMinutes = random.nextInt(18 * 60);
+        final InternalMessages.TripInfo tripInfo = InternalMessages.TripInfo.newBuilder()
+                .setTripId(Long.toString(BASE_DVJ_ID + trip * 7L))
+                .setRouteId(routeId)
+                .setDirectionId(1 + random.nextInt(2))
+                .setOperatingDay("20200101")
+                .setStartTime(String.format("%02d:%02d:00", 5 + startMinutes / 60, startMinutes % 60))
+                .setScheduleType(InternalMessages.TripInfo.ScheduleType.SCHEDULED)
+                .build();
+
+        final int firstStop = random.nextInt(NETWORK_STOP_COUNT);
+        long timeMs = BASE_TIME_MS + startMinutes * 60000L;
+        for (int stopSequence = 1; stopSequence <= stopCount; stopSequence++) {
+            final String stopId = Integer.toString(1000000 + (firstStop + stopSequence * 13) % NETWORK_STOP_COUNT);
+            for (InternalMessages.StopEstimate.Type type : InternalMessages.StopEstimate.Type.values()) {
+                InternalMessages.StopEstimate estimate = InternalMessages.StopEstimate.newBuilder()
+                        .setSchemaVersion(1)
+                        .setTripInfo(tripInfo)
+                        .setStopId(stopId)
+                        .setStopSequence(stopSequence)
+                        .setStatus(InternalMessages.StopEstimate.Status.SCHEDULED)
+                        .setType(type)
+                        .setEstimatedTimeUtcMs(timeMs)
+                        .setScheduledTimeUtcMs(timeMs)
+                        .setLastModifiedUtcMs(timeMs)
+                        .build();
+                //Round-trip through bytes so that each estimate decodes its own Strings, like separate Pulsar messages do
+                estimates.add(InternalMessages.StopEstimate.parseFrom(estimate.toByteArray()));
+                timeMs += 30000;
+            }
+        }
+    }
+}
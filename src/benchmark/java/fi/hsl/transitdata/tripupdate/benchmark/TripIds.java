@@ -0,0 +1,31 @@
+package fi.hsl.transitdata.tripupdate.benchmark;
+
+import java.util.Random;
+
+/**
+ * Trip IDs shaped like our production feed: mostly numeric DVJ ids with small random gaps,
+ * and a couple of percent of generated IDs for trips outside of static schedule.
+ */
+final class TripIds {
+    private static final long BASE_DVJ_ID = 7200000000000000L;
+    private static final int GENERATED_ID_PERCENTAGE = 2;
+
+    private TripIds() {}
+
+    static char[][] realistic(int amount, long seed) {
+        Random random = new Random(seed);
+        char[][] ids = new char[amount][];
+        long dvjId = BASE_DVJ_ID;
+        for (int n = 0; n < amount; n++) {
+            if (random.nextInt(100) < GENERATED_ID_PERCENTAGE) {
+                //Same format as GtfsRtFactory.generateTripId()
+                ids[n] = String.format("%d_20200101_%02d:%02d:00_%d", 1000 + random.nextInt(9000),
+                        random.nextInt(24), random.nextInt(60), 1 + random.nextInt(2)).toCharArray();
+            } else {
+                dvjId += 1 + random.nextInt(20);
+                ids[n] = Long.toString(dvjId).toCharArray();
+            }
+        }
+        return ids;
+    }
+}
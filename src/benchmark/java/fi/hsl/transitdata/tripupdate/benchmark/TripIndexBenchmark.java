@@ -0,0 +1,61 @@
+package fi.hsl.transitdata.tripupdate.benchmark;
+
+import fi.hsl.transitdata.tripupdate.state.TripIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares trip lookup cost of a String-keyed HashMap against TripIndex.
+ *
+ * Each lookup creates a new trip ID String from chars, because that's what happens when
+ * the ID is decoded from a protobuf message: the hash code is never cached beforehand.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TripIndexBenchmark {
+
+    @Param({"2000", "20000"})
+    int tripCount;
+
+    private char[][] tripIds;
+    private int cursor;
+
+    private Map<String, Object> hashMap;
+    private TripIndex<Object> tripIndex;
+
+    @Setup
+    public void setup() {
+        tripIds = TripIds.realistic(tripCount, 42);
+        hashMap = new HashMap<>();
+        tripIndex = new TripIndex<>();
+        for (char[] id : tripIds) {
+            final Object value = new Object();
+            hashMap.put(new String(id), value);
+            tripIndex.put(new String(id), value);
+        }
+    }
+
+    private String nextTripId() {
+        if (++cursor == tripIds.length) {
+            cursor = 0;
+        }
+        return new String(tripIds[cursor]);
+    }
+
+    @Benchmark
+    public Object hashMapLookup() {
+        return hashMap.get(nextTripId());
+    }
+
+    @Benchmark
+    public Object tripIndexLookup() {
+        return tripIndex.get(nextTripId());
+    }
+}
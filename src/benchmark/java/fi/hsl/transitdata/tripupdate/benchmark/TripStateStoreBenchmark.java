@@ -0,0 +1,101 @@
+package fi.hsl.transitdata.tripupdate.benchmark;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import fi.hsl.transitdata.tripupdate.state.HeapTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.MappedTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.StringInterner;
+import fi.hsl.transitdata.tripupdate.state.TieredTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.TripStateGovernor;
+import fi.hsl.transitdata.tripupdate.state.TripStateStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the same workload against every TripStateStore backend.
+ *
+ * Estimates of all trips are interleaved in time order like on the real topic, so consecutive messages rarely hit
+ * the same trip and backends with a small on-heap working set have to go to their storage for most of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TripStateStoreBenchmark {
+    private static final int TRIP_COUNT = 2000;
+    private static final int STOPS_PER_TRIP = 30;
+    private static final int MESSAGE_COUNT = TRIP_COUNT * STOPS_PER_TRIP * 2;
+    //Tenth of the trips fit on heap
+    private static final int HOT_ENTRIES = TRIP_COUNT / 10;
+
+    @Param({"heap", "mapped", "tiered"})
+    String store;
+
+    private List<InternalMessages.StopEstimate> estimates;
+    private Path file;
+
+    private TripStateStore tripStates;
+    private TripUpdateProcessor processor;
+
+    @Setup(Level.Trial)
+    public void createEstimates() throws Exception {
+        estimates = SyntheticTrips.stopEstimates(TRIP_COUNT, STOPS_PER_TRIP, 42);
+        estimates.sort(Comparator.comparingLong(InternalMessages.StopEstimate::getLastModifiedUtcMs));
+        file = Files.createTempFile("trip-state", ".bin");
+    }
+
+    //Every invocation processes all estimates, so per-invocation setup doesn't skew the results
+    @Setup(Level.Invocation)
+    public void resetState() throws IOException {
+        if (tripStates != null) {
+            tripStates.close();
+        }
+        tripStates = createStore();
+        processor = new TripUpdateProcessor(null, new StringInterner(100000),
+                new TripStateGovernor(Long.MAX_VALUE, 1.0, TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1)),
+                null, tripStates);
+    }
+
+    private TripStateStore createStore() throws IOException {
+        switch (store) {
+            case "heap":
+                return new HeapTripStateStore();
+            case "mapped":
+                return new MappedTripStateStore(file, 64 * 1024 * 1024, HOT_ENTRIES);
+            case "tiered":
+                //Processor maintains the store once a minute, so spilling shows only in longer runs
+                return new TieredTripStateStore(new MappedTripStateStore(file, 64 * 1024 * 1024, 1),
+                        TimeUnit.SECONDS.toMillis(10), TimeUnit.HOURS.toMillis(1));
+            default:
+                throw new IllegalArgumentException(store);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        tripStates.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public int processEstimates() {
+        int published = 0;
+        for (InternalMessages.StopEstimate estimate : estimates) {
+            Optional<?> tripUpdate = processor.processStopEstimate(estimate, estimate.getLastModifiedUtcMs());
+            if (tripUpdate.isPresent()) {
+                published++;
+            }
+        }
+        return published;
+    }
+}
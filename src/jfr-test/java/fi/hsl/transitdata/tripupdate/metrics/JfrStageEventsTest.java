@@ -0,0 +1,74 @@
+package fi.hsl.transitdata.tripupdate.metrics;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class JfrStageEventsTest {
+    @Test
+    public void testJfrEventsAreLoadedWhenAvailable() {
+        assertTrue(StageEvents.get() instanceof JfrStageEvents);
+    }
+
+    @Test
+    public void testNothingIsRecordedWithoutRecording() {
+        JfrStageEvents events = new JfrStageEvents();
+        assertFalse(events.isEnabled());
+        assertSame(StageEvents.NO_SPAN, events.begin(StageEvents.Stage.DECODE, null));
+    }
+
+    @Test
+    public void testStagesAndSlowMessagesAreRecorded() throws Exception {
+        JfrStageEvents events = new JfrStageEvents();
+        final GtfsRealtime.TripUpdate tripUpdate = GtfsRealtime.TripUpdate.newBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId("trip").setRouteId("1014").setDirectionId(1))
+                .addStopTimeUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder().setStopId("1"))
+                .addStopTimeUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder().setStopId("2"))
+                .build();
+
+        final Path file = Files.createTempFile("stage-events", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(JfrStageEvents.STAGE_EVENT);
+            recording.enable(JfrStageEvents.SLOW_MESSAGE_EVENT);
+            recording.start();
+            assertTrue(events.isEnabled());
+            events.begin(StageEvents.Stage.VALIDATE, "validator").end("trip", 2, ProtobufSchema.InternalMessagesStopEstimate);
+            events.slowMessage("trip", ProtobufSchema.InternalMessagesStopEstimate, 123, tripUpdate, 5000000);
+            recording.stop();
+            recording.dump(file);
+        }
+
+        final List<RecordedEvent> recorded = RecordingFile.readAllEvents(file).stream()
+                .filter(event -> event.getEventType().getName().startsWith("fi.hsl.transitdata.tripupdate"))
+                .collect(Collectors.toList());
+        Files.delete(file);
+        assertEquals(2, recorded.size());
+
+        final RecordedEvent stage = recorded.stream()
+                .filter(event -> event.getEventType().getName().equals(JfrStageEvents.STAGE_EVENT))
+                .findFirst().get();
+        assertEquals("VALIDATE", stage.getString("stage"));
+        assertEquals("validator", stage.getString("name"));
+        assertEquals("trip", stage.getString("tripId"));
+        assertEquals(2, stage.getInt("stopCount"));
+        assertEquals(ProtobufSchema.InternalMessagesStopEstimate.toString(), stage.getString("schema"));
+
+        final RecordedEvent slow = recorded.stream()
+                .filter(event -> event.getEventType().getName().equals(JfrStageEvents.SLOW_MESSAGE_EVENT))
+                .findFirst().get();
+        assertEquals(123, slow.getInt("payloadBytes"));
+        assertEquals(5, slow.getDuration("processingTime").toMillis());
+        assertEquals("1014", slow.getString("routeId"));
+        assertEquals(2, slow.getInt("stopCount"));
+    }
+}
@@ -0,0 +1,113 @@
+package fi.hsl.transitdata.tripupdate.metrics;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * StageEvents recorded with Java Flight Recorder. Only built on JDK 11 and newer, see StageEvents.
+ *
+ * Stack traces are left out of the events to keep them cheap enough to leave enabled in production.
+ */
+public class JfrStageEvents extends StageEvents {
+    static final String STAGE_EVENT = "fi.hsl.transitdata.tripupdate.Stage";
+    static final String SLOW_MESSAGE_EVENT = "fi.hsl.transitdata.tripupdate.SlowMessage";
+
+    @Name(STAGE_EVENT)
+    @Label("Processing Stage")
+    @Category({"Transitdata", "TripUpdate Processor"})
+    @StackTrace(false)
+    static class StageEvent extends Event implements Span {
+        @Label("Stage")
+        String stage;
+        @Label("Name")
+        String name;
+        @Label("Trip Id")
+        String tripId;
+        @Label("Stop Count")
+        int stopCount;
+        @Label("Schema")
+        String schema;
+
+        @Override
+        public void end(String tripId, int stopCount, ProtobufSchema schema) {
+            end();
+            if (shouldCommit()) {
+                this.tripId = tripId;
+                this.stopCount = stopCount;
+                this.schema = schema != null ? schema.toString() : null;
+                commit();
+            }
+        }
+    }
+
+    @Name(SLOW_MESSAGE_EVENT)
+    @Label("Slow Message")
+    @Category({"Transitdata", "TripUpdate Processor"})
+    @StackTrace(false)
+    static class SlowMessageEvent extends Event {
+        @Label("Trip Id")
+        String tripId;
+        @Label("Schema")
+        String schema;
+        @Label("Payload Size")
+        int payloadBytes;
+        @Label("Processing Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long processingTime;
+        @Label("Route Id")
+        String routeId;
+        @Label("Direction Id")
+        int directionId;
+        @Label("Schedule Relationship")
+        String scheduleRelationship;
+        @Label("Stop Count")
+        int stopCount;
+    }
+
+    private static final EventType STAGE_TYPE = EventType.getEventType(StageEvent.class);
+    private static final EventType SLOW_MESSAGE_TYPE = EventType.getEventType(SlowMessageEvent.class);
+
+    @Override
+    public boolean isEnabled() {
+        return STAGE_TYPE.isEnabled() || SLOW_MESSAGE_TYPE.isEnabled();
+    }
+
+    @Override
+    public Span begin(Stage stage, String name) {
+        if (!STAGE_TYPE.isEnabled()) {
+            return NO_SPAN;
+        }
+        final StageEvent event = new StageEvent();
+        event.stage = stage.name();
+        event.name = name;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void slowMessage(String tripId, ProtobufSchema schema, int payloadBytes,
+                            GtfsRealtime.TripUpdate tripUpdate, long processingNanos) {
+        final SlowMessageEvent event = new SlowMessageEvent();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.tripId = tripId;
+        event.schema = schema != null ? schema.toString() : null;
+        event.payloadBytes = payloadBytes;
+        event.processingTime = processingNanos;
+        if (tripUpdate != null) {
+            event.routeId = tripUpdate.getTrip().getRouteId();
+            event.directionId = tripUpdate.getTrip().getDirectionId();
+            event.scheduleRelationship = tripUpdate.getTrip().getScheduleRelationship().toString();
+            event.stopCount = tripUpdate.getStopTimeUpdateCount();
+        }
+        event.commit();
+    }
+}
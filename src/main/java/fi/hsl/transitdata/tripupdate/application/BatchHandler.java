@@ -0,0 +1,310 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import fi.hsl.common.transitdata.TransitdataSchema;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcome;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcomes;
+import fi.hsl.transitdata.tripupdate.processing.StopEstimateProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripCancellationProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Processes messages in batches instead of one by one.
+ *
+ * Messages of a batch are grouped by trip. All estimates and cancellations of a trip are applied in their original order,
+ * after which a single TripUpdate is built, validated and published for the trip. The whole batch is acknowledged at once.
+ *
+ * The message the TripUpdate is published with gets the outcome of publishing it, other messages of the trip that
+ * were applied or compacted away are counted as MERGED.
+ */
+public class BatchHandler {
+    private static final Logger log = LoggerFactory.getLogger(BatchHandler.class);
+
+    public interface TripUpdatePublisher {
+        /**
+         * Validates the TripUpdate and publishes it if it's valid
+         *
+         * @param source message the TripUpdate was last updated from, gives the event time and latency breakdown
+         */
+        void publish(String tripId, GtfsRealtime.TripUpdate tripUpdate, Message source);
+    }
+
+    public interface ReceiveListener {
+        /**
+         * Called for each message received to complete a batch, before it's processed
+         */
+        void received(Message msg);
+    }
+
+    public static class Result {
+        static final Result EMPTY = new Result(Collections.emptyList(), 0, 0);
+
+        public final List<Message> messages;
+        public final int received;
+        public final int applied;
+        public final int published;
+        public final long lastPublishTimeMs;
+
+        Result(List<Message> messages, int applied, int published) {
+            this.messages = messages;
+            this.received = messages.size();
+            this.applied = applied;
+            this.published = published;
+            this.lastPublishTimeMs = messages.isEmpty() ? 0 : messages.get(messages.size() - 1).getPublishTime();
+        }
+    }
+
+    private final Consumer<byte[]> consumer;
+    private final TripUpdateProcessor tripUpdateProcessor;
+    private final StopEstimateProcessor stopEstimateProcessor;
+    private final TripCancellationProcessor tripCancellationProcessor;
+    private final TripUpdatePublisher publisher;
+    private final long receiveTimeoutMs;
+    private ReceiveListener receiveListener = msg -> {};
+    private MessageOutcomes outcomes = new MessageOutcomes();
+
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder messagesApplied = new LongAdder();
+    private final LongAdder tripUpdatesPublished = new LongAdder();
+
+    /**
+     * @param receiveTimeoutMs how long to wait for more messages before processing an incomplete batch
+     */
+    public BatchHandler(Consumer<byte[]> consumer, TripUpdateProcessor tripUpdateProcessor,
+                        StopEstimateProcessor stopEstimateProcessor, TripCancellationProcessor tripCancellationProcessor,
+                        TripUpdatePublisher publisher, long receiveTimeoutMs) {
+        this.consumer = consumer;
+        this.tripUpdateProcessor = tripUpdateProcessor;
+        this.stopEstimateProcessor = stopEstimateProcessor;
+        this.tripCancellationProcessor = tripCancellationProcessor;
+        this.publisher = publisher;
+        this.receiveTimeoutMs = receiveTimeoutMs;
+    }
+
+    public void setReceiveListener(ReceiveListener receiveListener) {
+        this.receiveListener = receiveListener;
+    }
+
+    public void setMessageOutcomes(MessageOutcomes outcomes) {
+        this.outcomes = outcomes;
+    }
+
+    /**
+     * Receives more messages after the given one until the batch is full or nothing arrives within the receive timeout,
+     * and then processes and acknowledges the batch.
+     *
+     * @param compact whether to apply only the newest estimate per stop and type and the last cancellation of each trip
+     */
+    public Result handleBatch(Message received, int maxSize, boolean compact) throws PulsarClientException {
+        List<Message> batch = new ArrayList<>(maxSize);
+        batch.add(received);
+        while (batch.size() < maxSize) {
+            Message next = consumer.receive((int) receiveTimeoutMs, TimeUnit.MILLISECONDS);
+            if (next == null) {
+                break;
+            }
+            receiveListener.received(next);
+            batch.add(next);
+        }
+
+        final Result result = process(batch, compact);
+
+        for (Message msg : batch) {
+            consumer.acknowledgeAsync(msg)
+                    .exceptionally(throwable -> {
+                        log.error("Failed to ack Pulsar message", throwable);
+                        return null;
+                    });
+        }
+        return result;
+    }
+
+    /**
+     * Applies the messages to trip state and publishes one TripUpdate per trip. Doesn't acknowledge the messages.
+     */
+    public Result process(List<Message> batch, boolean compact) {
+        final Map<String, TripMessages> trips = groupByTrip(batch);
+
+        int applied = 0;
+        int published = 0;
+        for (Map.Entry<String, TripMessages> entry : trips.entrySet()) {
+            final TripMessages messages = entry.getValue();
+            if (compact) {
+                messages.compact();
+            }
+            applied += messages.pending.size();
+
+            final Optional<GtfsRealtime.TripUpdate> maybeTripUpdate = apply(messages);
+            if (maybeTripUpdate.isPresent()) {
+                publisher.publish(entry.getKey(), maybeTripUpdate.get(), messages.lastApplied.msg);
+                published++;
+                final int merged = messages.applied - 1 + messages.compacted;
+                if (merged > 0) {
+                    outcomes.record(MessageOutcome.MERGED, merged);
+                }
+            }
+        }
+
+        messagesReceived.add(batch.size());
+        messagesApplied.add(applied);
+        tripUpdatesPublished.add(published);
+        log.debug("Processed batch of {} messages for {} trips, applied {} and published {} TripUpdates",
+                batch.size(), trips.size(), applied, published);
+        return new Result(batch, applied, published);
+    }
+
+    private Map<String, TripMessages> groupByTrip(List<Message> batch) {
+        final Map<String, TripMessages> trips = new LinkedHashMap<>();
+        for (Message msg : batch) {
+            final Optional<TransitdataSchema> maybeSchema = TransitdataSchema.parseFromPulsarMessage(msg);
+            if (!maybeSchema.isPresent()) {
+                continue;
+            }
+            try {
+                final ProtobufSchema schema = maybeSchema.get().schema;
+                if (schema == ProtobufSchema.InternalMessagesStopEstimate) {
+                    if (!stopEstimateProcessor.passesPreDecodeFilter(msg.getData())) {
+                        continue;
+                    }
+                    InternalMessages.StopEstimate estimate = InternalMessages.StopEstimate.parseFrom(msg.getData());
+                    trips.computeIfAbsent(estimate.getTripInfo().getTripId(), tripId -> new TripMessages())
+                            .pending.add(new Pending(estimate, null, msg));
+                } else if (schema == ProtobufSchema.InternalMessagesTripCancellation) {
+                    if (!tripCancellationProcessor.passesPreDecodeFilter(msg.getData())) {
+                        continue;
+                    }
+                    InternalMessages.TripCancellation cancellation = InternalMessages.TripCancellation.parseFrom(msg.getData());
+                    //Cancellations modify the state of the message key, like in the message-per-message path
+                    trips.computeIfAbsent(msg.getKey(), tripId -> new TripMessages())
+                            .pending.add(new Pending(null, cancellation, msg));
+                } else {
+                    log.warn("Received message with unknown schema, ignoring: " + schema);
+                }
+            } catch (InvalidProtocolBufferException e) {
+                log.error("Failed to parse message payload", e);
+            }
+        }
+        return trips;
+    }
+
+    /**
+     * Applies messages of the trip and builds the TripUpdate to publish, which is the one the last of the messages
+     * would have produced in the message-per-message path.
+     */
+    private Optional<GtfsRealtime.TripUpdate> apply(TripMessages messages) {
+        Pending lastEstimate = null;
+        Pending lastCancellation = null;
+        GtfsRealtime.TripUpdate cancellationUpdate = null;
+        for (Pending pending : messages.pending) {
+            if (pending.estimate != null) {
+                if (stopEstimateProcessor.validateStopEstimate(pending.estimate)
+                        && tripUpdateProcessor.applyStopEstimate(pending.estimate, pending.msg.getEventTime())) {
+                    lastEstimate = pending;
+                    messages.applied++;
+                }
+            } else if (tripCancellationProcessor.validateTripCancellation(pending.cancellation)) {
+                cancellationUpdate = tripUpdateProcessor.processTripCancellation(pending.msg.getKey(), pending.msg.getEventTime(), pending.cancellation);
+                lastCancellation = pending;
+                messages.applied++;
+                //Estimates before the cancellation are superseded by it
+                lastEstimate = null;
+            }
+        }
+
+        if (lastEstimate != null) {
+            Optional<GtfsRealtime.TripUpdate> tripUpdate = tripUpdateProcessor.buildTripUpdate(lastEstimate.estimate);
+            if (tripUpdate.isPresent()) {
+                messages.lastApplied = lastEstimate;
+                return tripUpdate;
+            }
+        }
+        //Estimates of a cancelled trip don't produce a TripUpdate, so the cancellation is the latest one to publish
+        if (cancellationUpdate != null) {
+            messages.lastApplied = lastCancellation;
+            return Optional.of(cancellationUpdate);
+        }
+        return Optional.empty();
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    public long getMessagesApplied() {
+        return messagesApplied.sum();
+    }
+
+    public long getTripUpdatesPublished() {
+        return tripUpdatesPublished.sum();
+    }
+
+    private static class Pending {
+        final InternalMessages.StopEstimate estimate;
+        final InternalMessages.TripCancellation cancellation;
+        final Message msg;
+
+        Pending(InternalMessages.StopEstimate estimate, InternalMessages.TripCancellation cancellation, Message msg) {
+            this.estimate = estimate;
+            this.cancellation = cancellation;
+            this.msg = msg;
+        }
+    }
+
+    /**
+     * Messages of a single trip within a batch, in the order they were received
+     */
+    private static class TripMessages {
+        final List<Pending> pending = new ArrayList<>();
+        //Message whose outcome is published for the trip
+        Pending lastApplied;
+        //Messages that modified trip state
+        int applied;
+        //Messages dropped by compaction
+        int compacted;
+
+        /**
+         * Keeps only the newest estimate per stop and type (by last modified time, then event time) and the last cancellation.
+         * Arrival and departure update different fields of the same StopTimeUpdate, so both need to be kept.
+         */
+        void compact() {
+            final Map<Long, Pending> newestEstimates = new HashMap<>();
+            Pending lastCancellation = null;
+            for (Pending current : pending) {
+                if (current.estimate != null) {
+                    final long key = (long) current.estimate.getStopSequence() << 8 | current.estimate.getType().getNumber();
+                    newestEstimates.merge(key, current, (previous, candidate) -> isNewer(candidate, previous) ? candidate : previous);
+                } else {
+                    lastCancellation = current;
+                }
+            }
+            final Set<Pending> retained = Collections.newSetFromMap(new IdentityHashMap<>());
+            retained.addAll(newestEstimates.values());
+            if (lastCancellation != null) {
+                retained.add(lastCancellation);
+            }
+            compacted = pending.size() - retained.size();
+            pending.removeIf(candidate -> !retained.contains(candidate));
+        }
+
+        private static boolean isNewer(Pending candidate, Pending previous) {
+            final long candidateModified = candidate.estimate.getLastModifiedUtcMs();
+            final long previousModified = previous.estimate.getLastModifiedUtcMs();
+            if (candidateModified != previousModified) {
+                return candidateModified > previousModified;
+            }
+            return candidate.msg.getEventTime() >= previous.msg.getEventTime();
+        }
+    }
+}
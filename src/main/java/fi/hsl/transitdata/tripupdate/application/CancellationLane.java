@@ -0,0 +1,92 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import fi.hsl.common.pulsar.IMessageHandler;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.SubscriptionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.regex.Pattern;
+
+/**
+ * Consumes cancellation topics with a consumer and thread of their own, so that cancellations don't queue behind
+ * the much larger stream of stop estimates.
+ */
+class CancellationLane implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(CancellationLane.class);
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    private final Consumer<byte[]> consumer;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param handler handles messages received by this lane. Invoked from the lane thread
+     */
+    CancellationLane(Consumer<byte[]> consumer, IMessageHandler handler) {
+        this.consumer = consumer;
+        this.thread = new Thread(() -> receiveLoop(handler), "cancellation-lane");
+        this.thread.setDaemon(true);
+    }
+
+    static Consumer<byte[]> subscribe(PulsarClient client, String topicsPattern, String subscription, SubscriptionType subscriptionType) throws PulsarClientException {
+        log.info("Subscribing to cancellation topics {} with subscription {}", topicsPattern, subscription);
+        return client.newConsumer()
+                .topicsPattern(Pattern.compile(topicsPattern))
+                .subscriptionName(subscription)
+                .subscriptionType(subscriptionType)
+                .subscribe();
+    }
+
+    Consumer<byte[]> getConsumer() {
+        return consumer;
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    private void receiveLoop(IMessageHandler handler) {
+        while (running) {
+            try {
+                Message msg = consumer.receive();
+                handler.handleMessage(msg);
+            } catch (PulsarClientException.AlreadyClosedException e) {
+                log.info("Cancellation consumer closed, stopping lane");
+                return;
+            } catch (Exception e) {
+                log.error("Exception while handling cancellation", e);
+            }
+        }
+    }
+
+    /**
+     * Stops receiving and waits for the lane to finish the message it's handling, so that whatever the handler
+     * hands it to can be closed after this. A lane still blocked after CLOSE_TIMEOUT_MS is interrupted.
+     */
+    @Override
+    public void close() throws PulsarClientException {
+        running = false;
+        try {
+            consumer.close();
+        } finally {
+            join();
+        }
+    }
+
+    private void join() {
+        try {
+            thread.join(CLOSE_TIMEOUT_MS);
+            if (thread.isAlive()) {
+                log.warn("Cancellation lane didn't stop in {} ms, interrupting it", CLOSE_TIMEOUT_MS);
+                thread.interrupt();
+                thread.join(CLOSE_TIMEOUT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.transitdata.tripupdate.state.TripStateSource;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.Reader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latest TripUpdate of each trip as published to our output topic by any instance.
+ *
+ * The topic is read from the beginning with compaction, so that only the latest message of each trip key is read
+ * from the compacted part, and then followed. Both happen in a background thread, so that startup isn't blocked by
+ * reading the topic. Trips looked up before it has been read are not found, and start from empty state.
+ * Entries older than maxAgeMs are dropped.
+ *
+ * TripUpdates are held outside of the trip state budget, so their total size is bounded by maxBytes. Once they take
+ * more than that, the oldest ones are dropped until they take at most EVICT_TO_FRACTION of it.
+ */
+class CompactedTopicTripStateSource implements TripStateSource, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(CompactedTopicTripStateSource.class);
+
+    private static final int READ_TIMEOUT_MS = 1000;
+    private static final long PURGE_INTERVAL_MS = 60000;
+    static final double EVICT_TO_FRACTION = 0.9;
+
+    private static class Entry {
+        final byte[] feedMessage;
+        final long publishTimeMs;
+
+        Entry(byte[] feedMessage, long publishTimeMs) {
+            this.feedMessage = feedMessage;
+            this.publishTimeMs = publishTimeMs;
+        }
+    }
+
+    private final Reader<byte[]> reader;
+    private final long maxAgeMs;
+    private final long maxBytes;
+    private final Map<String, Entry> latest = new ConcurrentHashMap<>();
+    //size of the FeedMessages in latest, only modified by the reading thread
+    private volatile long bytes;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param maxAgeMs TripUpdates published longer than this ago are dropped
+     * @param maxBytes maximum total size of the TripUpdates held
+     */
+    CompactedTopicTripStateSource(PulsarClient client, String topic, long maxAgeMs, long maxBytes) throws PulsarClientException {
+        this.reader = client.newReader()
+                .topic(topic)
+                .startMessageId(MessageId.earliest)
+                .readCompacted(true)
+                .create();
+        this.maxAgeMs = maxAgeMs;
+        this.maxBytes = maxBytes;
+
+        this.thread = new Thread(() -> {
+            if (load(topic)) {
+                followLoop();
+            }
+        }, "trip-state-source");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @return false if reading was stopped
+     */
+    private boolean load(String topic) {
+        final long startMs = System.currentTimeMillis();
+        try {
+            while (running && reader.hasMessageAvailable()) {
+                store(reader.readNext());
+            }
+        } catch (PulsarClientException.AlreadyClosedException e) {
+            return false;
+        } catch (PulsarClientException e) {
+            log.error("Failed to read latest TripUpdates from {}, following it from here on", topic, e);
+        }
+        purge(System.currentTimeMillis());
+        log.info("Read latest TripUpdates of {} trips ({} bytes) from {} in {} ms", latest.size(), bytes, topic,
+                System.currentTimeMillis() - startMs);
+        return running;
+    }
+
+    private void followLoop() {
+        long nextPurgeMs = System.currentTimeMillis() + PURGE_INTERVAL_MS;
+        while (running) {
+            try {
+                Message<byte[]> msg = reader.readNext(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (msg != null) {
+                    store(msg);
+                }
+                final long now = System.currentTimeMillis();
+                if (now >= nextPurgeMs) {
+                    purge(now);
+                    nextPurgeMs = now + PURGE_INTERVAL_MS;
+                }
+            } catch (PulsarClientException.AlreadyClosedException e) {
+                return;
+            } catch (Exception e) {
+                log.error("Failed to read TripUpdate from output topic", e);
+            }
+        }
+    }
+
+    private void store(Message<byte[]> msg) {
+        if (msg.hasKey()) {
+            final Entry entry = new Entry(msg.getData(), msg.getPublishTime());
+            final Entry previous = latest.put(msg.getKey(), entry);
+            bytes += entry.feedMessage.length - (previous != null ? previous.feedMessage.length : 0);
+            if (bytes > maxBytes) {
+                evictOldest();
+            }
+        }
+    }
+
+    private void purge(long nowMs) {
+        removePublishedBefore(nowMs - maxAgeMs);
+    }
+
+    private void evictOldest() {
+        final List<Entry> entries = new ArrayList<>(latest.values());
+        entries.sort(Comparator.comparingLong(entry -> entry.publishTimeMs));
+        long excessBytes = bytes - (long) (maxBytes * EVICT_TO_FRACTION);
+        long publishedBeforeMs = Long.MIN_VALUE;
+        for (int n = 0; n < entries.size() && excessBytes > 0; n++) {
+            excessBytes -= entries.get(n).feedMessage.length;
+            publishedBeforeMs = entries.get(n).publishTimeMs + 1;
+        }
+        final int evicted = removePublishedBefore(publishedBeforeMs);
+        log.info("TripUpdates of the output topic exceeded {} bytes, dropped the oldest {} of them", maxBytes, evicted);
+    }
+
+    /**
+     * @return amount of removed entries
+     */
+    private int removePublishedBefore(long publishedBeforeMs) {
+        int removed = 0;
+        long removedBytes = 0;
+        for (Iterator<Entry> it = latest.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (entry.publishTimeMs < publishedBeforeMs) {
+                it.remove();
+                removed++;
+                removedBytes += entry.feedMessage.length;
+            }
+        }
+        bytes -= removedBytes;
+        return removed;
+    }
+
+    @Override
+    public Optional<GtfsRealtime.TripUpdate> latest(String tripId) {
+        final Entry entry = latest.get(tripId);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        try {
+            GtfsRealtime.FeedMessage feedMessage = GtfsRealtime.FeedMessage.parseFrom(entry.feedMessage);
+            for (GtfsRealtime.FeedEntity entity : feedMessage.getEntityList()) {
+                if (entity.hasTripUpdate()) {
+                    return Optional.of(entity.getTripUpdate());
+                }
+            }
+        } catch (InvalidProtocolBufferException e) {
+            log.warn("Failed to parse FeedMessage of trip {} from output topic", tripId, e);
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        reader.close();
+    }
+}
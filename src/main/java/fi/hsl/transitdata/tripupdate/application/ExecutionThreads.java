@@ -0,0 +1,81 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads running per-key work of the pipeline, completions of sends and acknowledgements and periodic
+ * reports, either as platform or as virtual threads.
+ *
+ * Virtual threads require JDK 21 or later, see the jdk21 build profile. They are created through reflection, so that
+ * the same sources still build and run on Java 8 in platform mode.
+ */
+public final class ExecutionThreads {
+    public enum Mode {
+        PLATFORM,
+        VIRTUAL;
+
+        public static Mode parse(String mode) {
+            return valueOf(mode.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private ExecutionThreads() {}
+
+    /**
+     * @return whether the running JVM supports virtual threads
+     */
+    public static boolean isVirtualSupported() {
+        try {
+            virtualFactory("probe-");
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param namePrefix threads are named with this followed by a running number
+     * @return factory of daemon threads
+     * @throws UnsupportedOperationException if mode is virtual and the JVM doesn't support virtual threads
+     */
+    public static ThreadFactory factory(Mode mode, String namePrefix) {
+        if (mode == Mode.VIRTUAL) {
+            return virtualFactory(namePrefix);
+        }
+        final AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Executor for callbacks of asynchronous sends and acknowledgements. In platform mode callbacks run in the thread
+     * completing the future, usually a Pulsar IO thread. In virtual mode each one runs in a virtual thread of its own,
+     * which keeps IO threads free.
+     */
+    public static Executor completionExecutor(Mode mode) {
+        if (mode == Mode.VIRTUAL) {
+            final ThreadFactory factory = virtualFactory("completion-");
+            return runnable -> factory.newThread(runnable).start();
+        }
+        return Runnable::run;
+    }
+
+    private static ThreadFactory virtualFactory(String namePrefix) {
+        try {
+            //Thread.ofVirtual().name(namePrefix, 0).factory()
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21 or later, running on " +
+                    System.getProperty("java.version"), e);
+        }
+    }
+}
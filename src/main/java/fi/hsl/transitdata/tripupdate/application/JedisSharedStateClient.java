@@ -0,0 +1,60 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import fi.hsl.transitdata.tripupdate.state.SharedStateClient;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * SharedStateClient on top of Redis, reading and writing on separate connections.
+ *
+ * Writes use the Redis connection of PulsarApplication. Reads use a connection of their own with a short read timeout,
+ * so that the thread processing messages doesn't wait behind pipelined batches of the writer or a slow Redis.
+ * Jedis connections are not thread-safe, so calls are serialized on each of them.
+ */
+class JedisSharedStateClient implements SharedStateClient {
+    private final Jedis writer;
+    private final Jedis reader;
+
+    /**
+     * @param writer connection owned by PulsarApplication
+     * @param reader connection owned by this client, closed with it
+     */
+    JedisSharedStateClient(Jedis writer, Jedis reader) {
+        this.writer = writer;
+        this.reader = reader;
+    }
+
+    @Override
+    public byte[] get(String key) {
+        synchronized (reader) {
+            try {
+                return reader.get(key.getBytes(StandardCharsets.UTF_8));
+            } catch (RuntimeException e) {
+                //Reply to a timed out read may still arrive, so reconnect on next read instead of reading it as the next reply
+                reader.disconnect();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void setAll(Map<String, byte[]> values, long ttlMs) {
+        synchronized (writer) {
+            Pipeline pipeline = writer.pipelined();
+            for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+                pipeline.psetex(entry.getKey().getBytes(StandardCharsets.UTF_8), ttlMs, entry.getValue());
+            }
+            pipeline.sync();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (reader) {
+            reader.close();
+        }
+    }
+}
@@ -12,11 +12,8 @@ public class Main {
     public static void main(String[] args) {
         log.info("Starting TripUpdateProcessor");
         Config config = ConfigParser.createConfig();
-        try (PulsarApplication app = PulsarApplication.newInstance(config)) {
-
-            PulsarApplicationContext context = app.getContext();
-
-            MessageRouter router = new MessageRouter(context);
+        try (PulsarApplication app = PulsarApplication.newInstance(config);
+             MessageRouter router = new MessageRouter(app.getContext())) {
 
             log.info("Start handling the messages");
             app.launchWithHandler(router);
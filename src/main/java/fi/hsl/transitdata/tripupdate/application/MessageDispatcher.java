@@ -0,0 +1,121 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import fi.hsl.transitdata.tripupdate.metrics.StageEvents;
+import fi.hsl.transitdata.tripupdate.processing.AbstractMessageProcessor;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcome;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcomes;
+import org.apache.pulsar.client.api.Message;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routes messages one by one to the processor of their schema and publishes the resulting TripUpdates.
+ *
+ * Processors are looked up from a table indexed by schema, and results are stored into a holder reused for every
+ * message, so that routing doesn't allocate anything per message on the success path.
+ *
+ * Messages that take longer than a threshold to process are recorded as slow message events, at most a given number
+ * per second so that a stall affecting every message doesn't flood the recording.
+ *
+ * Not thread-safe, expected to be used by one thread at a time.
+ */
+class MessageDispatcher {
+    private static final ProtobufSchema[] SCHEMAS = ProtobufSchema.values();
+    //values of the schema property
+    private static final Map<String, ProtobufSchema> SCHEMAS_BY_NAME = new HashMap<>();
+    static {
+        for (ProtobufSchema schema : SCHEMAS) {
+            SCHEMAS_BY_NAME.put(schema.toString(), schema);
+        }
+    }
+
+    private final AbstractMessageProcessor[] processors = new AbstractMessageProcessor[SCHEMAS.length];
+    private final BatchHandler.TripUpdatePublisher publisher;
+    private final AbstractMessageProcessor.TripUpdateWithId result = new AbstractMessageProcessor.TripUpdateWithId();
+
+    private final StageEvents stageEvents;
+    private MessageOutcomes outcomes = new MessageOutcomes();
+    private long slowMessageThresholdNanos = Long.MAX_VALUE;
+    private int slowMessagesPerSecond;
+    private long sampledSecond;
+    private int sampledInSecond;
+
+    MessageDispatcher(BatchHandler.TripUpdatePublisher publisher) {
+        this(publisher, StageEvents.get());
+    }
+
+    MessageDispatcher(BatchHandler.TripUpdatePublisher publisher, StageEvents stageEvents) {
+        this.publisher = publisher;
+        this.stageEvents = stageEvents;
+    }
+
+    void setMessageOutcomes(MessageOutcomes outcomes) {
+        this.outcomes = outcomes;
+    }
+
+    void captureSlowMessages(long thresholdNanos, int maxPerSecond) {
+        slowMessageThresholdNanos = thresholdNanos;
+        slowMessagesPerSecond = maxPerSecond;
+    }
+
+    void register(ProtobufSchema schema, AbstractMessageProcessor processor) {
+        processors[schema.ordinal()] = processor;
+    }
+
+    /**
+     * @return schema of the message, or null if it has none or it is unknown
+     */
+    static ProtobufSchema schemaOf(Message msg) {
+        final String name = msg.getProperty(TransitdataProperties.KEY_PROTOBUF_SCHEMA);
+        return name != null ? SCHEMAS_BY_NAME.get(name) : null;
+    }
+
+    void dispatch(Message msg) {
+        if (!stageEvents.isEnabled()) {
+            route(msg);
+            return;
+        }
+        final long startNs = System.nanoTime();
+        final boolean published = route(msg);
+        final long processingNanos = System.nanoTime() - startNs;
+        if (processingNanos > slowMessageThresholdNanos && sampleSlowMessage(startNs)) {
+            stageEvents.slowMessage(published ? result.getTripId() : msg.getKey(), schemaOf(msg), msg.getData().length,
+                    published ? result.getTripUpdate() : null, processingNanos);
+        }
+    }
+
+    private boolean sampleSlowMessage(long nowNs) {
+        final long second = TimeUnit.NANOSECONDS.toSeconds(nowNs);
+        if (second != sampledSecond) {
+            sampledSecond = second;
+            sampledInSecond = 0;
+        }
+        return sampledInSecond++ < slowMessagesPerSecond;
+    }
+
+    /**
+     * @return true if a TripUpdate was published for the message
+     */
+    private boolean route(Message msg) {
+        final ProtobufSchema schema = schemaOf(msg);
+        if (schema == null) {
+            outcomes.record(MessageOutcome.UNKNOWN_SCHEMA);
+            return false;
+        }
+        final AbstractMessageProcessor processor = processors[schema.ordinal()];
+        if (processor == null) {
+            outcomes.record(MessageOutcome.UNKNOWN_SCHEMA, "Received message with unknown schema, ignoring: {}", schema);
+            return false;
+        }
+        //Processors count the outcome of messages that don't produce a TripUpdate
+        if (!processor.validateMessage(msg.getData()) || !processor.processMessage(msg, result)) {
+            return false;
+        }
+        publisher.publish(result.getTripId(), result.getTripUpdate(), msg);
+        return true;
+    }
+}
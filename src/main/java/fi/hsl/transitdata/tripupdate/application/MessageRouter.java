@@ -7,9 +7,17 @@ import fi.hsl.common.pulsar.IMessageHandler;
 import fi.hsl.common.pulsar.PulsarApplicationContext;
 import fi.hsl.common.transitdata.TransitdataProperties;
 import fi.hsl.common.transitdata.TransitdataProperties.*;
-import fi.hsl.common.transitdata.TransitdataSchema;
-import fi.hsl.transitdata.tripupdate.processing.AbstractMessageProcessor;
+import fi.hsl.transitdata.tripupdate.metrics.EndToEndLatencies;
+import fi.hsl.transitdata.tripupdate.metrics.LaneLatencies;
+import fi.hsl.transitdata.tripupdate.metrics.StageEvents;
+import fi.hsl.transitdata.tripupdate.processing.EventTimeClock;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcome;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcomes;
+import fi.hsl.transitdata.tripupdate.processing.PreDecodeFilter;
 import fi.hsl.transitdata.tripupdate.processing.StopEstimateProcessor;
+import fi.hsl.transitdata.tripupdate.state.InMemoryTripStateSource;
+import fi.hsl.transitdata.tripupdate.state.StringInterner;
+import fi.hsl.transitdata.tripupdate.state.TripStateStore;
 import fi.hsl.transitdata.tripupdate.validators.ITripUpdateValidator;
 import fi.hsl.transitdata.tripupdate.validators.PrematureDeparturesValidator;
 import fi.hsl.transitdata.tripupdate.validators.TripUpdateMaxAgeValidator;
@@ -17,45 +25,263 @@ import fi.hsl.transitdata.tripupdate.processing.TripCancellationProcessor;
 import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
 import org.apache.pulsar.client.api.Consumer;
 import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.SubscriptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Clock;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 
-public class MessageRouter implements IMessageHandler {
+public class MessageRouter implements IMessageHandler, AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(MessageRouter.class);
 
-    private Map<ProtobufSchema, AbstractMessageProcessor> processors = new HashMap<>();
+    private static final BiConsumer<Object, Throwable> LOG_ACK_FAILURE = (result, throwable) -> {
+        if (throwable != null) {
+            log.error("Failed to ack Pulsar message", throwable);
+        }
+    };
+
+    private final MessageDispatcher dispatcher = new MessageDispatcher(this::validateAndSendTripUpdate);
+    private final StageEvents stageEvents = StageEvents.get();
     private List<ITripUpdateValidator> tripUpdateValidators;
 
     private Consumer<byte[]> consumer;
     private Producer<byte[]> producer;
     private Config config;
+    //creates the components below and closes them with the router
+    private final RouterComponents components;
+    //time of validations and trip state, either wall clock or event time of messages
+    private Clock clock;
+    private ExecutionThreads.Mode executionThreads;
+    //runs callbacks of sends and acknowledgements
+    private Executor completionExecutor;
+
+    //handlers of the processing mode, null when not used in it
+    private BatchHandler batchHandler;
+    private int batchMaxSize;
+    private CatchUpHandler catchUpHandler;
+    private PipelinedHandler pipelinedHandler;
+    //replaces the dispatcher when comparing against a shadow engine
+    private ShadowRunner shadowRunner;
+
+    private CancellationLane cancellationLane;
+    //stand-in for the output topic as the source of trip state, fed with what we publish
+    private InMemoryTripStateSource localTripStateSource;
+    private final LaneLatencies laneLatencies = new LaneLatencies();
+    //reported with lane latencies when enabled, null otherwise
+    private PreDecodeFilter preDecodeFilter;
+    //reported with lane latencies when enabled, null otherwise
+    private EndToEndLatencies endToEndLatencies;
+    private MessageOutcomes messageOutcomes;
+
+    private final BiConsumer<Object, Throwable> recordSendOutcome = (result, throwable) -> {
+        if (throwable != null) {
+            messageOutcomes.record(MessageOutcome.FAILED, "Failed to publish TripUpdate: {}", throwable);
+        } else {
+            messageOutcomes.record(MessageOutcome.PUBLISHED);
+        }
+    };
 
-    public MessageRouter(PulsarApplicationContext context) {
+    public MessageRouter(PulsarApplicationContext context) throws Exception {
         consumer = context.getConsumer();
         producer = context.getProducer();
         this.config = context.getConfig();
-        tripUpdateValidators = registerTripUpdateValidators();
-        registerHandlers(context);
+        components = new RouterComponents(config);
+        try {
+            executionThreads = ExecutionThreads.Mode.parse(config.getString("execution.threads"));
+            completionExecutor = ExecutionThreads.completionExecutor(executionThreads);
+            log.info("Running with {} threads", executionThreads);
+            clock = components.createClock();
+            tripUpdateValidators = registerTripUpdateValidators();
+            components.report(laneLatencies::report);
+            registerEndToEndLatencies();
+            registerHandlers(context);
+            startCancellationLane(context);
+            scheduleReports();
+        } catch (Exception e) {
+            //Nobody will close a router that failed to start
+            try {
+                components.close();
+            } catch (Exception closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw e;
+        }
     }
 
-    private void registerHandlers(PulsarApplicationContext context) {
+    private void registerHandlers(PulsarApplicationContext context) throws Exception {
+        final RouterComponents.ProcessingMode mode = components.resolveProcessingMode();
         //Let's use the same instance of TripUpdateProcessor.
-        TripUpdateProcessor tripUpdateProcessor = new TripUpdateProcessor(context.getProducer());
+        StringInterner interner = new StringInterner(config.getInt("state.internerMaxSize"));
+        final TripStateStore tripStateStore = components.createTripStateStore(context, interner);
+        TripUpdateProcessor tripUpdateProcessor = new TripUpdateProcessor(context.getProducer(), interner, components.createTripStateGovernor(),
+                components.createTripStateHandoff(context), tripStateStore);
+        tripUpdateProcessor.setClock(clock);
+        localTripStateSource = components.getLocalTripStateSource();
+
+        StopEstimateProcessor stopEstimateProcessor = new StopEstimateProcessor(tripUpdateProcessor);
+        TripCancellationProcessor tripCancellationProcessor = new TripCancellationProcessor(tripUpdateProcessor);
+        messageOutcomes = new MessageOutcomes(config.getInt("metrics.sampledOutcomeLogs"));
+        components.report(messageOutcomes::report);
+        tripUpdateProcessor.setMessageOutcomes(messageOutcomes);
+        stopEstimateProcessor.setMessageOutcomes(messageOutcomes);
+        tripCancellationProcessor.setMessageOutcomes(messageOutcomes);
+        dispatcher.setMessageOutcomes(messageOutcomes);
+        dispatcher.register(ProtobufSchema.InternalMessagesStopEstimate, stopEstimateProcessor);
+        dispatcher.register(ProtobufSchema.InternalMessagesTripCancellation, tripCancellationProcessor);
+        dispatcher.captureSlowMessages(config.getDuration("jfr.slowMessageThreshold", TimeUnit.NANOSECONDS),
+                config.getInt("jfr.slowMessagesPerSecond"));
+        if (config.getBoolean("preDecodeFilter.enabled")) {
+            preDecodeFilter = new PreDecodeFilter();
+            components.report(preDecodeFilter::report);
+            stopEstimateProcessor.setPreDecodeFilter(preDecodeFilter);
+            tripCancellationProcessor.setPreDecodeFilter(preDecodeFilter);
+        }
 
-        processors.put(ProtobufSchema.InternalMessagesStopEstimate, new StopEstimateProcessor(tripUpdateProcessor));
-        processors.put(ProtobufSchema.InternalMessagesTripCancellation, new TripCancellationProcessor(tripUpdateProcessor));
+        switch (mode) {
+            case SHADOW:
+                startShadowRunner(stopEstimateProcessor, tripCancellationProcessor);
+                break;
+            case PIPELINE:
+                startPipeline(tripUpdateProcessor, stopEstimateProcessor, tripCancellationProcessor);
+                break;
+            default:
+                registerBatchHandlers(mode, tripUpdateProcessor, stopEstimateProcessor, tripCancellationProcessor);
+        }
+    }
+
+    /**
+     * Batches messages in BATCH mode, and catches up with batches when lagging in both BATCH and SINGLE modes
+     */
+    private void registerBatchHandlers(RouterComponents.ProcessingMode mode, TripUpdateProcessor tripUpdateProcessor,
+                                       StopEstimateProcessor stopEstimateProcessor, TripCancellationProcessor tripCancellationProcessor) {
+        BatchHandler handler = new BatchHandler(consumer, tripUpdateProcessor, stopEstimateProcessor, tripCancellationProcessor,
+                this::validateAndSendTripUpdate, config.getDuration("batch.receiveTimeout", TimeUnit.MILLISECONDS));
+        handler.setMessageOutcomes(messageOutcomes);
+        if (endToEndLatencies != null) {
+            handler.setReceiveListener(msg -> recordLatency(msg, EndToEndLatencies.Point.RECEIVED, System.currentTimeMillis()));
+        }
+        if (mode == RouterComponents.ProcessingMode.BATCH) {
+            batchHandler = handler;
+            batchMaxSize = config.getInt("batch.maxSize");
+        }
+        if (config.getBoolean("catchUp.enabled") && clock instanceof EventTimeClock) {
+            //Consumer lag is wall clock time since publish, which doesn't tell anything about replayed messages
+            log.info("Catch-up mode is not used with event time");
+        } else if (config.getBoolean("catchUp.enabled")) {
+            catchUpHandler = new CatchUpHandler(handler,
+                    config.getDuration("catchUp.lagThreshold", TimeUnit.MILLISECONDS),
+                    config.getInt("catchUp.batchSize"));
+        }
+    }
+
+    private void startPipeline(TripUpdateProcessor tripUpdateProcessor, StopEstimateProcessor stopEstimateProcessor,
+                               TripCancellationProcessor tripCancellationProcessor) {
+        pipelinedHandler = components.own(new PipelinedHandler(tripUpdateProcessor, stopEstimateProcessor, tripCancellationProcessor,
+                this, this::validateAndSendTripUpdate,
+                msg -> acknowledge(msg, consumer, LaneLatencies.Lane.ESTIMATES),
+                executionThreads,
+                config.getInt("pipeline.decodeThreads"),
+                config.getInt("pipeline.publishThreads"),
+                config.getInt("pipeline.queueSize")));
+        pipelinedHandler.setMessageOutcomes(messageOutcomes);
+        pipelinedHandler.start();
+        components.report(pipelinedHandler::report);
+        log.info("Processing messages in a pipeline with {} decode and {} publish threads",
+                config.getInt("pipeline.decodeThreads"), config.getInt("pipeline.publishThreads"));
+    }
+
+    /**
+     * Runs messages also through a shadow TripUpdateProcessor that keeps its own trip state, without handoff or sharing
+     */
+    private void startShadowRunner(StopEstimateProcessor primaryStopEstimates, TripCancellationProcessor primaryCancellations) throws IOException {
+        final Config shadowConfig = config.getConfig("shadow");
+        final StringInterner shadowInterner = new StringInterner(shadowConfig.getInt("internerMaxSize"));
+        final TripUpdateProcessor shadowProcessor = new TripUpdateProcessor(null, shadowInterner, components.createTripStateGovernor(),
+                null, components.createShadowTripStateStore(shadowInterner));
+        shadowProcessor.setClock(clock);
+        final StopEstimateProcessor shadowStopEstimates = new StopEstimateProcessor(shadowProcessor);
+        final TripCancellationProcessor shadowCancellations = new TripCancellationProcessor(shadowProcessor);
+        if (preDecodeFilter != null) {
+            final PreDecodeFilter shadowFilter = new PreDecodeFilter();
+            shadowStopEstimates.setPreDecodeFilter(shadowFilter);
+            shadowCancellations.setPreDecodeFilter(shadowFilter);
+        }
+
+        shadowRunner = new ShadowRunner(this::validateAndSendTripUpdate, shadowConfig.getInt("maxRecordedMismatches"));
+        shadowRunner.setMessageOutcomes(messageOutcomes);
+        shadowRunner.register(ProtobufSchema.InternalMessagesStopEstimate, primaryStopEstimates, shadowStopEstimates);
+        shadowRunner.register(ProtobufSchema.InternalMessagesTripCancellation, primaryCancellations, shadowCancellations);
+        components.report(shadowRunner::report);
+        if (config.getBoolean("keyShared.enabled") || config.getBoolean("redis.enabled")) {
+            log.warn("Shadow engine doesn't seed or share trip state, TripUpdates of seeded trips are reported as mismatches");
+        }
+        log.info("Comparing TripUpdates with a shadow engine storing trip state in {} store", shadowConfig.getString("store.type"));
+    }
+
+    private void startCancellationLane(PulsarApplicationContext context) throws Exception {
+        if (!config.getBoolean("cancellationLane.enabled")) {
+            return;
+        }
+        Consumer<byte[]> laneConsumer = CancellationLane.subscribe(context.getClient(),
+                config.getString("cancellationLane.topicsPattern"),
+                config.getString("cancellationLane.subscription"),
+                SubscriptionType.valueOf(config.getString("cancellationLane.subscriptionType")));
+        cancellationLane = components.own(new CancellationLane(laneConsumer,
+                received -> {
+                    recordLatency(received, EndToEndLatencies.Point.RECEIVED, System.currentTimeMillis());
+                    if (pipelinedHandler != null) {
+                        //TripUpdates of the pipeline are published outside stateLock, so publish through it to keep their order
+                        pipelinedHandler.process(received, msg -> acknowledge(msg, laneConsumer, LaneLatencies.Lane.CANCELLATIONS));
+                    } else {
+                        handleSingleMessage(received, laneConsumer, LaneLatencies.Lane.CANCELLATIONS);
+                    }
+                }));
+        cancellationLane.start();
+    }
+
+    private void registerEndToEndLatencies() {
+        if (!config.getBoolean("metrics.endToEndLatencies.enabled")) {
+            return;
+        }
+        endToEndLatencies = new EndToEndLatencies();
+        components.report(endToEndLatencies::report);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(endToEndLatencies, new ObjectName(EndToEndLatencies.OBJECT_NAME));
+        }
+        catch (JMException e) {
+            log.warn("Failed to register end-to-end latencies as MXBean, only logging them", e);
+        }
+    }
+
+    private void scheduleReports() {
+        final long intervalMs = config.getDuration("metrics.latencyReportInterval", TimeUnit.MILLISECONDS);
+        final ScheduledExecutorService reportScheduler = Executors.newSingleThreadScheduledExecutor(
+                ExecutionThreads.factory(executionThreads, "latency-report-"));
+        components.own(reportScheduler::shutdown);
+        for (Runnable report : components.getReports()) {
+            reportScheduler.scheduleAtFixedRate(report, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
     }
 
     private List<ITripUpdateValidator> registerTripUpdateValidators() {
 
         List<ITripUpdateValidator> tripUpdateValidators = new ArrayList<>();
 
-        tripUpdateValidators.add(new TripUpdateMaxAgeValidator(config.getDuration("validator.tripUpdateMaxAge", TimeUnit.SECONDS)));
+        tripUpdateValidators.add(new TripUpdateMaxAgeValidator(config.getDuration("validator.tripUpdateMaxAge", TimeUnit.SECONDS), clock));
         tripUpdateValidators.add(new PrematureDeparturesValidator(config.getDuration("validator.tripUpdateMinTimeBeforeDeparture", TimeUnit.SECONDS),
                 config.getString("validator.timezone")));
 
@@ -63,67 +289,173 @@ public class MessageRouter implements IMessageHandler {
 
     }
 
+    /**
+     * Closes components in reverse order of creating them: stops reporting and receiving cancellations, processes
+     * messages already queued in the pipeline, and closes trip state and its source
+     */
+    @Override
+    public void close() throws Exception {
+        components.close();
+    }
+
+    /**
+     * @return handler of the pipeline, null if it's not enabled
+     */
+    public PipelinedHandler getPipelinedHandler() {
+        return pipelinedHandler;
+    }
+
+    /**
+     * @return runner comparing engines in shadow mode, null if not enabled
+     */
+    ShadowRunner getShadowRunner() {
+        return shadowRunner;
+    }
+
     public void handleMessage(Message received) throws Exception {
+        recordLatency(received, EndToEndLatencies.Point.RECEIVED, System.currentTimeMillis());
+        if (pipelinedHandler != null) {
+            pipelinedHandler.submit(received);
+            return;
+        }
+        final Optional<BatchHandler.Result> maybeBatch = maybeHandleBatch(received);
+        if (maybeBatch.isPresent()) {
+            final long now = System.currentTimeMillis();
+            for (Message msg : maybeBatch.get().messages) {
+                laneLatencies.record(LaneLatencies.Lane.ESTIMATES, now - msg.getPublishTime());
+                recordLatency(msg, EndToEndLatencies.Point.PROCESSED, now);
+            }
+        } else {
+            handleSingleMessage(received, consumer, LaneLatencies.Lane.ESTIMATES);
+        }
+    }
+
+    /**
+     * Trip state is shared by both lanes, so only one of them processes messages at a time. Messages of a trip are thus
+     * applied one at a time in the order they are received, while cancellations no longer queue behind estimates
+     * but wait at most for the message or batch in progress.
+     */
+    private synchronized Optional<BatchHandler.Result> maybeHandleBatch(Message received) {
         try {
-            Optional<TransitdataSchema> maybeSchema = TransitdataSchema.parseFromPulsarMessage(received);
-            maybeSchema.ifPresent(schema -> {
-                AbstractMessageProcessor processor = processors.get(schema.schema);
-                if (processor != null) {
-                    if (processor.validateMessage(received.getData())) {
-
-                        Optional<AbstractMessageProcessor.TripUpdateWithId> maybeTripUpdate = processor.processMessage(received);
-                        if (maybeTripUpdate.isPresent()) {
-                            final AbstractMessageProcessor.TripUpdateWithId pair = maybeTripUpdate.get();
-                            final GtfsRealtime.TripUpdate tripUpdate = pair.getTripUpdate();
-                            boolean tripUpdateIsValid = true;
-
-                            for (ITripUpdateValidator validator : tripUpdateValidators) {
-                                tripUpdateIsValid = tripUpdateIsValid && validator.validate(tripUpdate);
-                            }
-
-                            if (tripUpdateIsValid) {
-                                long eventTimeMs = received.getEventTime();
-                                sendTripUpdate(pair, eventTimeMs);
-                            }
-                        }
-                        else {
-                            log.warn("Failed to process TripUpdate from source schema {}", schema.schema.toString());
-                        }
-                    }
-                    else {
-                        log.info("Message didn't pass validation, ignoring.");
-                    }
-                }
-                else {
-                    log.warn("Received message with unknown schema, ignoring: " + schema);
-                }
-            });
-
-            consumer.acknowledgeAsync(received)
-                    .exceptionally(throwable -> {
-                        log.error("Failed to ack Pulsar message", throwable);
-                        return null;
-                    })
-                    .thenRun(() -> {});
+            if (catchUpHandler != null && catchUpHandler.isLagging(received, System.currentTimeMillis())) {
+                return Optional.of(catchUpHandler.handleBacklog(received));
+            }
+            if (batchHandler != null) {
+                return Optional.of(batchHandler.handleBatch(received, batchMaxSize, false));
+            }
+        }
+        catch (Exception e) {
+            log.error("Exception while handling messages", e);
+            //Don't process the message again with the single message path
+            return Optional.of(BatchHandler.Result.EMPTY);
+        }
+        return Optional.empty();
+    }
+
+    private void handleSingleMessage(Message received, Consumer<byte[]> source, LaneLatencies.Lane lane) {
+        processSingleMessage(received);
+        acknowledge(received, source, lane);
+    }
+
+    private void acknowledge(Message received, Consumer<byte[]> source, LaneLatencies.Lane lane) {
+        final long now = System.currentTimeMillis();
+        laneLatencies.record(lane, now - received.getPublishTime());
+        recordLatency(received, EndToEndLatencies.Point.PROCESSED, now);
+
+        final CompletableFuture<Void> ack = source.acknowledgeAsync(received);
+        //Grouped acknowledgements complete right away, nothing needs to be chained to them
+        if (!ack.isDone() || ack.isCompletedExceptionally()) {
+            ack.whenCompleteAsync(LOG_ACK_FAILURE, completionExecutor);
+        }
+    }
+
+    private synchronized void processSingleMessage(Message received) {
+        try {
+            if (shadowRunner != null) {
+                shadowRunner.dispatch(received);
+            } else {
+                dispatcher.dispatch(received);
+            }
         }
         catch (Exception e) {
             log.error("Exception while handling message", e);
         }
     }
 
-    private void sendTripUpdate(final AbstractMessageProcessor.TripUpdateWithId tuIdPair, final long pulsarEventTimestamp) {
-        final String tripId = tuIdPair.getTripId();
-        final GtfsRealtime.TripUpdate tripUpdate = tuIdPair.getTripUpdate();
+    /**
+     * Records latency from the event time of the message, or its publish time if it has no event time
+     */
+    private void recordLatency(Message msg, EndToEndLatencies.Point point, long nowMs) {
+        recordLatency(msg, point, msg.getEventTime() > 0 ? msg.getEventTime() : msg.getPublishTime(), nowMs);
+    }
+
+    private void recordLatency(Message msg, EndToEndLatencies.Point point, long sinceMs, long nowMs) {
+        if (endToEndLatencies == null) {
+            return;
+        }
+        final ProtobufSchema schema = MessageDispatcher.schemaOf(msg);
+        if (schema != null) {
+            endToEndLatencies.record(msg.getTopicName(), schema, point, nowMs - sinceMs);
+        }
+    }
+
+    private void validateAndSendTripUpdate(final String tripId, final GtfsRealtime.TripUpdate tripUpdate, final Message source) {
+        boolean tripUpdateIsValid = true;
+        final ProtobufSchema schema = schemaForEvents(source);
 
+        for (int n = 0; n < tripUpdateValidators.size() && tripUpdateIsValid; n++) {
+            final ITripUpdateValidator validator = tripUpdateValidators.get(n);
+            final StageEvents.Span span = stageEvents.begin(StageEvents.Stage.VALIDATE, validator.getClass().getName());
+            tripUpdateIsValid = validator.validate(tripUpdate);
+            span.end(tripId, tripUpdate.getStopTimeUpdateCount(), schema);
+            if (!tripUpdateIsValid) {
+                messageOutcomes.record(validator.getRejectionOutcome());
+            }
+        }
+
+        if (tripUpdateIsValid) {
+            sendTripUpdate(tripId, tripUpdate, source, schema);
+        }
+    }
+
+    /**
+     * @return schema of the message if stage events are being recorded, null otherwise to avoid looking it up
+     */
+    private ProtobufSchema schemaForEvents(Message msg) {
+        return stageEvents.isEnabled() ? MessageDispatcher.schemaOf(msg) : null;
+    }
+
+    private void sendTripUpdate(final String tripId, final GtfsRealtime.TripUpdate tripUpdate, final Message source, final ProtobufSchema schema) {
+        if (localTripStateSource != null) {
+            localTripStateSource.published(tripId, tripUpdate, clock.millis());
+        }
+        final StageEvents.Span serialization = stageEvents.begin(StageEvents.Stage.SERIALIZE, null);
         GtfsRealtime.FeedMessage feedMessage = FeedMessageFactory.createDifferentialFeedMessage(tripId, tripUpdate, tripUpdate.getTimestamp());
-        producer.newMessage()
+        final byte[] payload = feedMessage.toByteArray();
+        serialization.end(tripId, tripUpdate.getStopTimeUpdateCount(), schema);
+
+        final StageEvents.Span send = stageEvents.begin(StageEvents.Stage.SEND, null);
+        final CompletableFuture<MessageId> sent = producer.newMessage()
                 .key(tripId)
-                .eventTime(pulsarEventTimestamp)
+                .eventTime(source.getEventTime())
                 .property(TransitdataProperties.KEY_PROTOBUF_SCHEMA, TransitdataProperties.ProtobufSchema.GTFS_TripUpdate.toString())
-                .value(feedMessage.toByteArray())
-                .sendAsync()
-                .thenRun(() -> log.debug("Sending TripUpdate for tripId {} with {} StopTimeUpdates and status {}",
-                        tripId, tripUpdate.getStopTimeUpdateCount(), tripUpdate.getTrip().getScheduleRelationship()));
+                .value(payload)
+                .sendAsync();
+        //Counted once the broker has it, a send can still fail after the producer accepted it
+        sent.whenComplete(recordSendOutcome);
+        if (endToEndLatencies != null || send != StageEvents.NO_SPAN || log.isDebugEnabled()) {
+            sent.thenRunAsync(() -> onSent(tripId, tripUpdate, source, schema, send), completionExecutor);
+        }
+
+    }
 
+    private void onSent(String tripId, GtfsRealtime.TripUpdate tripUpdate, Message source, ProtobufSchema schema, StageEvents.Span send) {
+        send.end(tripId, tripUpdate.getStopTimeUpdateCount(), schema);
+        final long now = System.currentTimeMillis();
+        recordLatency(source, EndToEndLatencies.Point.PUBLISHED, now);
+        //TripUpdate timestamp is the last modification time of the stop estimates it was built from
+        recordLatency(source, EndToEndLatencies.Point.PUBLISHED_SINCE_MODIFIED, TimeUnit.SECONDS.toMillis(tripUpdate.getTimestamp()), now);
+        log.debug("Sending TripUpdate for tripId {} with {} StopTimeUpdates and status {}",
+                tripId, tripUpdate.getStopTimeUpdateCount(), tripUpdate.getTrip().getScheduleRelationship());
     }
 }
@@ -0,0 +1,150 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Stage of a pipeline, with a bounded queue and a thread for each of its workers.
+ *
+ * Items are assigned to workers by key, so that items with the same key are handled one at a time in submission order.
+ * Submitting blocks while the queue of the worker is full, which holds back the previous stage.
+ */
+class PipelineStage<T> implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(PipelineStage.class);
+
+    private final String name;
+    private final Consumer<T> handler;
+    private final List<Worker> workers = new ArrayList<>();
+    private final LongAdder processed = new LongAdder();
+    private volatile boolean running = true;
+
+    private long intervalStartNanos = System.nanoTime();
+
+    private class Worker implements Runnable {
+        final BlockingQueue<T> queue;
+        final Thread thread;
+        final AtomicLong busyNanos = new AtomicLong();
+
+        Worker(int queueSize, ThreadFactory threadFactory) {
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            this.thread = threadFactory.newThread(this);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                final T item;
+                try {
+                    item = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (item == null) {
+                    continue;
+                }
+                final long startNanos = System.nanoTime();
+                try {
+                    handler.accept(item);
+                } catch (Exception e) {
+                    log.error("Exception in pipeline stage {}", name, e);
+                }
+                busyNanos.addAndGet(System.nanoTime() - startNanos);
+                processed.increment();
+            }
+        }
+    }
+
+    /**
+     * @param workerCount   amount of workers, 1 for a single-threaded stage
+     * @param queueSize     capacity of the queue of each worker
+     * @param threadFactory creates a thread for each worker
+     */
+    PipelineStage(String name, int workerCount, int queueSize, ThreadFactory threadFactory, Consumer<T> handler) {
+        this.name = name;
+        this.handler = handler;
+        for (int n = 0; n < workerCount; n++) {
+            workers.add(new Worker(queueSize, threadFactory));
+        }
+    }
+
+    void start() {
+        workers.forEach(worker -> worker.thread.start());
+    }
+
+    /**
+     * @param key items with equal keys are handled in submission order, null keys go to the first worker
+     */
+    void submit(String key, T item) throws InterruptedException {
+        final int index = key != null ? (key.hashCode() & Integer.MAX_VALUE) % workers.size() : 0;
+        workers.get(index).queue.put(item);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getWorkerCount() {
+        return workers.size();
+    }
+
+    /**
+     * @return amount of items waiting in the queues of all workers
+     */
+    int getQueueDepth() {
+        int depth = 0;
+        for (Worker worker : workers) {
+            depth += worker.queue.size();
+        }
+        return depth;
+    }
+
+    long getProcessedCount() {
+        return processed.sum();
+    }
+
+    /**
+     * @return fraction of time the workers were busy since the previous call, 1.0 meaning all of them all the time
+     */
+    synchronized double takeUtilization() {
+        final long now = System.nanoTime();
+        final long elapsedNanos = Math.max(now - intervalStartNanos, 1);
+        intervalStartNanos = now;
+        long busyNanos = 0;
+        for (Worker worker : workers) {
+            busyNanos += worker.busyNanos.getAndSet(0);
+        }
+        return Math.min((double) busyNanos / elapsedNanos / workers.size(), 1.0);
+    }
+
+    /**
+     * Stops the workers after they have handled the items already queued. If interrupted, stops without waiting for them
+     */
+    @Override
+    public void close() {
+        try {
+            for (Worker worker : workers) {
+                while (!worker.queue.isEmpty() && worker.thread.isAlive()) {
+                    Thread.sleep(10);
+                }
+            }
+            running = false;
+            for (Worker worker : workers) {
+                worker.thread.join();
+            }
+        } catch (InterruptedException e) {
+            running = false;
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while closing pipeline stage {}, {} items left unhandled", name, getQueueDepth());
+        }
+    }
+}
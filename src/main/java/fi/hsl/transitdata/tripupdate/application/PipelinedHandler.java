@@ -0,0 +1,259 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.TransitdataSchema;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.metrics.StageEvents;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcome;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcomes;
+import fi.hsl.transitdata.tripupdate.processing.StopEstimateProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripCancellationProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import org.apache.pulsar.client.api.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Processes messages in three stages, so that only the stage modifying trip state is single-threaded:
+ *
+ * 1. decode: parses and validates messages, in parallel
+ * 2. state: applies them to trip state and builds TripUpdates, in a single thread
+ * 3. publish: cleans up StopTimeUpdates of TripUpdates, validates, serializes and publishes them, in parallel
+ *
+ * Parallel stages assign messages to workers by trip, so messages of a trip are processed and published
+ * in the order they were received. Every message is handed to onDone once it has been fully processed,
+ * also when processing it fails. Only a message dropped because handing it to the next stage was interrupted
+ * is not, so that it's left unacknowledged and redelivered.
+ *
+ * Messages of other lanes can skip the queues with process(), which applies them to trip state right away. Their
+ * TripUpdates are queued for publishing while holding stateLock like those of the pipeline, so TripUpdates of a trip
+ * are published in the order its state was modified.
+ */
+public class PipelinedHandler implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(PipelinedHandler.class);
+
+    /**
+     * Message and everything derived from it, passed from stage to stage
+     */
+    static class Item {
+        final Message msg;
+        final Consumer<Message> onDone;
+        String tripId;
+        InternalMessages.StopEstimate stopEstimate;
+        InternalMessages.TripCancellation tripCancellation;
+        GtfsRealtime.TripUpdate tripUpdate;
+
+        Item(Message msg, Consumer<Message> onDone) {
+            this.msg = msg;
+            this.onDone = onDone;
+        }
+    }
+
+    private final TripUpdateProcessor tripUpdateProcessor;
+    private final StopEstimateProcessor stopEstimateProcessor;
+    private final TripCancellationProcessor tripCancellationProcessor;
+    private final Object stateLock;
+    private final BatchHandler.TripUpdatePublisher publisher;
+    private final Consumer<Message> onDone;
+
+    private MessageOutcomes outcomes = new MessageOutcomes();
+
+    private final PipelineStage<Item> decodeStage;
+    private final PipelineStage<Item> stateStage;
+    private final PipelineStage<Item> publishStage;
+
+    /**
+     * @param stateLock held while modifying trip state, so that other paths modifying the same state can be serialized with it
+     * @param threads   kind of threads the stages run in
+     */
+    public PipelinedHandler(TripUpdateProcessor tripUpdateProcessor,
+                            StopEstimateProcessor stopEstimateProcessor,
+                            TripCancellationProcessor tripCancellationProcessor,
+                            Object stateLock,
+                            BatchHandler.TripUpdatePublisher publisher,
+                            Consumer<Message> onDone,
+                            ExecutionThreads.Mode threads,
+                            int decodeThreads, int publishThreads, int queueSize) {
+        this.tripUpdateProcessor = tripUpdateProcessor;
+        this.stopEstimateProcessor = stopEstimateProcessor;
+        this.tripCancellationProcessor = tripCancellationProcessor;
+        this.stateLock = stateLock;
+        this.publisher = publisher;
+        this.onDone = onDone;
+        this.decodeStage = new PipelineStage<>("decode", decodeThreads, queueSize,
+                ExecutionThreads.factory(threads, "pipeline-decode-"), this::decode);
+        this.stateStage = new PipelineStage<>("state", 1, queueSize,
+                ExecutionThreads.factory(threads, "pipeline-state-"), this::applyToState);
+        this.publishStage = new PipelineStage<>("publish", publishThreads, queueSize,
+                ExecutionThreads.factory(threads, "pipeline-publish-"), this::publish);
+    }
+
+    public void setMessageOutcomes(MessageOutcomes outcomes) {
+        this.outcomes = outcomes;
+    }
+
+    public void start() {
+        publishStage.start();
+        stateStage.start();
+        decodeStage.start();
+    }
+
+    /**
+     * Queues the message for processing, blocking while the first stage is full
+     */
+    public void submit(Message msg) throws InterruptedException {
+        //Message key is the trip ID for both estimates and cancellations
+        decodeStage.submit(msg.hasKey() ? msg.getKey() : null, new Item(msg, onDone));
+    }
+
+    /**
+     * Decodes the message and applies it to trip state in the calling thread, without queueing behind the pipeline.
+     * Its TripUpdate is published in the publish stage, after those already queued for the same trip.
+     *
+     * @param onDone receives the message once it has been fully processed, instead of the onDone of the pipeline
+     */
+    public void process(Message msg, Consumer<Message> onDone) {
+        final Item item = new Item(msg, onDone);
+        parse(item);
+        if (item.tripId == null) {
+            onDone.accept(msg);
+        } else {
+            applyToState(item);
+        }
+    }
+
+    void decode(Item item) {
+        parse(item);
+        if (item.tripId == null) {
+            item.onDone.accept(item.msg);
+        } else {
+            handOver(stateStage, null, item);
+        }
+    }
+
+    /**
+     * Sets the trip ID of the item if the message is valid
+     */
+    private void parse(Item item) {
+        try {
+            final Optional<TransitdataSchema> maybeSchema = TransitdataSchema.parseFromPulsarMessage(item.msg);
+            if (maybeSchema.isPresent()) {
+                final TransitdataProperties.ProtobufSchema schema = maybeSchema.get().schema;
+                if (schema == TransitdataProperties.ProtobufSchema.InternalMessagesStopEstimate) {
+                    if (stopEstimateProcessor.passesPreDecodeFilter(item.msg.getData())) {
+                        final StageEvents.Span span = StageEvents.get().begin(StageEvents.Stage.DECODE, null);
+                        final InternalMessages.StopEstimate stopEstimate = InternalMessages.StopEstimate.parseFrom(item.msg.getData());
+                        span.end(stopEstimate.getTripInfo().getTripId(), 1, schema);
+                        if (stopEstimateProcessor.validateStopEstimate(stopEstimate)) {
+                            item.stopEstimate = stopEstimate;
+                            item.tripId = stopEstimate.getTripInfo().getTripId();
+                        }
+                    }
+                } else if (schema == TransitdataProperties.ProtobufSchema.InternalMessagesTripCancellation) {
+                    if (tripCancellationProcessor.passesPreDecodeFilter(item.msg.getData())) {
+                        final StageEvents.Span span = StageEvents.get().begin(StageEvents.Stage.DECODE, null);
+                        final InternalMessages.TripCancellation tripCancellation = InternalMessages.TripCancellation.parseFrom(item.msg.getData());
+                        span.end(tripCancellation.getTripId(), 0, schema);
+                        if (tripCancellationProcessor.validateTripCancellation(tripCancellation)) {
+                            item.tripCancellation = tripCancellation;
+                            item.tripId = tripCancellation.getTripId();
+                        }
+                    }
+                } else {
+                    outcomes.record(MessageOutcome.UNKNOWN_SCHEMA, "Received message with unknown schema, ignoring: {}", schema);
+                }
+            } else {
+                outcomes.record(MessageOutcome.UNKNOWN_SCHEMA);
+            }
+        } catch (Exception e) {
+            outcomes.record(MessageOutcome.FAILED, "Failed to parse message payload: {}", e);
+        }
+    }
+
+    void applyToState(Item item) {
+        boolean done = true;
+        try {
+            synchronized (stateLock) {
+                if (item.stopEstimate != null) {
+                    if (tripUpdateProcessor.applyStopEstimate(item.stopEstimate, item.msg.getEventTime())) {
+                        item.tripUpdate = tripUpdateProcessor.buildRawTripUpdate(item.stopEstimate).orElse(null);
+                    }
+                } else {
+                    item.tripUpdate = tripUpdateProcessor.processTripCancellation(item.msg.getKey(), item.msg.getEventTime(), item.tripCancellation);
+                }
+                //Queued while holding the lock, so that TripUpdates of a trip are published in the order of its state
+                if (item.tripUpdate != null) {
+                    done = false;
+                    handOver(publishStage, item.tripId, item);
+                }
+            }
+        } finally {
+            if (done) {
+                item.onDone.accept(item.msg);
+            }
+        }
+    }
+
+    void publish(Item item) {
+        try {
+            //TripUpdates of cancellations are already cleaned up
+            final GtfsRealtime.TripUpdate tripUpdate = item.stopEstimate != null ?
+                    TripUpdateProcessor.cleanStopTimeUpdates(item.tripUpdate, item.stopEstimate.getStopSequence()) :
+                    item.tripUpdate;
+            publisher.publish(item.tripId, tripUpdate, item.msg);
+        } finally {
+            item.onDone.accept(item.msg);
+        }
+    }
+
+    /**
+     * If interrupted, the item is dropped without handing it to onDone
+     */
+    private static void handOver(PipelineStage<Item> stage, String key, Item item) {
+        try {
+            stage.submit(key, item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while queueing message for stage {}, leaving it unacknowledged for redelivery", stage.getName());
+        }
+    }
+
+    /**
+     * @return fraction of time the thread applying messages to trip state was busy since the previous call. That work
+     * can't be parallelized, so this is the serial fraction of the pipeline
+     */
+    public double takeStateUtilization() {
+        return stateStage.takeUtilization();
+    }
+
+    List<PipelineStage<Item>> getStages() {
+        return Arrays.asList(decodeStage, stateStage, publishStage);
+    }
+
+    /**
+     * Logs queue depth, utilization and throughput of each stage. The stage with highest utilization is the bottleneck
+     */
+    public void report() {
+        for (PipelineStage<Item> stage : getStages()) {
+            log.info("Pipeline stage {}: {} workers {}% utilized, {} queued, {} processed in total",
+                    stage.getName(), stage.getWorkerCount(), Math.round(stage.takeUtilization() * 100), stage.getQueueDepth(),
+                    stage.getProcessedCount());
+        }
+    }
+
+    /**
+     * Processes messages already queued and stops
+     */
+    @Override
+    public void close() {
+        decodeStage.close();
+        stateStage.close();
+        publishStage.close();
+    }
+}
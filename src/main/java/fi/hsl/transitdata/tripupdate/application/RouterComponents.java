@@ -0,0 +1,243 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.typesafe.config.Config;
+import fi.hsl.common.pulsar.PulsarApplicationContext;
+import fi.hsl.transitdata.tripupdate.processing.EventTimeClock;
+import fi.hsl.transitdata.tripupdate.state.HeapTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.InMemoryTripStateSource;
+import fi.hsl.transitdata.tripupdate.state.KeyRangeOwnership;
+import fi.hsl.transitdata.tripupdate.state.MappedTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.SharedTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.StringInterner;
+import fi.hsl.transitdata.tripupdate.state.TieredTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.TripStateGovernor;
+import fi.hsl.transitdata.tripupdate.state.TripStateHandoff;
+import fi.hsl.transitdata.tripupdate.state.TripStateSource;
+import fi.hsl.transitdata.tripupdate.state.TripStateStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the components of MessageRouter from configuration, and owns the ones that need closing.
+ *
+ * Owned components are closed in reverse order of creation, so that each is closed before the ones it was created
+ * on top of: reporting first, then receiving cancellations, the pipeline, and last trip state and the source it
+ * was seeded from.
+ */
+class RouterComponents implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RouterComponents.class);
+
+    /**
+     * How messages are processed, resolved once from configuration
+     */
+    enum ProcessingMode {
+        //one message at a time, in batches when catching up
+        SINGLE,
+        BATCH,
+        //messages of a trip in order only among themselves, so it replaces the batch and catch-up paths
+        PIPELINE,
+        //one message at a time through the primary and a shadow engine, which are compared message by message
+        SHADOW
+    }
+
+    private final Config config;
+    private final Deque<AutoCloseable> owned = new ArrayDeque<>();
+    private final List<Runnable> reports = new ArrayList<>();
+    //stand-in for the output topic as the source of trip state, null if not used
+    private InMemoryTripStateSource localTripStateSource;
+
+    RouterComponents(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Closes the component with the others, before any component created earlier
+     *
+     * @return the component
+     */
+    <T extends AutoCloseable> T own(T component) {
+        owned.push(component);
+        return component;
+    }
+
+    /**
+     * Adds a report to be logged periodically
+     */
+    void report(Runnable report) {
+        reports.add(report);
+    }
+
+    List<Runnable> getReports() {
+        return Collections.unmodifiableList(reports);
+    }
+
+    ProcessingMode resolveProcessingMode() {
+        if (config.getBoolean("shadow.enabled")) {
+            log.info("Batching, catch-up and pipeline are not used in shadow mode");
+            return ProcessingMode.SHADOW;
+        } else if (config.getBoolean("pipeline.enabled")) {
+            return ProcessingMode.PIPELINE;
+        } else if (config.getBoolean("batch.enabled")) {
+            return ProcessingMode.BATCH;
+        }
+        return ProcessingMode.SINGLE;
+    }
+
+    Clock createClock() {
+        final String mode = config.getString("clock.mode");
+        if ("wall".equals(mode)) {
+            return Clock.systemUTC();
+        } else if ("eventTime".equals(mode)) {
+            log.info("Advancing time with event time of messages");
+            return new EventTimeClock();
+        }
+        throw new IllegalArgumentException("Unknown clock mode: " + mode);
+    }
+
+    /**
+     * @return trip state of the primary engine, shared through Redis when enabled
+     */
+    TripStateStore createTripStateStore(PulsarApplicationContext context, StringInterner interner) throws IOException {
+        final TripStateStore local = createTripStateStore(config.getConfig("state.store"), interner);
+        if (local instanceof TieredTripStateStore) {
+            report(((TieredTripStateStore) local)::report);
+        }
+        return own(maybeShareTripState(context, local, interner));
+    }
+
+    /**
+     * @return trip state of the shadow engine, which is never shared
+     */
+    TripStateStore createShadowTripStateStore(StringInterner interner) throws IOException {
+        return own(createTripStateStore(config.getConfig("shadow.store"), interner));
+    }
+
+    /**
+     * @return null if Key_Shared handoff is not enabled
+     */
+    TripStateHandoff createTripStateHandoff(PulsarApplicationContext context) throws Exception {
+        if (!config.getBoolean("keyShared.enabled")) {
+            return null;
+        }
+        final String sourceType = config.getString("keyShared.source");
+        final TripStateSource source;
+        if ("topic".equals(sourceType)) {
+            source = own(new CompactedTopicTripStateSource(context.getClient(), config.getString("pulsar.producer.topic"),
+                    config.getDuration("keyShared.sourceMaxAge", TimeUnit.MILLISECONDS), config.getBytes("keyShared.sourceMaxSize")));
+        } else if ("memory".equals(sourceType)) {
+            localTripStateSource = new InMemoryTripStateSource(config.getDuration("keyShared.sourceMaxAge", TimeUnit.MILLISECONDS));
+            source = localTripStateSource;
+        } else {
+            throw new IllegalArgumentException("Unknown trip state source: " + sourceType);
+        }
+        log.info("Tracking Key_Shared key ranges, seeding trip state from {}", sourceType);
+        return new TripStateHandoff(
+                new KeyRangeOwnership(config.getInt("keyShared.rangeCount"), config.getDuration("keyShared.releaseAfter", TimeUnit.MILLISECONDS)),
+                source,
+                config.getDuration("keyShared.handoffWindow", TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * @return source of trip state to be fed with what is published, null if the "memory" source is not used
+     */
+    InMemoryTripStateSource getLocalTripStateSource() {
+        return localTripStateSource;
+    }
+
+    /**
+     * Trip state budget is split between the primary and the shadow engine in shadow mode
+     */
+    TripStateGovernor createTripStateGovernor() {
+        long budgetBytes = config.getBytes("state.budget");
+        if (budgetBytes <= 0) {
+            budgetBytes = TripStateGovernor.budgetFromMaxHeap(config.getDouble("state.maxHeapFraction"));
+        }
+        if (config.getBoolean("shadow.enabled")) {
+            budgetBytes /= 2;
+        }
+        log.info("Using heap budget of {} bytes for trip state", budgetBytes);
+        return new TripStateGovernor(budgetBytes,
+                config.getDouble("state.heapHighWatermark"),
+                config.getDuration("state.idleThreshold", TimeUnit.MILLISECONDS),
+                config.getDuration("state.finishedGrace", TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Closes owned components in reverse order of creation. All of them are closed even if some fail,
+     * the first failure is thrown with the others suppressed.
+     */
+    @Override
+    public void close() throws Exception {
+        Exception failure = null;
+        while (!owned.isEmpty()) {
+            try {
+                owned.pop().close();
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @param store configuration of the store, such as state.store
+     */
+    private TripStateStore createTripStateStore(Config store, StringInterner interner) throws IOException {
+        final String type = store.getString("type");
+        log.info("Storing trip state in {} store", type);
+        switch (type) {
+            case "heap":
+                return new HeapTripStateStore();
+            case "mapped":
+                return createMappedTripStateStore(store.getConfig("mapped"), store.getInt("mapped.hotEntries"), interner);
+            case "tiered":
+                //Spilled trips are promoted back to heap on access, so the mapped store only needs room for a single one
+                return new TieredTripStateStore(createMappedTripStateStore(store.getConfig("mapped"), 1, interner),
+                        store.getDuration("tiered.idleThreshold", TimeUnit.MILLISECONDS),
+                        store.getDuration("tiered.futureHorizon", TimeUnit.MILLISECONDS));
+            default:
+                throw new IllegalArgumentException("Unknown trip state store: " + type);
+        }
+    }
+
+    private TripStateStore maybeShareTripState(PulsarApplicationContext context, TripStateStore local, StringInterner interner) {
+        if (!config.getBoolean("redis.enabled")) {
+            return local;
+        }
+        log.info("Sharing trip state through Redis, keeping local store as near-cache");
+        final SharedTripStateStore shared = new SharedTripStateStore(local,
+                new JedisSharedStateClient(context.getJedis(), new Jedis(config.getString("redis.host"), config.getInt("redis.port"),
+                        (int) config.getDuration("redis.readTimeout", TimeUnit.MILLISECONDS))),
+                config.getString("redis.keyPrefix"),
+                config.getDuration("redis.ttl", TimeUnit.MILLISECONDS),
+                config.getDuration("redis.flushInterval", TimeUnit.MILLISECONDS),
+                config.getInt("redis.maxBatchSize"),
+                interner);
+        shared.start();
+        report(shared::report);
+        return shared;
+    }
+
+    private MappedTripStateStore createMappedTripStateStore(Config mapped, int hotEntries, StringInterner interner) throws IOException {
+        return new MappedTripStateStore(Paths.get(mapped.getString("file")),
+                (int) mapped.getBytes("initialCapacity").longValue(),
+                hotEntries, interner);
+    }
+}
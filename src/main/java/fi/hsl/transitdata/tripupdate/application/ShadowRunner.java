@@ -0,0 +1,227 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import fi.hsl.transitdata.tripupdate.processing.AbstractMessageProcessor;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcomes;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.pulsar.client.api.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Feeds every message to a primary and a shadow engine, f.ex. TripUpdateProcessors with different trip state stores,
+ * publishes the TripUpdate of the primary and compares the shadow's TripUpdate with it.
+ *
+ * Mismatches are counted and the most recent ones are kept with a line by line diff of the TripUpdates. A few of them
+ * are also logged during every report interval. Processing latency and CPU time of both engines are reported on every
+ * call to report().
+ *
+ * The primary is run and its TripUpdate published before the shadow, so that the shadow doesn't add to publish latency.
+ * Latency and CPU time of the engines don't include publishing.
+ * Failures of the shadow are counted as mismatches and don't affect the primary.
+ *
+ * Not thread-safe, expected to be used by one thread at a time. Reporting is thread-safe.
+ */
+class ShadowRunner {
+    private static final Logger log = LoggerFactory.getLogger(ShadowRunner.class);
+
+    private static final long MAX_LATENCY_US = TimeUnit.SECONDS.toMicros(10);
+    private static final int MAX_DIFF_LINES = 20;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean cpuTimeSupported = threads.isCurrentThreadCpuTimeSupported();
+
+    private final BatchHandler.TripUpdatePublisher publisher;
+    private final Engine primary = new Engine();
+    private final Engine shadow = new Engine();
+    private final int maxRecordedMismatches;
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder mismatches = new LongAdder();
+    private final Deque<Mismatch> recentMismatches = new ArrayDeque<>();
+    private final AtomicInteger loggedMismatches = new AtomicInteger();
+
+    /**
+     * @param publisher publishes TripUpdates of the primary engine
+     * @param maxRecordedMismatches how many of the most recent mismatches are kept, also logged at most this many per report interval
+     */
+    ShadowRunner(BatchHandler.TripUpdatePublisher publisher, int maxRecordedMismatches) {
+        this.publisher = publisher;
+        this.maxRecordedMismatches = maxRecordedMismatches;
+    }
+
+    void setMessageOutcomes(MessageOutcomes outcomes) {
+        primary.dispatcher.setMessageOutcomes(outcomes);
+    }
+
+    /**
+     * Shadow processor should count its outcomes separately, so that messages are not counted twice
+     */
+    void register(ProtobufSchema schema, AbstractMessageProcessor primaryProcessor, AbstractMessageProcessor shadowProcessor) {
+        primary.dispatcher.register(schema, primaryProcessor);
+        shadow.dispatcher.register(schema, shadowProcessor);
+    }
+
+    void dispatch(Message msg) {
+        messages.increment();
+        primary.run(msg);
+        if (primary.tripUpdate != null) {
+            publisher.publish(primary.tripId, primary.tripUpdate, msg);
+        }
+        try {
+            shadow.run(msg);
+        }
+        catch (Exception e) {
+            recordMismatch(msg, "Shadow engine failed: " + e);
+            return;
+        }
+        if (!Objects.equals(primary.tripId, shadow.tripId) || !Objects.equals(primary.tripUpdate, shadow.tripUpdate)) {
+            recordMismatch(msg, diff(primary.tripId, primary.tripUpdate, shadow.tripId, shadow.tripUpdate));
+        }
+    }
+
+    private void recordMismatch(Message msg, String diff) {
+        mismatches.increment();
+        final Mismatch mismatch = new Mismatch(msg.getKey(), msg.getEventTime(), diff);
+        synchronized (recentMismatches) {
+            if (maxRecordedMismatches > 0) {
+                if (recentMismatches.size() == maxRecordedMismatches) {
+                    recentMismatches.removeFirst();
+                }
+                recentMismatches.addLast(mismatch);
+            }
+        }
+        if (loggedMismatches.get() < maxRecordedMismatches && loggedMismatches.getAndIncrement() < maxRecordedMismatches) {
+            log.warn("Shadow engine mismatch for message with key {}:\n{}", msg.getKey(), diff);
+        }
+    }
+
+    /**
+     * @return line by line diff of the TripUpdates in protobuf text format, - for primary and + for shadow
+     */
+    static String diff(String primaryTripId, GtfsRealtime.TripUpdate primaryTripUpdate, String shadowTripId, GtfsRealtime.TripUpdate shadowTripUpdate) {
+        final StringBuilder diff = new StringBuilder();
+        if (!Objects.equals(primaryTripId, shadowTripId)) {
+            diff.append("- trip ").append(primaryTripId).append('\n').append("+ trip ").append(shadowTripId).append('\n');
+        }
+        final String[] primaryLines = primaryTripUpdate != null ? primaryTripUpdate.toString().split("\n") : new String[] { "<none>" };
+        final String[] shadowLines = shadowTripUpdate != null ? shadowTripUpdate.toString().split("\n") : new String[] { "<none>" };
+        int differences = 0;
+        for (int n = 0; n < Math.max(primaryLines.length, shadowLines.length); n++) {
+            final String primaryLine = n < primaryLines.length ? primaryLines[n] : null;
+            final String shadowLine = n < shadowLines.length ? shadowLines[n] : null;
+            if (Objects.equals(primaryLine, shadowLine)) {
+                continue;
+            }
+            if (differences++ == MAX_DIFF_LINES) {
+                diff.append("...\n");
+                break;
+            }
+            diff.append("@ line ").append(n + 1).append('\n');
+            if (primaryLine != null) {
+                diff.append("- ").append(primaryLine).append('\n');
+            }
+            if (shadowLine != null) {
+                diff.append("+ ").append(shadowLine).append('\n');
+            }
+        }
+        return diff.toString();
+    }
+
+    long getMessageCount() {
+        return messages.sum();
+    }
+
+    long getMismatchCount() {
+        return mismatches.sum();
+    }
+
+    /**
+     * @return most recent mismatches, oldest first
+     */
+    List<Mismatch> getRecentMismatches() {
+        synchronized (recentMismatches) {
+            return new ArrayList<>(recentMismatches);
+        }
+    }
+
+    /**
+     * @return CPU time of the shadow engine relative to the primary since start, or NaN if CPU time is not available
+     */
+    double getRelativeCpuTime() {
+        final long primaryNanos = primary.cpuNanos.sum();
+        return cpuTimeSupported && primaryNanos > 0 ? (double) shadow.cpuNanos.sum() / primaryNanos : Double.NaN;
+    }
+
+    void report() {
+        final Histogram primaryLatencies = primary.latencies.getIntervalHistogram();
+        final Histogram shadowLatencies = shadow.latencies.getIntervalHistogram();
+        loggedMismatches.set(0);
+        log.info("Shadow engine: {} mismatches of {} messages in total. Latency of primary p50 {} us, p99 {} us, shadow p50 {} us, " +
+                        "p99 {} us of {} messages since previous report. Shadow used {} times the CPU time of primary",
+                getMismatchCount(), getMessageCount(),
+                primaryLatencies.getValueAtPercentile(50), primaryLatencies.getValueAtPercentile(99),
+                shadowLatencies.getValueAtPercentile(50), shadowLatencies.getValueAtPercentile(99), primaryLatencies.getTotalCount(),
+                String.format("%.2f", getRelativeCpuTime()));
+    }
+
+    static class Mismatch {
+        final String key;
+        final long eventTimeMs;
+        final String diff;
+
+        Mismatch(String key, long eventTimeMs, String diff) {
+            this.key = key;
+            this.eventTimeMs = eventTimeMs;
+            this.diff = diff;
+        }
+
+        @Override
+        public String toString() {
+            return "Mismatch for key " + key + " at " + eventTimeMs + ":\n" + diff;
+        }
+    }
+
+    private class Engine {
+        private final MessageDispatcher dispatcher = new MessageDispatcher(this::published);
+        private final Recorder latencies = new Recorder(MAX_LATENCY_US, 2);
+        private final LongAdder cpuNanos = new LongAdder();
+        //TripUpdate of the message being run, null if it didn't produce one
+        private String tripId;
+        private GtfsRealtime.TripUpdate tripUpdate;
+
+        void run(Message msg) {
+            tripId = null;
+            tripUpdate = null;
+            final long startCpuNanos = cpuTimeSupported ? threads.getCurrentThreadCpuTime() : 0;
+            final long startNanos = System.nanoTime();
+            try {
+                dispatcher.dispatch(msg);
+            }
+            finally {
+                latencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos), MAX_LATENCY_US));
+                if (cpuTimeSupported) {
+                    cpuNanos.add(threads.getCurrentThreadCpuTime() - startCpuNanos);
+                }
+            }
+        }
+
+        private void published(String tripId, GtfsRealtime.TripUpdate tripUpdate, Message source) {
+            this.tripId = tripId;
+            this.tripUpdate = tripUpdate;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import fi.hsl.common.transitdata.PubtransFactory;
 import fi.hsl.common.transitdata.RouteIdUtils;
 import fi.hsl.common.transitdata.proto.InternalMessages;
 import fi.hsl.transitdata.tripupdate.processing.ProcessorUtils;
+import fi.hsl.transitdata.tripupdate.state.StringInterner;
 
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -14,6 +15,8 @@ public class GtfsRtFactory {
     public static final int DIRECTION_ID_OUTBOUND = 0;
     public static final int DIRECTION_ID_INBOUND = 1;
 
+    private static final StringInterner NO_INTERNING = StringInterner.disabled();
+
     private GtfsRtFactory() {
     }
 
@@ -24,12 +27,22 @@ public class GtfsRtFactory {
     public static GtfsRealtime.TripUpdate.StopTimeUpdate newStopTimeUpdateFromPrevious(
             final InternalMessages.StopEstimate stopEstimate,
             GtfsRealtime.TripUpdate.StopTimeUpdate previousUpdate) {
+        return newStopTimeUpdateFromPrevious(stopEstimate, previousUpdate, NO_INTERNING);
+    }
+
+    /**
+     * @param interner used for the stop ID when a new StopTimeUpdate is created without a previous one
+     */
+    public static GtfsRealtime.TripUpdate.StopTimeUpdate newStopTimeUpdateFromPrevious(
+            final InternalMessages.StopEstimate stopEstimate,
+            GtfsRealtime.TripUpdate.StopTimeUpdate previousUpdate,
+            final StringInterner interner) {
 
         GtfsRealtime.TripUpdate.StopTimeUpdate.Builder stopTimeUpdateBuilder = null;
         if (previousUpdate != null) {
             stopTimeUpdateBuilder = previousUpdate.toBuilder();
         } else {
-            String stopId = stopEstimate.getStopId();
+            String stopId = interner.intern(stopEstimate.getStopId());
             int stopSequence = stopEstimate.getStopSequence();
             stopTimeUpdateBuilder = GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
                     .setStopId(stopId)
@@ -79,14 +92,21 @@ public class GtfsRtFactory {
     }
 
     public static GtfsRealtime.TripUpdate newTripUpdate(InternalMessages.StopEstimate estimate) {
+        return newTripUpdate(estimate, NO_INTERNING);
+    }
+
+    /**
+     * @param interner used for route ID, start date and start time of the TripDescriptor
+     */
+    public static GtfsRealtime.TripUpdate newTripUpdate(InternalMessages.StopEstimate estimate, StringInterner interner) {
         final int direction = PubtransFactory.joreDirectionToGtfsDirection(estimate.getTripInfo().getDirectionId());
-        String routeId = RouteIdUtils.normalizeRouteId(estimate.getTripInfo().getRouteId());
+        String routeId = interner.intern(RouteIdUtils.normalizeRouteId(estimate.getTripInfo().getRouteId()));
 
         GtfsRealtime.TripDescriptor.Builder tripDescriptor = GtfsRealtime.TripDescriptor.newBuilder()
                 .setRouteId(routeId)
                 .setDirectionId(direction)
-                .setStartDate(estimate.getTripInfo().getOperatingDay()) // Local date as String
-                .setStartTime(estimate.getTripInfo().getStartTime()) // Local time as String
+                .setStartDate(interner.intern(estimate.getTripInfo().getOperatingDay())) // Local date as String
+                .setStartTime(interner.intern(estimate.getTripInfo().getStartTime())) // Local time as String
                 .setScheduleRelationship(mapInternalScheduleTypeToGtfsRt(estimate.getTripInfo().getScheduleType()));
 
         //Trips outside of static schedule need trip ID to be accepted by OTP
@@ -114,14 +134,21 @@ public class GtfsRtFactory {
     }
 
     public static GtfsRealtime.TripUpdate newTripUpdate(InternalMessages.TripCancellation cancellation, long timestampMs) {
+        return newTripUpdate(cancellation, timestampMs, NO_INTERNING);
+    }
+
+    /**
+     * @param interner used for route ID, start date and start time of the TripDescriptor
+     */
+    public static GtfsRealtime.TripUpdate newTripUpdate(InternalMessages.TripCancellation cancellation, long timestampMs, StringInterner interner) {
         final int gtfsRtDirection = PubtransFactory.joreDirectionToGtfsDirection(cancellation.getDirectionId());
-        String routeId = RouteIdUtils.normalizeRouteId(cancellation.getRouteId());
+        String routeId = interner.intern(RouteIdUtils.normalizeRouteId(cancellation.getRouteId()));
 
         GtfsRealtime.TripDescriptor tripDescriptor = GtfsRealtime.TripDescriptor.newBuilder()
                 .setRouteId(routeId)
                 .setDirectionId(gtfsRtDirection)
-                .setStartDate(cancellation.getStartDate())
-                .setStartTime(cancellation.getStartTime())
+                .setStartDate(interner.intern(cancellation.getStartDate()))
+                .setStartTime(interner.intern(cancellation.getStartTime()))
                 .setScheduleRelationship(GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED)
                 .build();
 
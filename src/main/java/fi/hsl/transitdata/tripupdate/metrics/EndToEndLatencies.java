@@ -0,0 +1,166 @@
+package fi.hsl.transitdata.tripupdate.metrics;
+
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToLongFunction;
+
+/**
+ * Latency from the event time of input messages to points of their processing, recorded into HdrHistograms for each
+ * input topic and schema.
+ *
+ * Recording is thread-safe and wait-free once a topic has been seen. Recorders are created on first use, as only a few
+ * schemas are read from each topic. Histograms are reported and reset on every call to report(), and percentiles of the
+ * latest interval are exposed as an MXBean.
+ */
+public class EndToEndLatencies implements EndToEndLatenciesMXBean {
+    private static final Logger log = LoggerFactory.getLogger(EndToEndLatencies.class);
+
+    public static final String OBJECT_NAME = "fi.hsl.transitdata.tripupdate:type=EndToEndLatencies";
+    static final String UNKNOWN_TOPIC = "unknown";
+
+    public enum Point {
+        //from event time to the message being received by us
+        RECEIVED,
+        //from event time to the message being processed and acknowledged
+        PROCESSED,
+        //from event time to the broker acknowledging the TripUpdate sent for the message
+        PUBLISHED,
+        //from last modification of the TripUpdate to the broker acknowledging it, in second precision
+        PUBLISHED_SINCE_MODIFIED
+    }
+
+    private static final ProtobufSchema[] SCHEMAS = ProtobufSchema.values();
+    private static final Point[] POINTS = Point.values();
+
+    public static class Series {
+        public final String topic;
+        public final ProtobufSchema schema;
+        public final Point point;
+        public final Histogram histogram;
+
+        Series(String topic, ProtobufSchema schema, Point point, Histogram histogram) {
+            this.topic = topic;
+            this.schema = schema;
+            this.point = point;
+            this.histogram = histogram;
+        }
+
+        String key() {
+            return EndToEndLatencies.key(topic, schema, point);
+        }
+    }
+
+    static String key(String topic, ProtobufSchema schema, Point point) {
+        return topic + "|" + schema + "|" + point;
+    }
+
+    //indexed by schema and point
+    private final ConcurrentMap<String, AtomicReferenceArray<Recorder>> recordersByTopic = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> intervalHistograms = new HashMap<>();
+    private volatile List<Series> latestInterval = Collections.emptyList();
+
+    /**
+     * @param topic input topic, null if unknown
+     * @param latencyMs time from event time to the point. Negative values caused by clock skew are recorded as zero
+     */
+    public void record(String topic, ProtobufSchema schema, Point point, long latencyMs) {
+        final String key = topic != null ? topic : UNKNOWN_TOPIC;
+        AtomicReferenceArray<Recorder> recorders = recordersByTopic.get(key);
+        if (recorders == null) {
+            recorders = recordersByTopic.computeIfAbsent(key, t -> new AtomicReferenceArray<>(SCHEMAS.length * POINTS.length));
+        }
+        final int index = schema.ordinal() * POINTS.length + point.ordinal();
+        Recorder recorder = recorders.get(index);
+        if (recorder == null) {
+            recorders.compareAndSet(index, null, new Recorder(LaneLatencies.MAX_LATENCY_MS, 2));
+            recorder = recorders.get(index);
+        }
+        recorder.recordValue(Math.min(Math.max(latencyMs, 0), LaneLatencies.MAX_LATENCY_MS));
+    }
+
+    /**
+     * @return histogram of values recorded since the previous call, for each topic, schema and point that has been recorded
+     */
+    public synchronized List<Series> takeIntervalHistograms() {
+        final List<Series> series = new ArrayList<>();
+        for (Map.Entry<String, AtomicReferenceArray<Recorder>> entry : recordersByTopic.entrySet()) {
+            final AtomicReferenceArray<Recorder> recorders = entry.getValue();
+            for (int index = 0; index < recorders.length(); index++) {
+                final Recorder recorder = recorders.get(index);
+                if (recorder == null) {
+                    continue;
+                }
+                final ProtobufSchema schema = SCHEMAS[index / POINTS.length];
+                final Point point = POINTS[index % POINTS.length];
+                final String key = key(entry.getKey(), schema, point);
+                final Histogram histogram = recorder.getIntervalHistogram(intervalHistograms.get(key));
+                intervalHistograms.put(key, histogram);
+                series.add(new Series(entry.getKey(), schema, point, histogram.copy()));
+            }
+        }
+        return series;
+    }
+
+    /**
+     * Logs percentiles of each topic, schema and point since the previous report
+     */
+    public void report() {
+        final List<Series> taken = takeIntervalHistograms();
+        latestInterval = taken;
+        for (Series series : taken) {
+            final Histogram histogram = series.histogram;
+            if (histogram.getTotalCount() == 0) {
+                continue;
+            }
+            log.info("End-to-end latency to {} of {} from {}: {} messages, p50 {} ms, p99 {} ms, p99.9 {} ms, max {} ms",
+                    series.point, series.schema, series.topic, histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99),
+                    histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+        }
+    }
+
+    private Map<String, Long> latest(ToLongFunction<Histogram> value) {
+        final Map<String, Long> values = new HashMap<>();
+        for (Series series : latestInterval) {
+            values.put(series.key(), value.applyAsLong(series.histogram));
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getCount() {
+        return latest(Histogram::getTotalCount);
+    }
+
+    @Override
+    public Map<String, Long> getP50Ms() {
+        return latest(histogram -> histogram.getValueAtPercentile(50));
+    }
+
+    @Override
+    public Map<String, Long> getP99Ms() {
+        return latest(histogram -> histogram.getValueAtPercentile(99));
+    }
+
+    @Override
+    public Map<String, Long> getP999Ms() {
+        return latest(histogram -> histogram.getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public Map<String, Long> getMaxMs() {
+        return latest(Histogram::getMaxValue);
+    }
+}
@@ -0,0 +1,18 @@
+package fi.hsl.transitdata.tripupdate.metrics;
+
+import java.util.Map;
+
+/**
+ * Percentiles of end-to-end latencies over the latest report interval, keyed by "topic|schema|point"
+ */
+public interface EndToEndLatenciesMXBean {
+    Map<String, Long> getCount();
+
+    Map<String, Long> getP50Ms();
+
+    Map<String, Long> getP99Ms();
+
+    Map<String, Long> getP999Ms();
+
+    Map<String, Long> getMaxMs();
+}
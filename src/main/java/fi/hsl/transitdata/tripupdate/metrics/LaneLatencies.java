@@ -0,0 +1,72 @@
+package fi.hsl.transitdata.tripupdate.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Latency from publish to processed for each consumer lane, recorded into HdrHistograms.
+ *
+ * Recording is thread-safe and wait-free, so each lane records from its own thread. Histograms are reported and reset
+ * on every call to report().
+ */
+public class LaneLatencies {
+    private static final Logger log = LoggerFactory.getLogger(LaneLatencies.class);
+
+    //Up to an hour with millisecond precision, larger values are clamped
+    static final long MAX_LATENCY_MS = 60 * 60 * 1000;
+
+    public enum Lane {
+        ESTIMATES,
+        CANCELLATIONS
+    }
+
+    private final Map<Lane, Recorder> recorders = new EnumMap<>(Lane.class);
+    private final Map<Lane, Histogram> intervalHistograms = new EnumMap<>(Lane.class);
+
+    public LaneLatencies() {
+        for (Lane lane : Lane.values()) {
+            recorders.put(lane, new Recorder(MAX_LATENCY_MS, 2));
+        }
+    }
+
+    /**
+     * @param latencyMs time from publish to processed. Negative values caused by clock skew are recorded as zero
+     */
+    public void record(Lane lane, long latencyMs) {
+        recorders.get(lane).recordValue(Math.min(Math.max(latencyMs, 0), MAX_LATENCY_MS));
+    }
+
+    /**
+     * @return histogram of values recorded since the previous call, for each lane
+     */
+    public synchronized Map<Lane, Histogram> takeIntervalHistograms() {
+        Map<Lane, Histogram> histograms = new EnumMap<>(Lane.class);
+        for (Lane lane : Lane.values()) {
+            Histogram histogram = recorders.get(lane).getIntervalHistogram(intervalHistograms.get(lane));
+            intervalHistograms.put(lane, histogram);
+            histograms.put(lane, histogram.copy());
+        }
+        return histograms;
+    }
+
+    /**
+     * Logs percentiles of each lane since the previous report
+     */
+    public void report() {
+        for (Map.Entry<Lane, Histogram> entry : takeIntervalHistograms().entrySet()) {
+            final Histogram histogram = entry.getValue();
+            if (histogram.getTotalCount() == 0) {
+                continue;
+            }
+            log.info("Latency of {} lane: {} messages, p50 {} ms, p99 {} ms, p99.9 {} ms, max {} ms",
+                    entry.getKey(), histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99),
+                    histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package fi.hsl.transitdata.tripupdate.metrics;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Events of the processing stages of a message, recorded with Java Flight Recorder when running on a JDK that has it.
+ *
+ * JFR events can't be compiled for Java 8, so they are implemented by JfrStageEvents in src/jfr/java, which is built
+ * only on JDK 11 and newer and loaded reflectively. Without it, or without JFR at runtime, events are not recorded
+ * at all. Events cost next to nothing until a recording enables them, so instrumented code doesn't need to check
+ * anything besides isEnabled() before doing extra work for them.
+ */
+public abstract class StageEvents {
+    private static final Logger log = LoggerFactory.getLogger(StageEvents.class);
+
+    static final String JFR_IMPLEMENTATION = "fi.hsl.transitdata.tripupdate.metrics.JfrStageEvents";
+
+    public enum Stage {
+        DECODE,
+        STATE_UPDATE,
+        CLEAN_STOP_TIME_UPDATES,
+        VALIDATE,
+        SERIALIZE,
+        SEND
+    }
+
+    public interface Span {
+        /**
+         * @param stopCount StopTimeUpdates of the trip after the stage, 0 if not known yet
+         */
+        void end(String tripId, int stopCount, ProtobufSchema schema);
+    }
+
+    public static final Span NO_SPAN = (tripId, stopCount, schema) -> {};
+
+    public static final StageEvents NONE = new StageEvents() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public Span begin(Stage stage, String name) {
+            return NO_SPAN;
+        }
+
+        @Override
+        public void slowMessage(String tripId, ProtobufSchema schema, int payloadBytes,
+                                GtfsRealtime.TripUpdate tripUpdate, long processingNanos) {
+        }
+    };
+
+    private static final StageEvents INSTANCE = load();
+
+    static StageEvents load() {
+        try {
+            final StageEvents events = (StageEvents) Class.forName(JFR_IMPLEMENTATION).getDeclaredConstructor().newInstance();
+            log.info("Recording processing stages as JFR events when enabled by a recording");
+            return events;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            log.info("JFR events are not available, not recording processing stages");
+            return NONE;
+        }
+    }
+
+    /**
+     * @return JFR events if available, otherwise events that are not recorded
+     */
+    public static StageEvents get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return whether any events are being recorded currently
+     */
+    public abstract boolean isEnabled();
+
+    /**
+     * Starts timing a stage, which ends with a call to end() of the returned span. Returns NO_SPAN when the stage
+     * isn't being recorded.
+     *
+     * @param name name of the validator for VALIDATE, null for other stages
+     */
+    public abstract Span begin(Stage stage, String name);
+
+    /**
+     * Records a message that took longer than the slow message threshold to process
+     *
+     * @param tripUpdate TripUpdate built for the message, null if it didn't produce one
+     */
+    public abstract void slowMessage(String tripId, ProtobufSchema schema, int payloadBytes,
+                                     GtfsRealtime.TripUpdate tripUpdate, long processingNanos);
+}
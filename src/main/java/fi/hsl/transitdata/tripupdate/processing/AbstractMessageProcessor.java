@@ -3,14 +3,14 @@ package fi.hsl.transitdata.tripupdate.processing;
 import com.google.transit.realtime.GtfsRealtime;
 import fi.hsl.common.transitdata.PubtransFactory;
 import fi.hsl.common.transitdata.RouteIdUtils;
+import fi.hsl.common.transitdata.TransitdataProperties;
 import org.apache.pulsar.client.api.Message;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.util.Optional;
 
 public abstract class AbstractMessageProcessor {
-    private static final Logger logger = LoggerFactory.getLogger(AbstractMessageProcessor.class);
+    private PreDecodeFilter preDecodeFilter;
+    private MessageOutcomes outcomes = new MessageOutcomes();
 
     public static class TripUpdateWithId {
         String tripId;
@@ -18,11 +18,15 @@ public abstract class AbstractMessageProcessor {
 
         public static Optional<TripUpdateWithId> newInstance(String id, GtfsRealtime.TripUpdate tu) {
             TripUpdateWithId pair = new TripUpdateWithId();
-            pair.tripId = id;
-            pair.tripUpdate = tu;
+            pair.set(id, tu);
             return Optional.of(pair);
         }
 
+        public void set(String id, GtfsRealtime.TripUpdate tu) {
+            tripId = id;
+            tripUpdate = tu;
+        }
+
         public String getTripId() {
             return tripId;
         }
@@ -44,27 +48,90 @@ public abstract class AbstractMessageProcessor {
      * Invoked if message goes through the validation
      * @param msg
      */
-    public abstract Optional<TripUpdateWithId> processMessage(Message msg);
+    public Optional<TripUpdateWithId> processMessage(Message msg) {
+        final TripUpdateWithId result = new TripUpdateWithId();
+        return processMessage(msg, result) ? Optional.of(result) : Optional.empty();
+    }
+
+    /**
+     * Same as processMessage(Message), but stores the TripUpdate into a holder the caller can reuse
+     *
+     * @return false if the message didn't produce a TripUpdate
+     */
+    public abstract boolean processMessage(Message msg, TripUpdateWithId result);
 
 
+    /**
+     * Checks the payload with the pre-decode filter, if one has been set, without parsing all of it
+     *
+     * @return false if the message would be discarded after parsing
+     */
+    public boolean passesPreDecodeFilter(byte[] payload) {
+        if (preDecodeFilter == null) {
+            return true;
+        }
+        final DiscardReason reason = preDecodeFilter.check(getSchema(), payload);
+        if (reason != null) {
+            outcomes.record(MessageOutcome.of(reason));
+            return false;
+        }
+        return true;
+    }
+
+    public void setPreDecodeFilter(PreDecodeFilter preDecodeFilter) {
+        this.preDecodeFilter = preDecodeFilter;
+    }
+
+    public void setMessageOutcomes(MessageOutcomes outcomes) {
+        this.outcomes = outcomes;
+    }
+
+    protected MessageOutcomes getMessageOutcomes() {
+        return outcomes;
+    }
+
+    /**
+     * @return schema of the messages this processor handles
+     */
+    protected abstract TransitdataProperties.ProtobufSchema getSchema();
+
     protected boolean validateTripData(String routeName, int direction) {
+        final DiscardReason reason = checkTripData(routeName, direction);
+        if (reason == null) {
+            return true;
+        }
+        switch (reason) {
+            case INVALID_ROUTE:
+                outcomes.record(MessageOutcome.INVALID_ROUTE, "Invalid route name {}, discarding message", RouteIdUtils.normalizeRouteId(routeName));
+                break;
+            case TRAIN_ROUTE:
+                outcomes.record(MessageOutcome.TRAIN_ROUTE, "Route {} is for trains, discarding message", RouteIdUtils.normalizeRouteId(routeName));
+                break;
+            case INVALID_DIRECTION:
+                outcomes.record(MessageOutcome.INVALID_DIRECTION, "Direction {} is not a valid JORE-direction, discarding message", direction);
+                break;
+            default:
+                outcomes.record(MessageOutcome.of(reason));
+        }
+        return false;
+    }
+
+    /**
+     * @return reason to discard a message with this route and direction, or null if it is valid
+     */
+    public static DiscardReason checkTripData(String routeName, int direction) {
         //Normalize route ID before validation
         routeName = RouteIdUtils.normalizeRouteId(routeName);
 
         if (!ProcessorUtils.validateRouteName(routeName) && !ProcessorUtils.isMetroRoute(routeName)) {
-            logger.warn("Invalid route name {}, discarding message", routeName);
-            return false;
+            return DiscardReason.INVALID_ROUTE;
         }
-
         if (ProcessorUtils.isTrainRoute(routeName)) {
-            logger.info("Route {} is for trains, discarding message", routeName);
-            return false;
+            return DiscardReason.TRAIN_ROUTE;
         }
-
         if (direction != PubtransFactory.JORE_DIRECTION_ID_INBOUND && direction != PubtransFactory.JORE_DIRECTION_ID_OUTBOUND) {
-            logger.info("Direction {} is not a valid JORE-direction, discarding message", direction);
-            return false;
+            return DiscardReason.INVALID_DIRECTION;
         }
-        return true;
+        return null;
     }
 }
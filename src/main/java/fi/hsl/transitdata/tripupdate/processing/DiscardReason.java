@@ -0,0 +1,12 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+/**
+ * Reasons for discarding a message because of its trip data, see AbstractMessageProcessor.checkTripData()
+ */
+public enum DiscardReason {
+    INVALID_ROUTE,
+    TRAIN_ROUTE,
+    INVALID_DIRECTION,
+    //TripCancellation without route, direction, start date or start time
+    MISSING_TRIP_DATA
+}
@@ -0,0 +1,62 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clock that follows event time of processed messages instead of wall clock time, so that recorded traffic can be
+ * replayed as fast as it can be processed with the same validations and expiry of trip state as when it was live.
+ *
+ * Time is the watermark of the newest event time seen so far. It never goes backwards, so late and reordered messages
+ * are processed at the time of the newest message before them. Views in other time zones share the watermark.
+ */
+public class EventTimeClock extends Clock {
+    private final AtomicLong watermarkMs;
+    private final ZoneId zone;
+
+    public EventTimeClock() {
+        this(0);
+    }
+
+    public EventTimeClock(long initialMs) {
+        this(new AtomicLong(initialMs), ZoneOffset.UTC);
+    }
+
+    private EventTimeClock(AtomicLong watermarkMs, ZoneId zone) {
+        this.watermarkMs = watermarkMs;
+        this.zone = zone;
+    }
+
+    /**
+     * @param eventTimeMs event time of a message, ignored if older than the current watermark or 0 when not set
+     */
+    public void advance(long eventTimeMs) {
+        long current = watermarkMs.get();
+        while (eventTimeMs > current && !watermarkMs.compareAndSet(current, eventTimeMs)) {
+            current = watermarkMs.get();
+        }
+    }
+
+    @Override
+    public long millis() {
+        return watermarkMs.get();
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(millis());
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    @Override
+    public EventTimeClock withZone(ZoneId zone) {
+        return this.zone.equals(zone) ? this : new EventTimeClock(watermarkMs, zone);
+    }
+}
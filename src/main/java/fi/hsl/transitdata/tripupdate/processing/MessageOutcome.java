@@ -0,0 +1,44 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+/**
+ * What became of a message, counted in MessageOutcomes instead of logging each message
+ */
+public enum MessageOutcome {
+    //TripUpdate built from the message was published
+    PUBLISHED,
+    //Message was applied in a batch, and the TripUpdate of its trip was published with a later message of the batch
+    MERGED,
+    INVALID_ROUTE,
+    TRAIN_ROUTE,
+    INVALID_DIRECTION,
+    //TripCancellation without route, direction, start date or start time
+    MISSING_TRIP_DATA,
+    UNKNOWN_SCHEMA,
+    //StopEstimate older than the one already applied for the stop
+    STALE,
+    //StopEstimate that was already applied for the stop, f.ex. a redelivery
+    UNCHANGED,
+    //StopEstimate of a trip that has been cancelled
+    CANCELLED_TRIP,
+    //Trip state was dropped before a TripUpdate could be built
+    NO_TRIP_STATE,
+    //TripUpdate whose stop times are too far in the past
+    MAX_AGE_EXCEEDED,
+    //TripUpdate whose first stop time is too far before the scheduled departure of the trip
+    PREMATURE_DEPARTURE,
+    //Message couldn't be processed or its TripUpdate couldn't be published because of an error
+    FAILED;
+
+    public static MessageOutcome of(DiscardReason reason) {
+        switch (reason) {
+            case INVALID_ROUTE:
+                return INVALID_ROUTE;
+            case TRAIN_ROUTE:
+                return TRAIN_ROUTE;
+            case INVALID_DIRECTION:
+                return INVALID_DIRECTION;
+            default:
+                return MISSING_TRIP_DATA;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts messages by outcome instead of logging each discarded message.
+ *
+ * A few messages of each outcome are still logged during every report interval, to have examples at hand when
+ * diagnosing. Counts of the interval are logged on every call to report().
+ *
+ * Thread-safe.
+ */
+public class MessageOutcomes {
+    private static final Logger log = LoggerFactory.getLogger(MessageOutcomes.class);
+
+    static final int DEFAULT_SAMPLED_LOGS_PER_INTERVAL = 5;
+    private static final MessageOutcome[] OUTCOMES = MessageOutcome.values();
+
+    private final int sampledLogsPerInterval;
+    private final LongAdder[] counts = new LongAdder[OUTCOMES.length];
+    private final AtomicInteger[] sampledLogs = new AtomicInteger[OUTCOMES.length];
+    //counts at the previous report
+    private final long[] reported = new long[OUTCOMES.length];
+
+    public MessageOutcomes() {
+        this(DEFAULT_SAMPLED_LOGS_PER_INTERVAL);
+    }
+
+    /**
+     * @param sampledLogsPerInterval how many messages of each outcome are logged between reports
+     */
+    public MessageOutcomes(int sampledLogsPerInterval) {
+        this.sampledLogsPerInterval = sampledLogsPerInterval;
+        for (int n = 0; n < OUTCOMES.length; n++) {
+            counts[n] = new LongAdder();
+            sampledLogs[n] = new AtomicInteger();
+        }
+    }
+
+    public void record(MessageOutcome outcome) {
+        counts[outcome.ordinal()].increment();
+    }
+
+    public void record(MessageOutcome outcome, int messages) {
+        counts[outcome.ordinal()].add(messages);
+    }
+
+    /**
+     * Counts the outcome and logs the message, unless enough messages of the outcome have already been logged during
+     * this interval
+     */
+    public void record(MessageOutcome outcome, String format, Object arg) {
+        record(outcome);
+        final AtomicInteger logged = sampledLogs[outcome.ordinal()];
+        if (logged.get() < sampledLogsPerInterval && logged.getAndIncrement() < sampledLogsPerInterval) {
+            log.info("{}: " + format, outcome, arg);
+        }
+    }
+
+    /**
+     * @return messages with the outcome since start
+     */
+    public long getCount(MessageOutcome outcome) {
+        return counts[outcome.ordinal()].sum();
+    }
+
+    /**
+     * Logs counts of each outcome since the previous report, and allows logging more sampled messages
+     */
+    public synchronized void report() {
+        final StringBuilder intervalCounts = new StringBuilder();
+        for (MessageOutcome outcome : OUTCOMES) {
+            final long count = getCount(outcome);
+            final long sinceReported = count - reported[outcome.ordinal()];
+            reported[outcome.ordinal()] = count;
+            sampledLogs[outcome.ordinal()].set(0);
+            if (sinceReported > 0) {
+                intervalCounts.append(intervalCounts.length() > 0 ? ", " : "").append(outcome).append(' ').append(sinceReported);
+            }
+        }
+        if (intervalCounts.length() > 0) {
+            log.info("Message outcomes: {}", intervalCounts);
+        }
+    }
+}
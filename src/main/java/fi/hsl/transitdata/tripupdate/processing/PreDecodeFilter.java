@@ -0,0 +1,171 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rejects messages that would be discarded because of their route or direction before parsing them fully.
+ *
+ * Only the route and direction fields are read from the payload, skipping everything else. Upstream producers don't
+ * set route or direction as message properties, so the payload is the only source for them. Payloads that can't be
+ * read are passed on, so that full parsing handles and logs them like before.
+ *
+ * Thread-safe.
+ */
+public class PreDecodeFilter {
+    private static final Logger log = LoggerFactory.getLogger(PreDecodeFilter.class);
+
+    private final LongAdder passed = new LongAdder();
+    private final LongAdder unreadable = new LongAdder();
+    private final LongAdder[] rejected = newCounters();
+    //payload bytes that didn't need a full parse
+    private final LongAdder[] avoidedBytes = newCounters();
+
+    private static LongAdder[] newCounters() {
+        final LongAdder[] counters = new LongAdder[DiscardReason.values().length];
+        for (int n = 0; n < counters.length; n++) {
+            counters[n] = new LongAdder();
+        }
+        return counters;
+    }
+
+    /**
+     * @return false if the message would be discarded after parsing
+     */
+    public boolean accept(ProtobufSchema schema, byte[] payload) {
+        return check(schema, payload) == null;
+    }
+
+    /**
+     * @return reason the message would be discarded for after parsing, or null if it passes
+     */
+    public DiscardReason check(ProtobufSchema schema, byte[] payload) {
+        final DiscardReason reason;
+        try {
+            if (schema == ProtobufSchema.InternalMessagesStopEstimate) {
+                reason = checkStopEstimate(payload);
+            } else if (schema == ProtobufSchema.InternalMessagesTripCancellation) {
+                reason = checkTripCancellation(payload);
+            } else {
+                reason = null;
+            }
+        } catch (IOException e) {
+            unreadable.increment();
+            return null;
+        }
+        if (reason == null) {
+            passed.increment();
+            return null;
+        }
+        rejected[reason.ordinal()].increment();
+        avoidedBytes[reason.ordinal()].add(payload.length);
+        return reason;
+    }
+
+    /**
+     * @return same reason as validation of the parsed StopEstimate would have, or null if it would pass
+     */
+    static DiscardReason checkStopEstimate(byte[] payload) throws IOException {
+        final CodedInputStream input = CodedInputStream.newInstance(payload);
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == InternalMessages.StopEstimate.TRIP_INFO_FIELD_NUMBER
+                    && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                input.pushLimit(input.readRawVarint32());
+                return checkTripInfo(input);
+            }
+            input.skipField(tag);
+        }
+        //Required TripInfo is missing, leave it to the parser
+        return null;
+    }
+
+    private static DiscardReason checkTripInfo(CodedInputStream input) throws IOException {
+        String routeId = null;
+        Integer directionId = null;
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            final int field = WireFormat.getTagFieldNumber(tag);
+            if (field == InternalMessages.TripInfo.ROUTE_ID_FIELD_NUMBER) {
+                routeId = input.readString();
+            } else if (field == InternalMessages.TripInfo.DIRECTION_ID_FIELD_NUMBER) {
+                directionId = input.readInt32();
+            } else {
+                input.skipField(tag);
+            }
+        }
+        if (routeId == null || directionId == null) {
+            return null;
+        }
+        return AbstractMessageProcessor.checkTripData(routeId, directionId);
+    }
+
+    /**
+     * @return same reason as validation of the parsed TripCancellation would have, or null if it would pass
+     */
+    static DiscardReason checkTripCancellation(byte[] payload) throws IOException {
+        final CodedInputStream input = CodedInputStream.newInstance(payload);
+        String routeId = null;
+        Integer directionId = null;
+        boolean hasStartDate = false;
+        boolean hasStartTime = false;
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            final int field = WireFormat.getTagFieldNumber(tag);
+            if (field == InternalMessages.TripCancellation.ROUTE_ID_FIELD_NUMBER) {
+                routeId = input.readString();
+            } else if (field == InternalMessages.TripCancellation.DIRECTION_ID_FIELD_NUMBER) {
+                directionId = input.readInt32();
+            } else {
+                hasStartDate |= field == InternalMessages.TripCancellation.START_DATE_FIELD_NUMBER;
+                hasStartTime |= field == InternalMessages.TripCancellation.START_TIME_FIELD_NUMBER;
+                input.skipField(tag);
+            }
+        }
+        if (routeId == null || directionId == null || !hasStartDate || !hasStartTime) {
+            return DiscardReason.MISSING_TRIP_DATA;
+        }
+        return AbstractMessageProcessor.checkTripData(routeId, directionId);
+    }
+
+    public long getPassedCount() {
+        return passed.sum();
+    }
+
+    /**
+     * @return payloads that couldn't be read and were passed on to full parsing
+     */
+    public long getUnreadableCount() {
+        return unreadable.sum();
+    }
+
+    public long getRejectedCount(DiscardReason reason) {
+        return rejected[reason.ordinal()].sum();
+    }
+
+    /**
+     * @return bytes of payloads rejected for the reason, which didn't need to be parsed
+     */
+    public long getAvoidedBytes(DiscardReason reason) {
+        return avoidedBytes[reason.ordinal()].sum();
+    }
+
+    /**
+     * Logs counters since start
+     */
+    public void report() {
+        final StringBuilder rejections = new StringBuilder();
+        for (DiscardReason reason : DiscardReason.values()) {
+            rejections.append(", ").append(reason).append(' ').append(getRejectedCount(reason))
+                    .append(" (").append(getAvoidedBytes(reason)).append(" bytes)");
+        }
+        log.info("Pre-decode filter: passed {}, unreadable {}{}", getPassedCount(), getUnreadableCount(), rejections);
+    }
+}
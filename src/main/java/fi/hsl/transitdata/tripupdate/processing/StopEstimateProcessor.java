@@ -2,7 +2,9 @@ package fi.hsl.transitdata.tripupdate.processing;
 
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.TransitdataProperties;
 import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.metrics.StageEvents;
 import org.apache.pulsar.client.api.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,34 +21,52 @@ public class StopEstimateProcessor extends AbstractMessageProcessor {
     }
 
     @Override
-    public Optional<TripUpdateWithId> processMessage(Message msg) {
+    public boolean processMessage(Message msg, TripUpdateWithId result) {
         try {
+            final StageEvents.Span span = StageEvents.get().begin(StageEvents.Stage.DECODE, null);
             InternalMessages.StopEstimate data = InternalMessages.StopEstimate.parseFrom(msg.getData());
-            final String tripId = data.getTripInfo().getTripId();
+            span.end(data.getTripInfo().getTripId(), 1, getSchema());
 
-            Optional<GtfsRealtime.TripUpdate> maybeTripUpdate = tripProcessor.processStopEstimate(data);
-            return maybeTripUpdate.flatMap(tripUpdate ->
-                    TripUpdateWithId.newInstance(tripId, tripUpdate)
-            );
+            Optional<GtfsRealtime.TripUpdate> maybeTripUpdate = tripProcessor.processStopEstimate(data, msg.getEventTime());
+            if (!maybeTripUpdate.isPresent()) {
+                return false;
+            }
+            result.set(data.getTripInfo().getTripId(), maybeTripUpdate.get());
+            return true;
         }
         catch (Exception e) {
-            log.error("Failed to parse message payload", e);
-            return Optional.empty();
+            getMessageOutcomes().record(MessageOutcome.FAILED, "Failed to process StopEstimate: {}", e);
+            return false;
         }
     }
 
+    @Override
+    protected TransitdataProperties.ProtobufSchema getSchema() {
+        return TransitdataProperties.ProtobufSchema.InternalMessagesStopEstimate;
+    }
+
     @Override
     public boolean validateMessage(byte[] payload) {
+        if (!passesPreDecodeFilter(payload)) {
+            return false;
+        }
         try {
             InternalMessages.StopEstimate data = InternalMessages.StopEstimate.parseFrom(payload);
-            String route = data.getTripInfo().getRouteId();
-            int direction = data.getTripInfo().getDirectionId();
-
-            return validateTripData(route, direction);
+            return validateStopEstimate(data);
         }
         catch (InvalidProtocolBufferException e) {
-            log.error("Failed to parse StopEstimate from message payload", e);
+            getMessageOutcomes().record(MessageOutcome.FAILED, "Failed to parse StopEstimate from message payload: {}", e);
             return false;
         }
     }
+
+    /**
+     * Same as validateMessage() for an already parsed StopEstimate
+     */
+    public boolean validateStopEstimate(InternalMessages.StopEstimate data) {
+        String route = data.getTripInfo().getRouteId();
+        int direction = data.getTripInfo().getDirectionId();
+
+        return validateTripData(route, direction);
+    }
 }
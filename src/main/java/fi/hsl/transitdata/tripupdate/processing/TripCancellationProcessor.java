@@ -2,17 +2,13 @@ package fi.hsl.transitdata.tripupdate.processing;
 
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.TransitdataProperties;
 import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.metrics.StageEvents;
 import org.apache.pulsar.client.api.Message;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.util.Optional;
 
 public class TripCancellationProcessor extends AbstractMessageProcessor {
 
-    private static final Logger log = LoggerFactory.getLogger(TripCancellationProcessor.class);
-
     private final TripUpdateProcessor tripUpdateProcessor;
 
     public TripCancellationProcessor(TripUpdateProcessor tripUpdateProcessor) {
@@ -20,36 +16,54 @@ public class TripCancellationProcessor extends AbstractMessageProcessor {
     }
 
     @Override
-    public boolean validateMessage(byte[] payload) {
+    protected TransitdataProperties.ProtobufSchema getSchema() {
+        return TransitdataProperties.ProtobufSchema.InternalMessagesTripCancellation;
+    }
 
+    @Override
+    public boolean validateMessage(byte[] payload) {
+        if (!passesPreDecodeFilter(payload)) {
+            return false;
+        }
         try {
             InternalMessages.TripCancellation tripCancellation = InternalMessages.TripCancellation.parseFrom(payload);
+            return validateTripCancellation(tripCancellation);
+        } catch (InvalidProtocolBufferException e) {
+            getMessageOutcomes().record(MessageOutcome.FAILED, "TripCancellation message could not be parsed: {}", e);
+        }
+        return false;
+    }
 
-            if (tripCancellation.hasDirectionId() && tripCancellation.hasRouteId() &&
-                tripCancellation.hasStartDate() && tripCancellation.hasStartTime()) {
+    /**
+     * Same as validateMessage() for an already parsed TripCancellation
+     */
+    public boolean validateTripCancellation(InternalMessages.TripCancellation tripCancellation) {
+        if (tripCancellation.hasDirectionId() && tripCancellation.hasRouteId() &&
+            tripCancellation.hasStartDate() && tripCancellation.hasStartTime()) {
 
-                String route = tripCancellation.getRouteId();
-                int directionId = tripCancellation.getDirectionId();
+            String route = tripCancellation.getRouteId();
+            int directionId = tripCancellation.getDirectionId();
 
-                return validateTripData(route, directionId);
-            }
-        } catch (InvalidProtocolBufferException e) {
-            log.error("TripCancellation message could not be parsed: " + e.getMessage());
+            return validateTripData(route, directionId);
         }
+        getMessageOutcomes().record(MessageOutcome.MISSING_TRIP_DATA);
         return false;
     }
 
     @Override
-    public Optional<TripUpdateWithId> processMessage(Message msg) {
+    public boolean processMessage(Message msg, TripUpdateWithId result) {
         try {
+            final StageEvents.Span span = StageEvents.get().begin(StageEvents.Stage.DECODE, null);
             InternalMessages.TripCancellation tripCancellation = InternalMessages.TripCancellation.parseFrom(msg.getData());
             final String tripId = tripCancellation.getTripId();
+            span.end(tripId, 0, getSchema());
 
             GtfsRealtime.TripUpdate tripUpdate = tripUpdateProcessor.processTripCancellation(msg.getKey(), msg.getEventTime(), tripCancellation);
-            return TripUpdateWithId.newInstance(tripId, tripUpdate);
+            result.set(tripId, tripUpdate);
+            return true;
         } catch (Exception e) {
-            log.error("Could not parse TripCancellation: " + e.getMessage(), e);
-            return Optional.empty();
+            getMessageOutcomes().record(MessageOutcome.FAILED, "Could not process TripCancellation: {}", e);
+            return false;
         }
     }
 
@@ -1,22 +1,28 @@
 package fi.hsl.transitdata.tripupdate.processing;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
 import fi.hsl.common.transitdata.proto.InternalMessages;
 import fi.hsl.transitdata.tripupdate.gtfsrt.GtfsRtFactory;
 import fi.hsl.transitdata.tripupdate.gtfsrt.GtfsRtValidator;
+import fi.hsl.transitdata.tripupdate.metrics.StageEvents;
+import fi.hsl.transitdata.tripupdate.state.HeapTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.StopVersions;
+import fi.hsl.transitdata.tripupdate.state.StringInterner;
+import fi.hsl.transitdata.tripupdate.state.TripState;
+import fi.hsl.transitdata.tripupdate.state.TripStateGovernor;
+import fi.hsl.transitdata.tripupdate.state.TripStateHandoff;
+import fi.hsl.transitdata.tripupdate.state.TripStateStore;
 import org.apache.pulsar.client.api.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Clock;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import static com.google.transit.realtime.GtfsRealtime.TripUpdate.*;
 import static com.google.transit.realtime.GtfsRealtime.*;
 
@@ -24,70 +30,252 @@ public class TripUpdateProcessor {
     private static final Logger log = LoggerFactory.getLogger(TripUpdateProcessor.class);
 
     private static final Duration CACHE_DURATION = Duration.of(4, ChronoUnit.HOURS);
+    private static final Duration EXPIRY_INTERVAL = Duration.of(1, ChronoUnit.MINUTES);
+    static final int DEFAULT_INTERNER_MAX_SIZE = 100000;
+    static final double DEFAULT_MAX_HEAP_FRACTION = 0.5;
+    private static final Duration DEFAULT_IDLE_THRESHOLD = Duration.of(30, ChronoUnit.MINUTES);
+    private static final Duration DEFAULT_FINISHED_GRACE = Duration.of(30, ChronoUnit.MINUTES);
 
     private Producer<byte[]> producer;
 
-    //for each trip (identified by tripId-String) store one estimate/event (StopTimeUpdate) for each stop (identified by stopSequence-Integer)
-    private final LoadingCache<String, Map<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate>> stopTimeUpdateCache;
-    //for each trip (identified by tripId-String) store the full TripUpdate containing all StopTimeUpdates
-    private final Cache<String, GtfsRealtime.TripUpdate> tripUpdateCache;
-    //for each trip (identified by tripId-String), keep track of whether the trip is included in static schedule (so that correct schedule relationship can be restored in case of cancellation-of-cancellation)
-    private final Cache<String, TripDescriptor.ScheduleRelationship> scheduleRelationshipCache;
+    //for each trip (identified by tripId-String) store StopTimeUpdates, the latest TripUpdate and schedule relationship.
+    //Trip states are dropped after they have not been accessed for CACHE_DURATION.
+    private final TripStateStore tripStates;
+    private long lastExpiryMs;
+    //stop IDs, route IDs, start dates and start times are shared between all cached trips
+    private final StringInterner interner;
+    //keeps the total weight of trip states within heap budget
+    private final TripStateGovernor governor;
+    //seeds trip state from other instances when running with a Key_Shared subscription, null if not in use
+    private final TripStateHandoff handoff;
+    //time for expiring, shedding and handing off trip state
+    private Clock clock = Clock.systemUTC();
+    //advanced with event time of each message when replaying, null when running on wall clock time
+    private EventTimeClock eventTimeClock;
+
+    private MessageOutcomes outcomes = new MessageOutcomes();
+    private final LongAdder staleEstimates = new LongAdder();
+    private final LongAdder duplicateEstimates = new LongAdder();
+    private final LongAdder expiredTrips = new LongAdder();
 
     public TripUpdateProcessor(Producer<byte[]> producer) {
+        this(producer, new StringInterner(DEFAULT_INTERNER_MAX_SIZE));
+    }
+
+    public TripUpdateProcessor(Producer<byte[]> producer, StringInterner interner) {
+        this(producer, interner, new TripStateGovernor(TripStateGovernor.budgetFromMaxHeap(DEFAULT_MAX_HEAP_FRACTION),
+                1.0, DEFAULT_IDLE_THRESHOLD.toMillis(), DEFAULT_FINISHED_GRACE.toMillis()));
+    }
+
+    public TripUpdateProcessor(Producer<byte[]> producer, StringInterner interner, TripStateGovernor governor) {
+        this(producer, interner, governor, null);
+    }
+
+    public TripUpdateProcessor(Producer<byte[]> producer, StringInterner interner, TripStateGovernor governor, TripStateHandoff handoff) {
+        this(producer, interner, governor, handoff, new HeapTripStateStore());
+    }
+
+    public TripUpdateProcessor(Producer<byte[]> producer, StringInterner interner, TripStateGovernor governor, TripStateHandoff handoff,
+                               TripStateStore tripStates) {
         this.producer = producer;
+        this.tripStates = tripStates;
+        this.interner = interner;
+        this.governor = governor;
+        this.handoff = handoff;
+        this.lastExpiryMs = clock.millis();
+    }
 
-        this.tripUpdateCache = CacheBuilder.newBuilder()
-                .expireAfterAccess(CACHE_DURATION)
-                .build();
+    public void setMessageOutcomes(MessageOutcomes outcomes) {
+        this.outcomes = outcomes;
+    }
 
-        this.stopTimeUpdateCache = CacheBuilder.newBuilder()
-                .expireAfterAccess(CACHE_DURATION)
-                .build(new CacheLoader<String, Map<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate>>() {
-                    @Override
-                    public Map<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate> load(String key) {
-                        //TreeMap keeps its entries sorted according to the natural ordering of its keys.
-                        return new TreeMap<>();
-                    }
-                });
-
-        this.scheduleRelationshipCache = CacheBuilder.newBuilder()
-                .expireAfterWrite(CACHE_DURATION)
-                .build();
+    /**
+     * Replaces wall clock time, f.ex. to replay traffic faster than real time.
+     * An EventTimeClock is advanced with the event time of each message before it is applied.
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+        this.eventTimeClock = clock instanceof EventTimeClock ? (EventTimeClock) clock : null;
+        this.lastExpiryMs = clock.millis();
     }
 
     public Optional<TripUpdate> processStopEstimate(InternalMessages.StopEstimate stopEstimate) {
+        return processStopEstimate(stopEstimate, 0);
+    }
+
+    /**
+     * @param eventTimeMs Pulsar event time of the message, used to order estimates with the same last modified time
+     */
+    public Optional<TripUpdate> processStopEstimate(InternalMessages.StopEstimate stopEstimate, long eventTimeMs) {
         try {
-            final StopTimeUpdate latest = updateStopTimeUpdateCache(stopEstimate);
-            final String tripKey = cacheKey(stopEstimate);
+            if (!applyStopEstimate(stopEstimate, eventTimeMs)) {
+                return Optional.empty();
+            }
+            return buildTripUpdate(stopEstimate);
+        } catch (Exception e) {
+            outcomes.record(MessageOutcome.FAILED);
+            log.error("Exception while translating StopEstimate into TripUpdate", e);
+            return Optional.empty();
+        }
+
+    }
+
+    /**
+     * Stores the estimate into cached trip state without building a TripUpdate out of it.
+     * Used directly when several estimates of the same trip are applied before publishing.
+     *
+     * @return false if the estimate was discarded as stale or duplicate
+     */
+    public boolean applyStopEstimate(InternalMessages.StopEstimate stopEstimate, long eventTimeMs) {
+        final StageEvents.Span span = StageEvents.get().begin(StageEvents.Stage.STATE_UPDATE, null);
+        final String tripKey = cacheKey(stopEstimate);
+        advanceEventTime(eventTimeMs);
+        maintainTripStates();
+        trackOwnership(tripKey);
+
+        //Discard redelivered and reordered estimates before doing any work for them
+        final boolean applied = isNewerThanCached(stopEstimate, eventTimeMs);
+        if (applied) {
+            updateStopTimeUpdateCache(stopEstimate);
+        }
+        span.end(tripKey, stopCountForEvent(span, tripKey), ProtobufSchema.InternalMessagesStopEstimate);
+        return applied;
+    }
+
+    private int stopCountForEvent(StageEvents.Span span, String tripKey) {
+        //Reading state back can cost something with the mapped store, so only do it when the event is recorded
+        if (span == StageEvents.NO_SPAN) {
+            return 0;
+        }
+        final TripState state = tripStates.get(tripKey);
+        return state != null ? state.getStopTimeUpdates().size() : 0;
+    }
+
+    /**
+     * Builds TripUpdate from cached trip state, after latest estimate of the trip has been applied with applyStopEstimate().
+     *
+     * @return TripUpdate, or empty if the trip is cancelled or state has already been dropped
+     */
+    public Optional<TripUpdate> buildTripUpdate(InternalMessages.StopEstimate latestEstimate) {
+        return buildTripUpdate(latestEstimate, true);
+    }
+
+    /**
+     * Like buildTripUpdate(), but leaves cleaning up the StopTimeUpdates to the caller with cleanStopTimeUpdates(),
+     * so that it can be done outside of the thread modifying trip state. Cached TripUpdate holds the raw StopTimeUpdates
+     * meanwhile, which is fine as they are always replaced before the cached one is used again.
+     */
+    public Optional<TripUpdate> buildRawTripUpdate(InternalMessages.StopEstimate latestEstimate) {
+        return buildTripUpdate(latestEstimate, false);
+    }
+
+    /**
+     * Cleans up StopTimeUpdates of a TripUpdate built with buildRawTripUpdate()
+     *
+     * @param latestStopSequence stop sequence of the estimate the TripUpdate was built for
+     */
+    public static TripUpdate cleanStopTimeUpdates(TripUpdate rawTripUpdate, int latestStopSequence) {
+        StopTimeUpdate latest = null;
+        for (StopTimeUpdate stopTimeUpdate : rawTripUpdate.getStopTimeUpdateList()) {
+            if (stopTimeUpdate.getStopSequence() == latestStopSequence) {
+                latest = stopTimeUpdate;
+                break;
+            }
+        }
+        final StageEvents.Span span = StageEvents.get().begin(StageEvents.Stage.CLEAN_STOP_TIME_UPDATES, null);
+        final List<StopTimeUpdate> validated = GtfsRtValidator.cleanStopTimeUpdates(rawTripUpdate.getStopTimeUpdateList(), latest);
+        span.end(rawTripUpdate.getTrip().getTripId(), validated.size(), ProtobufSchema.InternalMessagesStopEstimate);
+        return rawTripUpdate.toBuilder()
+                .clearStopTimeUpdate()
+                .addAllStopTimeUpdate(validated)
+                .build();
+    }
+
+    private Optional<TripUpdate> buildTripUpdate(InternalMessages.StopEstimate latestEstimate, boolean clean) {
+        try {
+            final String tripKey = cacheKey(latestEstimate);
+            final StopTimeUpdate latest = getStopTimeUpdatesWithStopSequences(tripKey).get(latestEstimate.getStopSequence());
+            if (latest == null) {
+                outcomes.record(MessageOutcome.NO_TRIP_STATE);
+                return Optional.empty();
+            }
             List<StopTimeUpdate> stopTimeUpdates = getStopTimeUpdates(tripKey);
 
             // We need to clean up the "raw data" StopTimeUpdates for any inconsistencies
-            List<StopTimeUpdate> validated = GtfsRtValidator.cleanStopTimeUpdates(stopTimeUpdates, latest);
+            List<StopTimeUpdate> validated = stopTimeUpdates;
+            if (clean) {
+                final StageEvents.Span span = StageEvents.get().begin(StageEvents.Stage.CLEAN_STOP_TIME_UPDATES, null);
+                validated = GtfsRtValidator.cleanStopTimeUpdates(stopTimeUpdates, latest);
+                span.end(tripKey, validated.size(), ProtobufSchema.InternalMessagesStopEstimate);
+            }
 
-            TripUpdate tripUpdate = updateTripUpdateCacheWithStopTimes(stopEstimate, validated);
+            TripUpdate tripUpdate = updateTripUpdateCacheWithStopTimes(latestEstimate, validated);
             if (tripUpdate.getTrip().getScheduleRelationship() == TripDescriptor.ScheduleRelationship.SCHEDULED
                     || tripUpdate.getTrip().getScheduleRelationship() == TripDescriptor.ScheduleRelationship.ADDED) {
                 //Save schedule relationship to cache to restore it in case of cancellation-of-cancellation
-                scheduleRelationshipCache.put(tripKey, tripUpdate.getTrip().getScheduleRelationship());
+                getTripState(tripKey).setScheduleRelationship(tripUpdate.getTrip().getScheduleRelationship());
 
                 //We want to act only if the status is still scheduled, let's not send estimates on cancelled trips.
                 return Optional.of(tripUpdate);
             }
             else {
+                outcomes.record(MessageOutcome.CANCELLED_TRIP);
                 log.debug("Discarding cancelled stop estimate");
                 return Optional.empty();
             }
 
         } catch (Exception e) {
+            outcomes.record(MessageOutcome.FAILED);
             log.error("Exception while translating StopEstimate into TripUpdate", e);
             return Optional.empty();
         }
-
     }
 
     public TripUpdate processTripCancellation(final String messageKey, long messageTimestamp, InternalMessages.TripCancellation tripCancellation) {
-        return updateTripUpdateCacheWithCancellation(messageKey, messageTimestamp, tripCancellation);
+        final StageEvents.Span span = StageEvents.get().begin(StageEvents.Stage.STATE_UPDATE, null);
+        advanceEventTime(messageTimestamp);
+        maintainTripStates();
+        trackOwnership(messageKey);
+        final TripUpdate tripUpdate = updateTripUpdateCacheWithCancellation(messageKey, messageTimestamp, tripCancellation);
+        span.end(messageKey, tripUpdate.getStopTimeUpdateCount(), ProtobufSchema.InternalMessagesTripCancellation);
+        return tripUpdate;
+    }
+
+    private boolean isNewerThanCached(final InternalMessages.StopEstimate stopEstimate, long eventTimeMs) {
+        final StopVersions.Result result = getTripState(cacheKey(stopEstimate)).getStopVersions().advance(
+                stopEstimate.getStopSequence(),
+                stopEstimate.getType() == InternalMessages.StopEstimate.Type.DEPARTURE,
+                stopEstimate.getLastModifiedUtcMs(),
+                eventTimeMs);
+        switch (result) {
+            case STALE:
+                staleEstimates.increment();
+                outcomes.record(MessageOutcome.STALE);
+                log.debug("Discarding stale stop estimate for trip {} stop sequence {}", cacheKey(stopEstimate), stopEstimate.getStopSequence());
+                return false;
+            case DUPLICATE:
+                duplicateEstimates.increment();
+                outcomes.record(MessageOutcome.UNCHANGED);
+                log.debug("Discarding duplicate stop estimate for trip {} stop sequence {}", cacheKey(stopEstimate), stopEstimate.getStopSequence());
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    public long getStaleEstimateCount() {
+        return staleEstimates.sum();
+    }
+
+    public long getDuplicateEstimateCount() {
+        return duplicateEstimates.sum();
+    }
+
+    /**
+     * @return trip states dropped after not being accessed for CACHE_DURATION
+     */
+    public long getExpiredTripCount() {
+        return expiredTrips.sum();
     }
 
     private String cacheKey(final InternalMessages.StopEstimate stopEstimate) {
@@ -107,19 +295,15 @@ public class TripUpdateProcessor {
         final int innerMapCacheKey = stopEstimate.getStopSequence();
         StopTimeUpdate previous = stopTimeUpdatesForThisTripUpdate.get(innerMapCacheKey);
 
-        StopTimeUpdate latest = GtfsRtFactory.newStopTimeUpdateFromPrevious(stopEstimate, previous);
-        stopTimeUpdatesForThisTripUpdate.put(innerMapCacheKey, latest);
+        StopTimeUpdate latest = GtfsRtFactory.newStopTimeUpdateFromPrevious(stopEstimate, previous, interner);
+        if (stopTimeUpdatesForThisTripUpdate.put(innerMapCacheKey, latest) == null) {
+            governor.allocated(TripState.STOP_WEIGHT_BYTES);
+        }
         return latest;
     }
 
     Map<Integer, StopTimeUpdate> getStopTimeUpdatesWithStopSequences(String key) {
-        try {
-            return stopTimeUpdateCache.get(key);
-        }
-        catch (ExecutionException e) {
-            log.error("Unexpected Error with StopTimeUpdate (Guava) Cache! ", e);
-        }
-        return new HashMap<>();
+        return getTripState(key).getStopTimeUpdates();
     }
 
     LinkedList<StopTimeUpdate> getStopTimeUpdates(String key) {
@@ -128,13 +312,73 @@ public class TripUpdateProcessor {
         return new LinkedList<>(updates);
     }
 
+    int getTripCount() {
+        return tripStates.size();
+    }
+
+    /**
+     * Returns state for the trip, creating it if this is the first time we hear of it. Trips of recently acquired
+     * key ranges are seeded from other instances.
+     */
+    private TripState getTripState(String key) {
+        TripState state = tripStates.get(key);
+        if (state == null) {
+            state = handoff != null ?
+                    handoff.seed(key, clock.millis()).orElseGet(TripState::new) :
+                    new TripState();
+            tripStates.put(key, state);
+            governor.allocated(state.getWeightBytes());
+        }
+        state.touch(clock.millis());
+        return state;
+    }
+
+    private void advanceEventTime(long eventTimeMs) {
+        if (eventTimeClock != null) {
+            eventTimeClock.advance(eventTimeMs);
+        }
+    }
+
+    /**
+     * Expires idle trip states and sheds state if we're running out of budget.
+     * Invoked before a message touches any state, so that nothing is removed from under it.
+     */
+    private void maintainTripStates() {
+        final long now = clock.millis();
+        tripStates.maintain(now);
+        if (now - lastExpiryMs >= EXPIRY_INTERVAL.toMillis()) {
+            expireTripStates(now);
+        }
+        if (handoff != null) {
+            governor.released(handoff.maintain(tripStates, now));
+        }
+        governor.maybeShed(tripStates, now);
+    }
+
+    private void trackOwnership(String key) {
+        if (handoff != null) {
+            handoff.onMessage(key, clock.millis());
+        }
+    }
+
+    void expireTripStates(long nowMs) {
+        final long expireBefore = nowMs - CACHE_DURATION.toMillis();
+        int expired = tripStates.expire(expireBefore, state -> governor.released(state.getWeightBytes()));
+        lastExpiryMs = nowMs;
+        expiredTrips.add(expired);
+        if (expired > 0) {
+            log.debug("Expired {} trip states, {} remaining", expired, tripStates.size());
+        }
+    }
+
     private TripUpdate updateTripUpdateCacheWithStopTimes(final InternalMessages.StopEstimate latest, Collection<StopTimeUpdate> stopTimeUpdates) {
 
         final String tuCacheKey = cacheKey(latest);
 
-        TripUpdate previousTripUpdate = tripUpdateCache.getIfPresent(tuCacheKey);
+        final TripState tripState = getTripState(tuCacheKey);
+        TripUpdate previousTripUpdate = tripState.getTripUpdate();
         if (previousTripUpdate == null) {
-            previousTripUpdate = GtfsRtFactory.newTripUpdate(latest);
+            previousTripUpdate = GtfsRtFactory.newTripUpdate(latest, interner);
         }
         final long timestamp = GtfsRtFactory.lastModified(latest);
 
@@ -144,7 +388,7 @@ public class TripUpdateProcessor {
                 .setTimestamp(timestamp)
                 .build();
 
-        tripUpdateCache.put(tuCacheKey, tripUpdate);
+        tripState.setTripUpdate(tripUpdate);
 
         return tripUpdate;
     }
@@ -152,16 +396,17 @@ public class TripUpdateProcessor {
     private TripUpdate updateTripUpdateCacheWithCancellation(final String cacheKey,
                                                              final long messageTimestampMs,
                                                              InternalMessages.TripCancellation cancellation) {
-        TripUpdate previousTripUpdate = tripUpdateCache.getIfPresent(cacheKey);
+        final TripState tripState = getTripState(cacheKey);
+        TripUpdate previousTripUpdate = tripState.getTripUpdate();
         if (previousTripUpdate == null) {
-            previousTripUpdate = GtfsRtFactory.newTripUpdate(cancellation, messageTimestampMs);
+            previousTripUpdate = GtfsRtFactory.newTripUpdate(cancellation, messageTimestampMs, interner);
         }
 
         final GtfsRealtime.TripDescriptor.ScheduleRelationship status =
                 cancellation.getStatus() == InternalMessages.TripCancellation.Status.CANCELED ?
                     GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED :
                         //Assume that trip is scheduled if it is not found from the cache
-                        Optional.ofNullable(scheduleRelationshipCache.getIfPresent(cacheKey)).orElse(TripDescriptor.ScheduleRelationship.SCHEDULED);
+                        Optional.ofNullable(tripState.getScheduleRelationship()).orElse(TripDescriptor.ScheduleRelationship.SCHEDULED);
 
         TripDescriptor tripDescriptor = previousTripUpdate.getTrip().toBuilder()
                 .setScheduleRelationship(status)
@@ -192,7 +437,7 @@ public class TripUpdateProcessor {
         }
 
         TripUpdate newTripUpdate = builder.build();
-        tripUpdateCache.put(cacheKey, newTripUpdate);
+        tripState.setTripUpdate(newTripUpdate);
         return newTripUpdate;
     }
 }
@@ -0,0 +1,77 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Keeps all trip states on heap in a TripIndex.
+ */
+public class HeapTripStateStore implements TripStateStore {
+    private final TripIndex<TripState> states;
+
+    public HeapTripStateStore() {
+        this(new TripIndex<>());
+    }
+
+    public HeapTripStateStore(TripIndex<TripState> states) {
+        this.states = states;
+    }
+
+    @Override
+    public TripState get(String tripId) {
+        return states.get(tripId);
+    }
+
+    @Override
+    public byte[] peekEncoded(String tripId) {
+        final TripState state = states.get(tripId);
+        return state != null ? TripStateCodec.encode(state) : null;
+    }
+
+    @Override
+    public void put(String tripId, TripState state) {
+        states.put(tripId, state);
+    }
+
+    @Override
+    public TripState remove(String tripId) {
+        return states.remove(tripId);
+    }
+
+    @Override
+    public TripState computeIfAbsent(String tripId, Function<String, TripState> factory) {
+        return states.computeIfAbsent(tripId, factory);
+    }
+
+    @Override
+    public int size() {
+        return states.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, ? super TripState> consumer) {
+        states.forEach(consumer);
+    }
+
+    @Override
+    public int removeIf(Predicate<? super TripStateSummary> predicate) {
+        return states.removeIf(predicate);
+    }
+
+    @Override
+    public int removeEntriesIf(BiPredicate<String, ? super TripStateSummary> predicate) {
+        return states.removeEntriesIf(predicate);
+    }
+
+    @Override
+    public long getStorageBytes() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+        states.clear();
+    }
+}
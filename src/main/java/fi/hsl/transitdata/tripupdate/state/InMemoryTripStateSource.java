@@ -0,0 +1,54 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import com.google.transit.realtime.GtfsRealtime;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for a shared TripStateSource within a single JVM, f.ex. for tests and local development.
+ *
+ * Like the output topic, it keeps the latest TripUpdate of each trip for maxAgeMs after it was published.
+ */
+public class InMemoryTripStateSource implements TripStateSource {
+    private static final long PURGE_INTERVAL_MS = 60000;
+
+    private static class Entry {
+        final GtfsRealtime.TripUpdate tripUpdate;
+        final long publishedMs;
+
+        Entry(GtfsRealtime.TripUpdate tripUpdate, long publishedMs) {
+            this.tripUpdate = tripUpdate;
+            this.publishedMs = publishedMs;
+        }
+    }
+
+    private final long maxAgeMs;
+    private final Map<String, Entry> tripUpdates = new ConcurrentHashMap<>();
+    private final AtomicLong nextPurgeMs = new AtomicLong(Long.MIN_VALUE);
+
+    public InMemoryTripStateSource(long maxAgeMs) {
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    public void published(String tripId, GtfsRealtime.TripUpdate tripUpdate, long nowMs) {
+        tripUpdates.put(tripId, new Entry(tripUpdate, nowMs));
+        final long purgeAtMs = nextPurgeMs.get();
+        if (nowMs >= purgeAtMs && nextPurgeMs.compareAndSet(purgeAtMs, nowMs + PURGE_INTERVAL_MS)) {
+            final long purgeBeforeMs = nowMs - maxAgeMs;
+            tripUpdates.values().removeIf(entry -> entry.publishedMs < purgeBeforeMs);
+        }
+    }
+
+    @Override
+    public Optional<GtfsRealtime.TripUpdate> latest(String tripId) {
+        final Entry entry = tripUpdates.get(tripId);
+        return entry != null ? Optional.of(entry.tripUpdate) : Optional.empty();
+    }
+
+    public int size() {
+        return tripUpdates.size();
+    }
+}
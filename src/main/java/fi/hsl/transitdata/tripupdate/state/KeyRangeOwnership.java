@@ -0,0 +1,115 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tracks which ranges of the Key_Shared hash space this instance currently owns.
+ *
+ * The broker doesn't tell consumers which hash ranges they are assigned, so ownership is observed from the keys
+ * of received messages: a range is acquired when its first message arrives, and considered released once no message
+ * has arrived for it within releaseAfterMs. Keys are hashed like the broker does, so ranges line up with the ones
+ * the broker moves between consumers when the hash space is split in powers of two.
+ *
+ * Not thread-safe.
+ */
+public class KeyRangeOwnership {
+    //Size of the hash space used by Key_Shared subscriptions
+    public static final int HASH_RANGE_SIZE = 1 << 16;
+
+    private static final long NOT_OWNED = Long.MIN_VALUE;
+    private static final HashFunction MURMUR3 = Hashing.murmur3_32();
+
+    private final int rangeCount;
+    private final int slotsPerRange;
+    private final long releaseAfterMs;
+    private final long[] lastSeenMs;
+    private int ownedCount;
+
+    /**
+     * @param rangeCount     amount of ranges the hash space is divided to, power of two up to HASH_RANGE_SIZE
+     * @param releaseAfterMs ranges without messages for this long are considered released
+     */
+    public KeyRangeOwnership(int rangeCount, long releaseAfterMs) {
+        if (rangeCount <= 0 || rangeCount > HASH_RANGE_SIZE || Integer.bitCount(rangeCount) != 1) {
+            throw new IllegalArgumentException("Range count must be a power of two up to " + HASH_RANGE_SIZE + ": " + rangeCount);
+        }
+        this.rangeCount = rangeCount;
+        this.slotsPerRange = HASH_RANGE_SIZE / rangeCount;
+        this.releaseAfterMs = releaseAfterMs;
+        this.lastSeenMs = new long[rangeCount];
+        Arrays.fill(lastSeenMs, NOT_OWNED);
+    }
+
+    /**
+     * @return slot of the key in Key_Shared hash space, same as calculated by the broker
+     */
+    public static int hashSlot(String key) {
+        return (MURMUR3.hashBytes(key.getBytes(StandardCharsets.UTF_8)).asInt() & Integer.MAX_VALUE) % HASH_RANGE_SIZE;
+    }
+
+    public int rangeOf(String key) {
+        return hashSlot(key) / slotsPerRange;
+    }
+
+    /**
+     * Records a message for the key.
+     *
+     * @return true if this acquired the range of the key
+     */
+    public boolean touch(int range, long nowMs) {
+        final boolean acquired = lastSeenMs[range] == NOT_OWNED;
+        if (acquired) {
+            ownedCount++;
+        }
+        lastSeenMs[range] = nowMs;
+        return acquired;
+    }
+
+    /**
+     * @return ranges released since the previous call
+     */
+    public List<Integer> releaseIdle(long nowMs) {
+        List<Integer> released = new ArrayList<>();
+        final long releaseBeforeMs = nowMs - releaseAfterMs;
+        for (int range = 0; range < rangeCount; range++) {
+            if (lastSeenMs[range] != NOT_OWNED && lastSeenMs[range] < releaseBeforeMs) {
+                lastSeenMs[range] = NOT_OWNED;
+                ownedCount--;
+                released.add(range);
+            }
+        }
+        return released;
+    }
+
+    public boolean isOwned(int range) {
+        return lastSeenMs[range] != NOT_OWNED;
+    }
+
+    public int getOwnedCount() {
+        return ownedCount;
+    }
+
+    public int getRangeCount() {
+        return rangeCount;
+    }
+
+    /**
+     * @return first hash slot of the range, inclusive
+     */
+    public int rangeStart(int range) {
+        return range * slotsPerRange;
+    }
+
+    /**
+     * @return last hash slot of the range, inclusive
+     */
+    public int rangeEnd(int range) {
+        return rangeStart(range) + slotsPerRange - 1;
+    }
+}
@@ -0,0 +1,201 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Open-addressing hash map with primitive long keys, using linear probing and backward-shift deletion.
+ *
+ * Keys are stored in a plain long[] so there is no boxing and no entry object per mapping.
+ * A slot is empty when its value is null, which is why null values are not allowed.
+ *
+ * Not thread-safe.
+ */
+public class LongObjectHashMap<V> {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+
+    public interface LongObjectConsumer<V> {
+        void accept(long key, V value);
+    }
+
+    public LongObjectHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongObjectHashMap(int expectedSize) {
+        allocate(tableSizeFor((int) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR)));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return current length of the backing arrays, exposed for footprint reporting
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int index = slot(key);
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                return (V) values[index];
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return previous value mapped to the key, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not supported");
+        }
+        int index = slot(key);
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                V previous = (V) values[index];
+                values[index] = value;
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (++size > resizeThreshold) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return removed value, or null if the key was not present
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int index = slot(key);
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                V removed = (V) values[index];
+                deleteSlot(index);
+                return removed;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(LongObjectConsumer<? super V> consumer) {
+        for (int index = 0; index < values.length; index++) {
+            if (values[index] != null) {
+                consumer.accept(keys[index], (V) values[index]);
+            }
+        }
+    }
+
+    /**
+     * Removes all mappings whose value matches the predicate.
+     *
+     * @return amount of removed mappings
+     */
+    @SuppressWarnings("unchecked")
+    public int removeIf(Predicate<? super V> predicate) {
+        //Backward-shift deletion moves entries around, so collect the keys first and remove them afterwards.
+        long[] matching = null;
+        int count = 0;
+        for (int index = 0; index < values.length; index++) {
+            if (values[index] != null && predicate.test((V) values[index])) {
+                if (matching == null) {
+                    matching = new long[8];
+                } else if (count == matching.length) {
+                    matching = Arrays.copyOf(matching, count << 1);
+                }
+                matching[count++] = keys[index];
+            }
+        }
+        for (int n = 0; n < count; n++) {
+            remove(matching[n]);
+        }
+        return count;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void deleteSlot(int index) {
+        values[index] = null;
+        size--;
+        //Shift following entries of the same probe sequence backwards so that lookups don't stop at the gap
+        int gap = index;
+        int next = (gap + 1) & mask;
+        while (values[next] != null) {
+            int ideal = slot(keys[next]);
+            boolean movable = gap <= next ? (ideal <= gap || ideal > next) : (ideal <= gap && ideal > next);
+            if (movable) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                values[next] = null;
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(newCapacity);
+        for (int index = 0; index < oldValues.length; index++) {
+            if (oldValues[index] != null) {
+                int slot = slot(oldKeys[index]);
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[index];
+                values[slot] = oldValues[index];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private int slot(long key) {
+        //DVJ ids are sequential, so spread the bits before masking (Fibonacci hashing)
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        return Math.max(size, 2);
+    }
+}
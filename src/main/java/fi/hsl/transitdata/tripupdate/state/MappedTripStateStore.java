@@ -0,0 +1,400 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Keeps trip states serialized in a memory-mapped file, leaving only a small working set of recently accessed
+ * states on heap.
+ *
+ * The file is divided into slots with sizes in powers of two. A state is rewritten into its slot if it still fits,
+ * otherwise it moves to a bigger one and the old slot is reused by the next state of that size. Changes to the states
+ * of the working set are written to the file when they are evicted from it, which is the least recently accessed one
+ * once there are more than hotEntries states on heap.
+ *
+ * The file only holds state of the running process and is deleted on close, the index of slots is kept on heap.
+ * Mappings are released right away when the file grows and on close, instead of whenever their buffers are collected.
+ * The index also keeps a summary of each state as of writing it, so that expiry and shedding don't decode the file.
+ */
+public class MappedTripStateStore implements TripStateStore {
+    private static final Logger log = LoggerFactory.getLogger(MappedTripStateStore.class);
+
+    //Every slot starts with the length of the record
+    private static final int HEADER_BYTES = Integer.BYTES;
+    private static final int MIN_SLOT_SHIFT = 8;
+    private static final int MAX_SLOT_SHIFT = 24;
+    //Mapped regions are addressed with int
+    static final long MAX_CAPACITY_BYTES = 1L << 30;
+    //Slot of a state which has not been written to the file yet
+    private static final long NO_SLOT = -1;
+
+    private final Path file;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int end;
+    private long storageBytes;
+
+    private final TripIndex<Slot> slots = new TripIndex<>();
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Integer>[] freeSlots = new ArrayDeque[MAX_SLOT_SHIFT + 1];
+    private final LinkedHashMap<String, TripState> hot;
+    private final StringInterner interner;
+
+    /**
+     * Slot of a trip in the file and summary of the state written there. Summaries of hot states are the states themselves
+     */
+    private static class Slot implements TripStateSummary {
+        //offset << 8 | shift
+        long position = NO_SLOT;
+        long weightBytes;
+        long firstStopTimeSecs;
+        long lastStopTimeSecs;
+        long lastAccessMs;
+
+        void summarize(TripState state) {
+            weightBytes = state.getWeightBytes();
+            firstStopTimeSecs = state.getFirstStopTimeSecs();
+            lastStopTimeSecs = state.getLastStopTimeSecs();
+            lastAccessMs = state.getLastAccessMs();
+        }
+
+        @Override
+        public long getWeightBytes() {
+            return weightBytes;
+        }
+
+        @Override
+        public long getFirstStopTimeSecs() {
+            return firstStopTimeSecs;
+        }
+
+        @Override
+        public long getLastStopTimeSecs() {
+            return lastStopTimeSecs;
+        }
+
+        @Override
+        public long getLastAccessMs() {
+            return lastAccessMs;
+        }
+    }
+
+    /**
+     * @param file            file to map, created or truncated if it exists
+     * @param initialCapacity initial size of the file in bytes, doubled when full
+     * @param hotEntries      amount of recently accessed states to keep on heap
+     */
+    public MappedTripStateStore(Path file, int initialCapacity, int hotEntries) throws IOException {
+        this(file, initialCapacity, hotEntries, StringInterner.disabled());
+    }
+
+    /**
+     * @param interner interns values of states read back from the file, like those of states created on heap
+     */
+    public MappedTripStateStore(Path file, int initialCapacity, int hotEntries, StringInterner interner) throws IOException {
+        if (initialCapacity < 1 << MIN_SLOT_SHIFT || initialCapacity > MAX_CAPACITY_BYTES) {
+            throw new IllegalArgumentException("Initial capacity must be between " + (1 << MIN_SLOT_SHIFT) + " and " + MAX_CAPACITY_BYTES + ": " + initialCapacity);
+        }
+        //The state being modified must stay on heap until another trip is accessed
+        if (hotEntries < 1) {
+            throw new IllegalArgumentException("At least one state must be kept on heap: " + hotEntries);
+        }
+        this.file = file;
+        this.interner = interner;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, initialCapacity);
+        for (int shift = MIN_SLOT_SHIFT; shift <= MAX_SLOT_SHIFT; shift++) {
+            freeSlots[shift] = new ArrayDeque<>();
+        }
+        //Kept in insertion order and moved to the end on access, so that peeking doesn't change the order
+        this.hot = new LinkedHashMap<String, TripState>(hotEntries * 2, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TripState> eldest) {
+                if (size() > hotEntries) {
+                    writeBack(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        log.info("Storing trip state in {}, initial capacity {} bytes, keeping {} states on heap", file, initialCapacity, hotEntries);
+    }
+
+    @Override
+    public TripState get(String tripId) {
+        TripState state = hot.remove(tripId);
+        if (state == null) {
+            final Slot slot = slots.get(tripId);
+            if (slot == null) {
+                return null;
+            }
+            state = read(slot.position);
+        }
+        hot.put(tripId, state);
+        return state;
+    }
+
+    /**
+     * States not on heap are copied from the file as they are
+     */
+    @Override
+    public byte[] peekEncoded(String tripId) {
+        final TripState state = hot.get(tripId);
+        if (state != null) {
+            return TripStateCodec.encode(state);
+        }
+        final Slot slot = slots.get(tripId);
+        return slot != null ? readEncoded(slot.position) : null;
+    }
+
+    @Override
+    public void put(String tripId, TripState state) {
+        if (slots.get(tripId) == null) {
+            slots.put(tripId, new Slot());
+        }
+        hot.remove(tripId);
+        hot.put(tripId, state);
+    }
+
+    /**
+     * Writes the state straight to the file, without keeping it on heap
+     */
+    public void spill(String tripId, TripState state) {
+        if (hot.remove(tripId) == null && slots.get(tripId) == null) {
+            slots.put(tripId, new Slot());
+        }
+        writeBack(tripId, state);
+    }
+
+    @Override
+    public TripState remove(String tripId) {
+        final Slot slot = slots.remove(tripId);
+        if (slot == null) {
+            return null;
+        }
+        TripState state = hot.remove(tripId);
+        if (state == null) {
+            state = read(slot.position);
+        }
+        free(slot.position);
+        return state;
+    }
+
+    @Override
+    public TripState computeIfAbsent(String tripId, Function<String, TripState> factory) {
+        TripState state = get(tripId);
+        if (state == null) {
+            state = factory.apply(tripId);
+            put(tripId, state);
+        }
+        return state;
+    }
+
+    @Override
+    public int size() {
+        return slots.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, ? super TripState> consumer) {
+        hot.forEach(consumer);
+        slots.forEach((tripId, slot) -> {
+            if (!hot.containsKey(tripId)) {
+                consumer.accept(tripId, read(slot.position));
+            }
+        });
+    }
+
+    @Override
+    public void forEachSummary(BiConsumer<String, ? super TripStateSummary> consumer) {
+        hot.forEach(consumer);
+        slots.forEach((tripId, slot) -> {
+            if (!hot.containsKey(tripId)) {
+                consumer.accept(tripId, slot);
+            }
+        });
+    }
+
+    @Override
+    public int removeIf(Predicate<? super TripStateSummary> predicate) {
+        return removeEntriesIf((tripId, state) -> predicate.test(state));
+    }
+
+    @Override
+    public int removeEntriesIf(BiPredicate<String, ? super TripStateSummary> predicate) {
+        int removed = 0;
+        for (Iterator<Map.Entry<String, TripState>> it = hot.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<String, TripState> entry = it.next();
+            if (predicate.test(entry.getKey(), entry.getValue())) {
+                it.remove();
+                free(slots.remove(entry.getKey()).position);
+                removed++;
+            }
+        }
+        return removed + slots.removeEntriesIf((tripId, slot) -> {
+            if (!hot.containsKey(tripId) && predicate.test(tripId, slot)) {
+                free(slot.position);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    @Override
+    public long getStorageBytes() {
+        return storageBytes;
+    }
+
+    /**
+     * @return size of the mapped file in bytes
+     */
+    public long getCapacityBytes() {
+        return buffer.capacity();
+    }
+
+    @Override
+    public void close() {
+        hot.clear();
+        slots.clear();
+        if (buffer != null) {
+            unmap(buffer);
+            //Fail fast instead of touching the released mapping
+            buffer = null;
+        }
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Failed to delete trip state file {}", file, e);
+        }
+    }
+
+    private void writeBack(String tripId, TripState state) {
+        final byte[] encoded = TripStateCodec.encode(state);
+        final int shift = shiftFor(encoded.length + HEADER_BYTES);
+        final Slot slot = slots.get(tripId);
+        if (slot.position == NO_SLOT || shiftOf(slot.position) != shift) {
+            free(slot.position);
+            slot.position = allocate(shift);
+        }
+        slot.summarize(state);
+        final int offset = offsetOf(slot.position);
+        buffer.putInt(offset, encoded.length);
+        buffer.position(offset + HEADER_BYTES);
+        buffer.put(encoded);
+    }
+
+    private TripState read(long slot) {
+        return TripStateCodec.decode(readEncoded(slot), interner);
+    }
+
+    private byte[] readEncoded(long slot) {
+        final int offset = offsetOf(slot);
+        byte[] encoded = new byte[buffer.getInt(offset)];
+        buffer.position(offset + HEADER_BYTES);
+        buffer.get(encoded);
+        return encoded;
+    }
+
+    private long allocate(int shift) {
+        final Integer free = freeSlots[shift].poll();
+        final int offset;
+        if (free != null) {
+            offset = free;
+        } else {
+            final int size = 1 << shift;
+            if ((long) end + size > buffer.capacity()) {
+                grow((long) end + size);
+            }
+            offset = end;
+            end += size;
+        }
+        storageBytes += 1 << shift;
+        return (long) offset << 8 | shift;
+    }
+
+    private void free(long slot) {
+        if (slot != NO_SLOT) {
+            freeSlots[shiftOf(slot)].push(offsetOf(slot));
+            storageBytes -= 1 << shiftOf(slot);
+        }
+    }
+
+    private void grow(long required) {
+        long capacity = buffer.capacity();
+        while (capacity < required) {
+            capacity *= 2;
+        }
+        if (capacity > MAX_CAPACITY_BYTES) {
+            throw new IllegalStateException("Trip state file " + file + " can't grow beyond " + MAX_CAPACITY_BYTES + " bytes");
+        }
+        final MappedByteBuffer previous = buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to grow trip state file " + file, e);
+        }
+        unmap(previous);
+        log.info("Grew trip state file {} to {} bytes", file, capacity);
+    }
+
+    /**
+     * Releases the mapping of a buffer that is no longer used. Best effort: if the JVM doesn't allow it,
+     * the mapping is released when the buffer is garbage collected.
+     */
+    static void unmap(MappedByteBuffer mapped) {
+        try {
+            try {
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), mapped);
+            } catch (NoSuchMethodException e) {
+                //Java 8 has no invokeCleaner, but its buffers expose their cleaner
+                final Method cleanerMethod = mapped.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(mapped);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Failed to unmap trip state file, leaving it to GC", e);
+        }
+    }
+
+    static int shiftFor(int bytes) {
+        final int shift = Math.max(MIN_SLOT_SHIFT, 32 - Integer.numberOfLeadingZeros(bytes - 1));
+        if (shift > MAX_SLOT_SHIFT) {
+            throw new IllegalArgumentException("Trip state of " + bytes + " bytes doesn't fit in a slot");
+        }
+        return shift;
+    }
+
+    private static int offsetOf(long slot) {
+        return (int) (slot >>> 8);
+    }
+
+    private static int shiftOf(long slot) {
+        return (int) (slot & 0xFF);
+    }
+}
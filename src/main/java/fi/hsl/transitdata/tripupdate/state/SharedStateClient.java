@@ -0,0 +1,24 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import java.util.Map;
+
+/**
+ * Client of a key-value store shared by all instances, such as Redis.
+ *
+ * Implementations must be thread-safe: reads are done by the thread processing messages and writes by a background writer.
+ */
+public interface SharedStateClient extends AutoCloseable {
+
+    /**
+     * @return value of the key, or null if there is none
+     */
+    byte[] get(String key);
+
+    /**
+     * Writes all values in one round-trip, each expiring after ttlMs
+     */
+    void setAll(Map<String, byte[]> values, long ttlMs);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,388 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Shares trip state between instances through a key-value store such as Redis, keeping a local store as near-cache.
+ *
+ * Lookups are served from the near-cache. Only the first lookup of a trip this instance doesn't know goes to the shared
+ * store, which happens once per trip when it starts or when its key range moves to this instance.
+ *
+ * Writes are behind: trips accessed since the previous flush are serialized on maintenance at most every flushIntervalMs,
+ * and written by a background thread in pipelined batches of up to maxBatchSize. A trip modified several times before
+ * the writer gets to it is written only once, with its latest state. Serializing peeks at the near-cache, so that it
+ * doesn't change which states the near-cache keeps on heap.
+ *
+ * Removing a trip only removes it from the near-cache, after writing its pending changes. States in the shared store
+ * expire after ttlMs, so that shedding or handing off local state doesn't lose it for the other instances.
+ *
+ * Not thread-safe apart from counters and report(), expected to be used by the thread processing messages.
+ */
+public class SharedTripStateStore implements TripStateStore {
+    private static final Logger log = LoggerFactory.getLogger(SharedTripStateStore.class);
+
+    //Up to a second with microsecond precision, larger values are clamped
+    static final long MAX_READ_LATENCY_US = 1000000;
+
+    private final TripStateStore near;
+    private final SharedStateClient client;
+    private final String keyPrefix;
+    private final long ttlMs;
+    private final long flushIntervalMs;
+    private final int maxBatchSize;
+    private final StringInterner interner;
+
+    //trips accessed since the previous flush
+    private final Set<String> dirty = new HashSet<>();
+    private long lastFlushMs;
+    //serialized states waiting for the writer, latest one per key
+    private final Map<String, byte[]> pending = new ConcurrentHashMap<>();
+    //held while writing, so that closing waits for the batch the writer is writing
+    private final Object writeLock = new Object();
+
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private final LongAdder nearHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder sharedMisses = new LongAdder();
+    private final LongAdder readFailures = new LongAdder();
+    private final LongAdder writtenStates = new LongAdder();
+    private final LongAdder writtenBatches = new LongAdder();
+    private final LongAdder writeFailures = new LongAdder();
+    private final Recorder readLatencies = new Recorder(MAX_READ_LATENCY_US, 2);
+    private Histogram intervalReadLatencies;
+
+    /**
+     * @param near            local store used as near-cache
+     * @param client          client of the shared store
+     * @param keyPrefix       prefix of the keys of trip states in the shared store
+     * @param ttlMs           states expire from the shared store after this
+     * @param flushIntervalMs interval of serializing and writing modified states
+     * @param maxBatchSize    maximum amount of states written in one round-trip
+     */
+    public SharedTripStateStore(TripStateStore near, SharedStateClient client, String keyPrefix, long ttlMs,
+                                long flushIntervalMs, int maxBatchSize) {
+        this(near, client, keyPrefix, ttlMs, flushIntervalMs, maxBatchSize, StringInterner.disabled());
+    }
+
+    /**
+     * @param interner interns values of states read from the shared store, like those of states created locally
+     */
+    public SharedTripStateStore(TripStateStore near, SharedStateClient client, String keyPrefix, long ttlMs,
+                                long flushIntervalMs, int maxBatchSize, StringInterner interner) {
+        this.near = near;
+        this.client = client;
+        this.keyPrefix = keyPrefix;
+        this.ttlMs = ttlMs;
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxBatchSize = maxBatchSize;
+        this.interner = interner;
+        this.lastFlushMs = System.currentTimeMillis();
+        this.writer = new Thread(this::writeLoop, "trip-state-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Starts the background writer
+     */
+    public void start() {
+        writer.start();
+    }
+
+    @Override
+    public TripState get(String tripId) {
+        TripState state = near.get(tripId);
+        if (state != null) {
+            nearHits.increment();
+        } else {
+            state = readShared(tripId);
+            if (state == null) {
+                return null;
+            }
+            near.put(tripId, state);
+        }
+        dirty.add(tripId);
+        return state;
+    }
+
+    /**
+     * Peeks only at the near-cache
+     */
+    @Override
+    public byte[] peekEncoded(String tripId) {
+        return near.peekEncoded(tripId);
+    }
+
+    @Override
+    public void put(String tripId, TripState state) {
+        near.put(tripId, state);
+        dirty.add(tripId);
+    }
+
+    @Override
+    public TripState remove(String tripId) {
+        final TripState state = near.remove(tripId);
+        if (state != null) {
+            writeBackIfDirty(tripId, state);
+        }
+        return state;
+    }
+
+    @Override
+    public TripState computeIfAbsent(String tripId, Function<String, TripState> factory) {
+        TripState state = get(tripId);
+        if (state == null) {
+            state = factory.apply(tripId);
+            put(tripId, state);
+        }
+        return state;
+    }
+
+    /**
+     * @return amount of trips in the near-cache
+     */
+    @Override
+    public int size() {
+        return near.size();
+    }
+
+    /**
+     * Iterates trips in the near-cache
+     */
+    @Override
+    public void forEach(BiConsumer<String, ? super TripState> consumer) {
+        near.forEach(consumer);
+    }
+
+    @Override
+    public void forEachSummary(BiConsumer<String, ? super TripStateSummary> consumer) {
+        near.forEachSummary(consumer);
+    }
+
+    /**
+     * Pending changes are serialized before removing, so that removed trips don't lose them
+     */
+    @Override
+    public int removeIf(Predicate<? super TripStateSummary> predicate) {
+        flushDirty();
+        return near.removeIf(predicate);
+    }
+
+    @Override
+    public int removeEntriesIf(BiPredicate<String, ? super TripStateSummary> predicate) {
+        flushDirty();
+        return near.removeEntriesIf(predicate);
+    }
+
+    /**
+     * Serializes trips accessed since the previous flush if flushIntervalMs has passed. The interval is measured with
+     * wall-clock time like the writer's, nowMs of the processing clock is passed on to the near-cache.
+     */
+    @Override
+    public void maintain(long nowMs) {
+        final long now = System.currentTimeMillis();
+        if (now - lastFlushMs >= flushIntervalMs) {
+            flush(now);
+        }
+        near.maintain(nowMs);
+    }
+
+    @Override
+    public long getStorageBytes() {
+        return near.getStorageBytes();
+    }
+
+    /**
+     * Stops the writer and writes everything modified since the previous flush. Waits for a batch the writer
+     * is still writing, so that nothing is written twice or after the client is closed.
+     */
+    @Override
+    public void close() {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(flushIntervalMs * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush(System.currentTimeMillis());
+        writePending();
+        near.close();
+        client.close();
+    }
+
+    /**
+     * Serializes states of trips accessed since the previous flush for the writer
+     */
+    void flush(long nowMs) {
+        for (String tripId : dirty) {
+            final byte[] encoded = near.peekEncoded(tripId);
+            if (encoded != null) {
+                pending.put(keyPrefix + tripId, encoded);
+            }
+        }
+        dirty.clear();
+        lastFlushMs = nowMs;
+    }
+
+    /**
+     * Writes pending states in batches. Invoked by the writer thread, and on close
+     */
+    void writePending() {
+        synchronized (writeLock) {
+            Map<String, byte[]> batch = new HashMap<>();
+            for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+                batch.put(entry.getKey(), entry.getValue());
+                if (batch.size() >= maxBatchSize) {
+                    if (!write(batch)) {
+                        return;
+                    }
+                    batch = new HashMap<>();
+                }
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+            }
+        }
+    }
+
+    private boolean write(Map<String, byte[]> batch) {
+        try {
+            client.setAll(batch, ttlMs);
+        } catch (RuntimeException e) {
+            //States stay pending and are retried on next round
+            writeFailures.increment();
+            log.warn("Failed to write {} trip states to shared store", batch.size(), e);
+            return false;
+        }
+        //Keep states that were serialized again while we were writing
+        batch.forEach(pending::remove);
+        writtenStates.add(batch.size());
+        writtenBatches.increment();
+        return true;
+    }
+
+    private void writeLoop() {
+        while (running) {
+            try {
+                Thread.sleep(flushIntervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            writePending();
+        }
+    }
+
+    private void flushDirty() {
+        if (!dirty.isEmpty()) {
+            flush(System.currentTimeMillis());
+        }
+    }
+
+    private void writeBackIfDirty(String tripId, TripState state) {
+        if (dirty.remove(tripId)) {
+            pending.put(keyPrefix + tripId, TripStateCodec.encode(state));
+        }
+    }
+
+    private TripState readShared(String tripId) {
+        final String key = keyPrefix + tripId;
+        //Our own latest write might not have reached the shared store yet
+        byte[] encoded = pending.get(key);
+        if (encoded == null) {
+            final long startNanos = System.nanoTime();
+            try {
+                encoded = client.get(key);
+            } catch (RuntimeException e) {
+                readFailures.increment();
+                log.warn("Failed to read state of trip {} from shared store", tripId, e);
+                return null;
+            } finally {
+                readLatencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos), MAX_READ_LATENCY_US));
+            }
+        }
+        if (encoded == null) {
+            sharedMisses.increment();
+            return null;
+        }
+        sharedHits.increment();
+        return TripStateCodec.decode(encoded, interner);
+    }
+
+    /**
+     * @return lookups served from the near-cache
+     */
+    public long getNearHitCount() {
+        return nearHits.sum();
+    }
+
+    /**
+     * @return lookups that missed the near-cache and were found from the shared store
+     */
+    public long getSharedHitCount() {
+        return sharedHits.sum();
+    }
+
+    /**
+     * @return lookups of trips that were in neither
+     */
+    public long getSharedMissCount() {
+        return sharedMisses.sum();
+    }
+
+    public long getReadFailureCount() {
+        return readFailures.sum();
+    }
+
+    public long getWrittenStateCount() {
+        return writtenStates.sum();
+    }
+
+    public long getWrittenBatchCount() {
+        return writtenBatches.sum();
+    }
+
+    public long getWriteFailureCount() {
+        return writeFailures.sum();
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return histogram of shared store read latencies in microseconds since the previous call
+     */
+    public synchronized Histogram takeReadLatencies() {
+        intervalReadLatencies = readLatencies.getIntervalHistogram(intervalReadLatencies);
+        return intervalReadLatencies.copy();
+    }
+
+    /**
+     * Logs counters and read latency percentiles since the previous report
+     */
+    public void report() {
+        final Histogram latencies = takeReadLatencies();
+        log.info("Shared trip state: {} near-cache hits, {} shared hits, {} misses, {} read failures. Wrote {} states in {} batches, " +
+                        "{} write failures, {} pending. Read latency p50 {} us, p99 {} us, max {} us of {} reads since previous report",
+                getNearHitCount(), getSharedHitCount(), getSharedMissCount(), getReadFailureCount(), getWrittenStateCount(),
+                getWrittenBatchCount(), getWriteFailureCount(), getPendingCount(),
+                latencies.getValueAtPercentile(50), latencies.getValueAtPercentile(99), latencies.getMaxValue(), latencies.getTotalCount());
+    }
+}
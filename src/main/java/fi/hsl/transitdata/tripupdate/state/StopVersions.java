@@ -0,0 +1,75 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import java.util.Arrays;
+
+/**
+ * Version of the latest applied arrival and departure estimate for each stop of a trip.
+ *
+ * Version is the last modified time of the estimate in the source system, with Pulsar event time as tiebreaker.
+ * Stored in a flat long[] indexed by stop sequence, which is small and dense within a journey.
+ */
+public class StopVersions {
+    //Stop sequences beyond this are not guarded, so that a bogus value can't make us allocate a huge array
+    static final int MAX_STOP_SEQUENCE = 1000;
+
+    //last modified and event time, for both arrival and departure
+    private static final int SLOTS_PER_STOP = 4;
+    private static final long UNSET = Long.MIN_VALUE;
+    private static final long[] EMPTY = new long[0];
+
+    public enum Result {
+        NEWER,
+        DUPLICATE,
+        STALE
+    }
+
+    private long[] versions = EMPTY;
+
+    /**
+     * Compares the estimate to the latest one applied for the same stop and type, and records it as the latest if it is newer.
+     *
+     * @return NEWER if the estimate should be applied, otherwise whether it's the same version we already hold or an older one
+     */
+    public Result advance(int stopSequence, boolean departure, long lastModifiedMs, long eventTimeMs) {
+        if (stopSequence < 0 || stopSequence > MAX_STOP_SEQUENCE) {
+            return Result.NEWER;
+        }
+        final int index = stopSequence * SLOTS_PER_STOP + (departure ? 2 : 0);
+        if (index >= versions.length) {
+            grow(stopSequence);
+        }
+        final long latestModifiedMs = versions[index];
+        if (latestModifiedMs != UNSET) {
+            final int comparison = latestModifiedMs != lastModifiedMs ?
+                    Long.compare(lastModifiedMs, latestModifiedMs) :
+                    Long.compare(eventTimeMs, versions[index + 1]);
+            if (comparison < 0) {
+                return Result.STALE;
+            } else if (comparison == 0) {
+                return Result.DUPLICATE;
+            }
+        }
+        versions[index] = lastModifiedMs;
+        versions[index + 1] = eventTimeMs;
+        return Result.NEWER;
+    }
+
+    /**
+     * @return raw versions for serialization, not to be modified
+     */
+    long[] toArray() {
+        return versions;
+    }
+
+    void restore(long[] versions) {
+        this.versions = versions;
+    }
+
+    private void grow(int stopSequence) {
+        final int oldLength = versions.length;
+        //Leave some room for the following stops so that we don't grow on every stop of a new trip
+        final int newLength = Math.min(Math.max(stopSequence + 1, oldLength / SLOTS_PER_STOP * 2), MAX_STOP_SEQUENCE + 1) * SLOTS_PER_STOP;
+        versions = Arrays.copyOf(versions, newLength);
+        Arrays.fill(versions, oldLength, newLength, UNSET);
+    }
+}
@@ -0,0 +1,67 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, thread-safe pool of canonical String instances.
+ *
+ * Cached trip state holds the same stop, route and date values over and over again, each decoded separately from
+ * its own protobuf message. Interning them when state is created lets all trips share one instance per distinct value.
+ *
+ * When the pool is full it is cleared and filled again from scratch. Strings handed out earlier stay valid,
+ * they just stop being shared with the ones interned after the reset. This keeps f.ex. past operating days
+ * from piling up forever.
+ */
+public class StringInterner {
+    private final ConcurrentHashMap<String, String> pool;
+    private final int maxSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder resets = new LongAdder();
+
+    /**
+     * @param maxSize maximum amount of distinct values, zero disables interning altogether
+     */
+    public StringInterner(int maxSize) {
+        this.maxSize = maxSize;
+        this.pool = new ConcurrentHashMap<>(Math.min(Math.max(maxSize, 16), 4096));
+    }
+
+    public static StringInterner disabled() {
+        return new StringInterner(0);
+    }
+
+    public String intern(String value) {
+        if (value == null || maxSize == 0) {
+            return value;
+        }
+        String canonical = pool.get(value);
+        if (canonical != null) {
+            hits.increment();
+            return canonical;
+        }
+        if (pool.size() >= maxSize) {
+            pool.clear();
+            resets.increment();
+        }
+        canonical = pool.putIfAbsent(value, value);
+        return canonical != null ? canonical : value;
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    public int size() {
+        return pool.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getResetCount() {
+        return resets.sum();
+    }
+}
@@ -0,0 +1,217 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Keeps hot trips on heap and spills the rest to a memory-mapped file.
+ *
+ * On maintenance at most every SPILL_INTERVAL_MS, trips that have been idle for longer than idleThresholdMs and trips whose first stop is more
+ * than futureHorizonMs ahead are spilled to the file. A spilled trip is promoted back to heap when it's accessed again.
+ *
+ * Hits, misses and promotions are counted, and promotion latency is recorded into a histogram. Counters and the histogram
+ * can be read from any thread, otherwise not thread-safe.
+ */
+public class TieredTripStateStore implements TripStateStore {
+    private static final Logger log = LoggerFactory.getLogger(TieredTripStateStore.class);
+
+    //Up to a second with microsecond precision, larger values are clamped
+    static final long MAX_PROMOTION_LATENCY_US = 1000000;
+    //Spilling scans all trips on heap, so it's not done for every message
+    static final long SPILL_INTERVAL_MS = 60000;
+
+    private final TripIndex<TripState> heap = new TripIndex<>();
+    private final MappedTripStateStore spilled;
+    private final long idleThresholdMs;
+    private final long futureHorizonMs;
+    private long lastSpillMs = Long.MIN_VALUE;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder promotions = new LongAdder();
+    private final LongAdder spills = new LongAdder();
+    private final Recorder promotionLatencies = new Recorder(MAX_PROMOTION_LATENCY_US, 2);
+    private Histogram intervalPromotionLatencies;
+
+    /**
+     * @param spilled         store for spilled trips, accessed only through this store
+     * @param idleThresholdMs trips not accessed within this time are spilled
+     * @param futureHorizonMs trips with first stop further than this in the future are spilled
+     */
+    public TieredTripStateStore(MappedTripStateStore spilled, long idleThresholdMs, long futureHorizonMs) {
+        this.spilled = spilled;
+        this.idleThresholdMs = idleThresholdMs;
+        this.futureHorizonMs = futureHorizonMs;
+    }
+
+    @Override
+    public TripState get(String tripId) {
+        TripState state = heap.get(tripId);
+        if (state != null) {
+            hits.increment();
+            return state;
+        }
+        final long startNanos = System.nanoTime();
+        state = spilled.remove(tripId);
+        if (state == null) {
+            misses.increment();
+            return null;
+        }
+        heap.put(tripId, state);
+        promotions.increment();
+        promotionLatencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos), MAX_PROMOTION_LATENCY_US));
+        return state;
+    }
+
+    /**
+     * Spilled states are read from the file without promoting them
+     */
+    @Override
+    public byte[] peekEncoded(String tripId) {
+        final TripState state = heap.get(tripId);
+        return state != null ? TripStateCodec.encode(state) : spilled.peekEncoded(tripId);
+    }
+
+    @Override
+    public void put(String tripId, TripState state) {
+        spilled.remove(tripId);
+        heap.put(tripId, state);
+    }
+
+    @Override
+    public TripState remove(String tripId) {
+        final TripState state = heap.remove(tripId);
+        return state != null ? state : spilled.remove(tripId);
+    }
+
+    @Override
+    public TripState computeIfAbsent(String tripId, Function<String, TripState> factory) {
+        TripState state = get(tripId);
+        if (state == null) {
+            state = factory.apply(tripId);
+            heap.put(tripId, state);
+        }
+        return state;
+    }
+
+    @Override
+    public int size() {
+        return heap.size() + spilled.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, ? super TripState> consumer) {
+        heap.forEach(consumer);
+        spilled.forEach(consumer);
+    }
+
+    @Override
+    public void forEachSummary(BiConsumer<String, ? super TripStateSummary> consumer) {
+        heap.forEach(consumer);
+        spilled.forEachSummary(consumer);
+    }
+
+    @Override
+    public int removeIf(Predicate<? super TripStateSummary> predicate) {
+        return heap.removeIf(predicate) + spilled.removeIf(predicate);
+    }
+
+    @Override
+    public int removeEntriesIf(BiPredicate<String, ? super TripStateSummary> predicate) {
+        return heap.removeEntriesIf(predicate) + spilled.removeEntriesIf(predicate);
+    }
+
+    /**
+     * Spills idle and future trips
+     */
+    @Override
+    public void maintain(long nowMs) {
+        if (lastSpillMs != Long.MIN_VALUE && nowMs - lastSpillMs < SPILL_INTERVAL_MS) {
+            return;
+        }
+        lastSpillMs = nowMs;
+        final long idleBeforeMs = nowMs - idleThresholdMs;
+        final long futureAfterSecs = (nowMs + futureHorizonMs) / 1000;
+        final int spilledCount = heap.removeEntriesIf((tripId, state) -> {
+            if (state.getLastAccessMs() < idleBeforeMs || state.getFirstStopTimeSecs() > futureAfterSecs) {
+                spilled.spill(tripId, state);
+                return true;
+            }
+            return false;
+        });
+        spills.add(spilledCount);
+        if (spilledCount > 0) {
+            log.debug("Spilled {} trips, {} on heap and {} spilled using {} bytes", spilledCount, heap.size(), spilled.size(),
+                    spilled.getStorageBytes());
+        }
+    }
+
+    @Override
+    public long getStorageBytes() {
+        return spilled.getStorageBytes();
+    }
+
+    @Override
+    public void close() {
+        heap.clear();
+        spilled.close();
+    }
+
+    public int getHeapSize() {
+        return heap.size();
+    }
+
+    public int getSpilledSize() {
+        return spilled.size();
+    }
+
+    /**
+     * @return lookups of trips that were on heap
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return lookups of trips that were in neither tier
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getPromotionCount() {
+        return promotions.sum();
+    }
+
+    public long getSpillCount() {
+        return spills.sum();
+    }
+
+    /**
+     * @return histogram of promotion latencies in microseconds since the previous call
+     */
+    public synchronized Histogram takePromotionLatencies() {
+        intervalPromotionLatencies = promotionLatencies.getIntervalHistogram(intervalPromotionLatencies);
+        return intervalPromotionLatencies.copy();
+    }
+
+    /**
+     * Logs tier sizes, counters and promotion latency percentiles since the previous report
+     */
+    public void report() {
+        final Histogram latencies = takePromotionLatencies();
+        log.info("Trip state tiers: {} on heap, {} spilled using {} bytes. {} hits, {} misses, {} promotions, {} spills in total. " +
+                        "Promotion latency p50 {} us, p99 {} us, max {} us of {} promotions since previous report",
+                heap.size(), spilled.size(), spilled.getStorageBytes(), getHitCount(), getMissCount(), getPromotionCount(), getSpillCount(),
+                latencies.getValueAtPercentile(50), latencies.getValueAtPercentile(99), latencies.getMaxValue(), latencies.getTotalCount());
+    }
+}
@@ -0,0 +1,134 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Index of per-trip values keyed by trip ID.
+ *
+ * Trip IDs in our feed are mostly numeric DVJ ids, which are stored in a primitive long-keyed map.
+ * Anything else (f.ex. generated IDs for trips outside of static schedule) falls back to a regular HashMap.
+ *
+ * Not thread-safe.
+ */
+public class TripIndex<V> {
+    static final long NOT_NUMERIC = -1;
+
+    //Long.MAX_VALUE has 19 digits, anything up to 18 digits is guaranteed to fit
+    private static final int MAX_NUMERIC_LENGTH = 18;
+
+    private final LongObjectHashMap<V> numericIds;
+    private final Map<String, V> otherIds;
+
+    public TripIndex() {
+        this(1024);
+    }
+
+    public TripIndex(int expectedSize) {
+        numericIds = new LongObjectHashMap<>(expectedSize);
+        otherIds = new HashMap<>();
+    }
+
+    public V get(String tripId) {
+        final long numeric = numericKey(tripId);
+        return numeric != NOT_NUMERIC ? numericIds.get(numeric) : otherIds.get(tripId);
+    }
+
+    public V put(String tripId, V value) {
+        final long numeric = numericKey(tripId);
+        return numeric != NOT_NUMERIC ? numericIds.put(numeric, value) : otherIds.put(tripId, value);
+    }
+
+    public V remove(String tripId) {
+        final long numeric = numericKey(tripId);
+        return numeric != NOT_NUMERIC ? numericIds.remove(numeric) : otherIds.remove(tripId);
+    }
+
+    public V computeIfAbsent(String tripId, Function<String, ? extends V> factory) {
+        final long numeric = numericKey(tripId);
+        if (numeric != NOT_NUMERIC) {
+            V value = numericIds.get(numeric);
+            if (value == null) {
+                value = factory.apply(tripId);
+                numericIds.put(numeric, value);
+            }
+            return value;
+        }
+        return otherIds.computeIfAbsent(tripId, factory);
+    }
+
+    public int size() {
+        return numericIds.size() + otherIds.size();
+    }
+
+    public int numericSize() {
+        return numericIds.size();
+    }
+
+    /**
+     * Iterates all entries. Trip IDs of numeric keys are re-created as Strings, so avoid this on the hot path.
+     */
+    public void forEach(BiConsumer<String, ? super V> consumer) {
+        numericIds.forEach((key, value) -> consumer.accept(Long.toString(key), value));
+        otherIds.forEach(consumer);
+    }
+
+    /**
+     * @return amount of removed entries
+     */
+    public int removeIf(Predicate<? super V> predicate) {
+        int removed = numericIds.removeIf(predicate);
+        int before = otherIds.size();
+        otherIds.values().removeIf(predicate);
+        return removed + before - otherIds.size();
+    }
+
+    /**
+     * Like removeIf(), but with access to trip IDs. Trip IDs of numeric keys are re-created as Strings, so avoid this on the hot path.
+     *
+     * @return amount of removed entries
+     */
+    public int removeEntriesIf(BiPredicate<String, ? super V> predicate) {
+        List<String> matching = new ArrayList<>();
+        forEach((tripId, value) -> {
+            if (predicate.test(tripId, value)) {
+                matching.add(tripId);
+            }
+        });
+        matching.forEach(this::remove);
+        return matching.size();
+    }
+
+    public void clear() {
+        numericIds.clear();
+        otherIds.clear();
+    }
+
+    /**
+     * Parses trip ID into a long if it is in canonical numeric form, meaning it can be restored with Long.toString().
+     * IDs with leading zeros, signs or too many digits are not considered numeric.
+     *
+     * @return parsed key, or NOT_NUMERIC
+     */
+    static long numericKey(String tripId) {
+        final int length = tripId.length();
+        if (length == 0 || length > MAX_NUMERIC_LENGTH || (length > 1 && tripId.charAt(0) == '0')) {
+            return NOT_NUMERIC;
+        }
+        long value = 0;
+        for (int n = 0; n < length; n++) {
+            final int digit = tripId.charAt(n) - '0';
+            if (digit < 0 || digit > 9) {
+                return NOT_NUMERIC;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
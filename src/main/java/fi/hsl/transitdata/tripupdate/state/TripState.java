@@ -0,0 +1,111 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import com.google.transit.realtime.GtfsRealtime;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Everything we remember about a single trip between messages.
+ */
+public class TripState implements TripStateSummary {
+    public static final long NO_STOP_TIME = -1;
+
+    //Approximate retained heap per trip (TripUpdate, TripDescriptor, map and this object itself)
+    //and per stop (raw and cleaned StopTimeUpdate with their events, map entry, versions). Calibrated with FootprintReport.
+    public static final int BASE_WEIGHT_BYTES = 600;
+    public static final int STOP_WEIGHT_BYTES = 290;
+
+    //one estimate/event (StopTimeUpdate) for each stop (identified by stopSequence-Integer).
+    //TreeMap keeps its entries sorted according to the natural ordering of its keys.
+    private final TreeMap<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate> stopTimeUpdates = new TreeMap<>();
+    //the full TripUpdate containing all StopTimeUpdates, null until first one is built
+    private GtfsRealtime.TripUpdate tripUpdate;
+    //whether the trip is included in static schedule (so that correct schedule relationship can be restored in case of cancellation-of-cancellation)
+    private GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship;
+    //version of the latest applied estimate per stop, for discarding stale and redelivered ones
+    private final StopVersions stopVersions = new StopVersions();
+
+    private long lastAccessMs;
+
+    /**
+     * Restores state from the latest TripUpdate of the trip, f.ex. published by another instance.
+     *
+     * StopTimeUpdates can only be restored if they have their stop sequence. It's removed from the TripUpdates we publish,
+     * so from those only the trip itself (schedule relationship and cancellation) is restored and stops are rebuilt
+     * from the following estimates. Versions of the estimates are not published either, so the next estimate for each
+     * stop is always applied.
+     */
+    public static TripState seededFrom(GtfsRealtime.TripUpdate tripUpdate) {
+        TripState state = new TripState();
+        for (GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate : tripUpdate.getStopTimeUpdateList()) {
+            if (stopTimeUpdate.hasStopSequence()) {
+                state.stopTimeUpdates.put(stopTimeUpdate.getStopSequence(), stopTimeUpdate);
+            }
+        }
+        state.tripUpdate = tripUpdate;
+        final GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship = tripUpdate.getTrip().getScheduleRelationship();
+        if (scheduleRelationship == GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED
+                || scheduleRelationship == GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED) {
+            state.scheduleRelationship = scheduleRelationship;
+        }
+        return state;
+    }
+
+    public Map<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate> getStopTimeUpdates() {
+        return stopTimeUpdates;
+    }
+
+    public GtfsRealtime.TripUpdate getTripUpdate() {
+        return tripUpdate;
+    }
+
+    public void setTripUpdate(GtfsRealtime.TripUpdate tripUpdate) {
+        this.tripUpdate = tripUpdate;
+    }
+
+    public GtfsRealtime.TripDescriptor.ScheduleRelationship getScheduleRelationship() {
+        return scheduleRelationship;
+    }
+
+    public void setScheduleRelationship(GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship) {
+        this.scheduleRelationship = scheduleRelationship;
+    }
+
+    public StopVersions getStopVersions() {
+        return stopVersions;
+    }
+
+    @Override
+    public long getWeightBytes() {
+        return BASE_WEIGHT_BYTES + (long) stopTimeUpdates.size() * STOP_WEIGHT_BYTES;
+    }
+
+    @Override
+    public long getLastStopTimeSecs() {
+        return stopTimeUpdates.isEmpty() ? NO_STOP_TIME : stopTimeSecs(stopTimeUpdates.lastEntry().getValue());
+    }
+
+    @Override
+    public long getFirstStopTimeSecs() {
+        return stopTimeUpdates.isEmpty() ? NO_STOP_TIME : stopTimeSecs(stopTimeUpdates.firstEntry().getValue());
+    }
+
+    private static long stopTimeSecs(GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate) {
+        if (stopTimeUpdate.hasDeparture()) {
+            return stopTimeUpdate.getDeparture().getTime();
+        } else if (stopTimeUpdate.hasArrival()) {
+            return stopTimeUpdate.getArrival().getTime();
+        }
+        return NO_STOP_TIME;
+    }
+
+    @Override
+    public long getLastAccessMs() {
+        return lastAccessMs;
+    }
+
+    public void touch(long nowMs) {
+        this.lastAccessMs = nowMs;
+    }
+}
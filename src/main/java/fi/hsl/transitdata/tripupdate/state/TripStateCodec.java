@@ -0,0 +1,140 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import com.google.transit.realtime.GtfsRealtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+
+/**
+ * Serializes TripState for stores that keep it outside of heap.
+ *
+ * Format: last access time, schedule relationship (-1 if none), TripUpdate (length -1 if none),
+ * StopTimeUpdates with their stop sequence keys and finally the stop versions.
+ *
+ * Decoding interns the same values GtfsRtFactory does when building state, so that states read back from storage
+ * share them with the states on heap.
+ */
+final class TripStateCodec {
+    private static final int NONE = -1;
+
+    private TripStateCodec() {}
+
+    static byte[] encode(TripState state) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + state.getStopTimeUpdates().size() * 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(state.getLastAccessMs());
+            out.writeInt(state.getScheduleRelationship() != null ? state.getScheduleRelationship().getNumber() : NONE);
+            writeMessage(out, state.getTripUpdate() != null ? state.getTripUpdate().toByteArray() : null);
+
+            out.writeInt(state.getStopTimeUpdates().size());
+            for (Map.Entry<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate> entry : state.getStopTimeUpdates().entrySet()) {
+                out.writeInt(entry.getKey());
+                writeMessage(out, entry.getValue().toByteArray());
+            }
+
+            final long[] versions = state.getStopVersions().toArray();
+            out.writeInt(versions.length);
+            for (long version : versions) {
+                out.writeLong(version);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            //Can't happen with ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static TripState decode(byte[] encoded) {
+        return decode(encoded, StringInterner.disabled());
+    }
+
+    static TripState decode(byte[] encoded, StringInterner interner) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+            TripState state = new TripState();
+            state.touch(in.readLong());
+            final int scheduleRelationship = in.readInt();
+            if (scheduleRelationship != NONE) {
+                state.setScheduleRelationship(GtfsRealtime.TripDescriptor.ScheduleRelationship.forNumber(scheduleRelationship));
+            }
+            final byte[] tripUpdate = readMessage(in);
+            if (tripUpdate != null) {
+                state.setTripUpdate(intern(GtfsRealtime.TripUpdate.parseFrom(tripUpdate), interner));
+            }
+
+            final int stopCount = in.readInt();
+            for (int n = 0; n < stopCount; n++) {
+                final int stopSequence = in.readInt();
+                state.getStopTimeUpdates().put(stopSequence, intern(GtfsRealtime.TripUpdate.StopTimeUpdate.parseFrom(readMessage(in)), interner));
+            }
+
+            final long[] versions = new long[in.readInt()];
+            for (int n = 0; n < versions.length; n++) {
+                versions[n] = in.readLong();
+            }
+            state.getStopVersions().restore(versions);
+            return state;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to decode trip state", e);
+        }
+    }
+
+    private static void writeMessage(DataOutputStream out, byte[] message) throws IOException {
+        if (message == null) {
+            out.writeInt(NONE);
+        } else {
+            out.writeInt(message.length);
+            out.write(message);
+        }
+    }
+
+    private static byte[] readMessage(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length == NONE) {
+            return null;
+        }
+        byte[] message = new byte[length];
+        in.readFully(message);
+        return message;
+    }
+
+    private static GtfsRealtime.TripUpdate intern(GtfsRealtime.TripUpdate tripUpdate, StringInterner interner) {
+        if (!interner.isEnabled()) {
+            return tripUpdate;
+        }
+        final GtfsRealtime.TripUpdate.Builder builder = tripUpdate.toBuilder();
+        if (builder.hasTrip()) {
+            final GtfsRealtime.TripDescriptor.Builder trip = builder.getTripBuilder();
+            if (trip.hasRouteId()) {
+                trip.setRouteId(interner.intern(trip.getRouteId()));
+            }
+            if (trip.hasStartDate()) {
+                trip.setStartDate(interner.intern(trip.getStartDate()));
+            }
+            if (trip.hasStartTime()) {
+                trip.setStartTime(interner.intern(trip.getStartTime()));
+            }
+        }
+        for (int n = 0; n < builder.getStopTimeUpdateCount(); n++) {
+            final GtfsRealtime.TripUpdate.StopTimeUpdate.Builder stopTimeUpdate = builder.getStopTimeUpdateBuilder(n);
+            if (stopTimeUpdate.hasStopId()) {
+                stopTimeUpdate.setStopId(interner.intern(stopTimeUpdate.getStopId()));
+            }
+        }
+        return builder.build();
+    }
+
+    private static GtfsRealtime.TripUpdate.StopTimeUpdate intern(GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate, StringInterner interner) {
+        if (!interner.isEnabled() || !stopTimeUpdate.hasStopId()) {
+            return stopTimeUpdate;
+        }
+        return stopTimeUpdate.toBuilder().setStopId(interner.intern(stopTimeUpdate.getStopId())).build();
+    }
+}
@@ -0,0 +1,206 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps cached trip state within a heap budget.
+ *
+ * The owner of the state reports every allocation and release of trip state weight. Once the total weight exceeds
+ * the budget, or heap occupancy exceeds the high watermark, state is shed in tiers of decreasing value: every finished
+ * trip, then every trip that has been idle for long, and finally least recently used trips until the weight is back
+ * under the low watermark.
+ *
+ * Heap occupancy is measured from the tenured pools as of the end of the last collection, so that garbage waiting
+ * to be collected doesn't trigger shedding.
+ *
+ * Not thread-safe, expected to be used by the same thread that modifies the trip state.
+ */
+public class TripStateGovernor {
+    private static final Logger log = LoggerFactory.getLogger(TripStateGovernor.class);
+
+    //Shed until weight is below this fraction of the budget, so that we don't end up shedding on every message
+    static final double LOW_WATERMARK = 0.8;
+    static final long HEAP_CHECK_INTERVAL_MS = 1000;
+    //Shedding only shows in heap occupancy after the next GC, so give it time before checking again
+    static final long HEAP_CHECK_BACKOFF_MS = 10000;
+
+    public enum ShedReason {
+        FINISHED,
+        IDLE,
+        LEAST_RECENTLY_USED
+    }
+
+    private final long budgetBytes;
+    private final double heapHighWatermark;
+    private final long idleThresholdMs;
+    private final long finishedGraceMs;
+    private final List<MemoryPoolMXBean> tenuredPools = tenuredPools();
+
+    private long weightBytes;
+    private long nextHeapCheckMs;
+
+    private final Map<ShedReason, LongAdder> shedCounts = new EnumMap<>(ShedReason.class);
+    private final LongAdder budgetTriggers = new LongAdder();
+    private final LongAdder heapTriggers = new LongAdder();
+
+    /**
+     * @param budgetBytes       maximum total weight of trip state
+     * @param heapHighWatermark fraction of max heap, above which state is shed regardless of budget. 1.0 or more disables the check
+     * @param idleThresholdMs   trips not accessed within this time are considered idle
+     * @param finishedGraceMs   trips whose last stop time is further than this in the past are considered finished
+     */
+    public TripStateGovernor(long budgetBytes, double heapHighWatermark, long idleThresholdMs, long finishedGraceMs) {
+        this.budgetBytes = budgetBytes;
+        this.heapHighWatermark = heapHighWatermark;
+        this.idleThresholdMs = idleThresholdMs;
+        this.finishedGraceMs = finishedGraceMs;
+        for (ShedReason reason : ShedReason.values()) {
+            shedCounts.put(reason, new LongAdder());
+        }
+        if (heapHighWatermark < 1.0 && tenuredPools.isEmpty()) {
+            log.warn("No tenured memory pool found, heap high watermark is not checked");
+        }
+    }
+
+    /**
+     * @return budget as fraction of the max heap of this JVM
+     */
+    public static long budgetFromMaxHeap(double maxHeapFraction) {
+        return (long) (Runtime.getRuntime().maxMemory() * maxHeapFraction);
+    }
+
+    public void allocated(long bytes) {
+        weightBytes += bytes;
+    }
+
+    public void released(long bytes) {
+        weightBytes -= bytes;
+    }
+
+    /**
+     * Sheds trip state if we're over the budget or the heap is getting full.
+     *
+     * @return amount of shed trips
+     */
+    public int maybeShed(TripStateStore states, long nowMs) {
+        if (weightBytes > budgetBytes) {
+            budgetTriggers.increment();
+            return shed(states, nowMs, (long) (budgetBytes * LOW_WATERMARK));
+        }
+        if (heapHighWatermark < 1.0 && nowMs >= nextHeapCheckMs) {
+            nextHeapCheckMs = nowMs + HEAP_CHECK_INTERVAL_MS;
+            if (heapOccupancy() > heapHighWatermark) {
+                heapTriggers.increment();
+                nextHeapCheckMs = nowMs + HEAP_CHECK_BACKOFF_MS;
+                return shed(states, nowMs, (long) (Math.min(weightBytes, budgetBytes) * LOW_WATERMARK));
+            }
+        }
+        return 0;
+    }
+
+    int shed(TripStateStore states, long nowMs, long targetBytes) {
+        final long weightBefore = weightBytes;
+        final long finishedBeforeSecs = (nowMs - finishedGraceMs) / 1000;
+        int finished = states.removeIf(state -> {
+            final long lastStopTime = state.getLastStopTimeSecs();
+            if (lastStopTime != TripState.NO_STOP_TIME && lastStopTime < finishedBeforeSecs) {
+                released(state.getWeightBytes());
+                return true;
+            }
+            return false;
+        });
+        shedCounts.get(ShedReason.FINISHED).add(finished);
+
+        int idle = 0;
+        if (weightBytes > targetBytes) {
+            final long idleBeforeMs = nowMs - idleThresholdMs;
+            idle = states.removeIf(state -> {
+                if (state.getLastAccessMs() < idleBeforeMs) {
+                    released(state.getWeightBytes());
+                    return true;
+                }
+                return false;
+            });
+            shedCounts.get(ShedReason.IDLE).add(idle);
+        }
+
+        int leastRecentlyUsed = 0;
+        if (weightBytes > targetBytes) {
+            List<Map.Entry<String, TripStateSummary>> candidates = new ArrayList<>(states.size());
+            states.forEachSummary((tripId, state) -> candidates.add(new AbstractMap.SimpleImmutableEntry<>(tripId, state)));
+            candidates.sort(Comparator.comparingLong(entry -> entry.getValue().getLastAccessMs()));
+
+            for (int n = 0; n < candidates.size() && weightBytes > targetBytes; n++) {
+                final TripStateSummary state = candidates.get(n).getValue();
+                states.remove(candidates.get(n).getKey());
+                released(state.getWeightBytes());
+                leastRecentlyUsed++;
+            }
+            shedCounts.get(ShedReason.LEAST_RECENTLY_USED).add(leastRecentlyUsed);
+        }
+
+        log.info("Shed trip state from {} to {} bytes (budget {}): {} finished, {} idle, {} least recently used trips, {} trips remaining",
+                weightBefore, weightBytes, budgetBytes, finished, idle, leastRecentlyUsed, states.size());
+        return finished + idle + leastRecentlyUsed;
+    }
+
+    /**
+     * @return fraction of max heap used by the tenured pools right after the last collection, 0 before any collection
+     */
+    double heapOccupancy() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : tenuredPools) {
+            final MemoryUsage afterCollection = pool.getCollectionUsage();
+            if (afterCollection != null) {
+                used += afterCollection.getUsed();
+            }
+        }
+        return (double) used / Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * @return heap pools of long-lived objects. Pools of young objects don't support usage thresholds
+     */
+    static List<MemoryPoolMXBean> tenuredPools() {
+        final List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() && pool.isCollectionUsageThresholdSupported()) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    public long getWeightBytes() {
+        return weightBytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public long getShedCount(ShedReason reason) {
+        return shedCounts.get(reason).sum();
+    }
+
+    public long getBudgetTriggerCount() {
+        return budgetTriggers.sum();
+    }
+
+    public long getHeapTriggerCount() {
+        return heapTriggers.sum();
+    }
+}
@@ -0,0 +1,163 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands trip state over between instances sharing a Key_Shared subscription.
+ *
+ * When a key range moves to this instance, trips of that range are seeded from the shared source on first access
+ * within handoffWindowMs instead of starting from empty state. Trips that are first seen later are new to every
+ * instance, so they are not looked up from the source. Trip state of ranges that have moved away is dropped, so that stale state
+ * isn't used if the range later comes back.
+ *
+ * Each handoff is reported once handoffWindowMs has passed since the range was acquired, with the amount of
+ * seeded trips and time spent seeding them.
+ *
+ * Not thread-safe, expected to be used by the same thread that modifies the trip state.
+ */
+public class TripStateHandoff {
+    private static final Logger log = LoggerFactory.getLogger(TripStateHandoff.class);
+
+    private final KeyRangeOwnership ownership;
+    private final TripStateSource source;
+    private final long handoffWindowMs;
+
+    //Handoffs still within their window, by range
+    private final Map<Integer, Handoff> handoffs = new HashMap<>();
+
+    private final LongAdder acquiredRanges = new LongAdder();
+    private final LongAdder releasedRanges = new LongAdder();
+    private final LongAdder seededTrips = new LongAdder();
+    private final LongAdder seedMisses = new LongAdder();
+    private volatile long lastHandoffDurationMs;
+
+    private static class Handoff {
+        final long acquiredMs;
+        int seeded;
+        int misses;
+        long seedNanos;
+        long lastSeededMs;
+
+        Handoff(long acquiredMs) {
+            this.acquiredMs = acquiredMs;
+            this.lastSeededMs = acquiredMs;
+        }
+    }
+
+    public TripStateHandoff(KeyRangeOwnership ownership, TripStateSource source, long handoffWindowMs) {
+        this.ownership = ownership;
+        this.source = source;
+        this.handoffWindowMs = handoffWindowMs;
+    }
+
+    /**
+     * Records a message for the trip, acquiring its key range if we didn't own it yet
+     */
+    public void onMessage(String tripId, long nowMs) {
+        final int range = ownership.rangeOf(tripId);
+        if (ownership.touch(range, nowMs)) {
+            acquiredRanges.increment();
+            handoffs.put(range, new Handoff(nowMs));
+            log.info("Acquired key range [{}, {}], now owning {}/{} ranges", ownership.rangeStart(range), ownership.rangeEnd(range),
+                    ownership.getOwnedCount(), ownership.getRangeCount());
+        }
+    }
+
+    /**
+     * Seeds state of a trip we don't have any state for from the shared source, if its key range was acquired
+     * within handoffWindowMs
+     *
+     * @return seeded state, or empty if the range wasn't acquired recently or the source doesn't know the trip
+     */
+    public Optional<TripState> seed(String tripId, long nowMs) {
+        final Handoff handoff = handoffs.get(ownership.rangeOf(tripId));
+        if (handoff == null || nowMs - handoff.acquiredMs >= handoffWindowMs) {
+            return Optional.empty();
+        }
+
+        final long startNanos = System.nanoTime();
+        final Optional<GtfsRealtime.TripUpdate> maybeTripUpdate = source.latest(tripId);
+        handoff.seedNanos += System.nanoTime() - startNanos;
+        if (!maybeTripUpdate.isPresent()) {
+            seedMisses.increment();
+            handoff.misses++;
+            return Optional.empty();
+        }
+
+        seededTrips.increment();
+        handoff.seeded++;
+        handoff.lastSeededMs = nowMs;
+        return Optional.of(TripState.seededFrom(maybeTripUpdate.get()));
+    }
+
+    /**
+     * Releases ranges that have not received messages lately and reports handoffs whose window has passed.
+     *
+     * @param states trip states, from which states of released ranges are removed
+     * @return weight of the removed states in bytes
+     */
+    public long maintain(TripStateStore states, long nowMs) {
+        handoffs.entrySet().removeIf(entry -> {
+            final Handoff handoff = entry.getValue();
+            if (nowMs - handoff.acquiredMs < handoffWindowMs) {
+                return false;
+            }
+            lastHandoffDurationMs = handoff.lastSeededMs - handoff.acquiredMs;
+            log.info("Handoff of key range [{}, {}] seeded {} trips ({} unknown to source) in {} ms, spending {} ms in lookups",
+                    ownership.rangeStart(entry.getKey()), ownership.rangeEnd(entry.getKey()), handoff.seeded, handoff.misses,
+                    lastHandoffDurationMs, handoff.seedNanos / 1000000);
+            return true;
+        });
+
+        final List<Integer> released = ownership.releaseIdle(nowMs);
+        if (released.isEmpty()) {
+            return 0;
+        }
+        releasedRanges.add(released.size());
+        for (Integer range : released) {
+            handoffs.remove(range);
+        }
+        final long[] releasedWeight = new long[1];
+        final int removed = states.removeEntriesIf((tripId, state) -> {
+            if (!ownership.isOwned(ownership.rangeOf(tripId))) {
+                releasedWeight[0] += state.getWeightBytes();
+                return true;
+            }
+            return false;
+        });
+        log.info("Released {} key ranges without recent messages, dropped state of {} trips, now owning {}/{} ranges",
+                released.size(), removed, ownership.getOwnedCount(), ownership.getRangeCount());
+        return releasedWeight[0];
+    }
+
+    public long getAcquiredRangeCount() {
+        return acquiredRanges.sum();
+    }
+
+    public long getReleasedRangeCount() {
+        return releasedRanges.sum();
+    }
+
+    public long getSeededTripCount() {
+        return seededTrips.sum();
+    }
+
+    public long getSeedMissCount() {
+        return seedMisses.sum();
+    }
+
+    /**
+     * @return time from acquiring a range until its last trip was seeded, for the latest reported handoff
+     */
+    public long getLastHandoffDurationMs() {
+        return lastHandoffDurationMs;
+    }
+}
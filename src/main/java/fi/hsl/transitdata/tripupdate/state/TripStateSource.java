@@ -0,0 +1,15 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import com.google.transit.realtime.GtfsRealtime;
+
+import java.util.Optional;
+
+/**
+ * Shared source of the latest published TripUpdate of each trip, used to seed trip state
+ * when another instance has been processing the trip before us.
+ *
+ * Implementations must be thread-safe.
+ */
+public interface TripStateSource {
+    Optional<GtfsRealtime.TripUpdate> latest(String tripId);
+}
@@ -0,0 +1,99 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Storage of per-trip state, keyed by trip ID.
+ *
+ * States returned by the store can be modified in place: the store is responsible for persisting the changes
+ * if it keeps states anywhere else than on heap. A state is guaranteed to stay live until another trip is accessed,
+ * so callers should look the state up again for every message instead of holding on to it.
+ *
+ * Implementations are not required to be thread-safe, they are used by the same thread that modifies the trip state.
+ */
+public interface TripStateStore extends AutoCloseable {
+
+    /**
+     * @return state of the trip, or null if there is none
+     */
+    TripState get(String tripId);
+
+    /**
+     * Serializes the state without counting as an access, so that it doesn't change which states are kept on heap.
+     *
+     * @return state of the trip encoded with TripStateCodec, or null if there is none
+     */
+    byte[] peekEncoded(String tripId);
+
+    void put(String tripId, TripState state);
+
+    /**
+     * @return removed state, or null if there was none
+     */
+    TripState remove(String tripId);
+
+    TripState computeIfAbsent(String tripId, Function<String, TripState> factory);
+
+    int size();
+
+    /**
+     * Iterates all states. Can be expensive, so avoid this on the hot path.
+     */
+    void forEach(BiConsumer<String, ? super TripState> consumer);
+
+    /**
+     * Iterates summaries of all states, without decoding states kept off heap. Prefer this to forEach() when the summary is enough.
+     */
+    default void forEachSummary(BiConsumer<String, ? super TripStateSummary> consumer) {
+        forEach(consumer);
+    }
+
+    /**
+     * Predicate is tested on summaries, so that states kept off heap don't need to be decoded
+     *
+     * @return amount of removed states
+     */
+    int removeIf(Predicate<? super TripStateSummary> predicate);
+
+    /**
+     * Like removeIf(), but with access to trip IDs. Can be expensive, so avoid this on the hot path.
+     *
+     * @return amount of removed states
+     */
+    int removeEntriesIf(BiPredicate<String, ? super TripStateSummary> predicate);
+
+    /**
+     * Removes states that have not been accessed since accessedBeforeMs.
+     *
+     * @param onExpired invoked for every expired state, before it's removed
+     * @return amount of expired states
+     */
+    default int expire(long accessedBeforeMs, Consumer<? super TripStateSummary> onExpired) {
+        return removeIf(state -> {
+            if (state.getLastAccessMs() < accessedBeforeMs) {
+                onExpired.accept(state);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Invoked by the owner of the state before any state is accessed for the next message. Implementations
+     * are responsible for throttling work that is too expensive to do for every message.
+     */
+    default void maintain(long nowMs) {
+    }
+
+    /**
+     * @return bytes held by the store outside of Java heap, 0 if all states are kept on heap
+     */
+    long getStorageBytes();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,24 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+/**
+ * What is needed of a trip state to decide whether to keep it, such as on expiry and shedding.
+ *
+ * Stores keeping states off heap keep summaries next to their index, so that they can be checked without decoding
+ * the states.
+ */
+public interface TripStateSummary {
+
+    long getWeightBytes();
+
+    /**
+     * @return latest arrival or departure time of the first stop in POSIX seconds, or TripState.NO_STOP_TIME if it doesn't have one
+     */
+    long getFirstStopTimeSecs();
+
+    /**
+     * @return latest arrival or departure time of the last stop in POSIX seconds, or TripState.NO_STOP_TIME if it doesn't have one
+     */
+    long getLastStopTimeSecs();
+
+    long getLastAccessMs();
+}
@@ -1,8 +1,14 @@
 package fi.hsl.transitdata.tripupdate.validators;
 
 import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcome;
 
 public interface ITripUpdateValidator {
 
     boolean validate(GtfsRealtime.TripUpdate tripUpdate);
+
+    /**
+     * @return outcome of messages whose TripUpdate doesn't pass this validator
+     */
+    MessageOutcome getRejectionOutcome();
 }
@@ -1,6 +1,7 @@
 package fi.hsl.transitdata.tripupdate.validators;
 
 import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcome;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,6 +56,11 @@ public class PrematureDeparturesValidator implements ITripUpdateValidator {
         return tripStartTimePosix - firstStopTime <= tripUpdateMinTimeBeforeDeparture;
     }
 
+    @Override
+    public MessageOutcome getRejectionOutcome() {
+        return MessageOutcome.PREMATURE_DEPARTURE;
+    }
+
     long tripStartTimeToPosixTime(GtfsRealtime.TripUpdate tripUpdate) {
 
         String[] tripStartTimeArray = tripUpdate.getTrip().getStartTime().split(":");
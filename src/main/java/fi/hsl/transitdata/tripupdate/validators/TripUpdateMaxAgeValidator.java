@@ -1,21 +1,37 @@
 package fi.hsl.transitdata.tripupdate.validators;
 
 import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcome;
 
+import java.time.Clock;
 import java.util.OptionalLong;
 import java.util.stream.Stream;
 
 public class TripUpdateMaxAgeValidator implements ITripUpdateValidator {
 
     private long tripUpdateMaxAgeInSeconds;
+    private final Clock clock;
 
     public TripUpdateMaxAgeValidator(long tripUpdateMaxAgeInSeconds) {
+        this(tripUpdateMaxAgeInSeconds, Clock.systemUTC());
+    }
+
+    /**
+     * @param clock current time that the age of TripUpdates is compared to
+     */
+    public TripUpdateMaxAgeValidator(long tripUpdateMaxAgeInSeconds, Clock clock) {
         this.tripUpdateMaxAgeInSeconds = tripUpdateMaxAgeInSeconds;
+        this.clock = clock;
     }
 
     @Override
     public boolean validate(GtfsRealtime.TripUpdate tripUpdate) {
-        return validateWithCurrentTime(tripUpdate, System.currentTimeMillis() / 1000);
+        return validateWithCurrentTime(tripUpdate, clock.millis() / 1000);
+    }
+
+    @Override
+    public MessageOutcome getRejectionOutcome() {
+        return MessageOutcome.MAX_AGE_EXCEEDED;
     }
 
     boolean validateWithCurrentTime(GtfsRealtime.TripUpdate tripUpdate, long currentPosixTime) {
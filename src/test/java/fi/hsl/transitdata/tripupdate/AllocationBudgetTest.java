@@ -0,0 +1,143 @@
+package fi.hsl.transitdata.tripupdate;
+
+import com.google.transit.realtime.GtfsRealtime;
+import com.typesafe.config.ConfigFactory;
+import fi.hsl.common.pulsar.PulsarApplicationContext;
+import fi.hsl.common.transitdata.MockDataUtils;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.application.MessageRouter;
+import fi.hsl.transitdata.tripupdate.gtfsrt.GtfsRtValidator;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import org.apache.pulsar.client.api.Message;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Fails when the hot path allocates more per message than its budget in allocation-budgets.properties.
+ *
+ * Each path is warmed up before measuring, so that the JIT has had a chance to eliminate allocations it can.
+ */
+public class AllocationBudgetTest {
+    private static final String BUDGETS = "/allocation-budgets.properties";
+    private static final int TRIPS = 500;
+    private static final int STOPS = 20;
+    private static final int WARM_UP_MESSAGES = 20000;
+    private static final int MEASURED_MESSAGES = 20000;
+
+    private final ZonedDateTime start = ZonedDateTime.now(ZoneId.of("Europe/Helsinki"));
+    private final InternalMessages.StopEstimate[] estimates = estimates(WARM_UP_MESSAGES + MEASURED_MESSAGES);
+
+    @Before
+    public void assumeAllocationsAreCounted() {
+        assumeTrue(AllocationMeter.isSupported());
+    }
+
+    @Test
+    public void testProcessStopEstimate() throws IOException {
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        final double bytesPerMessage = AllocationMeter.bytesPerOperation(WARM_UP_MESSAGES, MEASURED_MESSAGES,
+                n -> processor.processStopEstimate(estimates[n], n));
+        assertWithinBudget("processStopEstimate", bytesPerMessage);
+    }
+
+    @Test
+    public void testCleanStopTimeUpdates() throws IOException {
+        //Raw StopTimeUpdates of every trip with all of its stops estimated
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        final List<List<GtfsRealtime.TripUpdate.StopTimeUpdate>> rawStopTimeUpdates = new ArrayList<>();
+        final List<GtfsRealtime.TripUpdate.StopTimeUpdate> latest = new ArrayList<>();
+        for (int n = 0; n < TRIPS * STOPS; n++) {
+            processor.applyStopEstimate(estimates[n], n);
+        }
+        for (int n = TRIPS * (STOPS - 1); n < TRIPS * STOPS; n++) {
+            final GtfsRealtime.TripUpdate raw = processor.buildRawTripUpdate(estimates[n]).get();
+            rawStopTimeUpdates.add(raw.getStopTimeUpdateList());
+            latest.add(raw.getStopTimeUpdate(raw.getStopTimeUpdateCount() - 1));
+        }
+
+        final double bytesPerMessage = AllocationMeter.bytesPerOperation(WARM_UP_MESSAGES, MEASURED_MESSAGES,
+                n -> GtfsRtValidator.cleanStopTimeUpdates(rawStopTimeUpdates.get(n % TRIPS), latest.get(n % TRIPS)));
+        assertWithinBudget("cleanStopTimeUpdates", bytesPerMessage);
+    }
+
+    @Test
+    public void testHandleMessage() throws Exception {
+        final List<byte[]> sent = new LinkedList<>();
+        final PulsarApplicationContext context = new PulsarApplicationContext();
+        context.setConfig(ConfigFactory.parseString("cancellationLane.enabled=false")
+                .withFallback(ConfigFactory.parseResources("environment.conf"))
+                .resolve());
+        context.setConsumer(PulsarMocks.consumer(new LinkedList<>(), null));
+        context.setProducer(PulsarMocks.producer(sent));
+        final MessageRouter router = new MessageRouter(context);
+
+        final long now = start.toInstant().toEpochMilli();
+        final Message[] messages = new Message[estimates.length];
+        for (int n = 0; n < estimates.length; n++) {
+            messages[n] = PulsarMocks.allocationFreeMessage(estimates[n], ProtobufSchema.InternalMessagesStopEstimate,
+                    estimates[n].getTripInfo().getTripId(), now);
+        }
+
+        final double bytesPerMessage = AllocationMeter.bytesPerOperation(WARM_UP_MESSAGES, MEASURED_MESSAGES, n -> {
+            try {
+                router.handleMessage(messages[n]);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue("TripUpdates should have been published", sent.size() > MEASURED_MESSAGES);
+        assertWithinBudget("handleMessage", bytesPerMessage);
+    }
+
+    /**
+     * Arrival estimates for the stops of each trip in turn, each one newer than the previous estimate of the stop
+     */
+    private InternalMessages.StopEstimate[] estimates(int count) {
+        final long startMs = start.toInstant().toEpochMilli();
+        final InternalMessages.StopEstimate template = MockDataUtils.mockStopEstimate(InternalMessages.StopEstimate.Type.ARRIVAL, startMs);
+        final InternalMessages.StopEstimate[] estimates = new InternalMessages.StopEstimate[count];
+        for (int n = 0; n < count; n++) {
+            final int trip = n % TRIPS;
+            final int stopSequence = n / TRIPS % STOPS + 1;
+            final long stopTimeMs = startMs + stopSequence * 60000L;
+            estimates[n] = template.toBuilder()
+                    .setTripInfo(template.getTripInfo().toBuilder()
+                            .setTripId(Integer.toString(trip + 1))
+                            .setRouteId("1014")
+                            .setDirectionId(1)
+                            .setOperatingDay(start.format(DateTimeFormatter.BASIC_ISO_DATE))
+                            .setStartTime(start.format(DateTimeFormatter.ofPattern("HH:mm:ss"))))
+                    .setStopId(Integer.toString(1000 + stopSequence))
+                    .setStopSequence(stopSequence)
+                    .setEstimatedTimeUtcMs(stopTimeMs)
+                    .setScheduledTimeUtcMs(stopTimeMs)
+                    .setLastModifiedUtcMs(startMs - count + n)
+                    .build();
+        }
+        return estimates;
+    }
+
+    private static void assertWithinBudget(String path, double bytesPerMessage) throws IOException {
+        final Properties budgets = new Properties();
+        try (InputStream input = AllocationBudgetTest.class.getResourceAsStream(BUDGETS)) {
+            budgets.load(input);
+        }
+        final long budget = Long.parseLong(budgets.getProperty(path));
+        assertTrue(String.format("%s allocated %.0f bytes per message, budget is %d", path, bytesPerMessage, budget),
+                bytesPerMessage <= budget);
+    }
+}
@@ -0,0 +1,38 @@
+package fi.hsl.transitdata.tripupdate;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.IntConsumer;
+
+/**
+ * Measures bytes allocated by the current thread with the allocation counter of HotSpot
+ */
+public class AllocationMeter {
+    private AllocationMeter() {}
+
+    /**
+     * @return false if the JVM doesn't count allocations per thread, in which case tests should be skipped
+     */
+    public static boolean isSupported() {
+        return ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).isThreadAllocatedMemorySupported();
+    }
+
+    /**
+     * Runs the operation warmUp times to let the JIT compile it, and then measured times counting allocations
+     *
+     * @param operation receives the index of the invocation, so that each one can use inputs of its own
+     * @return bytes allocated per measured invocation
+     */
+    public static double bytesPerOperation(int warmUp, int measured, IntConsumer operation) {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        for (int n = 0; n < warmUp; n++) {
+            operation.accept(n);
+        }
+        final long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        for (int n = warmUp; n < warmUp + measured; n++) {
+            operation.accept(n);
+        }
+        return (double) (threads.getThreadAllocatedBytes(threadId) - allocatedBefore) / measured;
+    }
+}
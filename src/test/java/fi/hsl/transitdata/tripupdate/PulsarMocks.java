@@ -0,0 +1,286 @@
+package fi.hsl.transitdata.tripupdate;
+
+import com.google.protobuf.AbstractMessageLite;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.TypedMessageBuilder;
+import org.apache.pulsar.common.api.EncryptionContext;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Minimal in-memory stand-ins for Pulsar messages and consumers, implementing only what the processing code uses.
+ */
+public class PulsarMocks {
+    public static final String TOPIC = "persistent://public/default/test";
+
+    private PulsarMocks() {}
+
+    public static Message stopEstimateMessage(InternalMessages.StopEstimate estimate, long publishTimeMs) {
+        return message(estimate, TransitdataProperties.ProtobufSchema.InternalMessagesStopEstimate,
+                estimate.getTripInfo().getTripId(), publishTimeMs);
+    }
+
+    public static Message tripCancellationMessage(InternalMessages.TripCancellation cancellation, long publishTimeMs) {
+        return message(cancellation, TransitdataProperties.ProtobufSchema.InternalMessagesTripCancellation,
+                cancellation.getTripId(), publishTimeMs);
+    }
+
+    /**
+     * @return message with the given payload and schema, with both event and publish time set to publishTimeMs
+     */
+    public static Message message(AbstractMessageLite payload, TransitdataProperties.ProtobufSchema schema, String key, long publishTimeMs) {
+        final byte[] data = payload.toByteArray();
+        return (Message) Proxy.newProxyInstance(PulsarMocks.class.getClassLoader(), new Class[] { Message.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getData":
+                            return data;
+                        case "getKey":
+                            return key;
+                        case "hasKey":
+                            return key != null;
+                        case "getProperty":
+                            return TransitdataProperties.KEY_PROTOBUF_SCHEMA.equals(args[0]) ? schema.toString() : null;
+                        case "getProperties":
+                            return Collections.singletonMap(TransitdataProperties.KEY_PROTOBUF_SCHEMA, schema.toString());
+                        case "hasProperty":
+                            return TransitdataProperties.KEY_PROTOBUF_SCHEMA.equals(args[0]);
+                        case "getEventTime":
+                        case "getPublishTime":
+                            return publishTimeMs;
+                        case "getTopicName":
+                            return TOPIC;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "Message[" + key + "]";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * @return message like message(), but implemented without a proxy, so that reading it doesn't allocate anything
+     */
+    public static Message allocationFreeMessage(AbstractMessageLite payload, TransitdataProperties.ProtobufSchema schema, String key, long publishTimeMs) {
+        return new FixedMessage(payload.toByteArray(), schema.toString(), key, publishTimeMs);
+    }
+
+    private static class FixedMessage implements Message<byte[]> {
+        private final byte[] data;
+        private final String schema;
+        private final String key;
+        private final long publishTimeMs;
+
+        FixedMessage(byte[] data, String schema, String key, long publishTimeMs) {
+            this.data = data;
+            this.schema = schema;
+            this.key = key;
+            this.publishTimeMs = publishTimeMs;
+        }
+
+        @Override
+        public Map<String, String> getProperties() {
+            return Collections.singletonMap(TransitdataProperties.KEY_PROTOBUF_SCHEMA, schema);
+        }
+
+        @Override
+        public boolean hasProperty(String name) {
+            return TransitdataProperties.KEY_PROTOBUF_SCHEMA.equals(name);
+        }
+
+        @Override
+        public String getProperty(String name) {
+            return TransitdataProperties.KEY_PROTOBUF_SCHEMA.equals(name) ? schema : null;
+        }
+
+        @Override
+        public byte[] getData() {
+            return data;
+        }
+
+        @Override
+        public byte[] getValue() {
+            return data;
+        }
+
+        @Override
+        public long getPublishTime() {
+            return publishTimeMs;
+        }
+
+        @Override
+        public long getEventTime() {
+            return publishTimeMs;
+        }
+
+        @Override
+        public boolean hasKey() {
+            return key != null;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public String toString() {
+            return "Message[" + key + "]";
+        }
+
+        @Override
+        public MessageId getMessageId() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getSequenceId() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getProducerName() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean hasBase64EncodedKey() {
+            return false;
+        }
+
+        @Override
+        public byte[] getKeyBytes() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean hasOrderingKey() {
+            return false;
+        }
+
+        @Override
+        public byte[] getOrderingKey() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getTopicName() {
+            return TOPIC;
+        }
+
+        @Override
+        public Optional<EncryptionContext> getEncryptionCtx() {
+            return Optional.empty();
+        }
+
+        @Override
+        public int getRedeliveryCount() {
+            return 0;
+        }
+
+        @Override
+        public byte[] getSchemaVersion() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isReplicated() {
+            return false;
+        }
+
+        @Override
+        public String getReplicatedFrom() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * @param sent receives payloads of the sent messages, may be null. Sends complete right away
+     */
+    @SuppressWarnings("unchecked")
+    public static Producer<byte[]> producer(Collection<byte[]> sent) {
+        final TypedMessageBuilder<byte[]> builder = (TypedMessageBuilder<byte[]>) Proxy.newProxyInstance(
+                PulsarMocks.class.getClassLoader(), new Class[] { TypedMessageBuilder.class },
+                new InvocationHandler() {
+                    private byte[] value;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "value":
+                                value = (byte[]) args[0];
+                                return proxy;
+                            case "sendAsync":
+                                if (sent != null) {
+                                    sent.add(value);
+                                }
+                                return CompletableFuture.completedFuture(null);
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            default:
+                                //Rest of the builder methods only set metadata
+                                return proxy;
+                        }
+                    }
+                });
+        return (Producer<byte[]>) Proxy.newProxyInstance(PulsarMocks.class.getClassLoader(), new Class[] { Producer.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "newMessage":
+                            //Messages are sent one at a time, so the builder can be reused
+                            return builder;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * @param backlog      messages returned by receive(), null once empty
+     * @param acknowledged receives the acknowledged messages, may be null
+     */
+    @SuppressWarnings("unchecked")
+    public static Consumer<byte[]> consumer(Queue<Message> backlog, Collection<Message> acknowledged) {
+        return (Consumer<byte[]>) Proxy.newProxyInstance(PulsarMocks.class.getClassLoader(), new Class[] { Consumer.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "receive":
+                            return backlog.poll();
+                        case "acknowledgeAsync":
+                            if (acknowledged != null) {
+                                acknowledged.add((Message) args[0]);
+                            }
+                            return CompletableFuture.completedFuture(null);
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
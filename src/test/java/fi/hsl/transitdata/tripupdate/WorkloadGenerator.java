@@ -0,0 +1,469 @@
+package fi.hsl.transitdata.tripupdate;
+
+import com.google.protobuf.AbstractMessageLite;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.apache.pulsar.client.api.Message;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Generates realistic traffic of a fleet of vehicles, for benchmarks and in-process pipeline tests.
+ *
+ * Each vehicle drives trips of one mode back to back, with a layover in between. While a trip is running, estimates
+ * for its next few stops are published every estimate interval, with a delay that drifts during the trip. Some trips
+ * are cancelled before they depart, and some of those cancellations are cancelled in turn before the trip departs.
+ * Trips departing after midnight belong to the previous operating day, with start times past 24:00:00.
+ *
+ * Output is deterministic for the seed and settings. Vehicles are generated independently of each other and merged
+ * in event time order, so only the trips currently running are kept in memory.
+ */
+public class WorkloadGenerator {
+    /**
+     * Modes of transport, with trip lengths, stop spacing and route ids roughly as in the HSL network
+     */
+    public enum Mode {
+        BUS(15, 45, 90000, 400, 0.8),
+        TRAM(20, 32, 75000, 10, 0.12),
+        METRO(15, 25, 120000, 2, 0.08);
+
+        private final int minStops;
+        private final int maxStops;
+        private final long stopSpacingMs;
+        private final int routeCount;
+        private final double defaultShare;
+
+        Mode(int minStops, int maxStops, long stopSpacingMs, int routeCount, double defaultShare) {
+            this.minStops = minStops;
+            this.maxStops = maxStops;
+            this.stopSpacingMs = stopSpacingMs;
+            this.routeCount = routeCount;
+            this.defaultShare = defaultShare;
+        }
+
+        public int getMinStops() {
+            return minStops;
+        }
+
+        public int getMaxStops() {
+            return maxStops;
+        }
+
+        public int getRouteCount() {
+            return routeCount;
+        }
+
+        /**
+         * @param route between 0 and route count
+         */
+        public String routeId(int route) {
+            switch (this) {
+                case TRAM:
+                    return Integer.toString(1001 + route);
+                case METRO:
+                    return "31M" + (route + 1);
+                default:
+                    return Integer.toString(2000 + route);
+            }
+        }
+    }
+
+    /**
+     * Message published by the source systems
+     */
+    public static final class Event {
+        private final long timeMs;
+        private final ProtobufSchema schema;
+        private final String tripId;
+        private final AbstractMessageLite payload;
+
+        Event(long timeMs, ProtobufSchema schema, String tripId, AbstractMessageLite payload) {
+            this.timeMs = timeMs;
+            this.schema = schema;
+            this.tripId = tripId;
+            this.payload = payload;
+        }
+
+        /**
+         * @return event time of the message
+         */
+        public long getTimeMs() {
+            return timeMs;
+        }
+
+        public ProtobufSchema getSchema() {
+            return schema;
+        }
+
+        public String getTripId() {
+            return tripId;
+        }
+
+        /**
+         * @return StopEstimate or TripCancellation, depending on the schema
+         */
+        public AbstractMessageLite getPayload() {
+            return payload;
+        }
+
+        /**
+         * @return Pulsar message keyed by trip ID, with event time of the event
+         */
+        public Message toMessage() {
+            return PulsarMocks.message(payload, schema, tripId, timeMs);
+        }
+    }
+
+    private static final ZoneId ZONE = ZoneId.of("Europe/Helsinki");
+    //Trips departing before this belong to the previous operating day
+    private static final LocalTime OPERATING_DAY_START = LocalTime.of(4, 30);
+    private static final long BASE_DVJ_ID = 7200000000000000L;
+    private static final long TRIPS_PER_VEHICLE = 100000;
+    private static final int NETWORK_STOP_COUNT = 7000;
+    private static final long MIN_LAYOVER_MS = 5 * 60000;
+    private static final long MAX_LAYOVER_MS = 15 * 60000;
+    private static final long DWELL_MS = 20000;
+    //Estimates of a trip are published starting this long before it departs
+    private static final long ESTIMATE_LEAD_MS = 10 * 60000;
+    private static final long CANCELLATION_LEAD_MS = 30 * 60000;
+
+    private final long seed;
+    private int vehicles = 100;
+    private final Map<Mode, Double> modeShares = new EnumMap<>(Mode.class);
+    private final Map<Mode, int[]> tripLengths = new EnumMap<>(Mode.class);
+    private long estimateIntervalMs = 30000;
+    private int stopsAhead = 3;
+    private double arrivalDeparturePairRate = 0.9;
+    private double noDataRate = 0.01;
+    private double skippedRate = 0.005;
+    private double cancellationRate = 0.01;
+    private double cancellationOfCancellationRate = 0.2;
+
+    public WorkloadGenerator(long seed) {
+        this.seed = seed;
+        for (Mode mode : Mode.values()) {
+            modeShares.put(mode, mode.defaultShare);
+            tripLengths.put(mode, new int[] { mode.minStops, mode.maxStops });
+        }
+    }
+
+    /**
+     * @param vehicles amount of vehicles driving at the same time
+     */
+    public void setVehicles(int vehicles) {
+        this.vehicles = vehicles;
+    }
+
+    /**
+     * @param share relative amount of vehicles of the mode, shares don't need to add up to one
+     */
+    public void setModeShare(Mode mode, double share) {
+        modeShares.put(mode, share);
+    }
+
+    /**
+     * @param minStops stops of the shortest trip of the mode
+     * @param maxStops stops of the longest trip of the mode, lengths are spread evenly in between
+     */
+    public void setTripLength(Mode mode, int minStops, int maxStops) {
+        if (minStops < 2 || maxStops < minStops) {
+            throw new IllegalArgumentException("Invalid trip length for " + mode + ": " + minStops + "-" + maxStops);
+        }
+        tripLengths.put(mode, new int[] { minStops, maxStops });
+    }
+
+    /**
+     * @param estimateIntervalMs how often estimates are published for a running trip
+     * @param stopsAhead         amount of upcoming stops estimated each time
+     */
+    public void setEstimateFrequency(long estimateIntervalMs, int stopsAhead) {
+        this.estimateIntervalMs = estimateIntervalMs;
+        this.stopsAhead = stopsAhead;
+    }
+
+    /**
+     * @param arrivalDeparturePairRate fraction of intermediate stops estimated with both an arrival and a departure,
+     *                                 others only have a departure. First stops only have a departure and last stops
+     *                                 only an arrival.
+     */
+    public void setArrivalDeparturePairRate(double arrivalDeparturePairRate) {
+        this.arrivalDeparturePairRate = arrivalDeparturePairRate;
+    }
+
+    /**
+     * @param noDataRate  fraction of stops with status NO_DATA and no estimated time
+     * @param skippedRate fraction of stops with status SKIPPED
+     */
+    public void setStopStatusRates(double noDataRate, double skippedRate) {
+        this.noDataRate = noDataRate;
+        this.skippedRate = skippedRate;
+    }
+
+    /**
+     * @param cancellationRate               fraction of trips cancelled before they depart
+     * @param cancellationOfCancellationRate fraction of cancellations that are cancelled in turn, after which the trip
+     *                                       runs normally
+     */
+    public void setCancellationRates(double cancellationRate, double cancellationOfCancellationRate) {
+        this.cancellationRate = cancellationRate;
+        this.cancellationOfCancellationRate = cancellationOfCancellationRate;
+    }
+
+    /**
+     * @return all events between startMs (inclusive) and endMs (exclusive), in event time order
+     */
+    public List<Event> generate(long startMs, long endMs) {
+        List<Event> events = new ArrayList<>();
+        events(startMs, endMs).forEachRemaining(events::add);
+        return events;
+    }
+
+    /**
+     * @return events between startMs (inclusive) and endMs (exclusive) in event time order, generated as they are
+     * iterated
+     */
+    public Iterator<Event> events(long startMs, long endMs) {
+        final PriorityQueue<Vehicle> queue = new PriorityQueue<>(Math.max(1, vehicles),
+                Comparator.comparingLong((Vehicle vehicle) -> vehicle.pending.peekFirst().timeMs).thenComparingInt(vehicle -> vehicle.index));
+        for (int n = 0; n < vehicles; n++) {
+            Vehicle vehicle = new Vehicle(n, startMs);
+            if (vehicle.fill(startMs, endMs)) {
+                queue.add(vehicle);
+            }
+        }
+        return new Iterator<Event>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public Event next() {
+                final Vehicle vehicle = queue.poll();
+                if (vehicle == null) {
+                    throw new NoSuchElementException();
+                }
+                final Event event = vehicle.pending.pollFirst();
+                if (vehicle.fill(startMs, endMs)) {
+                    queue.add(vehicle);
+                }
+                return event;
+            }
+        };
+    }
+
+    /**
+     * @return start date and start time of a trip departing at the given time, with start times past 24:00:00 for
+     * trips departing after midnight
+     */
+    static String[] startDateAndTime(long departureMs) {
+        final ZonedDateTime departure = Instant.ofEpochMilli(departureMs).atZone(ZONE);
+        LocalDate operatingDay = departure.toLocalDate();
+        int seconds = departure.toLocalTime().toSecondOfDay();
+        if (departure.toLocalTime().isBefore(OPERATING_DAY_START)) {
+            operatingDay = operatingDay.minusDays(1);
+            seconds += 24 * 60 * 60;
+        }
+        return new String[] {
+                operatingDay.format(DateTimeFormatter.BASIC_ISO_DATE),
+                String.format("%02d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60)
+        };
+    }
+
+    private static long ceilToMinute(long timeMs) {
+        return (timeMs + 59999) / 60000 * 60000;
+    }
+
+    private Mode pickMode(Random random) {
+        double total = 0;
+        for (double share : modeShares.values()) {
+            total += share;
+        }
+        double pick = random.nextDouble() * total;
+        for (Map.Entry<Mode, Double> share : modeShares.entrySet()) {
+            pick -= share.getValue();
+            if (pick < 0) {
+                return share.getKey();
+            }
+        }
+        return Mode.BUS;
+    }
+
+    /**
+     * Vehicle driving trips of one mode, with events of the current trip pending
+     */
+    private final class Vehicle {
+        private final int index;
+        private final Random random;
+        private final Mode mode;
+        private final ArrayDeque<Event> pending = new ArrayDeque<>();
+        private long nextDepartureMs;
+        private int tripCount;
+
+        Vehicle(int index, long startMs) {
+            this.index = index;
+            //Random of its own, so that a vehicle drives the same trips regardless of the others
+            this.random = new Random(seed * 31 + index);
+            this.mode = pickMode(random);
+            //Vehicles are somewhere along their trips at start
+            final int[] length = tripLengths.get(mode);
+            final long typicalCycleMs = (length[0] + length[1]) / 2 * mode.stopSpacingMs + MAX_LAYOVER_MS;
+            this.nextDepartureMs = ceilToMinute(startMs + ESTIMATE_LEAD_MS - (long) (random.nextDouble() * typicalCycleMs));
+        }
+
+        /**
+         * Generates trips until the next trip can't have events before the first pending one.
+         * Events of consecutive trips overlap, as cancellations and estimates are published before a trip departs.
+         *
+         * @return false when there are no more events before endMs
+         */
+        boolean fill(long startMs, long endMs) {
+            while (nextDepartureMs - CANCELLATION_LEAD_MS < endMs
+                    && (pending.isEmpty() || nextDepartureMs - CANCELLATION_LEAD_MS <= pending.peekFirst().timeMs)) {
+                merge(nextTrip(), startMs, endMs);
+            }
+            return !pending.isEmpty();
+        }
+
+        /**
+         * Merges events of a trip into pending ones, keeping events of the earlier trip first on ties
+         */
+        private void merge(List<Event> events, long startMs, long endMs) {
+            final ArrayDeque<Event> merged = new ArrayDeque<>(pending.size() + events.size());
+            for (Event event : events) {
+                if (event.timeMs < startMs || event.timeMs >= endMs) {
+                    continue;
+                }
+                while (!pending.isEmpty() && pending.peekFirst().timeMs <= event.timeMs) {
+                    merged.add(pending.pollFirst());
+                }
+                merged.add(event);
+            }
+            merged.addAll(pending);
+            pending.clear();
+            pending.addAll(merged);
+        }
+
+        /**
+         * @return events of the next trip in event time order, and schedules the trip after it
+         */
+        private List<Event> nextTrip() {
+            final long departureMs = nextDepartureMs;
+            final int[] length = tripLengths.get(mode);
+            final int stopCount = length[0] + random.nextInt(length[1] - length[0] + 1);
+            final String tripId = Long.toString(BASE_DVJ_ID + index * TRIPS_PER_VEHICLE + tripCount++);
+            final String[] start = startDateAndTime(departureMs);
+            final InternalMessages.TripInfo tripInfo = InternalMessages.TripInfo.newBuilder()
+                    .setTripId(tripId)
+                    .setOperatingDay(start[0])
+                    .setRouteId(mode.routeId(random.nextInt(mode.routeCount)))
+                    .setDirectionId(1 + random.nextInt(2))
+                    .setStartTime(start[1])
+                    .setScheduleType(InternalMessages.TripInfo.ScheduleType.SCHEDULED)
+                    .build();
+
+            final List<Event> events = new ArrayList<>();
+            boolean runs = true;
+            if (random.nextDouble() < cancellationRate) {
+                events.add(cancellation(tripInfo, departureMs - CANCELLATION_LEAD_MS, InternalMessages.TripCancellation.Status.CANCELED));
+                runs = random.nextDouble() < cancellationOfCancellationRate;
+                if (runs) {
+                    //Before the first estimates, so that those apply to a running trip
+                    events.add(cancellation(tripInfo, departureMs - ESTIMATE_LEAD_MS - 1, InternalMessages.TripCancellation.Status.RUNNING));
+                }
+            }
+
+            final int firstStop = random.nextInt(NETWORK_STOP_COUNT);
+            final InternalMessages.StopEstimate.Status[] statuses = new InternalMessages.StopEstimate.Status[stopCount + 1];
+            final boolean[] pairs = new boolean[stopCount + 1];
+            for (int stopSequence = 1; stopSequence <= stopCount; stopSequence++) {
+                final double status = random.nextDouble();
+                statuses[stopSequence] = status < noDataRate ? InternalMessages.StopEstimate.Status.NO_DATA :
+                        status < noDataRate + skippedRate ? InternalMessages.StopEstimate.Status.SKIPPED :
+                        InternalMessages.StopEstimate.Status.SCHEDULED;
+                pairs[stopSequence] = random.nextDouble() < arrivalDeparturePairRate;
+            }
+
+            long delayMs = (long) (random.nextGaussian() * 60000);
+            long lastArrivalMs = departureMs + (stopCount - 1) * mode.stopSpacingMs + delayMs;
+            int nextStop = 1;
+            for (long timeMs = departureMs - ESTIMATE_LEAD_MS + (long) (random.nextDouble() * estimateIntervalMs);
+                 runs && nextStop <= stopCount; timeMs += estimateIntervalMs) {
+                delayMs += (long) (random.nextGaussian() * 10000);
+                //Stops the vehicle has already left are no longer estimated
+                while (nextStop <= stopCount && estimatedTimeMs(departureMs, nextStop, delayMs) < timeMs) {
+                    nextStop++;
+                }
+                for (int stopSequence = nextStop; stopSequence < nextStop + stopsAhead && stopSequence <= stopCount; stopSequence++) {
+                    final String stopId = Integer.toString(1000000 + (firstStop + stopSequence * 13) % NETWORK_STOP_COUNT);
+                    final long scheduledMs = departureMs + (stopSequence - 1) * mode.stopSpacingMs;
+                    final long estimatedMs = estimatedTimeMs(departureMs, stopSequence, delayMs);
+                    if (stopSequence > 1 && (stopSequence == stopCount || pairs[stopSequence])) {
+                        events.add(estimate(tripInfo, stopId, stopSequence, statuses[stopSequence], InternalMessages.StopEstimate.Type.ARRIVAL,
+                                scheduledMs, estimatedMs, timeMs));
+                    }
+                    if (stopSequence < stopCount) {
+                        events.add(estimate(tripInfo, stopId, stopSequence, statuses[stopSequence], InternalMessages.StopEstimate.Type.DEPARTURE,
+                                scheduledMs + DWELL_MS, estimatedMs + DWELL_MS, timeMs));
+                    }
+                }
+                lastArrivalMs = estimatedTimeMs(departureMs, stopCount, delayMs);
+            }
+            events.sort(Comparator.comparingLong(event -> event.timeMs));
+
+            final long layoverMs = MIN_LAYOVER_MS + (long) (random.nextDouble() * (MAX_LAYOVER_MS - MIN_LAYOVER_MS));
+            nextDepartureMs = ceilToMinute(Math.max(lastArrivalMs, departureMs) + layoverMs);
+            return events;
+        }
+
+        private long estimatedTimeMs(long departureMs, int stopSequence, long delayMs) {
+            //Vehicles don't leave the first stop early
+            return departureMs + (stopSequence - 1) * mode.stopSpacingMs + (stopSequence == 1 ? Math.max(0, delayMs) : delayMs);
+        }
+
+        private Event estimate(InternalMessages.TripInfo tripInfo, String stopId, int stopSequence, InternalMessages.StopEstimate.Status status,
+                               InternalMessages.StopEstimate.Type type, long scheduledMs, long estimatedMs, long timeMs) {
+            InternalMessages.StopEstimate.Builder estimate = InternalMessages.StopEstimate.newBuilder()
+                    .setSchemaVersion(1)
+                    .setTripInfo(tripInfo)
+                    .setStopId(stopId)
+                    .setStopSequence(stopSequence)
+                    .setStatus(status)
+                    .setType(type)
+                    .setScheduledTimeUtcMs(scheduledMs)
+                    .setLastModifiedUtcMs(timeMs);
+            if (status != InternalMessages.StopEstimate.Status.NO_DATA) {
+                estimate.setEstimatedTimeUtcMs(estimatedMs);
+            }
+            return new Event(timeMs, ProtobufSchema.InternalMessagesStopEstimate, tripInfo.getTripId(), estimate.build());
+        }
+
+        private Event cancellation(InternalMessages.TripInfo tripInfo, long timeMs, InternalMessages.TripCancellation.Status status) {
+            InternalMessages.TripCancellation cancellation = InternalMessages.TripCancellation.newBuilder()
+                    .setSchemaVersion(1)
+                    .setTripId(tripInfo.getTripId())
+                    .setRouteId(tripInfo.getRouteId())
+                    .setDirectionId(tripInfo.getDirectionId())
+                    .setStartDate(tripInfo.getOperatingDay())
+                    .setStartTime(tripInfo.getStartTime())
+                    .setStatus(status)
+                    .build();
+            return new Event(timeMs, ProtobufSchema.InternalMessagesTripCancellation, tripInfo.getTripId(), cancellation);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package fi.hsl.transitdata.tripupdate;
+
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class WorkloadGeneratorTest {
+    private static final long START_MS = LocalDateTime.of(2020, 1, 15, 7, 0).atZone(ZoneId.of("Europe/Helsinki")).toInstant().toEpochMilli();
+    private static final long HOUR_MS = 60 * 60000;
+
+    @Test
+    public void testSameSeedGeneratesSameEvents() {
+        List<WorkloadGenerator.Event> first = new WorkloadGenerator(42).generate(START_MS, START_MS + HOUR_MS);
+        List<WorkloadGenerator.Event> second = new WorkloadGenerator(42).generate(START_MS, START_MS + HOUR_MS);
+        List<WorkloadGenerator.Event> other = new WorkloadGenerator(43).generate(START_MS, START_MS + HOUR_MS);
+
+        assertFalse(first.isEmpty());
+        assertEquals(first.size(), second.size());
+        for (int n = 0; n < first.size(); n++) {
+            assertEquals(first.get(n).getTimeMs(), second.get(n).getTimeMs());
+            assertEquals(first.get(n).getPayload(), second.get(n).getPayload());
+        }
+        assertNotEquals(first.get(0).getPayload(), other.get(0).getPayload());
+    }
+
+    @Test
+    public void testEventsAreInTimeOrderWithinRange() {
+        List<WorkloadGenerator.Event> events = new WorkloadGenerator(42).generate(START_MS, START_MS + HOUR_MS);
+        long previousMs = START_MS;
+        for (WorkloadGenerator.Event event : events) {
+            assertTrue(event.getTimeMs() >= previousMs);
+            previousMs = event.getTimeMs();
+        }
+        assertTrue(previousMs < START_MS + HOUR_MS);
+    }
+
+    @Test
+    public void testVehiclesDriveTheirOwnTrips() {
+        WorkloadGenerator generator = new WorkloadGenerator(42);
+        generator.setVehicles(20);
+        generator.setModeShare(WorkloadGenerator.Mode.BUS, 0);
+        generator.setModeShare(WorkloadGenerator.Mode.TRAM, 0);
+        generator.setTripLength(WorkloadGenerator.Mode.METRO, 10, 12);
+        generator.setCancellationRates(0, 0);
+
+        //Trips of 10-12 stops run well within three hours, so at least one is driven from start to end by each vehicle
+        Map<String, Integer> lastStops = new HashMap<>();
+        for (WorkloadGenerator.Event event : generator.generate(START_MS, START_MS + 3 * HOUR_MS)) {
+            InternalMessages.StopEstimate estimate = (InternalMessages.StopEstimate) event.getPayload();
+            assertTrue(estimate.getTripInfo().getRouteId().startsWith("31M"));
+            lastStops.merge(event.getTripId(), estimate.getStopSequence(), Math::max);
+        }
+        assertTrue(lastStops.size() >= 20);
+        for (int lastStop : lastStops.values()) {
+            assertTrue(lastStop <= 12);
+        }
+        assertTrue(lastStops.values().stream().anyMatch(lastStop -> lastStop >= 10));
+    }
+
+    @Test
+    public void testStopStatusesFollowRates() {
+        WorkloadGenerator generator = new WorkloadGenerator(42);
+        generator.setVehicles(200);
+        generator.setStopStatusRates(0.1, 0.05);
+        generator.setArrivalDeparturePairRate(0.5);
+        generator.setCancellationRates(0, 0);
+
+        Map<String, InternalMessages.StopEstimate.Status> statuses = new HashMap<>();
+        int arrivals = 0;
+        int departures = 0;
+        for (WorkloadGenerator.Event event : generator.generate(START_MS, START_MS + HOUR_MS)) {
+            InternalMessages.StopEstimate estimate = (InternalMessages.StopEstimate) event.getPayload();
+            statuses.put(event.getTripId() + "/" + estimate.getStopSequence(), estimate.getStatus());
+            if (estimate.getStatus() == InternalMessages.StopEstimate.Status.NO_DATA) {
+                assertFalse(estimate.hasEstimatedTimeUtcMs());
+            }
+            if (estimate.getType() == InternalMessages.StopEstimate.Type.ARRIVAL) {
+                arrivals++;
+            } else {
+                departures++;
+            }
+        }
+        assertEquals(0.1, fraction(statuses, InternalMessages.StopEstimate.Status.NO_DATA), 0.02);
+        assertEquals(0.05, fraction(statuses, InternalMessages.StopEstimate.Status.SKIPPED), 0.02);
+        assertEquals(0.5, (double) arrivals / departures, 0.1);
+    }
+
+    @Test
+    public void testCancellationsAreCancelledBeforeTripsRun() {
+        WorkloadGenerator generator = new WorkloadGenerator(42);
+        generator.setVehicles(200);
+        generator.setCancellationRates(0.2, 0.5);
+
+        Set<String> estimated = new HashSet<>();
+        Set<String> cancelled = new HashSet<>();
+        Set<String> running = new HashSet<>();
+        for (WorkloadGenerator.Event event : generator.generate(START_MS, START_MS + 3 * HOUR_MS)) {
+            if (event.getSchema() == ProtobufSchema.InternalMessagesStopEstimate) {
+                //Estimates of cancelled trips only follow a cancellation of the cancellation
+                assertTrue(!cancelled.contains(event.getTripId()) || running.contains(event.getTripId()));
+                estimated.add(event.getTripId());
+            } else {
+                InternalMessages.TripCancellation cancellation = (InternalMessages.TripCancellation) event.getPayload();
+                if (cancellation.getStatus() == InternalMessages.TripCancellation.Status.CANCELED) {
+                    cancelled.add(event.getTripId());
+                } else if (cancelled.contains(event.getTripId())) {
+                    //Cancellations of trips departing at start were published before it
+                    running.add(event.getTripId());
+                }
+            }
+        }
+        assertFalse(cancelled.isEmpty());
+        assertEquals(0.5, (double) running.size() / cancelled.size(), 0.15);
+        assertTrue(running.stream().anyMatch(estimated::contains));
+    }
+
+    @Test
+    public void testTripsDepartingAfterMidnightStartPast24() {
+        final long midnightMs = LocalDateTime.of(2020, 1, 16, 0, 0).atZone(ZoneId.of("Europe/Helsinki")).toInstant().toEpochMilli();
+        assertArrayEquals(new String[] { "20200115", "24:30:00" }, WorkloadGenerator.startDateAndTime(midnightMs + 30 * 60000));
+        assertArrayEquals(new String[] { "20200116", "04:30:00" }, WorkloadGenerator.startDateAndTime(midnightMs + 270 * 60000));
+
+        boolean past24 = false;
+        WorkloadGenerator generator = new WorkloadGenerator(42);
+        generator.setCancellationRates(0, 0);
+        for (WorkloadGenerator.Event event : generator.generate(midnightMs, midnightMs + HOUR_MS)) {
+            InternalMessages.TripInfo tripInfo = ((InternalMessages.StopEstimate) event.getPayload()).getTripInfo();
+            if (tripInfo.getStartTime().compareTo("24") >= 0) {
+                assertEquals("20200115", tripInfo.getOperatingDay());
+                past24 = true;
+            }
+        }
+        assertTrue(past24);
+    }
+
+    private static double fraction(Map<String, InternalMessages.StopEstimate.Status> statuses, InternalMessages.StopEstimate.Status status) {
+        return (double) statuses.values().stream().filter(status::equals).count() / statuses.size();
+    }
+}
@@ -0,0 +1,149 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.MockDataUtils;
+import fi.hsl.common.transitdata.PubtransFactory;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.PulsarMocks;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcome;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcomes;
+import fi.hsl.transitdata.tripupdate.processing.StopEstimateProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripCancellationProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import org.apache.pulsar.client.api.Message;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchHandlerTest {
+    private final Deque<Message> backlog = new ArrayDeque<>();
+    private final List<Message> acknowledged = new ArrayList<>();
+    private final Map<String, List<GtfsRealtime.TripUpdate>> published = new HashMap<>();
+    private final MessageOutcomes outcomes = new MessageOutcomes();
+
+    private final BatchHandler handler = newHandler();
+
+    @Test
+    public void testOneTripUpdateIsPublishedPerTrip() throws Exception {
+        final long dvjId = MockDataUtils.generateValidJoreId();
+        final long otherDvjId = dvjId + 1;
+        final long now = System.currentTimeMillis();
+
+        backlog.add(PulsarMocks.stopEstimateMessage(estimate(dvjId, 1, 1000), now));
+        backlog.add(PulsarMocks.stopEstimateMessage(estimate(otherDvjId, 1, 1000), now));
+        backlog.add(PulsarMocks.stopEstimateMessage(estimate(dvjId, 2, 2000), now));
+        backlog.add(PulsarMocks.stopEstimateMessage(estimate(dvjId, 3, 3000), now));
+
+        BatchHandler.Result result = handler.handleBatch(backlog.poll(), 100, false);
+        assertEquals(4, result.received);
+        assertEquals(4, result.applied);
+        assertEquals(2, result.published);
+        assertEquals(4, acknowledged.size());
+
+        assertEquals(1, published.get(Long.toString(dvjId)).size());
+        assertEquals(3, published.get(Long.toString(dvjId)).get(0).getStopTimeUpdateCount());
+        assertEquals(1, published.get(Long.toString(otherDvjId)).get(0).getStopTimeUpdateCount());
+        //Messages before the last one of each trip are part of its TripUpdate
+        assertEquals(2, outcomes.getCount(MessageOutcome.MERGED));
+    }
+
+    @Test
+    public void testMessagesOfATripAreAppliedInOrder() throws Exception {
+        final long dvjId = MockDataUtils.generateValidJoreId();
+        final long now = System.currentTimeMillis();
+
+        handler.process(Arrays.asList(
+                PulsarMocks.stopEstimateMessage(estimate(dvjId, 1, 1000), now),
+                PulsarMocks.tripCancellationMessage(cancellation(dvjId), now)), false);
+        assertEquals(1, published.get(Long.toString(dvjId)).size());
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED, lastPublished(dvjId).getTrip().getScheduleRelationship());
+
+        //Estimates of a cancelled trip are not published, so the cancellation stays the latest TripUpdate
+        handler.process(Arrays.asList(
+                PulsarMocks.tripCancellationMessage(cancellation(dvjId), now),
+                PulsarMocks.stopEstimateMessage(estimate(dvjId, 2, 2000), now)), false);
+        assertEquals(2, published.get(Long.toString(dvjId)).size());
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED, lastPublished(dvjId).getTrip().getScheduleRelationship());
+    }
+
+    @Test
+    public void testCancellationsAreGroupedByMessageKey() throws Exception {
+        final long dvjId = MockDataUtils.generateValidJoreId();
+        final long now = System.currentTimeMillis();
+        final String key = Long.toString(dvjId);
+
+        BatchHandler.Result result = handler.process(Arrays.asList(
+                PulsarMocks.message(cancellation(dvjId), TransitdataProperties.ProtobufSchema.InternalMessagesTripCancellation, key, now),
+                PulsarMocks.message(cancellation(dvjId + 1), TransitdataProperties.ProtobufSchema.InternalMessagesTripCancellation, key, now)), false);
+        assertEquals(2, result.applied);
+        assertEquals(1, result.published);
+        assertEquals(1, published.size());
+        assertEquals(1, published.get(key).size());
+    }
+
+    @Test
+    public void testCompactionKeepsNewestEstimatePerStopAndType() throws Exception {
+        final long dvjId = MockDataUtils.generateValidJoreId();
+        final long now = System.currentTimeMillis();
+
+        BatchHandler.Result result = handler.process(Arrays.asList(
+                PulsarMocks.stopEstimateMessage(estimate(dvjId, 1, 3000), now),
+                PulsarMocks.stopEstimateMessage(estimate(dvjId, 1, 2000), now),
+                PulsarMocks.stopEstimateMessage(estimate(dvjId, 1, 4000, InternalMessages.StopEstimate.Type.DEPARTURE), now),
+                PulsarMocks.stopEstimateMessage(estimate(dvjId, 2, 5000), now)), true);
+        assertEquals(3, result.applied);
+        assertEquals(1, result.published);
+        assertEquals(3, outcomes.getCount(MessageOutcome.MERGED));
+
+        GtfsRealtime.TripUpdate tripUpdate = lastPublished(dvjId);
+        assertEquals(2, tripUpdate.getStopTimeUpdateCount());
+        assertEquals(3, tripUpdate.getStopTimeUpdate(0).getArrival().getTime());
+        assertEquals(4, tripUpdate.getStopTimeUpdate(0).getDeparture().getTime());
+    }
+
+    @Test
+    public void testBatchIsLimitedToMaxSize() throws Exception {
+        final long publishTime = System.currentTimeMillis();
+        for (int n = 0; n < 4; n++) {
+            backlog.add(PulsarMocks.stopEstimateMessage(estimate(MockDataUtils.generateValidJoreId(), 1, 1000), publishTime));
+        }
+        handler.handleBatch(backlog.poll(), 2, false);
+        assertEquals(2, acknowledged.size());
+        assertEquals(2, backlog.size());
+    }
+
+    private GtfsRealtime.TripUpdate lastPublished(long dvjId) {
+        List<GtfsRealtime.TripUpdate> tripUpdates = published.get(Long.toString(dvjId));
+        return tripUpdates.get(tripUpdates.size() - 1);
+    }
+
+    private BatchHandler newHandler() {
+        TripUpdateProcessor tripUpdateProcessor = new TripUpdateProcessor(null);
+        BatchHandler batchHandler = new BatchHandler(PulsarMocks.consumer(backlog, acknowledged), tripUpdateProcessor,
+                new StopEstimateProcessor(tripUpdateProcessor), new TripCancellationProcessor(tripUpdateProcessor),
+                (tripId, tripUpdate, eventTimeMs) -> published.computeIfAbsent(tripId, id -> new ArrayList<>()).add(tripUpdate),
+                10);
+        batchHandler.setMessageOutcomes(outcomes);
+        return batchHandler;
+    }
+
+    private static InternalMessages.StopEstimate estimate(long dvjId, int stopSequence, long timeMs) {
+        return estimate(dvjId, stopSequence, timeMs, InternalMessages.StopEstimate.Type.ARRIVAL);
+    }
+
+    private static InternalMessages.StopEstimate estimate(long dvjId, int stopSequence, long timeMs, InternalMessages.StopEstimate.Type type) {
+        return MockDataUtils.mockStopEstimate(dvjId, type, stopSequence, stopSequence, timeMs);
+    }
+
+    private static InternalMessages.TripCancellation cancellation(long dvjId) {
+        LocalDateTime someOperatingTime = Instant.now().plus(Duration.ofHours(5)).atOffset(ZoneOffset.UTC).toLocalDateTime();
+        return MockDataUtils.mockTripCancellation(dvjId, "1014", PubtransFactory.JORE_DIRECTION_ID_INBOUND, someOperatingTime);
+    }
+}
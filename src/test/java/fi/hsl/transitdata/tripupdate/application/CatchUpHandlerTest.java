@@ -0,0 +1,70 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import fi.hsl.common.transitdata.MockDataUtils;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.PulsarMocks;
+import fi.hsl.transitdata.tripupdate.processing.StopEstimateProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripCancellationProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import org.apache.pulsar.client.api.Message;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CatchUpHandlerTest {
+    private static final long LAG_THRESHOLD_MS = 60000;
+
+    private final Deque<Message> backlog = new ArrayDeque<>();
+    private final List<Message> acknowledged = new ArrayList<>();
+    private final Set<String> published = new HashSet<>();
+
+    @Test
+    public void testCatchUpIsEnteredAndExitedByLag() throws Exception {
+        CatchUpHandler handler = newHandler(100);
+        final long now = System.currentTimeMillis();
+
+        assertFalse(handler.isLagging(message(1, 1, 1000, now - 1000), now));
+        assertTrue(handler.isLagging(message(1, 1, 1000, now - 2 * LAG_THRESHOLD_MS), now));
+
+        //Last message of the batch is recent, so we should be caught up
+        backlog.add(message(1, 2, 1000, now));
+        handler.handleBacklog(message(1, 1, 1000, now - 2 * LAG_THRESHOLD_MS));
+        assertFalse(handler.isCatchingUp());
+    }
+
+    @Test
+    public void testCatchUpContinuesWhileLagging() throws Exception {
+        CatchUpHandler handler = newHandler(2);
+        final long publishTime = System.currentTimeMillis() - 2 * LAG_THRESHOLD_MS;
+        final long dvjId = MockDataUtils.generateValidJoreId();
+
+        assertTrue(handler.isLagging(message(dvjId, 1, 1000, publishTime), System.currentTimeMillis()));
+        backlog.add(message(dvjId, 1, 2000, publishTime));
+        backlog.add(message(dvjId + 1, 1, 1000, publishTime));
+
+        handler.handleBacklog(message(dvjId, 1, 1000, publishTime));
+        assertTrue(handler.isCatchingUp());
+        assertEquals(2, acknowledged.size());
+        assertEquals(1, backlog.size());
+        assertEquals(Collections.singleton(Long.toString(dvjId)), published);
+    }
+
+    private CatchUpHandler newHandler(int batchSize) {
+        TripUpdateProcessor tripUpdateProcessor = new TripUpdateProcessor(null);
+        BatchHandler batchHandler = new BatchHandler(PulsarMocks.consumer(backlog, acknowledged), tripUpdateProcessor,
+                new StopEstimateProcessor(tripUpdateProcessor), new TripCancellationProcessor(tripUpdateProcessor),
+                (tripId, tripUpdate, eventTimeMs) -> published.add(tripId),
+                10);
+        return new CatchUpHandler(batchHandler, LAG_THRESHOLD_MS, batchSize);
+    }
+
+    private static Message message(long dvjId, int stopSequence, long timeMs, long publishTimeMs) {
+        return PulsarMocks.stopEstimateMessage(
+                MockDataUtils.mockStopEstimate(dvjId, InternalMessages.StopEstimate.Type.ARRIVAL, stopSequence, stopSequence, timeMs),
+                publishTimeMs);
+    }
+}
@@ -0,0 +1,58 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class ExecutionThreadsTest {
+    @Test
+    public void testModeIsParsedIgnoringCase() {
+        assertEquals(ExecutionThreads.Mode.PLATFORM, ExecutionThreads.Mode.parse("platform"));
+        assertEquals(ExecutionThreads.Mode.VIRTUAL, ExecutionThreads.Mode.parse("Virtual"));
+    }
+
+    @Test
+    public void testPlatformThreadsAreNamedDaemons() {
+        ThreadFactory factory = ExecutionThreads.factory(ExecutionThreads.Mode.PLATFORM, "worker-");
+        Thread first = factory.newThread(() -> {});
+        Thread second = factory.newThread(() -> {});
+        assertEquals("worker-0", first.getName());
+        assertEquals("worker-1", second.getName());
+        assertTrue(first.isDaemon());
+    }
+
+    @Test
+    public void testPlatformCompletionsRunInCompletingThread() {
+        AtomicReference<Thread> ranIn = new AtomicReference<>();
+        ExecutionThreads.completionExecutor(ExecutionThreads.Mode.PLATFORM).execute(() -> ranIn.set(Thread.currentThread()));
+        assertSame(Thread.currentThread(), ranIn.get());
+    }
+
+    @Test
+    public void testVirtualThreadsRunWhenSupported() throws Exception {
+        assumeTrue(ExecutionThreads.isVirtualSupported());
+        CountDownLatch done = new CountDownLatch(2);
+        Thread thread = ExecutionThreads.factory(ExecutionThreads.Mode.VIRTUAL, "virtual-").newThread(done::countDown);
+        assertEquals("virtual-0", thread.getName());
+        thread.start();
+        ExecutionThreads.completionExecutor(ExecutionThreads.Mode.VIRTUAL).execute(done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testVirtualThreadsFailClearlyWhenUnsupported() {
+        assumeTrue(!ExecutionThreads.isVirtualSupported());
+        try {
+            ExecutionThreads.factory(ExecutionThreads.Mode.VIRTUAL, "virtual-");
+            fail("Expected virtual threads to be unsupported");
+        } catch (UnsupportedOperationException e) {
+            assertTrue(e.getMessage().contains("JDK 21"));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.MockDataUtils;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.PulsarMocks;
+import fi.hsl.transitdata.tripupdate.metrics.StageEvents;
+import fi.hsl.transitdata.tripupdate.processing.AbstractMessageProcessor;
+import fi.hsl.transitdata.tripupdate.processing.StopEstimateProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import org.apache.pulsar.client.api.Message;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class MessageDispatcherTest {
+    private static final int WARM_UP_MESSAGES = 200000;
+    private static final int MEASURED_MESSAGES = 200000;
+    //Routing itself shouldn't allocate at all, this leaves room for noise in the allocation counter
+    private static final double ROUTING_BYTES_PER_MESSAGE = 1.0;
+
+    private final List<String> published = new ArrayList<>();
+    private long publishedCount;
+
+    @Test
+    public void testMessagesAreRoutedBySchema() {
+        MessageDispatcher dispatcher = new MessageDispatcher((tripId, tripUpdate, eventTimeMs) -> published.add(tripId));
+        TripUpdateProcessor tripUpdateProcessor = new TripUpdateProcessor(null);
+        dispatcher.register(ProtobufSchema.InternalMessagesStopEstimate, new StopEstimateProcessor(tripUpdateProcessor));
+
+        final long now = System.currentTimeMillis();
+        final InternalMessages.StopEstimate estimate = MockDataUtils.mockStopEstimate(InternalMessages.StopEstimate.Type.ARRIVAL, now);
+        dispatcher.dispatch(PulsarMocks.stopEstimateMessage(estimate, now));
+        assertEquals(1, published.size());
+        assertEquals(estimate.getTripInfo().getTripId(), published.get(0));
+
+        //No processor for the schema
+        dispatcher.dispatch(PulsarMocks.message(estimate, ProtobufSchema.GTFS_TripUpdate, estimate.getTripInfo().getTripId(), now));
+        assertEquals(1, published.size());
+    }
+
+    @Test
+    public void testSchemaIsReadFromProperty() {
+        final InternalMessages.StopEstimate estimate = MockDataUtils.mockStopEstimate(InternalMessages.StopEstimate.Type.ARRIVAL, 0);
+        for (ProtobufSchema schema : ProtobufSchema.values()) {
+            assertEquals(schema, MessageDispatcher.schemaOf(PulsarMocks.message(estimate, schema, null, 0)));
+        }
+    }
+
+    @Test
+    public void testSlowMessagesAreSampled() {
+        final List<String> slowMessages = new ArrayList<>();
+        final StageEvents events = new StageEvents() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public Span begin(Stage stage, String name) {
+                return NO_SPAN;
+            }
+
+            @Override
+            public void slowMessage(String tripId, ProtobufSchema schema, int payloadBytes,
+                                    GtfsRealtime.TripUpdate tripUpdate, long processingNanos) {
+                assertEquals(ProtobufSchema.InternalMessagesStopEstimate, schema);
+                assertTrue(payloadBytes > 0);
+                assertEquals(1, tripUpdate.getStopTimeUpdateCount());
+                slowMessages.add(tripId);
+            }
+        };
+        MessageDispatcher dispatcher = new MessageDispatcher((tripId, tripUpdate, source) -> published.add(tripId), events);
+        dispatcher.register(ProtobufSchema.InternalMessagesStopEstimate, new StopEstimateProcessor(new TripUpdateProcessor(null)));
+        final long now = System.currentTimeMillis();
+
+        dispatcher.dispatch(PulsarMocks.stopEstimateMessage(MockDataUtils.mockStopEstimate(InternalMessages.StopEstimate.Type.ARRIVAL, now), now));
+        assertTrue("Nothing is slow by default", slowMessages.isEmpty());
+
+        //Every message is slow, sampling allows only a few of them per second
+        dispatcher.captureSlowMessages(0, 3);
+        for (int n = 0; n < 100; n++) {
+            dispatcher.dispatch(PulsarMocks.stopEstimateMessage(MockDataUtils.mockStopEstimate(InternalMessages.StopEstimate.Type.ARRIVAL, now), now));
+        }
+        assertEquals(101, published.size());
+        assertTrue(slowMessages.size() >= 3);
+        //Sampling window may have changed once while dispatching
+        assertTrue(slowMessages.size() <= 6);
+    }
+
+    @Test
+    public void testRoutingDoesNotAllocate() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+
+        final GtfsRealtime.TripUpdate tripUpdate = GtfsRealtime.TripUpdate.newBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId("1"))
+                .build();
+        MessageDispatcher dispatcher = new MessageDispatcher((tripId, update, eventTimeMs) -> publishedCount++);
+        dispatcher.register(ProtobufSchema.InternalMessagesStopEstimate, new FixedResultProcessor(tripUpdate));
+        final InternalMessages.StopEstimate estimate = MockDataUtils.mockStopEstimate(InternalMessages.StopEstimate.Type.ARRIVAL, 0);
+        final Message msg = PulsarMocks.allocationFreeMessage(estimate, ProtobufSchema.InternalMessagesStopEstimate, "1", 0);
+
+        for (int n = 0; n < WARM_UP_MESSAGES; n++) {
+            dispatcher.dispatch(msg);
+        }
+        final long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        for (int n = 0; n < MEASURED_MESSAGES; n++) {
+            dispatcher.dispatch(msg);
+        }
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        assertEquals(WARM_UP_MESSAGES + MEASURED_MESSAGES, publishedCount);
+        final double bytesPerMessage = (double) allocated / MEASURED_MESSAGES;
+        assertTrue("Routing allocated " + bytesPerMessage + " bytes per message", bytesPerMessage <= ROUTING_BYTES_PER_MESSAGE);
+    }
+
+    /**
+     * Accepts every message and produces the same TripUpdate, without allocating anything
+     */
+    private static class FixedResultProcessor extends AbstractMessageProcessor {
+        private final GtfsRealtime.TripUpdate tripUpdate;
+
+        FixedResultProcessor(GtfsRealtime.TripUpdate tripUpdate) {
+            this.tripUpdate = tripUpdate;
+        }
+
+        @Override
+        public boolean validateMessage(byte[] payload) {
+            return true;
+        }
+
+        @Override
+        public boolean processMessage(Message msg, TripUpdateWithId result) {
+            result.set(tripUpdate.getTrip().getTripId(), tripUpdate);
+            return true;
+        }
+
+        @Override
+        protected TransitdataProperties.ProtobufSchema getSchema() {
+            return ProtobufSchema.InternalMessagesStopEstimate;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.MockDataUtils;
+import fi.hsl.common.transitdata.PubtransFactory;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.PulsarMocks;
+import fi.hsl.transitdata.tripupdate.WorkloadGenerator;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcome;
+import fi.hsl.transitdata.tripupdate.processing.MessageOutcomes;
+import fi.hsl.transitdata.tripupdate.processing.StopEstimateProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripCancellationProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import org.apache.pulsar.client.api.Message;
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PipelinedHandlerTest {
+    private final Map<String, List<GtfsRealtime.TripUpdate>> published = new ConcurrentHashMap<>();
+    private final List<Message> done = Collections.synchronizedList(new ArrayList<>());
+    private CountDownLatch expectedDone;
+
+    private final PipelinedHandler handler = newHandler();
+
+    @After
+    public void tearDown() throws Exception {
+        handler.close();
+    }
+
+    @Test
+    public void testTripUpdatesAreEqualToSequentialProcessing() throws Exception {
+        final long firstDvjId = MockDataUtils.generateValidJoreId();
+        final long now = System.currentTimeMillis();
+
+        List<InternalMessages.StopEstimate> estimates = new ArrayList<>();
+        for (int stopSequence = 1; stopSequence <= 10; stopSequence++) {
+            for (int trip = 0; trip < 20; trip++) {
+                //Later stops estimated earlier than previous ones, so that cleaning up has something to do
+                final long timeMs = stopSequence % 3 == 0 ? (stopSequence - 2) * 60000 : stopSequence * 60000;
+                estimates.add(estimate(firstDvjId + trip, stopSequence, timeMs));
+            }
+        }
+        expectedDone = new CountDownLatch(estimates.size());
+        handler.start();
+        for (InternalMessages.StopEstimate estimate : estimates) {
+            handler.submit(PulsarMocks.stopEstimateMessage(estimate, now));
+        }
+        assertTrue(expectedDone.await(10, TimeUnit.SECONDS));
+
+        TripUpdateProcessor sequential = new TripUpdateProcessor(null);
+        Map<String, List<GtfsRealtime.TripUpdate>> expected = new HashMap<>();
+        for (InternalMessages.StopEstimate estimate : estimates) {
+            sequential.processStopEstimate(estimate, now).ifPresent(tripUpdate ->
+                    expected.computeIfAbsent(estimate.getTripInfo().getTripId(), id -> new ArrayList<>()).add(tripUpdate));
+        }
+        assertEquals(expected, published);
+        assertEquals(estimates.size(), done.size());
+    }
+
+    @Test
+    public void testGeneratedTrafficIsEqualToSequentialProcessing() throws Exception {
+        WorkloadGenerator generator = new WorkloadGenerator(42);
+        generator.setVehicles(50);
+        generator.setCancellationRates(0.1, 0.5);
+        final long startMs = System.currentTimeMillis();
+        List<WorkloadGenerator.Event> events = generator.generate(startMs, startMs + Duration.ofMinutes(30).toMillis());
+
+        expectedDone = new CountDownLatch(events.size());
+        handler.start();
+        for (WorkloadGenerator.Event event : events) {
+            handler.submit(event.toMessage());
+        }
+        assertTrue(expectedDone.await(30, TimeUnit.SECONDS));
+
+        TripUpdateProcessor sequential = new TripUpdateProcessor(null);
+        StopEstimateProcessor stopEstimateProcessor = new StopEstimateProcessor(sequential);
+        TripCancellationProcessor tripCancellationProcessor = new TripCancellationProcessor(sequential);
+        Map<String, List<GtfsRealtime.TripUpdate>> expected = new HashMap<>();
+        for (WorkloadGenerator.Event event : events) {
+            Optional<GtfsRealtime.TripUpdate> tripUpdate = Optional.empty();
+            if (event.getPayload() instanceof InternalMessages.StopEstimate) {
+                InternalMessages.StopEstimate estimate = (InternalMessages.StopEstimate) event.getPayload();
+                if (stopEstimateProcessor.validateStopEstimate(estimate)) {
+                    tripUpdate = sequential.processStopEstimate(estimate, event.getTimeMs());
+                }
+            } else {
+                InternalMessages.TripCancellation cancellation = (InternalMessages.TripCancellation) event.getPayload();
+                if (tripCancellationProcessor.validateTripCancellation(cancellation)) {
+                    tripUpdate = Optional.ofNullable(sequential.processTripCancellation(event.getTripId(), event.getTimeMs(), cancellation));
+                }
+            }
+            tripUpdate.ifPresent(update -> expected.computeIfAbsent(event.getTripId(), id -> new ArrayList<>()).add(update));
+        }
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, published);
+    }
+
+    @Test
+    public void testMessagesOfATripArePublishedInOrder() throws Exception {
+        final long dvjId = MockDataUtils.generateValidJoreId();
+        final long now = System.currentTimeMillis();
+
+        expectedDone = new CountDownLatch(3);
+        handler.start();
+        handler.submit(PulsarMocks.stopEstimateMessage(estimate(dvjId, 1, 1000), now));
+        handler.submit(PulsarMocks.tripCancellationMessage(cancellation(dvjId), now));
+        handler.submit(PulsarMocks.stopEstimateMessage(estimate(dvjId, 2, 2000), now));
+        assertTrue(expectedDone.await(10, TimeUnit.SECONDS));
+
+        List<GtfsRealtime.TripUpdate> tripUpdates = published.get(Long.toString(dvjId));
+        assertEquals(2, tripUpdates.size());
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED, tripUpdates.get(0).getTrip().getScheduleRelationship());
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED, tripUpdates.get(1).getTrip().getScheduleRelationship());
+    }
+
+    @Test
+    public void testProcessedMessagesArePublishedInOrderWithPipeline() throws Exception {
+        final long firstDvjId = MockDataUtils.generateValidJoreId();
+        final long now = System.currentTimeMillis();
+        final List<Message> laneDone = Collections.synchronizedList(new ArrayList<>());
+
+        expectedDone = new CountDownLatch(100);
+        handler.start();
+        for (int trip = 0; trip < 50; trip++) {
+            final long dvjId = firstDvjId + trip;
+            handler.submit(PulsarMocks.stopEstimateMessage(estimate(dvjId, 1, 1000), now));
+            handler.process(PulsarMocks.tripCancellationMessage(cancellation(dvjId), now), laneDone::add);
+            handler.submit(PulsarMocks.stopEstimateMessage(estimate(dvjId, 2, 2000), now));
+        }
+        assertTrue(expectedDone.await(10, TimeUnit.SECONDS));
+        handler.close();
+
+        assertEquals(50, laneDone.size());
+        assertEquals(50, published.size());
+        for (List<GtfsRealtime.TripUpdate> tripUpdates : published.values()) {
+            //Whether the first estimate was applied before the cancellation or not, the cancellation is published last
+            GtfsRealtime.TripUpdate last = tripUpdates.get(tripUpdates.size() - 1);
+            assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED, last.getTrip().getScheduleRelationship());
+        }
+    }
+
+    @Test
+    public void testInvalidMessagesAreDoneWithoutPublishing() throws Exception {
+        final long now = System.currentTimeMillis();
+        final InternalMessages.StopEstimate valid = estimate(MockDataUtils.generateValidJoreId(), 1, 1000);
+        final InternalMessages.StopEstimate invalid = valid.toBuilder()
+                .setTripInfo(valid.getTripInfo().toBuilder().setRouteId("").build())
+                .build();
+
+        expectedDone = new CountDownLatch(3);
+        handler.start();
+        handler.submit(PulsarMocks.stopEstimateMessage(invalid, now));
+        handler.submit(PulsarMocks.message(valid, TransitdataProperties.ProtobufSchema.GTFS_TripUpdate, valid.getTripInfo().getTripId(), now));
+        handler.submit(PulsarMocks.stopEstimateMessage(valid, now));
+        assertTrue(expectedDone.await(10, TimeUnit.SECONDS));
+
+        assertEquals(1, published.size());
+        assertEquals(3, done.size());
+        //Stages count messages after handing them over, so let them finish first
+        handler.close();
+        //Only the valid one made it through the state stage
+        assertEquals(3, handler.getStages().get(0).getProcessedCount());
+        assertEquals(1, handler.getStages().get(1).getProcessedCount());
+        assertEquals(1, handler.getStages().get(2).getProcessedCount());
+    }
+
+    @Test
+    public void testUnparseableMessagesAreCountedAsFailed() throws Exception {
+        final MessageOutcomes outcomes = new MessageOutcomes();
+        final long now = System.currentTimeMillis();
+        final long dvjId = MockDataUtils.generateValidJoreId();
+
+        expectedDone = new CountDownLatch(1);
+        handler.setMessageOutcomes(outcomes);
+        handler.start();
+        //TripCancellation lacks the required fields of a StopEstimate
+        handler.submit(PulsarMocks.message(cancellation(dvjId), TransitdataProperties.ProtobufSchema.InternalMessagesStopEstimate, Long.toString(dvjId), now));
+        assertTrue(expectedDone.await(10, TimeUnit.SECONDS));
+
+        assertEquals(1, outcomes.getCount(MessageOutcome.FAILED));
+        assertTrue(published.isEmpty());
+    }
+
+    @Test
+    public void testMessagesFailingInStateStageAreDone() throws Exception {
+        final PipelinedHandler failing = newHandler(new TripUpdateProcessor(null) {
+            @Override
+            public boolean applyStopEstimate(InternalMessages.StopEstimate stopEstimate, long eventTimeMs) {
+                throw new IllegalStateException("Failure in state stage");
+            }
+        });
+        final long now = System.currentTimeMillis();
+
+        expectedDone = new CountDownLatch(2);
+        failing.start();
+        failing.submit(PulsarMocks.stopEstimateMessage(estimate(MockDataUtils.generateValidJoreId(), 1, 1000), now));
+        failing.submit(PulsarMocks.stopEstimateMessage(estimate(MockDataUtils.generateValidJoreId(), 1, 1000), now));
+        failing.close();
+
+        assertEquals(2, done.size());
+        assertTrue(published.isEmpty());
+    }
+
+    @Test
+    public void testMessagesInterruptedInHandOverAreNotDone() {
+        final List<Message> processed = new ArrayList<>();
+        Thread.currentThread().interrupt();
+        try {
+            handler.process(PulsarMocks.stopEstimateMessage(estimate(MockDataUtils.generateValidJoreId(), 1, 1000), System.currentTimeMillis()),
+                    processed::add);
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        //Left unacknowledged, so that it's redelivered
+        assertTrue(processed.isEmpty());
+    }
+
+    @Test
+    public void testQueuedMessagesAreProcessedOnClose() throws Exception {
+        final long firstDvjId = MockDataUtils.generateValidJoreId();
+        final long now = System.currentTimeMillis();
+
+        expectedDone = new CountDownLatch(50);
+        handler.start();
+        for (int trip = 0; trip < 50; trip++) {
+            handler.submit(PulsarMocks.stopEstimateMessage(estimate(firstDvjId + trip, 1, 1000), now));
+        }
+        handler.close();
+        assertEquals(50, done.size());
+        assertEquals(50, published.size());
+        for (PipelineStage<?> stage : handler.getStages()) {
+            assertEquals(0, stage.getQueueDepth());
+        }
+    }
+
+    private PipelinedHandler newHandler() {
+        return newHandler(new TripUpdateProcessor(null));
+    }
+
+    private PipelinedHandler newHandler(TripUpdateProcessor tripUpdateProcessor) {
+        return new PipelinedHandler(tripUpdateProcessor,
+                new StopEstimateProcessor(tripUpdateProcessor), new TripCancellationProcessor(tripUpdateProcessor),
+                new Object(),
+                (tripId, tripUpdate, eventTimeMs) -> published.computeIfAbsent(tripId, id -> Collections.synchronizedList(new ArrayList<>())).add(tripUpdate),
+                msg -> {
+                    done.add(msg);
+                    expectedDone.countDown();
+                },
+                ExecutionThreads.Mode.PLATFORM, 3, 3, 10);
+    }
+
+    private static InternalMessages.StopEstimate estimate(long dvjId, int stopSequence, long timeMs) {
+        return MockDataUtils.mockStopEstimate(dvjId, InternalMessages.StopEstimate.Type.ARRIVAL, stopSequence, stopSequence, timeMs);
+    }
+
+    private static InternalMessages.TripCancellation cancellation(long dvjId) {
+        LocalDateTime someOperatingTime = Instant.now().plus(Duration.ofHours(5)).atOffset(ZoneOffset.UTC).toLocalDateTime();
+        return MockDataUtils.mockTripCancellation(dvjId, "1014", PubtransFactory.JORE_DIRECTION_ID_INBOUND, someOperatingTime);
+    }
+}
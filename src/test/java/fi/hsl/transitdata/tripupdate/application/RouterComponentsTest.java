@@ -0,0 +1,66 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RouterComponentsTest {
+    private final RouterComponents components = new RouterComponents(ConfigFactory.parseResources("environment.conf").resolve());
+    private final List<String> closed = new ArrayList<>();
+
+    @Test
+    public void testComponentsAreClosedInReverseOrderOfCreation() throws Exception {
+        components.own(() -> closed.add("store"));
+        components.own(() -> closed.add("pipeline"));
+        components.own(() -> closed.add("lane"));
+        components.close();
+        assertEquals(Arrays.asList("lane", "pipeline", "store"), closed);
+    }
+
+    @Test
+    public void testAllComponentsAreClosedEvenIfOneFails() {
+        components.own(() -> closed.add("store"));
+        components.own(() -> {
+            throw new IllegalStateException("pipeline");
+        });
+        components.own(() -> {
+            throw new IllegalStateException("lane");
+        });
+        try {
+            components.close();
+            fail("First failure should be thrown");
+        } catch (Exception e) {
+            assertEquals("lane", e.getMessage());
+            assertEquals("pipeline", e.getSuppressed()[0].getMessage());
+        }
+        assertEquals(Arrays.asList("store"), closed);
+    }
+
+    @Test
+    public void testComponentsAreClosedOnce() throws Exception {
+        components.own(() -> closed.add("store"));
+        components.close();
+        components.close();
+        assertEquals(1, closed.size());
+    }
+
+    @Test
+    public void testProcessingModeIsResolvedFromConfig() {
+        assertEquals(RouterComponents.ProcessingMode.SHADOW, modeOf("shadow.enabled=true, pipeline.enabled=true"));
+        assertEquals(RouterComponents.ProcessingMode.PIPELINE, modeOf("pipeline.enabled=true, batch.enabled=true"));
+        assertEquals(RouterComponents.ProcessingMode.BATCH, modeOf("pipeline.enabled=false, batch.enabled=true"));
+        assertEquals(RouterComponents.ProcessingMode.SINGLE, modeOf("pipeline.enabled=false, batch.enabled=false"));
+    }
+
+    private static RouterComponents.ProcessingMode modeOf(String config) {
+        return new RouterComponents(ConfigFactory.parseString(config)
+                .withFallback(ConfigFactory.parseResources("environment.conf"))
+                .resolve())
+                .resolveProcessingMode();
+    }
+}
@@ -0,0 +1,159 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import com.typesafe.config.ConfigFactory;
+import fi.hsl.common.pulsar.PulsarApplicationContext;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import fi.hsl.transitdata.tripupdate.MockDataFactory;
+import fi.hsl.transitdata.tripupdate.PulsarMocks;
+import fi.hsl.transitdata.tripupdate.WorkloadGenerator;
+import fi.hsl.transitdata.tripupdate.processing.EventTimeClock;
+import fi.hsl.transitdata.tripupdate.processing.StopEstimateProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripCancellationProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import fi.hsl.transitdata.tripupdate.state.MappedTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.StringInterner;
+import fi.hsl.transitdata.tripupdate.state.TripStateGovernor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ShadowRunnerTest {
+    private static final long START_MS = LocalDateTime.of(2020, 1, 15, 7, 0).atZone(ZoneId.of("Europe/Helsinki")).toInstant().toEpochMilli();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<GtfsRealtime.TripUpdate> published = new ArrayList<>();
+
+    @Test
+    public void testEnginesWithDifferentStoresProduceSameTripUpdates() throws IOException {
+        ShadowRunner runner = new ShadowRunner((tripId, tripUpdate, source) -> published.add(tripUpdate), 10);
+        TripUpdateProcessor primary = replayProcessor();
+        TripUpdateProcessor shadow = new TripUpdateProcessor(null, new StringInterner(0),
+                new TripStateGovernor(Long.MAX_VALUE, 1.0, Long.MAX_VALUE, Long.MAX_VALUE), null,
+                new MappedTripStateStore(new File(folder.getRoot(), "shadow").toPath(), 1 << 20, 10));
+        shadow.setClock(new EventTimeClock());
+        register(runner, primary, shadow);
+
+        final List<WorkloadGenerator.Event> events = generate();
+        for (WorkloadGenerator.Event event : events) {
+            runner.dispatch(event.toMessage());
+        }
+
+        assertEquals(events.size(), runner.getMessageCount());
+        assertEquals(runner.getRecentMismatches().toString(), 0, runner.getMismatchCount());
+        assertFalse(published.isEmpty());
+        runner.report();
+    }
+
+    @Test
+    public void testMismatchesAreRecordedAndOnlyPrimaryIsPublished() {
+        ShadowRunner runner = new ShadowRunner((tripId, tripUpdate, source) -> published.add(tripUpdate), 3);
+        TripUpdateProcessor primary = replayProcessor();
+        TripUpdateProcessor shadow = replayProcessor();
+        //Shadow doesn't handle cancellations
+        runner.register(ProtobufSchema.InternalMessagesStopEstimate, new StopEstimateProcessor(primary), new StopEstimateProcessor(shadow));
+        runner.register(ProtobufSchema.InternalMessagesTripCancellation, new TripCancellationProcessor(primary), null);
+
+        WorkloadGenerator generator = new WorkloadGenerator(42);
+        generator.setVehicles(100);
+        generator.setCancellationRates(0.2, 0);
+        int cancellations = 0;
+        for (WorkloadGenerator.Event event : generator.generate(START_MS, START_MS + TimeUnit.HOURS.toMillis(1))) {
+            if (event.getSchema() == ProtobufSchema.InternalMessagesTripCancellation) {
+                cancellations++;
+            }
+            runner.dispatch(event.toMessage());
+        }
+
+        assertTrue(cancellations > 3);
+        assertEquals(cancellations, runner.getMismatchCount());
+        assertEquals(runner.getMessageCount(), published.size());
+        final List<ShadowRunner.Mismatch> mismatches = runner.getRecentMismatches();
+        assertEquals(3, mismatches.size());
+        assertTrue(mismatches.get(0).diff.contains("schedule_relationship: CANCELED"));
+        assertTrue(mismatches.get(0).diff.contains("+ <none>"));
+    }
+
+    @Test
+    public void testRouterPublishesTripUpdatesOfPrimaryInShadowMode() throws Exception {
+        final List<WorkloadGenerator.Event> events = generate();
+        final List<byte[]> sent = replayWithRouter(events, "shadow.enabled=false");
+        final String shadowStore = new File(folder.getRoot(), "router-shadow").getPath();
+        final List<byte[]> sentInShadowMode = replayWithRouter(events,
+                "shadow { enabled=true, store.type=mapped, store.mapped.file=\"" + shadowStore + "\", store.mapped.initialCapacity=1M }");
+
+        assertFalse(sent.isEmpty());
+        assertEquals(sent.size(), sentInShadowMode.size());
+        for (int n = 0; n < sent.size(); n++) {
+            assertArrayEquals(sent.get(n), sentInShadowMode.get(n));
+        }
+    }
+
+    @Test
+    public void testDiffShowsChangedLines() {
+        GtfsRealtime.TripUpdate primary = MockDataFactory.mockTripUpdate("1010", 0, "20181107", "17:14:00", Arrays.asList(
+                MockDataFactory.mockStopTimeUpdate("A", 1541603400, 1541603400),
+                MockDataFactory.mockStopTimeUpdate("B", 1541604600, 1541604600)));
+        GtfsRealtime.TripUpdate shadow = MockDataFactory.mockTripUpdate("1010", 0, "20181107", "17:14:00", Arrays.asList(
+                MockDataFactory.mockStopTimeUpdate("A", 1541603400, 1541603400),
+                MockDataFactory.mockStopTimeUpdate("B", 1541604660, 1541604600)));
+
+        final String diff = ShadowRunner.diff("trip", primary, "trip", shadow);
+        //Only arrival time of the second stop differs
+        assertTrue(diff, diff.matches("@ line \\d+\n-\\s+time: 1541604600\n\\+\\s+time: 1541604660\n"));
+        assertTrue(diff, ShadowRunner.diff("trip", primary, "other", primary).startsWith("- trip trip\n+ trip other\n"));
+        assertEquals("", ShadowRunner.diff("trip", primary, "trip", primary));
+    }
+
+    private static List<byte[]> replayWithRouter(List<WorkloadGenerator.Event> events, String config) throws Exception {
+        final List<byte[]> sent = new LinkedList<>();
+        final PulsarApplicationContext context = new PulsarApplicationContext();
+        context.setConfig(ConfigFactory.parseString(config + ", clock.mode=eventTime, cancellationLane.enabled=false, catchUp.enabled=false")
+                .withFallback(ConfigFactory.parseResources("environment.conf"))
+                .resolve());
+        context.setConsumer(PulsarMocks.consumer(new LinkedList<>(), null));
+        context.setProducer(PulsarMocks.producer(sent));
+        final MessageRouter router = new MessageRouter(context);
+        for (WorkloadGenerator.Event event : events) {
+            router.handleMessage(event.toMessage());
+        }
+        final ShadowRunner runner = router.getShadowRunner();
+        if (runner != null) {
+            assertEquals(events.size(), runner.getMessageCount());
+            assertEquals(runner.getRecentMismatches().toString(), 0, runner.getMismatchCount());
+        }
+        router.close();
+        return new ArrayList<>(sent);
+    }
+
+    private static TripUpdateProcessor replayProcessor() {
+        TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        processor.setClock(new EventTimeClock());
+        return processor;
+    }
+
+    private static void register(ShadowRunner runner, TripUpdateProcessor primary, TripUpdateProcessor shadow) {
+        runner.register(ProtobufSchema.InternalMessagesStopEstimate, new StopEstimateProcessor(primary), new StopEstimateProcessor(shadow));
+        runner.register(ProtobufSchema.InternalMessagesTripCancellation, new TripCancellationProcessor(primary), new TripCancellationProcessor(shadow));
+    }
+
+    private static List<WorkloadGenerator.Event> generate() {
+        WorkloadGenerator generator = new WorkloadGenerator(42);
+        generator.setVehicles(100);
+        return generator.generate(START_MS, START_MS + TimeUnit.HOURS.toMillis(1));
+    }
+}
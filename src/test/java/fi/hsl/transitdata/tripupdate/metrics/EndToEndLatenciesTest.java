@@ -0,0 +1,89 @@
+package fi.hsl.transitdata.tripupdate.metrics;
+
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import org.HdrHistogram.Histogram;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class EndToEndLatenciesTest {
+    private static final String ESTIMATES = "persistent://transitdata/internal/stop-estimates";
+    private static final String CANCELLATIONS = "persistent://transitdata/internal/cancellations";
+
+    @Test
+    public void testLatenciesAreRecordedPerTopicSchemaAndPoint() {
+        EndToEndLatencies latencies = new EndToEndLatencies();
+        for (int n = 1; n <= 100; n++) {
+            latencies.record(ESTIMATES, ProtobufSchema.InternalMessagesStopEstimate, EndToEndLatencies.Point.RECEIVED, n);
+            latencies.record(ESTIMATES, ProtobufSchema.InternalMessagesStopEstimate, EndToEndLatencies.Point.PUBLISHED, n * 10);
+        }
+        latencies.record(CANCELLATIONS, ProtobufSchema.InternalMessagesTripCancellation, EndToEndLatencies.Point.PROCESSED, 5);
+
+        Map<String, Histogram> histograms = byKey(latencies.takeIntervalHistograms());
+        assertEquals(3, histograms.size());
+        Histogram received = histograms.get(EndToEndLatencies.key(ESTIMATES, ProtobufSchema.InternalMessagesStopEstimate, EndToEndLatencies.Point.RECEIVED));
+        assertEquals(100, received.getTotalCount());
+        assertEquals(50, received.getValueAtPercentile(50), 1);
+        Histogram published = histograms.get(EndToEndLatencies.key(ESTIMATES, ProtobufSchema.InternalMessagesStopEstimate, EndToEndLatencies.Point.PUBLISHED));
+        assertEquals(500, published.getValueAtPercentile(50), 5);
+        Histogram processed = histograms.get(EndToEndLatencies.key(CANCELLATIONS, ProtobufSchema.InternalMessagesTripCancellation, EndToEndLatencies.Point.PROCESSED));
+        assertEquals(5, processed.getMaxValue());
+    }
+
+    @Test
+    public void testHistogramsAreResetOnEveryInterval() {
+        EndToEndLatencies latencies = new EndToEndLatencies();
+        latencies.record(ESTIMATES, ProtobufSchema.InternalMessagesStopEstimate, EndToEndLatencies.Point.PROCESSED, 5);
+        assertEquals(1, latencies.takeIntervalHistograms().get(0).histogram.getTotalCount());
+
+        latencies.record(ESTIMATES, ProtobufSchema.InternalMessagesStopEstimate, EndToEndLatencies.Point.PROCESSED, 7);
+        latencies.record(ESTIMATES, ProtobufSchema.InternalMessagesStopEstimate, EndToEndLatencies.Point.PROCESSED, 9);
+        Histogram histogram = latencies.takeIntervalHistograms().get(0).histogram;
+        assertEquals(2, histogram.getTotalCount());
+        assertEquals(9, histogram.getMaxValue());
+    }
+
+    @Test
+    public void testUnknownTopicAndOutOfRangeLatencies() {
+        EndToEndLatencies latencies = new EndToEndLatencies();
+        latencies.record(null, ProtobufSchema.InternalMessagesStopEstimate, EndToEndLatencies.Point.RECEIVED, -100);
+        latencies.record(null, ProtobufSchema.InternalMessagesStopEstimate, EndToEndLatencies.Point.RECEIVED, Long.MAX_VALUE);
+
+        EndToEndLatencies.Series series = latencies.takeIntervalHistograms().get(0);
+        assertEquals(EndToEndLatencies.UNKNOWN_TOPIC, series.topic);
+        assertEquals(0, series.histogram.getMinValue());
+        assertEquals(LaneLatencies.MAX_LATENCY_MS, series.histogram.getMaxValue(), LaneLatencies.MAX_LATENCY_MS / 100);
+    }
+
+    @Test
+    public void testPercentilesOfLatestReportAreExposed() {
+        EndToEndLatencies latencies = new EndToEndLatencies();
+        assertTrue(latencies.getP99Ms().isEmpty());
+        for (int n = 1; n <= 1000; n++) {
+            latencies.record(ESTIMATES, ProtobufSchema.InternalMessagesStopEstimate, EndToEndLatencies.Point.PUBLISHED, n);
+        }
+        latencies.report();
+
+        final String key = EndToEndLatencies.key(ESTIMATES, ProtobufSchema.InternalMessagesStopEstimate, EndToEndLatencies.Point.PUBLISHED);
+        assertEquals(1000, latencies.getCount().get(key).longValue());
+        assertEquals(500, latencies.getP50Ms().get(key), 5);
+        assertEquals(990, latencies.getP99Ms().get(key), 10);
+        assertEquals(1000, latencies.getMaxMs().get(key), 10);
+
+        //Nothing recorded during the next interval
+        latencies.report();
+        assertEquals(0, latencies.getCount().get(key).longValue());
+    }
+
+    private static Map<String, Histogram> byKey(List<EndToEndLatencies.Series> series) {
+        Map<String, Histogram> histograms = new HashMap<>();
+        for (EndToEndLatencies.Series s : series) {
+            histograms.put(s.key(), s.histogram);
+        }
+        return histograms;
+    }
+}
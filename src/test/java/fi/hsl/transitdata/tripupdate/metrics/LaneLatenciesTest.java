@@ -0,0 +1,49 @@
+package fi.hsl.transitdata.tripupdate.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class LaneLatenciesTest {
+    @Test
+    public void testLatenciesAreRecordedPerLane() {
+        LaneLatencies latencies = new LaneLatencies();
+        for (int n = 1; n <= 100; n++) {
+            latencies.record(LaneLatencies.Lane.ESTIMATES, n * 10);
+        }
+        latencies.record(LaneLatencies.Lane.CANCELLATIONS, 5);
+
+        Map<LaneLatencies.Lane, Histogram> histograms = latencies.takeIntervalHistograms();
+        assertEquals(100, histograms.get(LaneLatencies.Lane.ESTIMATES).getTotalCount());
+        assertEquals(500, histograms.get(LaneLatencies.Lane.ESTIMATES).getValueAtPercentile(50), 5);
+        assertEquals(1, histograms.get(LaneLatencies.Lane.CANCELLATIONS).getTotalCount());
+        assertEquals(5, histograms.get(LaneLatencies.Lane.CANCELLATIONS).getMaxValue());
+    }
+
+    @Test
+    public void testHistogramsAreResetOnEveryInterval() {
+        LaneLatencies latencies = new LaneLatencies();
+        latencies.record(LaneLatencies.Lane.CANCELLATIONS, 5);
+        assertEquals(1, latencies.takeIntervalHistograms().get(LaneLatencies.Lane.CANCELLATIONS).getTotalCount());
+
+        latencies.record(LaneLatencies.Lane.CANCELLATIONS, 7);
+        latencies.record(LaneLatencies.Lane.CANCELLATIONS, 9);
+        Histogram histogram = latencies.takeIntervalHistograms().get(LaneLatencies.Lane.CANCELLATIONS);
+        assertEquals(2, histogram.getTotalCount());
+        assertEquals(9, histogram.getMaxValue());
+    }
+
+    @Test
+    public void testOutOfRangeLatenciesAreClamped() {
+        LaneLatencies latencies = new LaneLatencies();
+        latencies.record(LaneLatencies.Lane.ESTIMATES, -100);
+        latencies.record(LaneLatencies.Lane.ESTIMATES, Long.MAX_VALUE);
+
+        Histogram histogram = latencies.takeIntervalHistograms().get(LaneLatencies.Lane.ESTIMATES);
+        assertEquals(0, histogram.getMinValue());
+        assertEquals(LaneLatencies.MAX_LATENCY_MS, histogram.getMaxValue(), LaneLatencies.MAX_LATENCY_MS / 100);
+    }
+}
@@ -0,0 +1,45 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import org.junit.Test;
+
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class EventTimeClockTest {
+    @Test
+    public void testTimeIsWatermarkOfEventTimes() {
+        EventTimeClock clock = new EventTimeClock();
+        assertEquals(0, clock.millis());
+
+        clock.advance(1000);
+        assertEquals(1000, clock.millis());
+        assertEquals(1000, clock.instant().toEpochMilli());
+
+        //Late messages and messages without event time don't move time backwards
+        clock.advance(500);
+        clock.advance(0);
+        assertEquals(1000, clock.millis());
+
+        clock.advance(2000);
+        assertEquals(2000, clock.millis());
+    }
+
+    @Test
+    public void testClockInOtherZoneSharesWatermark() {
+        EventTimeClock clock = new EventTimeClock(1000);
+        assertSame(clock, clock.withZone(ZoneOffset.UTC));
+
+        EventTimeClock helsinki = clock.withZone(ZoneId.of("Europe/Helsinki"));
+        assertEquals(ZoneId.of("Europe/Helsinki"), helsinki.getZone());
+        assertEquals(1000, helsinki.millis());
+
+        clock.advance(2000);
+        assertEquals(2000, helsinki.millis());
+        helsinki.advance(3000);
+        assertEquals(3000, clock.millis());
+        assertEquals(ZoneOffset.UTC, clock.getZone());
+    }
+}
@@ -0,0 +1,85 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import fi.hsl.common.transitdata.MockDataUtils;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.Assert.*;
+
+public class MessageOutcomesTest {
+    private final MessageOutcomes outcomes = new MessageOutcomes(2);
+
+    @Test
+    public void testOutcomesAreCounted() {
+        outcomes.record(MessageOutcome.PUBLISHED);
+        outcomes.record(MessageOutcome.PUBLISHED);
+        for (int n = 0; n < 10; n++) {
+            outcomes.record(MessageOutcome.TRAIN_ROUTE, "Route {} is for trains, discarding message", "3001");
+        }
+        outcomes.report();
+
+        assertEquals(2, outcomes.getCount(MessageOutcome.PUBLISHED));
+        assertEquals(10, outcomes.getCount(MessageOutcome.TRAIN_ROUTE));
+        assertEquals(0, outcomes.getCount(MessageOutcome.STALE));
+    }
+
+    @Test
+    public void testValidationDiscardsAreCountedByReason() {
+        StopEstimateProcessor processor = new StopEstimateProcessor(null);
+        processor.setMessageOutcomes(outcomes);
+        assertFalse(processor.validateMessage(estimate("3001", 1).toByteArray()));
+        assertFalse(processor.validateMessage(estimate("1014", 7).toByteArray()));
+        assertFalse(processor.validateMessage(estimate("abc", 1).toByteArray()));
+        assertTrue(processor.validateMessage(estimate("1014", 1).toByteArray()));
+
+        assertEquals(1, outcomes.getCount(MessageOutcome.TRAIN_ROUTE));
+        assertEquals(1, outcomes.getCount(MessageOutcome.INVALID_DIRECTION));
+        assertEquals(1, outcomes.getCount(MessageOutcome.INVALID_ROUTE));
+    }
+
+    @Test
+    public void testPreDecodeRejectionsAreCounted() {
+        StopEstimateProcessor processor = new StopEstimateProcessor(null);
+        processor.setMessageOutcomes(outcomes);
+        processor.setPreDecodeFilter(new PreDecodeFilter());
+        assertFalse(processor.validateMessage(estimate("3001", 1).toByteArray()));
+        assertEquals(1, outcomes.getCount(MessageOutcome.TRAIN_ROUTE));
+    }
+
+    @Test
+    public void testCancellationsWithoutTripDataAreCounted() {
+        TripCancellationProcessor processor = new TripCancellationProcessor(null);
+        processor.setMessageOutcomes(outcomes);
+        final InternalMessages.TripCancellation cancellation = MockDataUtils.mockTripCancellation(
+                MockDataUtils.generateValidJoreId(), "1014", 1, LocalDateTime.now());
+        assertFalse(processor.validateTripCancellation(cancellation.toBuilder().clearStartTime().build()));
+        assertEquals(1, outcomes.getCount(MessageOutcome.MISSING_TRIP_DATA));
+    }
+
+    @Test
+    public void testStaleAndUnchangedEstimatesAreCounted() {
+        TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        processor.setMessageOutcomes(outcomes);
+        final InternalMessages.StopEstimate estimate = estimate("1014", 1);
+        final InternalMessages.StopEstimate older = estimate.toBuilder()
+                .setLastModifiedUtcMs(estimate.getLastModifiedUtcMs() - 1000)
+                .build();
+
+        assertTrue(processor.processStopEstimate(estimate).isPresent());
+        assertFalse(processor.processStopEstimate(estimate).isPresent());
+        assertFalse(processor.processStopEstimate(older).isPresent());
+
+        assertEquals(1, outcomes.getCount(MessageOutcome.UNCHANGED));
+        assertEquals(1, outcomes.getCount(MessageOutcome.STALE));
+    }
+
+    private static InternalMessages.StopEstimate estimate(String route, int direction) {
+        InternalMessages.StopEstimate estimate = MockDataUtils.mockStopEstimate(MockDataUtils.generateValidJoreId(),
+                InternalMessages.StopEstimate.Type.ARRIVAL, 1, 1, System.currentTimeMillis());
+        return estimate.toBuilder()
+                .setTripInfo(estimate.getTripInfo().toBuilder().setRouteId(route).setDirectionId(direction))
+                .build();
+    }
+}
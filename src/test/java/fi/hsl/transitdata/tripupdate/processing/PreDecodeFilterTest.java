@@ -0,0 +1,94 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import fi.hsl.common.transitdata.MockDataUtils;
+import fi.hsl.common.transitdata.PubtransFactory;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PreDecodeFilterTest {
+    private static final List<String> ROUTES = Arrays.asList("1014", "1014 3", "2550B", "3001", "3002U", "31M1", "31M2B", "abc", "");
+    private static final List<Integer> DIRECTIONS = Arrays.asList(0, PubtransFactory.JORE_DIRECTION_ID_INBOUND,
+            PubtransFactory.JORE_DIRECTION_ID_OUTBOUND, 3);
+
+    private final PreDecodeFilter filter = new PreDecodeFilter();
+
+    @Test
+    public void testStopEstimatesAreFilteredLikeValidation() throws Exception {
+        StopEstimateProcessor validating = new StopEstimateProcessor(null);
+        for (String route : ROUTES) {
+            for (int direction : DIRECTIONS) {
+                final byte[] payload = estimate(route, direction).toByteArray();
+                assertEquals(route + " " + direction, validating.validateMessage(payload),
+                        filter.accept(ProtobufSchema.InternalMessagesStopEstimate, payload));
+            }
+        }
+    }
+
+    @Test
+    public void testTripCancellationsAreFilteredLikeValidation() throws Exception {
+        TripCancellationProcessor validating = new TripCancellationProcessor(null);
+        for (String route : ROUTES) {
+            for (int direction : DIRECTIONS) {
+                final byte[] payload = cancellation(route, direction).toByteArray();
+                assertEquals(route + " " + direction, validating.validateMessage(payload),
+                        filter.accept(ProtobufSchema.InternalMessagesTripCancellation, payload));
+            }
+        }
+        final byte[] withoutStartTime = cancellation("1014", 1).toBuilder().clearStartTime().build().toByteArray();
+        assertEquals(DiscardReason.MISSING_TRIP_DATA, PreDecodeFilter.checkTripCancellation(withoutStartTime));
+        assertFalse(validating.validateMessage(withoutStartTime));
+    }
+
+    @Test
+    public void testRejectionsAreCountedByReason() throws Exception {
+        final byte[] train = estimate("3001", 1).toByteArray();
+        assertFalse(filter.accept(ProtobufSchema.InternalMessagesStopEstimate, train));
+        final byte[] otherTrain = estimate("3002", 2).toByteArray();
+        assertFalse(filter.accept(ProtobufSchema.InternalMessagesStopEstimate, otherTrain));
+        assertFalse(filter.accept(ProtobufSchema.InternalMessagesStopEstimate, estimate("1014", 7).toByteArray()));
+        assertTrue(filter.accept(ProtobufSchema.InternalMessagesStopEstimate, estimate("1014", 1).toByteArray()));
+
+        assertEquals(2, filter.getRejectedCount(DiscardReason.TRAIN_ROUTE));
+        assertEquals(1, filter.getRejectedCount(DiscardReason.INVALID_DIRECTION));
+        assertEquals(0, filter.getRejectedCount(DiscardReason.INVALID_ROUTE));
+        assertEquals(1, filter.getPassedCount());
+        assertEquals(train.length + otherTrain.length, filter.getAvoidedBytes(DiscardReason.TRAIN_ROUTE));
+    }
+
+    @Test
+    public void testUnreadablePayloadsArePassedToParser() {
+        final byte[] payload = estimate("3001", 1).toByteArray();
+        final byte[] truncated = Arrays.copyOf(payload, 5);
+        assertTrue(filter.accept(ProtobufSchema.InternalMessagesStopEstimate, truncated));
+        assertEquals(1, filter.getUnreadableCount());
+    }
+
+    @Test
+    public void testProcessorRejectsBeforeParsing() {
+        StopEstimateProcessor processor = new StopEstimateProcessor(null);
+        processor.setPreDecodeFilter(filter);
+        assertFalse(processor.passesPreDecodeFilter(estimate("3002", 1).toByteArray()));
+        assertFalse(processor.validateMessage(estimate("3002", 1).toByteArray()));
+        assertTrue(processor.validateMessage(estimate("1014", 1).toByteArray()));
+        assertEquals(2, filter.getRejectedCount(DiscardReason.TRAIN_ROUTE));
+    }
+
+    private static InternalMessages.StopEstimate estimate(String route, int direction) {
+        InternalMessages.StopEstimate estimate = MockDataUtils.mockStopEstimate(MockDataUtils.generateValidJoreId(),
+                InternalMessages.StopEstimate.Type.ARRIVAL, 1, 1, System.currentTimeMillis());
+        return estimate.toBuilder()
+                .setTripInfo(estimate.getTripInfo().toBuilder().setRouteId(route).setDirectionId(direction))
+                .build();
+    }
+
+    private static InternalMessages.TripCancellation cancellation(String route, int direction) {
+        return MockDataUtils.mockTripCancellation(MockDataUtils.generateValidJoreId(), route, direction, LocalDateTime.now());
+    }
+}
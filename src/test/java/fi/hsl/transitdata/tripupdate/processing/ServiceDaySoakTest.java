@@ -0,0 +1,188 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import fi.hsl.common.transitdata.MockDataUtils;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.MutableClock;
+import fi.hsl.transitdata.tripupdate.WorkloadGenerator;
+import fi.hsl.transitdata.tripupdate.state.StringInterner;
+import fi.hsl.transitdata.tripupdate.state.TripState;
+import fi.hsl.transitdata.tripupdate.state.TripStateGovernor;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a full operating day, from morning through the night until the last trips past 24:00:00, with the clock
+ * following event time of the messages, and checks that trip state returns to baseline once the day is over.
+ *
+ * Runs with a small fleet by default. Soak with the full fleet with f.ex. -Dsoak.vehicles=1500 -Dsoak.estimateInterval=30
+ *
+ * Trip state is checked deterministically through its weight and the amount of interned values. Heap and latency
+ * depend on the machine and on other tests running in the same JVM, so they are only checked with
+ * -Dsoak.checkHeapAndLatency=true, which the soak build profile sets: mvn test -P soak
+ * Otherwise they are just reported when a check fails.
+ */
+public class ServiceDaySoakTest {
+    private static final ZoneId ZONE = ZoneId.of("Europe/Helsinki");
+    private static final long SAMPLE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(30);
+    private static final long MAX_LATENCY_NS = TimeUnit.SECONDS.toNanos(10);
+    //Heap usage below this is considered noise
+    private static final long HEAP_NOISE_BYTES = 16 * 1024 * 1024;
+    //Route, start date, start time and a stop
+    private static final int MAX_INTERNED_PER_TRIP = 4;
+    private static final boolean CHECK_HEAP_AND_LATENCY = Boolean.getBoolean("soak.checkHeapAndLatency");
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    @Test
+    public void testStateReturnsToBaselineAfterServiceDay() {
+        final long startMs = LocalDateTime.of(2020, 1, 15, 4, 30).atZone(ZONE).toInstant().toEpochMilli();
+        final long endMs = LocalDateTime.of(2020, 1, 16, 2, 0).atZone(ZONE).toInstant().toEpochMilli();
+        WorkloadGenerator generator = new WorkloadGenerator(42);
+        generator.setVehicles(Integer.getInteger("soak.vehicles", 20));
+        generator.setEstimateFrequency(TimeUnit.SECONDS.toMillis(Integer.getInteger("soak.estimateInterval", 60)), 3);
+
+        final MutableClock clock = new MutableClock(startMs);
+        final TripStateGovernor governor = new TripStateGovernor(TripStateGovernor.budgetFromMaxHeap(0.5), 0.9,
+                TimeUnit.MINUTES.toMillis(30), TimeUnit.MINUTES.toMillis(30));
+        final StringInterner interner = new StringInterner(TripUpdateProcessor.DEFAULT_INTERNER_MAX_SIZE);
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null, interner, governor);
+        processor.setClock(clock);
+
+        final long baselineHeap = usedHeap();
+        final List<Sample> samples = new ArrayList<>();
+        final Recorder latencies = new Recorder(MAX_LATENCY_NS, 2);
+        long nextSampleMs = startMs + SAMPLE_INTERVAL_MS;
+        for (Iterator<WorkloadGenerator.Event> events = generator.events(startMs, endMs); events.hasNext(); ) {
+            final WorkloadGenerator.Event event = events.next();
+            if (event.getTimeMs() >= nextSampleMs) {
+                samples.add(sample(nextSampleMs, processor, governor, interner, latencies.getIntervalHistogram()));
+                nextSampleMs += SAMPLE_INTERVAL_MS;
+            }
+            clock.set(event.getTimeMs());
+            final long startNanos = System.nanoTime();
+            if (event.getPayload() instanceof InternalMessages.StopEstimate) {
+                processor.processStopEstimate((InternalMessages.StopEstimate) event.getPayload(), event.getTimeMs());
+            } else {
+                processor.processTripCancellation(event.getTripId(), event.getTimeMs(), (InternalMessages.TripCancellation) event.getPayload());
+            }
+            latencies.recordValue(Math.min(System.nanoTime() - startNanos, MAX_LATENCY_NS));
+        }
+        samples.add(sample(endMs, processor, governor, interner, latencies.getIntervalHistogram()));
+
+        //No traffic until trip states have expired, then the first message of the next day triggers expiry
+        clock.set(endMs + TimeUnit.HOURS.toMillis(5));
+        processor.processStopEstimate(MockDataUtils.mockStopEstimate(InternalMessages.StopEstimate.Type.ARRIVAL, clock.millis()));
+        final Sample last = sample(clock.millis(), processor, governor, interner, latencies.getIntervalHistogram());
+        samples.add(last);
+
+        final String report = report(baselineHeap, samples);
+        long peakHeap = baselineHeap;
+        int peakTrips = 0;
+        for (Sample sample : samples) {
+            peakHeap = Math.max(peakHeap, sample.usedHeap);
+            peakTrips = Math.max(peakTrips, sample.trips);
+        }
+        assertTrue("Trips should be cached during the day\n" + report, peakTrips > 0);
+        assertTrue("Trips should expire during the day\n" + report, samples.get(samples.size() - 2).expired > 0);
+        assertTrue("Only the trip of the next day should remain\n" + report, last.trips <= 1);
+        assertTrue("Weight of trip state should return to baseline\n" + report,
+                last.weightBytes <= TripState.BASE_WEIGHT_BYTES + TripState.STOP_WEIGHT_BYTES);
+
+        //Traffic is the same throughout the day, so cached trips and latency should stay level
+        final List<Sample> firstHalf = samples.subList(0, samples.size() / 2);
+        final List<Sample> secondHalf = samples.subList(samples.size() / 2, samples.size() - 2);
+        assertTrue("Cached trips should not grow during the day\n" + report,
+                maxTrips(secondHalf) <= maxTrips(firstHalf) * 3 / 2);
+        //The pool isn't released when trips expire, it's bounded and reset when full
+        assertTrue("Only values of the trip of the next day should be interned after the day\n" + report,
+                last.internedStrings - samples.get(samples.size() - 2).internedStrings <= MAX_INTERNED_PER_TRIP);
+
+        if (CHECK_HEAP_AND_LATENCY) {
+            assertTrue("Heap should return to baseline\n" + report,
+                    last.usedHeap - baselineHeap <= Math.max(HEAP_NOISE_BYTES, (peakHeap - baselineHeap) / 2));
+            assertTrue("Latency should not grow during the day\n" + report,
+                    maxP99Ms(secondHalf) <= maxP99Ms(firstHalf) * 4 + 2);
+        }
+    }
+
+    private Sample sample(long timeMs, TripUpdateProcessor processor, TripStateGovernor governor, StringInterner interner, Histogram latencies) {
+        long shed = 0;
+        for (TripStateGovernor.ShedReason reason : TripStateGovernor.ShedReason.values()) {
+            shed += governor.getShedCount(reason);
+        }
+        return new Sample(timeMs, usedHeap(), processor.getTripCount(), governor.getWeightBytes(), interner.size(),
+                processor.getExpiredTripCount(), shed, latencies.getTotalCount(), latencies.getValueAtPercentile(99) / 1e6);
+    }
+
+    /**
+     * @return used heap after a full GC if heap is checked, otherwise as it is now
+     */
+    private long usedHeap() {
+        if (CHECK_HEAP_AND_LATENCY) {
+            System.gc();
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static int maxTrips(List<Sample> samples) {
+        return samples.stream().mapToInt(sample -> sample.trips).max().orElse(0);
+    }
+
+    private static double maxP99Ms(List<Sample> samples) {
+        return samples.stream().mapToDouble(sample -> sample.p99Ms).max().orElse(0);
+    }
+
+    private static String report(long baselineHeap, List<Sample> samples) {
+        StringBuilder report = new StringBuilder(String.format("baseline heap %d kB%n", baselineHeap / 1024));
+        for (Sample sample : samples) {
+            report.append(sample).append(System.lineSeparator());
+        }
+        return report.toString();
+    }
+
+    private static class Sample {
+        final long timeMs;
+        final long usedHeap;
+        final int trips;
+        final long weightBytes;
+        final int internedStrings;
+        final long expired;
+        final long shed;
+        final long messages;
+        final double p99Ms;
+
+        Sample(long timeMs, long usedHeap, int trips, long weightBytes, int internedStrings, long expired, long shed,
+               long messages, double p99Ms) {
+            this.timeMs = timeMs;
+            this.usedHeap = usedHeap;
+            this.trips = trips;
+            this.weightBytes = weightBytes;
+            this.internedStrings = internedStrings;
+            this.expired = expired;
+            this.shed = shed;
+            this.messages = messages;
+            this.p99Ms = p99Ms;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s heap=%7d kB trips=%5d weight=%7d kB interned=%6d expired=%6d shed=%5d messages=%7d p99=%6.3f ms",
+                    Instant.ofEpochMilli(timeMs).atZone(ZONE).toLocalDateTime(), usedHeap / 1024, trips,
+                    weightBytes / 1024, internedStrings, expired, shed, messages, p99Ms);
+        }
+    }
+}
@@ -3,12 +3,27 @@ package fi.hsl.transitdata.tripupdate.processing;
 import com.google.transit.realtime.GtfsRealtime;
 import fi.hsl.common.transitdata.MockDataUtils;
 import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.MutableClock;
+import fi.hsl.transitdata.tripupdate.WorkloadGenerator;
+import fi.hsl.transitdata.tripupdate.state.InMemoryTripStateSource;
+import fi.hsl.transitdata.tripupdate.state.KeyRangeOwnership;
+import fi.hsl.transitdata.tripupdate.state.StringInterner;
+import fi.hsl.transitdata.tripupdate.state.TripState;
+import fi.hsl.transitdata.tripupdate.state.TripStateGovernor;
+import fi.hsl.transitdata.tripupdate.state.TripStateHandoff;
+import fi.hsl.transitdata.tripupdate.validators.TripUpdateMaxAgeValidator;
 import org.junit.Test;
 
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class TripUpdateProcessorTest {
@@ -42,6 +57,88 @@ public class TripUpdateProcessorTest {
 
     }
 
+    @Test
+    public void testIdleTripStatesAreExpired() throws Exception {
+        TripUpdateProcessor processor = new TripUpdateProcessor(null);
+
+        final long dvjId = MockDataUtils.generateValidJoreId();
+        addStops(dvjId, 5, processor);
+        assertEquals(1, processor.getTripCount());
+
+        //Still within four hours of last access
+        processor.expireTripStates(System.currentTimeMillis() + Duration.ofHours(3).toMillis());
+        assertEquals(1, processor.getTripCount());
+
+        processor.expireTripStates(System.currentTimeMillis() + Duration.ofHours(5).toMillis());
+        assertEquals(0, processor.getTripCount());
+    }
+
+    @Test
+    public void testTripStatesAreShedWhenOverBudget() {
+        final long oneStopTripBytes = TripState.BASE_WEIGHT_BYTES + TripState.STOP_WEIGHT_BYTES;
+        TripStateGovernor governor = new TripStateGovernor(10 * oneStopTripBytes, 1.0,
+                Duration.ofMinutes(30).toMillis(), Duration.ofMinutes(30).toMillis());
+        TripUpdateProcessor processor = new TripUpdateProcessor(null, StringInterner.disabled(), governor);
+
+        final long baseDvjId = MockDataUtils.generateValidJoreId();
+        for (int n = 0; n < 50; n++) {
+            processor.processStopEstimate(MockDataUtils.mockStopEstimate(baseDvjId + n,
+                    InternalMessages.StopEstimate.Type.ARRIVAL, 1, 1, System.currentTimeMillis()));
+            //Budget is checked before each message, so there can be one trip more than fits in the budget
+            assertTrue(processor.getTripCount() <= 11);
+        }
+        assertEquals(processor.getTripCount() * oneStopTripBytes, governor.getWeightBytes());
+        assertTrue(governor.getShedCount(TripStateGovernor.ShedReason.LEAST_RECENTLY_USED) > 0);
+    }
+
+    @Test
+    public void testStaleAndDuplicateStopEstimatesAreDiscarded() {
+        TripUpdateProcessor processor = new TripUpdateProcessor(null);
+
+        final long dvjId = MockDataUtils.generateValidJoreId();
+        final long now = System.currentTimeMillis();
+        InternalMessages.StopEstimate latest = MockDataUtils.mockStopEstimate(dvjId,
+                InternalMessages.StopEstimate.Type.ARRIVAL, 1, 1, now);
+        InternalMessages.StopEstimate older = latest.toBuilder()
+                .setLastModifiedUtcMs(now - 1000)
+                .setEstimatedTimeUtcMs(now + 60000)
+                .build();
+
+        assertTrue(processor.processStopEstimate(latest, now).isPresent());
+        assertFalse(processor.processStopEstimate(older, now + 1000).isPresent());
+        assertFalse(processor.processStopEstimate(latest, now).isPresent());
+        assertEquals(1, processor.getStaleEstimateCount());
+        assertEquals(1, processor.getDuplicateEstimateCount());
+
+        //Cached estimate was not overwritten by the older one
+        List<GtfsRealtime.TripUpdate.StopTimeUpdate> updates = processor.getStopTimeUpdates(Long.toString(dvjId));
+        assertEquals(now / 1000, updates.get(0).getArrival().getTime());
+    }
+
+    @Test
+    public void testTripStateIsSeededFromOtherInstances() throws Exception {
+        final long dvjId = MockDataUtils.generateValidJoreId();
+
+        //Another instance has been processing the trip
+        TripUpdateProcessor other = new TripUpdateProcessor(null);
+        addStops(dvjId, 3, other);
+        InMemoryTripStateSource source = new InMemoryTripStateSource(60000);
+        source.published(Long.toString(dvjId), GtfsRealtime.TripUpdate.newBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId(Long.toString(dvjId)))
+                .addAllStopTimeUpdate(other.getStopTimeUpdates(Long.toString(dvjId)))
+                .build(), System.currentTimeMillis());
+
+        TripStateHandoff handoff = new TripStateHandoff(new KeyRangeOwnership(4, 60000), source, 60000);
+        TripUpdateProcessor processor = new TripUpdateProcessor(null, new StringInterner(100),
+                new TripStateGovernor(Long.MAX_VALUE, 1.0, 60000, 60000), handoff);
+        //Range of the trip has just moved to us
+        handoff.onMessage(Long.toString(dvjId), System.currentTimeMillis());
+        addStop(dvjId, 3, 3, processor);
+
+        assertEquals(4, processor.getStopTimeUpdates(Long.toString(dvjId)).size());
+        assertEquals(1, handoff.getSeededTripCount());
+    }
+
     private void addStops(final long dvjId, final int amount, TripUpdateProcessor processor) throws Exception {
         int counter = 0;
         while(counter < amount) {
@@ -229,4 +326,51 @@ public class TripUpdateProcessorTest {
         assertEquals(true, tu.getStopTimeUpdate(0).hasDeparture());
         assertEquals("1", tu.getStopTimeUpdate(0).getStopId());
     }
+
+    @Test
+    public void testReplayWithEventTimeIsEqualToLiveProcessing() {
+        final long startMs = LocalDateTime.of(2020, 1, 15, 5, 0).atZone(ZoneId.of("Europe/Helsinki")).toInstant().toEpochMilli();
+        WorkloadGenerator generator = new WorkloadGenerator(42);
+        generator.setVehicles(30);
+        //Long enough for trip states to expire
+        List<WorkloadGenerator.Event> events = generator.generate(startMs, startMs + Duration.ofHours(6).toMillis());
+
+        //Live processing sees each message at its event time
+        MutableClock liveClock = new MutableClock(startMs);
+        TripUpdateProcessor live = new TripUpdateProcessor(null);
+        live.setClock(liveClock);
+        EventTimeClock replayClock = new EventTimeClock();
+        TripUpdateProcessor replay = new TripUpdateProcessor(null);
+        replay.setClock(replayClock);
+
+        List<GtfsRealtime.TripUpdate> liveOutput = new ArrayList<>();
+        List<GtfsRealtime.TripUpdate> replayOutput = new ArrayList<>();
+        for (WorkloadGenerator.Event event : events) {
+            liveClock.set(event.getTimeMs());
+            process(live, event, new TripUpdateMaxAgeValidator(Duration.ofHours(4).getSeconds(), liveClock), liveOutput);
+            process(replay, event, new TripUpdateMaxAgeValidator(Duration.ofHours(4).getSeconds(), replayClock), replayOutput);
+            assertEquals(event.getTimeMs(), replayClock.millis());
+        }
+
+        assertFalse(liveOutput.isEmpty());
+        assertEquals(liveOutput, replayOutput);
+        assertTrue(replay.getExpiredTripCount() > 0);
+        assertEquals(live.getExpiredTripCount(), replay.getExpiredTripCount());
+        assertEquals(live.getTripCount(), replay.getTripCount());
+
+        //On wall clock time all of the recorded TripUpdates with estimated times are too old
+        TripUpdateMaxAgeValidator wallClockValidator = new TripUpdateMaxAgeValidator(Duration.ofHours(4).getSeconds(), Clock.systemUTC());
+        assertTrue(replayOutput.stream()
+                .filter(tu -> tu.getStopTimeUpdateList().stream().anyMatch(stu ->
+                        stu.getScheduleRelationship() != GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.NO_DATA))
+                .noneMatch(wallClockValidator::validate));
+    }
+
+    private static void process(TripUpdateProcessor processor, WorkloadGenerator.Event event, TripUpdateMaxAgeValidator validator,
+                                List<GtfsRealtime.TripUpdate> output) {
+        final Optional<GtfsRealtime.TripUpdate> tripUpdate = event.getPayload() instanceof InternalMessages.StopEstimate ?
+                processor.processStopEstimate((InternalMessages.StopEstimate) event.getPayload(), event.getTimeMs()) :
+                Optional.of(processor.processTripCancellation(event.getTripId(), event.getTimeMs(), (InternalMessages.TripCancellation) event.getPayload()));
+        tripUpdate.filter(validator::validate).ifPresent(output::add);
+    }
 }
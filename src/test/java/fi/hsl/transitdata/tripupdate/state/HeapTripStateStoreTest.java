@@ -0,0 +1,18 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HeapTripStateStoreTest extends TripStateStoreContract {
+    @Override
+    protected TripStateStore createStore() {
+        return new HeapTripStateStore();
+    }
+
+    @Test
+    public void testNothingIsStoredOutsideOfHeap() {
+        store.put("1", tripState("1", 10, 0));
+        assertEquals(0, store.getStorageBytes());
+    }
+}
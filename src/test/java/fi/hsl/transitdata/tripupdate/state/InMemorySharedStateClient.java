@@ -0,0 +1,82 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stand-in for Redis, optionally simulating the network round-trip of each call.
+ * Expiry is not simulated.
+ */
+public class InMemorySharedStateClient implements SharedStateClient {
+    private final Map<String, byte[]> values = new ConcurrentHashMap<>();
+    private final long roundTripNanos;
+    private final AtomicInteger reads = new AtomicInteger();
+    private final AtomicInteger writes = new AtomicInteger();
+    private volatile boolean failing;
+    private volatile boolean closed;
+
+    public InMemorySharedStateClient() {
+        this(0);
+    }
+
+    public InMemorySharedStateClient(long roundTripMicros) {
+        this.roundTripNanos = TimeUnit.MICROSECONDS.toNanos(roundTripMicros);
+    }
+
+    @Override
+    public byte[] get(String key) {
+        roundTrip();
+        reads.incrementAndGet();
+        return values.get(key);
+    }
+
+    @Override
+    public void setAll(Map<String, byte[]> batch, long ttlMs) {
+        roundTrip();
+        writes.incrementAndGet();
+        values.putAll(batch);
+    }
+
+    private void roundTrip() {
+        if (failing) {
+            throw new IllegalStateException("Connection refused");
+        }
+        if (roundTripNanos > 0) {
+            LockSupport.parkNanos(roundTripNanos);
+        }
+    }
+
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * @return amount of get() calls
+     */
+    public int getReadCount() {
+        return reads.get();
+    }
+
+    /**
+     * @return amount of setAll() calls
+     */
+    public int getWriteCount() {
+        return writes.get();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,67 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyRangeOwnershipTest {
+    @Test
+    public void testRangesAreAcquiredOnFirstMessage() {
+        KeyRangeOwnership ownership = new KeyRangeOwnership(4, 1000);
+        assertTrue(ownership.touch(2, 0));
+        assertFalse(ownership.touch(2, 100));
+        assertTrue(ownership.touch(3, 100));
+        assertEquals(2, ownership.getOwnedCount());
+        assertFalse(ownership.isOwned(0));
+    }
+
+    @Test
+    public void testIdleRangesAreReleased() {
+        KeyRangeOwnership ownership = new KeyRangeOwnership(4, 1000);
+        ownership.touch(0, 0);
+        ownership.touch(1, 0);
+        ownership.touch(1, 600);
+
+        assertEquals(Collections.emptyList(), ownership.releaseIdle(1000));
+        assertEquals(Collections.singletonList(0), ownership.releaseIdle(1001));
+        assertEquals(1, ownership.getOwnedCount());
+        assertEquals(Collections.singletonList(1), ownership.releaseIdle(1601));
+        assertEquals(0, ownership.getOwnedCount());
+
+        //Comes back after release
+        assertTrue(ownership.touch(0, 2000));
+    }
+
+    @Test
+    public void testKeysAreSpreadOverRanges() {
+        KeyRangeOwnership ownership = new KeyRangeOwnership(16, 1000);
+        int[] counts = new int[16];
+        for (long dvjId = 7200000000000000L; dvjId < 7200000000000000L + 16000; dvjId++) {
+            final int range = ownership.rangeOf(Long.toString(dvjId));
+            assertEquals(KeyRangeOwnership.hashSlot(Long.toString(dvjId)) / (KeyRangeOwnership.HASH_RANGE_SIZE / 16), range);
+            counts[range]++;
+        }
+        for (int count : counts) {
+            assertTrue(Arrays.toString(counts), count > 800 && count < 1200);
+        }
+    }
+
+    @Test
+    public void testRangeBoundaries() {
+        KeyRangeOwnership ownership = new KeyRangeOwnership(4, 1000);
+        assertEquals(0, ownership.rangeStart(0));
+        assertEquals(16383, ownership.rangeEnd(0));
+        assertEquals(49152, ownership.rangeStart(3));
+        assertEquals(65535, ownership.rangeEnd(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRangeCountMustBePowerOfTwo() {
+        new KeyRangeOwnership(3, 1000);
+    }
+}
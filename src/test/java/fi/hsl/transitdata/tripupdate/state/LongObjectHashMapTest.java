@@ -0,0 +1,75 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongObjectHashMapTest {
+
+    @Test
+    public void putGetAndRemove() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<>();
+        assertNull(map.put(1L, "a"));
+        assertNull(map.put(0L, "zero"));
+        assertEquals("a", map.put(1L, "b"));
+
+        assertEquals(2, map.size());
+        assertEquals("b", map.get(1L));
+        assertEquals("zero", map.get(0L));
+        assertNull(map.get(2L));
+
+        assertEquals("b", map.remove(1L));
+        assertNull(map.remove(1L));
+        assertEquals(1, map.size());
+        assertFalse(map.containsKey(1L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullValuesAreRejected() {
+        new LongObjectHashMap<String>().put(1L, null);
+    }
+
+    @Test
+    public void behavesLikeHashMapUnderRandomOperations() {
+        LongObjectHashMap<Long> map = new LongObjectHashMap<>(4);
+        Map<Long, Long> reference = new HashMap<>();
+        Random random = new Random(42);
+
+        //Small key range forces lots of collisions, removals and re-insertions of the same keys
+        for (int n = 0; n < 100000; n++) {
+            final long key = 1000000000L + random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                assertEquals(reference.remove(key), map.remove(key));
+            } else {
+                assertEquals(reference.put(key, (long) n), map.put(key, (long) n));
+            }
+            assertEquals(reference.size(), map.size());
+        }
+        for (Map.Entry<Long, Long> entry : reference.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        final int[] iterated = {0};
+        map.forEach((key, value) -> {
+            assertEquals(reference.get(key), value);
+            iterated[0]++;
+        });
+        assertEquals(reference.size(), iterated[0]);
+    }
+
+    @Test
+    public void removeIfRemovesOnlyMatchingValues() {
+        LongObjectHashMap<Integer> map = new LongObjectHashMap<>();
+        for (int n = 0; n < 1000; n++) {
+            map.put(n, n);
+        }
+        assertEquals(500, map.removeIf(value -> value % 2 == 0));
+        assertEquals(500, map.size());
+        for (int n = 0; n < 1000; n++) {
+            assertEquals(n % 2 == 0 ? null : Integer.valueOf(n), map.get(n));
+        }
+    }
+}
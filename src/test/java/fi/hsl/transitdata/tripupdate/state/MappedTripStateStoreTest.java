@@ -0,0 +1,105 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MappedTripStateStoreTest extends TripStateStoreContract {
+    private static final int INITIAL_CAPACITY = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Override
+    protected TripStateStore createStore() throws Exception {
+        file = new File(folder.getRoot(), "trip-state");
+        return new MappedTripStateStore(file.toPath(), INITIAL_CAPACITY, 4);
+    }
+
+    @Test
+    public void testStatesReadFromFileAreInterned() throws Exception {
+        StringInterner interner = new StringInterner(100);
+        MappedTripStateStore mapped = new MappedTripStateStore(new File(folder.getRoot(), "interned").toPath(), INITIAL_CAPACITY, 1, interner);
+        mapped.put("1", tripState("1", 3, 0));
+        mapped.put("2", tripState("2", 3, 0));
+
+        //Evicted from heap by the second trip, so read back from the file
+        TripState state = mapped.get("1");
+        final String stopId = state.getStopTimeUpdates().get(1).getStopId();
+        assertSame(stopId, interner.intern(new String(stopId)));
+        assertSame(stopId, state.getTripUpdate().getStopTimeUpdate(0).getStopId());
+        final String routeId = state.getTripUpdate().getTrip().getRouteId();
+        assertSame(routeId, interner.intern(new String(routeId)));
+        mapped.close();
+    }
+
+    @Test
+    public void testFileGrowsAndSlotsAreReused() {
+        MappedTripStateStore mapped = (MappedTripStateStore) store;
+        for (int n = 0; n < 100; n++) {
+            store.put(Integer.toString(n), tripState(Integer.toString(n), 10, n));
+        }
+        //All but the states on heap have been written to the file
+        assertTrue(mapped.getStorageBytes() >= 96 * 512);
+        final long capacity = mapped.getCapacityBytes();
+        assertTrue(capacity > INITIAL_CAPACITY);
+
+        for (int n = 0; n < 100; n++) {
+            store.remove(Integer.toString(n));
+        }
+        assertEquals(0, mapped.getStorageBytes());
+        for (int n = 100; n < 200; n++) {
+            store.put(Integer.toString(n), tripState(Integer.toString(n), 10, n));
+        }
+        assertEquals(capacity, mapped.getCapacityBytes());
+    }
+
+    @Test
+    public void testSummariesOfSpilledStatesMatchStates() {
+        for (int n = 0; n < 100; n++) {
+            store.put(Integer.toString(n), tripState(Integer.toString(n), 1 + n % 20, n));
+        }
+        Map<String, TripState> states = new HashMap<>();
+        store.forEach(states::put);
+        Map<String, TripStateSummary> summaries = new HashMap<>();
+        store.forEachSummary(summaries::put);
+
+        assertEquals(100, summaries.size());
+        for (Map.Entry<String, TripStateSummary> entry : summaries.entrySet()) {
+            final TripState state = states.get(entry.getKey());
+            final TripStateSummary summary = entry.getValue();
+            assertEquals(state.getWeightBytes(), summary.getWeightBytes());
+            assertEquals(state.getFirstStopTimeSecs(), summary.getFirstStopTimeSecs());
+            assertEquals(state.getLastStopTimeSecs(), summary.getLastStopTimeSecs());
+            assertEquals(state.getLastAccessMs(), summary.getLastAccessMs());
+        }
+    }
+
+    @Test
+    public void testFileIsDeletedOnClose() {
+        store.put("1", tripState("1", 10, 0));
+        assertTrue(file.exists());
+        store.close();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testSlotSizes() {
+        assertEquals(8, MappedTripStateStore.shiftFor(1));
+        assertEquals(8, MappedTripStateStore.shiftFor(256));
+        assertEquals(9, MappedTripStateStore.shiftFor(257));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWorkingSetCantBeEmpty() throws Exception {
+        new MappedTripStateStore(new File(folder.getRoot(), "empty").toPath(), INITIAL_CAPACITY, 0);
+    }
+}
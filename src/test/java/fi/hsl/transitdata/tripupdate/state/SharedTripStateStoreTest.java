@@ -0,0 +1,162 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class SharedTripStateStoreTest extends TripStateStoreContract {
+    private static final long TTL_MS = 4 * 60 * 60 * 1000;
+    //Flushed explicitly in tests
+    private static final long FLUSH_INTERVAL_MS = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InMemorySharedStateClient client = new InMemorySharedStateClient();
+
+    @Override
+    protected TripStateStore createStore() {
+        return createStore(100);
+    }
+
+    private SharedTripStateStore createStore(int maxBatchSize) {
+        return new SharedTripStateStore(new HeapTripStateStore(), client, "trip-state:", TTL_MS, FLUSH_INTERVAL_MS, maxBatchSize);
+    }
+
+    /**
+     * Removal only drops the trip from the near-cache, other instances may still need it
+     */
+    @Override
+    protected void assertRemoved(String tripId) {
+        SharedTripStateStore shared = (SharedTripStateStore) store;
+        final long sharedHits = shared.getSharedHitCount();
+        assertNotNull(store.get(tripId));
+        assertEquals(sharedHits + 1, shared.getSharedHitCount());
+    }
+
+    @Test
+    public void testWritesAreBatchedAndCoalesced() {
+        SharedTripStateStore shared = createStore(100);
+        for (int n = 0; n < 250; n++) {
+            shared.put(Integer.toString(n), tripState(Integer.toString(n), 5, n));
+        }
+        //Modifications before the flush are written once
+        for (int n = 0; n < 250; n++) {
+            shared.get(Integer.toString(n)).touch(1000 + n);
+        }
+        shared.flush(0);
+        assertEquals(250, shared.getPendingCount());
+        assertEquals(0, client.size());
+
+        shared.writePending();
+        assertEquals(3, client.getWriteCount());
+        assertEquals(250, client.size());
+        assertEquals(250, shared.getWrittenStateCount());
+        assertEquals(3, shared.getWrittenBatchCount());
+        assertEquals(0, shared.getPendingCount());
+
+        //Nothing has been accessed since
+        shared.flush(0);
+        shared.writePending();
+        assertEquals(3, client.getWriteCount());
+        shared.close();
+    }
+
+    @Test
+    public void testDirtyStatesAreFlushedOnMaintenanceOnly() throws Exception {
+        //Near-cache keeping a single state on heap, flushed on every maintenance
+        MappedTripStateStore near = new MappedTripStateStore(new File(folder.getRoot(), "near").toPath(), 4096, 1);
+        SharedTripStateStore shared = new SharedTripStateStore(near, client, "trip-state:", TTL_MS, 0, 100);
+        shared.put("1", tripState("1", 5, 0));
+        shared.put("2", tripState("2", 5, 0));
+        TripState state = shared.get("1");
+        state.touch(1000);
+        assertEquals(0, shared.getPendingCount());
+
+        shared.maintain(0);
+        assertEquals(2, shared.getPendingCount());
+        //Flushing didn't evict the state being modified from the near-cache
+        assertSame(state, shared.get("1"));
+        shared.writePending();
+        assertEquals(1000, TripStateCodec.decode(client.get("trip-state:1")).getLastAccessMs());
+        shared.close();
+    }
+
+    @Test
+    public void testStateIsSharedWithOtherInstances() {
+        SharedTripStateStore first = createStore(100);
+        TripState state = tripState("1", 5, 0);
+        state.setScheduleRelationship(GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED);
+        first.put("1", state);
+        first.flush(0);
+        first.writePending();
+
+        SharedTripStateStore second = createStore(100);
+        TripState seen = second.get("1");
+        assertEquals(5, seen.getStopTimeUpdates().size());
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED, seen.getScheduleRelationship());
+        assertEquals(1, second.getSharedHitCount());
+
+        //Served from near-cache from now on
+        second.get("1");
+        assertEquals(1, second.getNearHitCount());
+        assertEquals(1, client.getReadCount());
+
+        assertNull(second.get("2"));
+        assertEquals(1, second.getSharedMissCount());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void testPendingWritesAreReadBeforeTheyReachSharedStore() {
+        SharedTripStateStore shared = createStore(100);
+        shared.put("1", tripState("1", 5, 0));
+        shared.remove("1");
+
+        assertEquals(0, client.size());
+        assertEquals(5, shared.get("1").getStopTimeUpdates().size());
+        assertEquals(0, client.getReadCount());
+        shared.close();
+    }
+
+    @Test
+    public void testFailedWritesAreRetried() {
+        SharedTripStateStore shared = createStore(100);
+        shared.put("1", tripState("1", 5, 0));
+        shared.flush(0);
+
+        client.setFailing(true);
+        shared.writePending();
+        assertEquals(1, shared.getWriteFailureCount());
+        assertEquals(1, shared.getPendingCount());
+        //Failed reads start the trip from empty state
+        assertNull(shared.get("2"));
+        assertEquals(1, shared.getReadFailureCount());
+
+        client.setFailing(false);
+        shared.writePending();
+        assertEquals(1, client.size());
+        assertEquals(0, shared.getPendingCount());
+        shared.close();
+    }
+
+    @Test
+    public void testPendingStatesAreWrittenOnClose() {
+        SharedTripStateStore shared = createStore(100);
+        shared.start();
+        shared.put("1", tripState("1", 5, 0));
+        shared.maintain(0);
+        //Modified after the last flush
+        shared.get("1").touch(1000);
+        shared.close();
+        assertEquals(1, client.size());
+        assertEquals(1000, TripStateCodec.decode(client.get("trip-state:1")).getLastAccessMs());
+        assertTrue(client.isClosed());
+    }
+}
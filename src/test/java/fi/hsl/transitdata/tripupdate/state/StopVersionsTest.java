@@ -0,0 +1,50 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class StopVersionsTest {
+
+    @Test
+    public void olderEstimatesAreStale() {
+        StopVersions versions = new StopVersions();
+        assertEquals(StopVersions.Result.NEWER, versions.advance(1, false, 2000, 0));
+        assertEquals(StopVersions.Result.STALE, versions.advance(1, false, 1000, 5000));
+        assertEquals(StopVersions.Result.DUPLICATE, versions.advance(1, false, 2000, 0));
+        assertEquals(StopVersions.Result.NEWER, versions.advance(1, false, 3000, 0));
+    }
+
+    @Test
+    public void eventTimeBreaksTiesOfLastModified() {
+        StopVersions versions = new StopVersions();
+        assertEquals(StopVersions.Result.NEWER, versions.advance(1, false, 2000, 100));
+        assertEquals(StopVersions.Result.STALE, versions.advance(1, false, 2000, 50));
+        assertEquals(StopVersions.Result.NEWER, versions.advance(1, false, 2000, 200));
+    }
+
+    @Test
+    public void stopsAndEventTypesAreVersionedSeparately() {
+        StopVersions versions = new StopVersions();
+        assertEquals(StopVersions.Result.NEWER, versions.advance(1, true, 2000, 0));
+        assertEquals(StopVersions.Result.NEWER, versions.advance(1, false, 1000, 0));
+        assertEquals(StopVersions.Result.NEWER, versions.advance(2, true, 1000, 0));
+        assertEquals(StopVersions.Result.NEWER, versions.advance(40, true, 1000, 0));
+        assertEquals(StopVersions.Result.STALE, versions.advance(1, true, 1000, 0));
+    }
+
+    @Test
+    public void zeroTimestampsAreValidFirstVersion() {
+        StopVersions versions = new StopVersions();
+        assertEquals(StopVersions.Result.NEWER, versions.advance(0, false, 0, 0));
+        assertEquals(StopVersions.Result.DUPLICATE, versions.advance(0, false, 0, 0));
+    }
+
+    @Test
+    public void stopSequencesOutOfRangeAreNotGuarded() {
+        StopVersions versions = new StopVersions();
+        assertEquals(StopVersions.Result.NEWER, versions.advance(StopVersions.MAX_STOP_SEQUENCE + 1, false, 2000, 0));
+        assertEquals(StopVersions.Result.NEWER, versions.advance(StopVersions.MAX_STOP_SEQUENCE + 1, false, 1000, 0));
+        assertEquals(StopVersions.Result.NEWER, versions.advance(-1, false, 1000, 0));
+    }
+}
@@ -0,0 +1,41 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StringInternerTest {
+
+    @Test
+    public void equalValuesShareOneInstance() {
+        StringInterner interner = new StringInterner(100);
+        String first = interner.intern(new String("1010"));
+        String second = interner.intern(new String("1010"));
+
+        assertSame(first, second);
+        assertEquals(1, interner.size());
+        assertEquals(1, interner.getHitCount());
+        assertNull(interner.intern(null));
+    }
+
+    @Test
+    public void poolIsClearedWhenFull() {
+        StringInterner interner = new StringInterner(2);
+        String first = interner.intern(new String("20200101"));
+        interner.intern("20200102");
+        interner.intern("20200103");
+
+        assertEquals(1, interner.getResetCount());
+        assertEquals(1, interner.size());
+        //Old instance is still a valid value, it just isn't the canonical one anymore
+        assertNotSame(first, interner.intern(new String("20200101")));
+    }
+
+    @Test
+    public void disabledInternerReturnsInputAsIs() {
+        StringInterner interner = StringInterner.disabled();
+        String value = new String("H1234");
+        assertSame(value, interner.intern(value));
+        assertEquals(0, interner.size());
+    }
+}
@@ -0,0 +1,92 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import org.HdrHistogram.Histogram;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class TieredTripStateStoreTest extends TripStateStoreContract {
+    private static final long NOW_MS = 1577872800000L;
+    private static final long IDLE_THRESHOLD_MS = 10 * 60 * 1000;
+    private static final long FUTURE_HORIZON_MS = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Override
+    protected TripStateStore createStore() throws Exception {
+        //Conformance tests spill everything they haven't accessed on maintenance
+        return createStore(0, FUTURE_HORIZON_MS);
+    }
+
+    private TieredTripStateStore createStore(long idleThresholdMs, long futureHorizonMs) throws Exception {
+        MappedTripStateStore spilled = new MappedTripStateStore(new File(folder.getRoot(), "spill-" + idleThresholdMs).toPath(), 4096, 1);
+        return new TieredTripStateStore(spilled, idleThresholdMs, futureHorizonMs);
+    }
+
+    @Test
+    public void testIdleAndFutureTripsAreSpilled() throws Exception {
+        TieredTripStateStore tiered = createStore(IDLE_THRESHOLD_MS, FUTURE_HORIZON_MS);
+        //Running trip with recent messages
+        tiered.put("1", tripState("1", 5, NOW_MS - 1000));
+        //Running trip without messages lately
+        tiered.put("2", tripState("2", 5, NOW_MS - 2 * IDLE_THRESHOLD_MS));
+        //Trip starting in two hours, stop times of test trips start a minute after last access
+        tiered.put("3", tripState("3", 5, NOW_MS + 2 * FUTURE_HORIZON_MS));
+
+        tiered.maintain(NOW_MS);
+        assertEquals(1, tiered.getHeapSize());
+        assertEquals(2, tiered.getSpilledSize());
+        assertEquals(2, tiered.getSpillCount());
+        assertTrue(tiered.getStorageBytes() > 0);
+        assertEquals(3, tiered.size());
+        tiered.close();
+    }
+
+    @Test
+    public void testSpillingIsThrottled() throws Exception {
+        TieredTripStateStore tiered = createStore(IDLE_THRESHOLD_MS, FUTURE_HORIZON_MS);
+        tiered.maintain(NOW_MS);
+        tiered.put("1", tripState("1", 5, NOW_MS - 2 * IDLE_THRESHOLD_MS));
+        tiered.maintain(NOW_MS + 1000);
+        assertEquals(1, tiered.getHeapSize());
+
+        tiered.maintain(NOW_MS + TieredTripStateStore.SPILL_INTERVAL_MS);
+        assertEquals(0, tiered.getHeapSize());
+        tiered.close();
+    }
+
+    @Test
+    public void testSpilledTripIsPromotedOnAccess() throws Exception {
+        TieredTripStateStore tiered = createStore(IDLE_THRESHOLD_MS, FUTURE_HORIZON_MS);
+        tiered.put("1", tripState("1", 5, NOW_MS - 2 * IDLE_THRESHOLD_MS));
+        tiered.maintain(NOW_MS);
+        assertEquals(0, tiered.getHeapSize());
+
+        TripState promoted = tiered.get("1");
+        assertEquals(5, promoted.getStopTimeUpdates().size());
+        assertEquals(1, tiered.getHeapSize());
+        assertEquals(0, tiered.getSpilledSize());
+        assertEquals(0, tiered.getStorageBytes());
+
+        //Promoted state is the one on heap from now on
+        promoted.touch(NOW_MS + TieredTripStateStore.SPILL_INTERVAL_MS);
+        assertSame(promoted, tiered.get("1"));
+        tiered.maintain(NOW_MS + TieredTripStateStore.SPILL_INTERVAL_MS);
+        assertEquals(1, tiered.getHeapSize());
+
+        assertNull(tiered.get("2"));
+        assertEquals(1, tiered.getHitCount());
+        assertEquals(1, tiered.getMissCount());
+        assertEquals(1, tiered.getPromotionCount());
+
+        Histogram latencies = tiered.takePromotionLatencies();
+        assertEquals(1, latencies.getTotalCount());
+        assertEquals(0, tiered.takePromotionLatencies().getTotalCount());
+        tiered.close();
+    }
+}
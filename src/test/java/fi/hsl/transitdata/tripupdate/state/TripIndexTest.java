@@ -0,0 +1,79 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TripIndexTest {
+
+    @Test
+    public void canonicalNumericIdsAreParsed() {
+        assertEquals(0L, TripIndex.numericKey("0"));
+        assertEquals(1234567890L, TripIndex.numericKey("1234567890"));
+        assertEquals(999999999999999999L, TripIndex.numericKey("999999999999999999"));
+    }
+
+    @Test
+    public void nonCanonicalIdsAreNotNumeric() {
+        assertEquals(TripIndex.NOT_NUMERIC, TripIndex.numericKey(""));
+        assertEquals(TripIndex.NOT_NUMERIC, TripIndex.numericKey("0123"));
+        assertEquals(TripIndex.NOT_NUMERIC, TripIndex.numericKey("-1"));
+        assertEquals(TripIndex.NOT_NUMERIC, TripIndex.numericKey("+1"));
+        assertEquals(TripIndex.NOT_NUMERIC, TripIndex.numericKey("9999999999999999999"));
+        assertEquals(TripIndex.NOT_NUMERIC, TripIndex.numericKey("2550_20200101_10:00:00_1"));
+    }
+
+    @Test
+    public void numericAndGeneratedIdsAreStoredSeparately() {
+        TripIndex<String> index = new TripIndex<>();
+        index.put("1234567890", "numeric");
+        index.put("2550_20200101_10:00:00_1", "generated");
+        index.put("01234567890", "leading-zero");
+
+        assertEquals(3, index.size());
+        assertEquals(1, index.numericSize());
+        assertEquals("numeric", index.get("1234567890"));
+        assertEquals("generated", index.get("2550_20200101_10:00:00_1"));
+        assertEquals("leading-zero", index.get("01234567890"));
+
+        Map<String, String> iterated = new HashMap<>();
+        index.forEach(iterated::put);
+        assertEquals(3, iterated.size());
+        assertEquals("numeric", iterated.get("1234567890"));
+        assertEquals("leading-zero", iterated.get("01234567890"));
+
+        assertEquals("numeric", index.remove("1234567890"));
+        assertNull(index.get("1234567890"));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void computeIfAbsentCreatesOnlyOnce() {
+        TripIndex<StringBuilder> index = new TripIndex<>();
+        StringBuilder first = index.computeIfAbsent("42", id -> new StringBuilder(id));
+        StringBuilder second = index.computeIfAbsent("42", id -> new StringBuilder("other"));
+        assertSame(first, second);
+
+        StringBuilder generated = index.computeIfAbsent("trip_1", StringBuilder::new);
+        assertSame(generated, index.computeIfAbsent("trip_1", id -> new StringBuilder()));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void removeIfCoversBothKeyTypes() {
+        TripIndex<Integer> index = new TripIndex<>();
+        index.put("1", 1);
+        index.put("2", 2);
+        index.put("trip_3", 3);
+        index.put("trip_4", 4);
+
+        assertEquals(2, index.removeIf(value -> value % 2 == 1));
+        assertEquals(2, index.size());
+        assertNull(index.get("1"));
+        assertNull(index.get("trip_3"));
+        assertEquals(Integer.valueOf(4), index.get("trip_4"));
+    }
+}
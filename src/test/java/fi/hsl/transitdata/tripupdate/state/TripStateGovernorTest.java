@@ -0,0 +1,105 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TripStateGovernorTest {
+    private static final long NOW_MS = 1577872800000L;
+    private static final long IDLE_THRESHOLD_MS = 30 * 60 * 1000;
+    private static final long FINISHED_GRACE_MS = 30 * 60 * 1000;
+
+    private static TripState addTrip(TripStateStore states, TripStateGovernor governor, String tripId,
+                                     long lastAccessMs, long lastStopTimeMs) {
+        TripState state = new TripState();
+        GtfsRealtime.TripUpdate.StopTimeEvent event = GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder()
+                .setTime(lastStopTimeMs / 1000)
+                .build();
+        state.getStopTimeUpdates().put(1, GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                .setStopSequence(1)
+                .setDeparture(event)
+                .build());
+        state.touch(lastAccessMs);
+        states.put(tripId, state);
+        governor.allocated(state.getWeightBytes());
+        return state;
+    }
+
+    @Test
+    public void nothingIsShedWithinBudget() {
+        TripStateStore states = new HeapTripStateStore();
+        TripStateGovernor governor = new TripStateGovernor(10 * weightOfOneStopTrip(), 1.0, IDLE_THRESHOLD_MS, FINISHED_GRACE_MS);
+        for (int n = 0; n < 10; n++) {
+            addTrip(states, governor, Integer.toString(n), NOW_MS, NOW_MS);
+        }
+        assertEquals(0, governor.maybeShed(states, NOW_MS));
+        assertEquals(10, states.size());
+        assertEquals(0, governor.getBudgetTriggerCount());
+    }
+
+    @Test
+    public void finishedAndIdleTripsAreShedBeforeActiveOnes() {
+        TripStateStore states = new HeapTripStateStore();
+        TripStateGovernor governor = new TripStateGovernor(4 * weightOfOneStopTrip(), 1.0, IDLE_THRESHOLD_MS, FINISHED_GRACE_MS);
+
+        addTrip(states, governor, "1", NOW_MS, NOW_MS - 2 * FINISHED_GRACE_MS); //finished
+        addTrip(states, governor, "2", NOW_MS - 2 * IDLE_THRESHOLD_MS, NOW_MS + 60000); //idle
+        addTrip(states, governor, "3", NOW_MS - 1000, NOW_MS + 60000);
+        addTrip(states, governor, "4", NOW_MS, NOW_MS + 60000);
+        addTrip(states, governor, "5", NOW_MS, NOW_MS + 60000);
+
+        //Target is 80% of budget, so three trips can remain
+        assertEquals(2, governor.maybeShed(states, NOW_MS));
+        assertNull(states.get("1"));
+        assertNull(states.get("2"));
+        assertNotNull(states.get("3"));
+        assertEquals(1, governor.getShedCount(TripStateGovernor.ShedReason.FINISHED));
+        assertEquals(1, governor.getShedCount(TripStateGovernor.ShedReason.IDLE));
+        assertEquals(0, governor.getShedCount(TripStateGovernor.ShedReason.LEAST_RECENTLY_USED));
+        assertEquals(1, governor.getBudgetTriggerCount());
+        assertEquals(3 * weightOfOneStopTrip(), governor.getWeightBytes());
+    }
+
+    @Test
+    public void everyIdleTripIsShedBeforeActiveOnes() {
+        TripStateStore states = new HeapTripStateStore();
+        TripStateGovernor governor = new TripStateGovernor(5 * weightOfOneStopTrip(), 1.0, IDLE_THRESHOLD_MS, FINISHED_GRACE_MS);
+        for (int n = 0; n < 3; n++) {
+            addTrip(states, governor, "idle-" + n, NOW_MS - 2 * IDLE_THRESHOLD_MS, NOW_MS + 60000);
+            addTrip(states, governor, "active-" + n, NOW_MS - n * 1000, NOW_MS + 60000);
+        }
+
+        //Shedding two trips would be enough to get to the target, but all idle ones go
+        assertEquals(3, governor.maybeShed(states, NOW_MS));
+        assertEquals(3, governor.getShedCount(TripStateGovernor.ShedReason.IDLE));
+        assertEquals(0, governor.getShedCount(TripStateGovernor.ShedReason.LEAST_RECENTLY_USED));
+        for (int n = 0; n < 3; n++) {
+            assertNotNull(states.get("active-" + n));
+        }
+    }
+
+    @Test
+    public void heapOccupancyIsAFractionOfMaxHeap() {
+        final double occupancy = new TripStateGovernor(weightOfOneStopTrip(), 0.9, IDLE_THRESHOLD_MS, FINISHED_GRACE_MS).heapOccupancy();
+        assertTrue(occupancy >= 0 && occupancy <= 1);
+    }
+
+    @Test
+    public void leastRecentlyUsedTripsAreShedWhenNothingElseIsLeft() {
+        TripStateStore states = new HeapTripStateStore();
+        TripStateGovernor governor = new TripStateGovernor(2 * weightOfOneStopTrip(), 1.0, IDLE_THRESHOLD_MS, FINISHED_GRACE_MS);
+
+        addTrip(states, governor, "1", NOW_MS - 2000, NOW_MS + 60000);
+        addTrip(states, governor, "2", NOW_MS - 1000, NOW_MS + 60000);
+        addTrip(states, governor, "3", NOW_MS, NOW_MS + 60000);
+
+        assertEquals(2, governor.maybeShed(states, NOW_MS));
+        assertNotNull(states.get("3"));
+        assertEquals(2, governor.getShedCount(TripStateGovernor.ShedReason.LEAST_RECENTLY_USED));
+    }
+
+    private static long weightOfOneStopTrip() {
+        return TripState.BASE_WEIGHT_BYTES + TripState.STOP_WEIGHT_BYTES;
+    }
+}
@@ -0,0 +1,113 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TripStateHandoffTest {
+    private static final long RELEASE_AFTER_MS = 10000;
+    private static final long HANDOFF_WINDOW_MS = 1000;
+
+    private final InMemoryTripStateSource source = new InMemoryTripStateSource(RELEASE_AFTER_MS);
+    private final TripStateHandoff handoff = new TripStateHandoff(new KeyRangeOwnership(4, RELEASE_AFTER_MS), source, HANDOFF_WINDOW_MS);
+
+    @Test
+    public void testTripStateIsSeededFromSource() {
+        source.published("1", tripUpdate("1", GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED, 3), 0);
+
+        handoff.onMessage("1", 0);
+        Optional<TripState> seeded = handoff.seed("1", 10);
+        assertTrue(seeded.isPresent());
+        assertEquals(3, seeded.get().getStopTimeUpdates().size());
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED, seeded.get().getScheduleRelationship());
+        assertEquals(1, handoff.getSeededTripCount());
+
+        handoff.onMessage("2", 0);
+        assertFalse(handoff.seed("2", 10).isPresent());
+        assertEquals(1, handoff.getSeedMissCount());
+    }
+
+    @Test
+    public void testCancelledTripIsSeededWithoutScheduleRelationship() {
+        source.published("1", tripUpdate("1", GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED, 0), 0);
+
+        handoff.onMessage("1", 0);
+        TripState seeded = handoff.seed("1", 0).get();
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED, seeded.getTripUpdate().getTrip().getScheduleRelationship());
+        assertEquals(null, seeded.getScheduleRelationship());
+    }
+
+    @Test
+    public void testStopsWithoutStopSequenceAreNotSeeded() {
+        GtfsRealtime.TripUpdate published = tripUpdate("1", GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED, 3);
+        GtfsRealtime.TripUpdate.Builder withoutSequences = published.toBuilder();
+        withoutSequences.getStopTimeUpdateBuilderList().forEach(GtfsRealtime.TripUpdate.StopTimeUpdate.Builder::clearStopSequence);
+        source.published("1", withoutSequences.build(), 0);
+
+        handoff.onMessage("1", 0);
+        TripState seeded = handoff.seed("1", 0).get();
+        assertEquals(0, seeded.getStopTimeUpdates().size());
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED, seeded.getScheduleRelationship());
+    }
+
+    @Test
+    public void testTripsAreSeededOnlyWithinHandoffWindow() {
+        source.published("1", tripUpdate("1", GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED, 3), 0);
+
+        //Range not acquired
+        assertFalse(handoff.seed("1", 0).isPresent());
+        handoff.onMessage("1", 0);
+        assertFalse(handoff.seed("1", HANDOFF_WINDOW_MS).isPresent());
+        assertEquals(0, handoff.getSeededTripCount());
+        assertEquals(0, handoff.getSeedMissCount());
+    }
+
+    @Test
+    public void testSourceForgetsOldTripUpdates() {
+        source.published("1", tripUpdate("1", GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED, 3), 0);
+        //Purged at most once a minute
+        source.published("2", tripUpdate("2", GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED, 3), 30000);
+        assertEquals(2, source.size());
+
+        source.published("3", tripUpdate("3", GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED, 3), 60000);
+        assertEquals(1, source.size());
+        assertFalse(source.latest("1").isPresent());
+        assertTrue(source.latest("3").isPresent());
+    }
+
+    @Test
+    public void testStateOfReleasedRangesIsDropped() {
+        TripStateStore states = new HeapTripStateStore();
+        handoff.onMessage("1", 0);
+        states.put("1", new TripState());
+        assertEquals(1, handoff.getAcquiredRangeCount());
+
+        //Handoff is reported but the range is still ours
+        assertEquals(0, handoff.maintain(states, HANDOFF_WINDOW_MS));
+        assertEquals(1, states.size());
+
+        final long released = handoff.maintain(states, RELEASE_AFTER_MS + 1);
+        assertEquals(TripState.BASE_WEIGHT_BYTES, released);
+        assertEquals(0, states.size());
+        assertEquals(1, handoff.getReleasedRangeCount());
+
+        handoff.onMessage("1", RELEASE_AFTER_MS + 2);
+        assertEquals(2, handoff.getAcquiredRangeCount());
+    }
+
+    private static GtfsRealtime.TripUpdate tripUpdate(String tripId, GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship, int stops) {
+        GtfsRealtime.TripUpdate.Builder builder = GtfsRealtime.TripUpdate.newBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId(tripId).setScheduleRelationship(scheduleRelationship));
+        for (int stopSequence = 1; stopSequence <= stops; stopSequence++) {
+            builder.addStopTimeUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                    .setStopSequence(stopSequence)
+                    .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(1000 + stopSequence)));
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,214 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Behaviour expected from every TripStateStore. Each backend has a test class extending this one.
+ *
+ * Stores are accessed with enough trips and maintenance in between to push states out of any working set a backend
+ * keeps on heap.
+ */
+public abstract class TripStateStoreContract {
+    private static final int TRIP_COUNT = 200;
+    private static final long NOW_MS = 1577872800000L;
+
+    protected TripStateStore store;
+
+    protected abstract TripStateStore createStore() throws Exception;
+
+    @Before
+    public void setUp() throws Exception {
+        store = createStore();
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    static TripState tripState(String tripId, int stopCount, long lastAccessMs) {
+        TripState state = new TripState();
+        for (int stopSequence = 1; stopSequence <= stopCount; stopSequence++) {
+            state.getStopTimeUpdates().put(stopSequence, GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                    .setStopSequence(stopSequence)
+                    .setStopId(Integer.toString(1000000 + stopSequence))
+                    .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(lastAccessMs / 1000 + stopSequence * 60))
+                    .build());
+            state.getStopVersions().advance(stopSequence, false, lastAccessMs, lastAccessMs);
+        }
+        state.setTripUpdate(GtfsRealtime.TripUpdate.newBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId(tripId).setRouteId("1010"))
+                .addAllStopTimeUpdate(state.getStopTimeUpdates().values())
+                .build());
+        state.setScheduleRelationship(GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED);
+        state.touch(lastAccessMs);
+        return state;
+    }
+
+    /**
+     * Asserts that the trip has been removed. Stores that share state with other instances may restore it on next lookup.
+     */
+    protected void assertRemoved(String tripId) {
+        assertNull(store.get(tripId));
+    }
+
+    private void putTrips(int count) {
+        for (int n = 0; n < count; n++) {
+            store.put(Integer.toString(n), tripState(Integer.toString(n), 1 + n % 20, NOW_MS + n));
+        }
+        store.maintain(NOW_MS + count);
+    }
+
+    @Test
+    public void testUnknownTripIsNull() {
+        assertNull(store.get("1"));
+        assertNull(store.remove("1"));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testStatesAreKeptIntact() {
+        putTrips(TRIP_COUNT);
+        //Both numeric and other trip IDs are supported
+        store.put("generated-1", tripState("generated-1", 3, NOW_MS));
+        assertEquals(TRIP_COUNT + 1, store.size());
+
+        for (int n = 0; n < TRIP_COUNT; n++) {
+            final TripState expected = tripState(Integer.toString(n), 1 + n % 20, NOW_MS + n);
+            final TripState actual = store.get(Integer.toString(n));
+            assertEquals(expected.getTripUpdate(), actual.getTripUpdate());
+            assertEquals(expected.getStopTimeUpdates(), actual.getStopTimeUpdates());
+            assertEquals(expected.getScheduleRelationship(), actual.getScheduleRelationship());
+            assertEquals(expected.getLastAccessMs(), actual.getLastAccessMs());
+            assertEquals(StopVersions.Result.DUPLICATE, actual.getStopVersions().advance(1, false, NOW_MS + n, NOW_MS + n));
+        }
+        assertEquals(3, store.get("generated-1").getStopTimeUpdates().size());
+    }
+
+    @Test
+    public void testChangesInPlaceArePersisted() {
+        putTrips(TRIP_COUNT);
+        TripState state = store.get("5");
+        state.getStopTimeUpdates().remove(1);
+        state.setScheduleRelationship(GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED);
+        state.getStopVersions().advance(2, true, NOW_MS, NOW_MS);
+        state.touch(NOW_MS + 100000);
+
+        for (int n = 0; n < TRIP_COUNT; n++) {
+            store.get(Integer.toString(n));
+        }
+        store.maintain(NOW_MS + 200000);
+
+        TripState changed = store.get("5");
+        assertFalse(changed.getStopTimeUpdates().containsKey(1));
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED, changed.getScheduleRelationship());
+        assertEquals(StopVersions.Result.DUPLICATE, changed.getStopVersions().advance(2, true, NOW_MS, NOW_MS));
+        assertEquals(NOW_MS + 100000, changed.getLastAccessMs());
+    }
+
+    @Test
+    public void testStatesCanGrow() {
+        putTrips(TRIP_COUNT);
+        TripState state = store.get("0");
+        for (int stopSequence = 2; stopSequence <= 100; stopSequence++) {
+            state.getStopTimeUpdates().put(stopSequence, GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder().setStopSequence(stopSequence).build());
+        }
+        for (int n = 1; n < TRIP_COUNT; n++) {
+            store.get(Integer.toString(n));
+        }
+        store.maintain(NOW_MS + 200000);
+        assertEquals(100, store.get("0").getStopTimeUpdates().size());
+        assertEquals(2, store.get("1").getStopTimeUpdates().size());
+    }
+
+    @Test
+    public void testPeekDoesNotCountAsAccess() {
+        putTrips(TRIP_COUNT);
+        TripState state = store.get("5");
+        state.touch(NOW_MS + 100000);
+        for (int n = 0; n < TRIP_COUNT; n++) {
+            final TripState peeked = TripStateCodec.decode(store.peekEncoded(Integer.toString(n)));
+            assertEquals(1 + n % 20, peeked.getStopTimeUpdates().size());
+        }
+        //Peeking at other trips didn't push the state being modified out of heap
+        assertSame(state, store.get("5"));
+        assertEquals(NOW_MS + 100000, TripStateCodec.decode(store.peekEncoded("5")).getLastAccessMs());
+        assertNull(store.peekEncoded("unknown"));
+    }
+
+    @Test
+    public void testRemove() {
+        putTrips(TRIP_COUNT);
+        TripState removed = store.remove("7");
+        assertEquals(8, removed.getStopTimeUpdates().size());
+        assertNull(store.remove("7"));
+        assertEquals(TRIP_COUNT - 1, store.size());
+        assertRemoved("7");
+    }
+
+    @Test
+    public void testComputeIfAbsentCreatesStateOnce() {
+        AtomicInteger created = new AtomicInteger();
+        TripState first = store.computeIfAbsent("1", tripId -> {
+            created.incrementAndGet();
+            return tripState(tripId, 1, NOW_MS);
+        });
+        first.setScheduleRelationship(GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED);
+        putTrips(TRIP_COUNT);
+        store.put("1", first);
+
+        TripState second = store.computeIfAbsent("1", tripId -> {
+            created.incrementAndGet();
+            return new TripState();
+        });
+        assertEquals(1, created.get());
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED, second.getScheduleRelationship());
+    }
+
+    @Test
+    public void testForEachVisitsEveryState() {
+        putTrips(TRIP_COUNT);
+        Map<String, Integer> stopCounts = new HashMap<>();
+        store.forEach((tripId, state) -> stopCounts.put(tripId, state.getStopTimeUpdates().size()));
+        assertEquals(TRIP_COUNT, stopCounts.size());
+        for (int n = 0; n < TRIP_COUNT; n++) {
+            assertEquals(1 + n % 20, (int) stopCounts.get(Integer.toString(n)));
+        }
+    }
+
+    @Test
+    public void testRemoveIf() {
+        putTrips(TRIP_COUNT);
+        assertEquals(TRIP_COUNT / 2, store.removeIf(state -> state.getLastAccessMs() % 2 == 0));
+        assertEquals(TRIP_COUNT / 2, store.size());
+        assertNotNull(store.get("1"));
+
+        assertEquals(1, store.removeEntriesIf((tripId, state) -> tripId.equals("1")));
+        assertEquals(TRIP_COUNT / 2 - 1, store.size());
+        assertRemoved("0");
+        assertRemoved("1");
+    }
+
+    @Test
+    public void testExpiryHookSeesExpiredStates() {
+        putTrips(TRIP_COUNT);
+        AtomicInteger hooked = new AtomicInteger();
+        assertEquals(10, store.expire(NOW_MS + 10, state -> {
+            assertTrue(state.getLastAccessMs() < NOW_MS + 10);
+            hooked.incrementAndGet();
+        }));
+        assertEquals(10, hooked.get());
+        assertEquals(TRIP_COUNT - 10, store.size());
+        assertNotNull(store.get("10"));
+        assertRemoved("9");
+    }
+}
@@ -4,6 +4,9 @@ import com.google.transit.realtime.GtfsRealtime;
 import fi.hsl.transitdata.tripupdate.MockDataFactory;
 import org.junit.Test;
 
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Collection;
 
@@ -61,4 +64,18 @@ public class TripUpdateMaxAgeValidatorTest {
         assertEquals(true, validator.validateWithCurrentTime(tripUpdate, 1541611740));
 
     }
+
+    @Test
+    public void tripUpdateIsValidatedWithTimeOfClock() {
+
+        Collection<GtfsRealtime.TripUpdate.StopTimeUpdate> stopTimeUpdates = new ArrayList<>();
+        //2018-11-07T17:30:00 in Helsinki/Europe
+        stopTimeUpdates.add(MockDataFactory.mockStopTimeUpdate("B", 0, 1541604600));
+        GtfsRealtime.TripUpdate tripUpdate = MockDataFactory.mockTripUpdate("1010", 0, "20181107", "17:14:00", stopTimeUpdates);
+
+        //2 hours max age, validated with 2018-11-07T19:29:00 and 2018-11-07T19:31:00
+        assertEquals(true, new TripUpdateMaxAgeValidator(7200, Clock.fixed(Instant.ofEpochSecond(1541611740), ZoneOffset.UTC)).validate(tripUpdate));
+        assertEquals(false, new TripUpdateMaxAgeValidator(7200, Clock.fixed(Instant.ofEpochSecond(1541611860), ZoneOffset.UTC)).validate(tripUpdate));
+
+    }
 }